@@ -12,6 +12,8 @@ package com.efficios.jabberwocky.analysis.statesystem
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter
 import ca.polymtl.dorsal.libdelorean.StateSystemFactory
+import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend
+import ca.polymtl.dorsal.libdelorean.backend.PartialHistoryBackend
 import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory
 import com.efficios.jabberwocky.analysis.IAnalysis
 import com.efficios.jabberwocky.analysis.IAnalysis.Companion.ANALYSES_DIRECTORY
@@ -22,11 +24,15 @@ import com.efficios.jabberwocky.task.JabberwockyTask
 import com.efficios.jabberwocky.trace.event.TraceEvent
 import java.io.IOException
 import java.nio.file.Files
+import java.nio.file.Path
 
 abstract class StateSystemAnalysis : IAnalysis {
 
     companion object {
         private const val HISTORY_FILE_EXTENSION = ".ht"
+
+        /* History files of large traces are mostly zero-padding, store them compressed */
+        private const val COMPRESS_HISTORY_FILES = true
     }
 
     final override fun execute(project: TraceProject<*, *>, range: TimeRange?, extraParams: String?): IStateSystemReader {
@@ -41,22 +47,37 @@ abstract class StateSystemAnalysis : IAnalysis {
             if (!Files.exists(analysesDirectory)) Files.createDirectory(analysesDirectory)
 
             val stateSystemFile = analysesDirectory.resolve(analysisClassName + HISTORY_FILE_EXTENSION)
+
+            if (checkpointInterval > 0) {
+                return@JabberwockyTask partialHistory(project, analysisClassName, analysesDirectory)
+            }
+
             var newFile = !Files.exists(stateSystemFile)
 
-            /* Create the history tree backend we will use */
-            val htBackend = if (Files.exists(stateSystemFile)) {
+            /*
+             * Create the backend we will use. New histories are built in memory, and only
+             * written to a history tree file if they get large.
+             */
+            val backend = if (Files.exists(stateSystemFile)) {
                 try {
                     StateHistoryBackendFactory.createHistoryTreeBackendExistingFile(analysisClassName, stateSystemFile.toFile(), providerVersion)
                 } catch (e: IOException) {
-                    /* The expected provider version may not match what we have on disk. Try building the file from scratch instead */
+                    /*
+                     * The expected provider version may not match what we have on disk. Try building the file from scratch instead.
+                     * Delete the stale file first: a small history stays in memory, and would never replace it.
+                     */
                     newFile = true
-                    StateHistoryBackendFactory.createHistoryTreeBackendNewFile(analysisClassName, stateSystemFile.toFile(), providerVersion, project.startTime)
+                    Files.delete(stateSystemFile)
+                    StateHistoryBackendFactory.createHybridBackend(analysisClassName, stateSystemFile.toFile(), providerVersion, project.startTime, COMPRESS_HISTORY_FILES)
                 }
             } else {
-                StateHistoryBackendFactory.createHistoryTreeBackendNewFile(analysisClassName, stateSystemFile.toFile(), providerVersion, project.startTime)
+                StateHistoryBackendFactory.createHybridBackend(analysisClassName, stateSystemFile.toFile(), providerVersion, project.startTime, COMPRESS_HISTORY_FILES)
             }
 
-            val ss = StateSystemFactory.newStateSystem(htBackend, newFile)
+            /* If the trace got new events since the history file was built, only process those */
+            if (!newFile) resumeIfGrown(project, backend)?.let { return@JabberwockyTask it }
+
+            val ss = StateSystemFactory.newStateSystem(backend, newFile)
             /* If there was a history file already built, it should be good to go. If not, build it */
             if (newFile) buildForProject(project, ss)
             ss
@@ -65,16 +86,18 @@ abstract class StateSystemAnalysis : IAnalysis {
         return task.get()
     }
 
-    private fun buildForProject(project: TraceProject<*, *>, stateSystem: IStateSystemWriter) {
+    private fun buildForProject(project: TraceProject<*, *>, stateSystem: IStateSystemWriter, from: Long = project.startTime) {
         val traces = filterTraces(project)
         val trackedState = trackedState()
         // TODO This iteration could eventually move to a central location, so that the events are
         // read once then dispatched to several "state providers".
         // However some analyses may not need all events from all traces in a project. We'll see...
-        var latestTimestamp = project.startTime
+        var latestTimestamp = from
         traces.iterator().use {
+            if (from > project.startTime) it.seek(from)
             while (it.hasNext()) {
                 val event = it.next()
+                if (event.timestamp < from) continue
                 handleEvent(stateSystem, event, trackedState)
                 latestTimestamp = event.timestamp
             }
@@ -82,8 +105,85 @@ abstract class StateSystemAnalysis : IAnalysis {
         stateSystem.closeHistory(latestTimestamp)
     }
 
+    /**
+     * If the project has events after the end of the given history, which was
+     * already built, resume building it and process only those new events.
+     * Returns null if there is nothing new, or if this analysis does not
+     * support it.
+     */
+    private fun resumeIfGrown(project: TraceProject<*, *>, backend: IStateHistoryBackend): IStateSystemWriter? {
+        if (!resumableBuild || project.endTime <= backend.endTime) return null
+        val previousEndTime = backend.endTime
+        val ss = StateSystemFactory.resumeStateSystem(backend)
+        buildForProject(project, ss, previousEndTime + 1)
+        return ss
+    }
+
+    /**
+     * Keep only checkpoints of the full state, in a small history file, and
+     * replay the trace from the nearest checkpoint to answer queries between
+     * them. The file name includes the checkpoint interval, since it is
+     * needed to read the file back.
+     */
+    private fun partialHistory(project: TraceProject<*, *>, ssid: String, analysesDirectory: Path): IStateSystemReader {
+        val file = analysesDirectory.resolve("$ssid.partial-$checkpointInterval$HISTORY_FILE_EXTENSION").toFile()
+
+        lateinit var stateSystem: IStateSystemWriter
+        val replayer = object : PartialHistoryBackend.Replayer {
+            override fun attributes() = (0 until stateSystem.nbAttributes).map { stateSystem.getFullAttributePathArray(it) }
+
+            override fun replay(ss: IStateSystemWriter, start: Long, end: Long) {
+                val trackedState = trackedState()
+                filterTraces(project).iterator().use {
+                    it.seek(start)
+                    while (it.hasNext()) {
+                        val event = it.next()
+                        if (event.timestamp > end) break
+                        if (event.timestamp > start) handleEvent(ss, event, trackedState)
+                    }
+                }
+            }
+        }
+
+        if (file.exists()) {
+            try {
+                stateSystem = StateSystemFactory.newStateSystem(
+                        StateHistoryBackendFactory.createPartialHistoryBackendExistingFile(ssid, file, providerVersion, checkpointInterval, replayer), false)
+                return stateSystem
+            } catch (e: IOException) {
+                /* The expected provider version may not match what we have on disk, rebuild it */
+            }
+        }
+        stateSystem = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createPartialHistoryBackendNewFile(ssid, file, providerVersion, project.startTime, checkpointInterval, replayer), true)
+        buildForProject(project, stateSystem)
+        return stateSystem
+    }
+
     protected abstract val providerVersion: Int
 
+    /**
+     * If greater than 0, store only the full state of the history every
+     * this many nanoseconds, and compute the states in between on demand by
+     * replaying the trace from the previous checkpoint. This makes the
+     * history file much smaller, but queries slower. Only analyses whose
+     * [handleEvent] depends on nothing else than the ongoing state of the
+     * state system (no past queries, no tracked state kept between events)
+     * should override this, since the replay starts from a copy of the
+     * ongoing state only. The history can only be queried once it is
+     * completely built.
+     */
+    protected open val checkpointInterval: Long = 0
+
+    /**
+     * If an existing history can be extended with the events that were added
+     * to the trace since it was built, instead of being rebuilt from scratch.
+     * The same restrictions as for [checkpointInterval] apply, since
+     * processing resumes from the ongoing state at the previous end of the
+     * history.
+     */
+    protected open val resumableBuild: Boolean = false
+
     protected abstract fun filterTraces(project: TraceProject<*, *>): TraceCollection<*, *>
 
     /**
@@ -12,7 +12,7 @@ package com.efficios.jabberwocky.views.timegraph.model.provider.statesystem
 import ca.polymtl.dorsal.libdelorean.IStateSystemQuarkResolver
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval
-import ca.polymtl.dorsal.libdelorean.iterator2D
+import ca.polymtl.dorsal.libdelorean.parallel2D
 import com.efficios.jabberwocky.analysis.statesystem.StateSystemAnalysis
 import com.efficios.jabberwocky.common.TimeRange
 import com.efficios.jabberwocky.common.intersection
@@ -132,38 +132,47 @@ abstract class StateSystemModelStateProvider(stateDefinitions: List<StateDefinit
 
         // TODO Check the task parameter during the iteration (for loop?)
 
-        /* Query the intervals from the state system */
+        /*
+         * Query the intervals from the state system. The quarks are split
+         * across the worker threads, each one building the model intervals of
+         * its own tree elements.
+         */
         val quarks = ssTreeElements.map { it.sourceQuark }.toSet()
-        ss.iterator2D(queryTimeRange.startTime, queryTimeRange.endTime, resolution, quarks).asSequence()
-                .forEach { iterationStep ->
-                    val ts = iterationStep.ts
-                    val queryResults = iterationStep.queryResults
-
-                    /*
-                     * Compute all the extra data the model implementation will
-                     * need to fetch from the state system.
-                     */
-                    val requestedQuarks = queryResults.values
-                            .flatMap { supplyExtraQuarks(ss, ts, it) }
-                            .distinct()
-                            .toSet()
-
-                    /* Query in one go all the requested extra data. */
-                    val extraData = ss.queryStates(ts, requestedQuarks)
-
-                    /*
-                     * Re-call the model implementation to generate the
-                     * corresponding model intervals, supplying the extra data.
-                     */
-                    queryResults.forEach {
-                        val quark = it.key
-                        val stateInterval = it.value
-                        val treeElement = quarksToTreeElementMap[quark]!!
-                        val modelInterval = createInterval(ss, extraData, treeElement, stateInterval)
-                        /* Insert into the correct list among the ones we created earlier */
-                        intervalsPerElement[treeElement]!!.add(modelInterval)
-                    }
+        val partitionResults = ss.parallel2D(queryTimeRange.startTime, queryTimeRange.endTime, resolution, quarks) { cursor ->
+            val partitionIntervals = HashMap<TimeGraphTreeElement, MutableList<TimeGraphStateInterval>>()
+            val requestedQuarks = mutableSetOf<Int>()
+            while (cursor.next()) {
+                val ts = cursor.ts
+
+                /*
+                 * Compute all the extra data the model implementation will
+                 * need to fetch from the state system.
+                 */
+                requestedQuarks.clear()
+                for (i in 0 until cursor.size) {
+                    requestedQuarks.addAll(supplyExtraQuarks(ss, ts, cursor.intervalAt(i)))
+                }
+
+                /* Query in one go all the requested extra data. */
+                val extraData = ss.queryStates(ts, requestedQuarks)
+
+                /*
+                 * Re-call the model implementation to generate the
+                 * corresponding model intervals, supplying the extra data.
+                 */
+                for (i in 0 until cursor.size) {
+                    val treeElement = quarksToTreeElementMap[cursor.quarkAt(i)]!!
+                    val modelInterval = createInterval(ss, extraData, treeElement, cursor.intervalAt(i))
+                    partitionIntervals.getOrPut(treeElement) { mutableListOf() }.add(modelInterval)
                 }
+            }
+            partitionIntervals
+        }
+
+        /* Each tree element is in only one partition */
+        partitionResults.forEach { partition ->
+            partition.forEach { treeElement, modelIntervals -> intervalsPerElement[treeElement]!!.addAll(modelIntervals) }
+        }
 
         /*
          * Manually add the entries for the last pixel [endTime - resolution, endTime].
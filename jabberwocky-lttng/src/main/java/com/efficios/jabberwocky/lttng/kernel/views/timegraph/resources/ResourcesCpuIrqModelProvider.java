@@ -9,6 +9,7 @@
 
 package com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources;
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern;
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes;
 import com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources.elements.ResourcesCpuTreeElement;
@@ -45,7 +46,7 @@ public class ResourcesCpuIrqModelProvider extends ResourcesBaseModelProvider {
      * <li>IRQs</li>
      * </ul>
      */
-    private static final String[] CPUS_QUARK_PATTERN = { Attributes.CPUS, "*" }; //$NON-NLS-1$
+    private static final AttributePattern CPUS_QUARK_PATTERN = new AttributePattern(Attributes.CPUS, AttributePattern.WILDCARD);
 
     /**
      * Get the tree element name for every cpu.
@@ -9,6 +9,7 @@
 
 package com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources;
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern;
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes;
 import com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources.elements.ResourcesIrqTreeElement;
@@ -31,8 +32,8 @@ import static java.util.Objects.requireNonNull;
  */
 public class ResourcesIrqModelProvider extends ResourcesBaseModelProvider {
 
-    private static final String[] IRQS_QUARK_PATTERN = { Attributes.IRQS, "*" }; //$NON-NLS-1$
-    private static final String[] SOFT_IRQS_QUARK_PATTERN = { Attributes.SOFT_IRQS, "*" }; //$NON-NLS-1$
+    private static final AttributePattern IRQS_QUARK_PATTERN = new AttributePattern(Attributes.IRQS, AttributePattern.WILDCARD);
+    private static final AttributePattern SOFT_IRQS_QUARK_PATTERN = new AttributePattern(Attributes.SOFT_IRQS, AttributePattern.WILDCARD);
 
     /**
      * Get the tree element name for every cpu.
@@ -9,8 +9,8 @@
 
 package com.efficios.jabberwocky.lttng.kernel.views.timegraph.threads;
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern;
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
-import ca.polymtl.dorsal.libdelorean.StateSystemUtils;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
 import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
@@ -32,8 +32,14 @@ import com.google.common.collect.Iterables;
 import com.google.common.primitives.Ints;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.FutureTask;
 
 import static java.util.Objects.requireNonNull;
@@ -45,6 +51,9 @@ public class ThreadsModelArrowProviderCpus extends StateSystemModelArrowProvider
             FlatUIColors.RED,
             LineStyle.FULL);
 
+    private static final AttributePattern CURRENT_THREADS_PATTERN =
+            new AttributePattern(Attributes.CPUS, AttributePattern.WILDCARD, Attributes.CURRENT_THREAD);
+
     public ThreadsModelArrowProviderCpus() {
         super(ARROW_SERIES, KernelAnalysis.INSTANCE);
     }
@@ -56,14 +65,22 @@ public class ThreadsModelArrowProviderCpus extends StateSystemModelArrowProvider
             return TimeGraphArrowRender.EMPTY_RENDER;
         }
 
-        List<Integer> threadLineQuarks = ss.getQuarks(Attributes.CPUS, "*", Attributes.CURRENT_THREAD); //$NON-NLS-1$
+        List<Integer> threadLineQuarks = ss.getQuarks(CURRENT_THREADS_PATTERN);
         List<List<TimeGraphArrow>> allArrows = new LinkedList<>();
         try {
-            for (int threadLineQuark : threadLineQuarks) {
-                List<StateInterval> intervals = StateSystemUtils.queryHistoryRange(ss, threadLineQuark, timeRange.getStartTime(), timeRange.getEndTime(), 1, task);
+            /* Get the timelines of all the CPUs with one range query */
+            Map<Integer, List<StateInterval>> timelines = new HashMap<>();
+            Iterator<StateInterval> iter = ss.queryHistoryRange(new HashSet<>(threadLineQuarks), timeRange.getStartTime(), timeRange.getEndTime());
+            while (iter.hasNext()) {
                 if (task != null && task.isCancelled()) {
                     return TimeGraphArrowRender.EMPTY_RENDER;
                 }
+                StateInterval interval = iter.next();
+                timelines.computeIfAbsent(interval.getAttribute(), quark -> new ArrayList<>()).add(interval);
+            }
+
+            for (int threadLineQuark : threadLineQuarks) {
+                List<StateInterval> intervals = timelines.getOrDefault(threadLineQuark, Collections.emptyList());
                 if (intervals.size() < 2) {
                     /* Not enough states to establish a timeline */
                     continue;
@@ -9,6 +9,7 @@
 
 package com.efficios.jabberwocky.lttng.kernel.views.timegraph.threads;
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern;
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
 import ca.polymtl.dorsal.libdelorean.StateSystemUtils;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
@@ -80,7 +81,7 @@ public class ThreadsModelProvider extends StateSystemModelProvider {
      *
      * The "Thread" is considered the base quark.
      */
-    private static final String[] BASE_QUARK_PATTERN = { Attributes.THREADS, "*" }; //$NON-NLS-1$
+    private static final AttributePattern BASE_QUARK_PATTERN = new AttributePattern(Attributes.THREADS, AttributePattern.WILDCARD);
 
     /**
      * Get the tree element name for every thread. It consists of the TID
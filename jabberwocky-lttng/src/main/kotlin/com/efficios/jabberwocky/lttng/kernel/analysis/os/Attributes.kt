@@ -10,6 +10,9 @@
 
 package com.efficios.jabberwocky.lttng.kernel.analysis.os
 
+import ca.polymtl.dorsal.libdelorean.AttributePathTemplate
+import java.util.function.LongFunction
+
 /**
  * This file defines all the attribute names used in the handler. Both the
  * construction and query steps should use them.
@@ -43,6 +46,21 @@ object Attributes {
     const val THREAD_0_PREFIX = "0_"
     const val THREAD_0_SEPARATOR = "_"
 
+    /* Keys of the "0_cpuId" threads, offset by the CPU number */
+    private const val THREAD_0_KEY_BASE = Long.MIN_VALUE
+
+    /* Templates of the attributes resolved for most events */
+    @JvmField val CPU_TEMPLATE = AttributePathTemplate(CPUS, "{cpu}")
+    @JvmField val CPU_IRQS_TEMPLATE = AttributePathTemplate(CPUS, "{cpu}", IRQS)
+    @JvmField val CPU_SOFT_IRQS_TEMPLATE = AttributePathTemplate(CPUS, "{cpu}", SOFT_IRQS)
+
+    /* Templates of the first-level IRQ attributes, aggregating the ones of all CPUs */
+    @JvmField val IRQ_TEMPLATE = AttributePathTemplate(IRQS, "{irq}")
+    @JvmField val SOFT_IRQ_TEMPLATE = AttributePathTemplate(SOFT_IRQS, "{irq}")
+
+    /** Template of the thread attributes, their key is given by [buildThreadKey] */
+    @JvmField val THREAD_TEMPLATE = AttributePathTemplate(LongFunction { threadKeyName(it) }, THREADS, "{thread}")
+
     /**
      * Build the thread attribute name.
      *
@@ -67,6 +85,29 @@ object Attributes {
         return threadId.toString()
     }
 
+    /**
+     * Build the key of a thread attribute in [THREAD_TEMPLATE]. It follows the
+     * same rules as [buildThreadAttributeName].
+     *
+     * @param threadId
+     *            the thread id
+     * @param cpuId
+     *            the cpu id
+     * @return the thread attribute key, null if the threadId is zero and the
+     *         cpuId is null
+     */
+    @JvmStatic
+    fun buildThreadKey(threadId: Int, cpuId: Int?): Long? {
+        if (threadId == 0) {
+            cpuId ?: return null
+            return THREAD_0_KEY_BASE + cpuId
+        }
+        return threadId.toLong()
+    }
+
+    private fun threadKeyName(key: Long): String =
+            if (key < Int.MIN_VALUE) "$THREAD_0_PREFIX${key - THREAD_0_KEY_BASE}" else key.toString()
+
     /**
      * Parse the thread id and CPU id from the thread attribute name string
      *
@@ -51,7 +51,7 @@ object KernelAnalysis : StateSystemAnalysis() {
      * Version number of this state provider. Please bump this if you modify the contents of
      * the generated state history in some way.
      */
-    private const val VERSION = 28
+    private const val VERSION = 29
 
 
     // ------------------------------------------------------------------------
@@ -74,6 +74,9 @@ object KernelAnalysis : StateSystemAnalysis() {
 
     override val providerVersion = VERSION
 
+    /* The event handlers only rely on the ongoing state, growing traces only need their new events to be processed */
+    override val resumableBuild = true
+
     override fun filterTraces(project: TraceProject<*, *>): TraceCollection<*, *> =
             project.traceCollections
                     .flatMap { collection -> collection.traces }
@@ -30,7 +30,7 @@ class IPIEntryHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layou
          */
         ss.modifyAttribute(timestamp,
                 StateValue.newValueInt(cpu),
-                ss.getQuarkRelativeAndAdd(ss.getNodeIRQs(cpu), irqId.toString()))
+                ss.getCpuIrqNode(cpu, irqId))
 
         /* Change the status of the running process to interrupted */
         ss.getCurrentThreadNode(cpu)?.let {
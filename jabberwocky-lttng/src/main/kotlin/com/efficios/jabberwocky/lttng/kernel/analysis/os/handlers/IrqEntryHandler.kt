@@ -29,7 +29,7 @@ class IrqEntryHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layou
          */
         ss.modifyAttribute(timestamp,
                 StateValue.newValueInt(StateValues.CPU_STATUS_IRQ),
-                ss.getQuarkRelativeAndAdd(ss.getNodeIRQs(cpu), irqId.toString()))
+                ss.getCpuIrqNode(cpu, irqId))
 
         /* Change the status of the running process to interrupted */
         ss.getCurrentThreadNode(cpu)?.let {
@@ -26,7 +26,7 @@ class IrqExitHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layout
         /* Put this IRQ back to inactive in the resource tree */
         ss.modifyAttribute(timestamp,
                 StateValue.nullValue(),
-                ss.getQuarkRelativeAndAdd(ss.getNodeIRQs(cpu), irqId.toString()))
+                ss.getCpuIrqNode(cpu, irqId))
 
         /* Set the previous process back to running */
         ss.getCurrentThreadNode(cpu)?.let { ss.setProcessToRunning(timestamp, it) }
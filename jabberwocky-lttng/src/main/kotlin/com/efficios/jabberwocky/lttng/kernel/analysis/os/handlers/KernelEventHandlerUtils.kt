@@ -10,7 +10,10 @@
 
 package com.efficios.jabberwocky.lttng.kernel.analysis.os.handlers
 
+import ca.polymtl.dorsal.libdelorean.AttributePathTemplate
+import ca.polymtl.dorsal.libdelorean.AttributePattern
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter
+import ca.polymtl.dorsal.libdelorean.aggregation.AttributePriorityAggregationRule
 import ca.polymtl.dorsal.libdelorean.statevalue.IntegerStateValue
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes
@@ -25,7 +28,14 @@ import com.efficios.jabberwocky.lttng.kernel.analysis.os.StateValues
  * Gets the CPU quark of the given CPU.
  */
 fun IStateSystemWriter.getCPUNode(cpuNumber: Int): Int =
-        getQuarkRelativeAndAdd(getNodeCPUs(), cpuNumber.toString())
+        getQuarkAndAdd(Attributes.CPU_TEMPLATE, cpuNumber.toLong())
+
+/**
+ * Get the node quark of a thread. 'null' is returned for thread 0 if the CPU
+ * is not known, since there is one such thread per CPU.
+ */
+fun IStateSystemWriter.getThreadNode(threadId: Int, cpuNumber: Int?): Int? =
+        Attributes.buildThreadKey(threadId, cpuNumber)?.let { getQuarkAndAdd(Attributes.THREAD_TEMPLATE, it) }
 
 /**
  * Get the node quark of the thread currently running on the given CPU.
@@ -39,7 +49,7 @@ fun IStateSystemWriter.getCurrentThreadNode(cpuNumber: Int): Int? {
     val quark = getQuarkRelativeAndAdd(getCPUNode(cpuNumber), Attributes.CURRENT_THREAD)
     val value = queryOngoingState(quark)
     val thread = (value as? IntegerStateValue)?.value ?: return null
-    return getQuarkRelativeAndAdd(getNodeThreads(), Attributes.buildThreadAttributeName(thread, cpuNumber))
+    return getThreadNode(thread, cpuNumber)
 }
 
 /**
@@ -48,23 +58,39 @@ fun IStateSystemWriter.getCurrentThreadNode(cpuNumber: Int): Int? {
  * the process back in the syscall state. If not, we put it back in user
  * mode state.
  */
-fun IStateSystemWriter.setProcessToRunning(timestamp: Long, currentThreadNode: Int) {
+fun IStateSystemWriter.setProcessToRunning(timestamp: Long, currentThreadNode: Int) =
+        modifyAttribute(timestamp, getRunningProcessStatus(currentThreadNode), currentThreadNode)
+
+/**
+ * Get the status a process should have when it goes back to a "running"
+ * state, see [setProcessToRunning].
+ */
+fun IStateSystemWriter.getRunningProcessStatus(currentThreadNode: Int): StateValue {
     val quark = getQuarkRelativeAndAdd(currentThreadNode, Attributes.SYSTEM_CALL)
-    val sv = if (queryOngoingState(quark).isNull) {
+    return if (queryOngoingState(quark).isNull) {
         /* We were in user mode before the interruption */
         StateValues.PROCESS_STATUS_RUN_USERMODE_VALUE
     } else {
         /* We were previously in kernel mode */
         StateValues.PROCESS_STATUS_RUN_SYSCALL_VALUE
     }
-    modifyAttribute(timestamp, sv, currentThreadNode)
 }
 
 /**
  * Get the "IRQs" node for the given CPU.
  */
 fun IStateSystemWriter.getNodeIRQs(cpuNumber: Int): Int =
-        getQuarkAbsoluteAndAdd(Attributes.CPUS, Integer.toString(cpuNumber), Attributes.IRQS)
+        getQuarkAndAdd(Attributes.CPU_IRQS_TEMPLATE, cpuNumber.toLong())
+
+/**
+ * Get the node quark of an IRQ on the given CPU. This also makes sure the
+ * first-level "IRQs/<irq>" attribute aggregating this IRQ over all CPUs is
+ * maintained by the state system.
+ */
+fun IStateSystemWriter.getCpuIrqNode(cpuNumber: Int, irqId: Long): Int {
+    materializeIrqAggregate(Attributes.IRQ_TEMPLATE, Attributes.IRQS, irqId)
+    return getQuarkRelativeAndAdd(getNodeIRQs(cpuNumber), irqId.toString())
+}
 
 /**
  * Get the "CPUs" node.
@@ -76,7 +102,29 @@ fun IStateSystemWriter.getNodeCPUs(): Int =
  * Get the Soft IRQs node for the given CPU.
  */
 fun IStateSystemWriter.getNodeSoftIRQs(cpuNumber: Int): Int =
-        getQuarkAbsoluteAndAdd(Attributes.CPUS, Integer.toString(cpuNumber), Attributes.SOFT_IRQS)
+        getQuarkAndAdd(Attributes.CPU_SOFT_IRQS_TEMPLATE, cpuNumber.toLong())
+
+/**
+ * Get the node quark of a Soft IRQ on the given CPU. Like [getCpuIrqNode], this
+ * also makes sure the first-level "Soft_IRQs/<irq>" aggregate is maintained.
+ */
+fun IStateSystemWriter.getCpuSoftIrqNode(cpuNumber: Int, softIrqId: Long): Int {
+    materializeIrqAggregate(Attributes.SOFT_IRQ_TEMPLATE, Attributes.SOFT_IRQS, softIrqId)
+    return getQuarkRelativeAndAdd(getNodeSoftIRQs(cpuNumber), softIrqId.toString())
+}
+
+/**
+ * Register the aggregation of an IRQ over all CPUs the first time it is seen by
+ * this state system. The rule has to be registered before the per-CPU
+ * attributes are modified, so that the aggregate follows them.
+ */
+private fun IStateSystemWriter.materializeIrqAggregate(template: AttributePathTemplate, irqsName: String, irqId: Long) {
+    val quark = getQuarkAndAdd(template, irqId)
+    if (!hasMaterializedAggregationRule(quark)) {
+        val cpuIrqs = listOf(arrayOf(Attributes.CPUS, AttributePattern.WILDCARD, irqsName, irqId.toString()))
+        addMaterializedAggregationRule(AttributePriorityAggregationRule(this, quark, cpuIrqs))
+    }
+}
 
 /**
  * Get the "Threads" node.
@@ -145,7 +193,7 @@ private fun IStateSystemWriter.getCpuStatus(cpuQuark: Int): StateValue {
     if (tid == 0) {
         return StateValues.CPU_STATUS_IDLE_VALUE
     }
-    val threadSystemCallQuark = getQuarkAbsoluteAndAdd(Attributes.THREADS, tid.toString(), Attributes.SYSTEM_CALL)
+    val threadSystemCallQuark = getQuarkRelativeAndAdd(getQuarkAndAdd(Attributes.THREAD_TEMPLATE, tid.toLong()), Attributes.SYSTEM_CALL)
     return if (queryOngoingState(threadSystemCallQuark).isNull) {
         StateValues.CPU_STATUS_RUN_USERMODE_VALUE
     } else {
@@ -24,9 +24,7 @@ class PiSetPrioHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layo
         val tid = (event.fields[layout.fieldTid] as IntegerValue).value.toInt()
         val prio = (event.fields[layout.fieldNewPrio] as IntegerValue).value.toInt()
 
-        val threadAttributeName = Attributes.buildThreadAttributeName(tid, cpu) ?: return
-
-        val updateThreadNode = ss.getQuarkRelativeAndAdd(ss.getNodeThreads(), threadAttributeName)
+        val updateThreadNode = ss.getThreadNode(tid, cpu) ?: return
 
         /* Set the current prio for the new process */
         ss.modifyAttribute(event.timestamp,
@@ -29,12 +29,10 @@ class ProcessForkHandler(layout: LttngKernelEventLayout) : KernelEventHandler(la
         val parentTid = (event.fields[layout.fieldParentTid] as IntegerValue).value.toInt()
         val childTid = (event.fields[layout.fieldChildTid] as IntegerValue).value.toInt()
 
-        val parentThreadAttributeName = Attributes.buildThreadAttributeName(parentTid, cpu) ?: return
-        val childThreadAttributeName = Attributes.buildThreadAttributeName(childTid, cpu) ?: return
-
-        val threadsNode = ss.getNodeThreads()
-        val parentTidNode = ss.getQuarkRelativeAndAdd(threadsNode, parentThreadAttributeName)
-        val childTidNode = ss.getQuarkRelativeAndAdd(threadsNode, childThreadAttributeName)
+        /* Check both threads before creating any attribute */
+        Attributes.buildThreadKey(childTid, cpu) ?: return
+        val parentTidNode = ss.getThreadNode(parentTid, cpu) ?: return
+        val childTidNode = ss.getThreadNode(childTid, cpu)!!
 
 
         /* Assign the PPID to the new process */
@@ -11,7 +11,6 @@
 package com.efficios.jabberwocky.lttng.kernel.analysis.os.handlers
 
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter
-import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes
 import com.efficios.jabberwocky.lttng.kernel.trace.layout.LttngKernelEventLayout
 import com.efficios.jabberwocky.trace.event.FieldValue.IntegerValue
 import com.efficios.jabberwocky.trace.event.TraceEvent
@@ -22,12 +21,10 @@ class ProcessFreeHandler(layout: LttngKernelEventLayout) : KernelEventHandler(la
         val cpu = event.cpu
         val tid = (event.fields[layout.fieldTid] as IntegerValue).value.toInt()
 
-        val threadAttributeName = Attributes.buildThreadAttributeName(tid, cpu) ?: return
-
         /*
          * Remove the process and all its sub-attributes from the current state
          */
-        ss.getQuarkRelativeAndAdd(ss.getNodeThreads(), threadAttributeName)
-                .let { ss.removeAttribute(event.timestamp, it) }
+        ss.getThreadNode(tid, cpu)
+                ?.let { ss.removeAttribute(event.timestamp, it) }
     }
 }
@@ -28,10 +28,9 @@ class SchedMigrateTaskHandler(layout: LttngKernelEventLayout) : KernelEventHandl
         val tid = (event.fields[layout.fieldTid] as? IntegerValue)?.value?.toInt() ?: return
         val destCpu = (event.fields[layout.fieldDestCpu] as? IntegerValue)?.value?.toInt() ?: return
 
-        val threadAttributeName = Attributes.buildThreadAttributeName(tid, null)
+        val threadNode = ss.getThreadNode(tid, null)
                 ?: /* Swapper threads do not get migrated */
                 return
-        val threadNode = ss.getQuarkRelativeAndAdd(ss.getNodeThreads(), threadAttributeName)
 
         /*
          * Put the thread in the "wait for cpu" state. Some older versions of
@@ -11,6 +11,7 @@
 package com.efficios.jabberwocky.lttng.kernel.analysis.os.handlers
 
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter
+import ca.polymtl.dorsal.libdelorean.StateChangeBatch
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.LinuxValues
@@ -22,6 +23,9 @@ import com.efficios.jabberwocky.trace.event.TraceEvent
 
 class SchedSwitchHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layout) {
 
+    /* Handlers are shared by the analyses of all traces using the same layout, which may run concurrently */
+    private val batches = ThreadLocal.withInitial { StateChangeBatch() }
+
     override fun handleEvent(ss: IStateSystemWriter, event: TraceEvent) {
         val cpu = event.cpu
         val timestamp = event.timestamp
@@ -35,53 +39,59 @@ class SchedSwitchHandler(layout: LttngKernelEventLayout) : KernelEventHandler(la
         val nextPrio = (event.fields[layout.fieldNextPrio] as IntegerValue).value.toInt()
 
         /* Will never return null since "cpu" is never null here. */
-        val formerThreadAttributeName = Attributes.buildThreadAttributeName(prevTid, cpu)!!
-        val currentThreadAttributeName = Attributes.buildThreadAttributeName(nextTid, cpu)!!
+        val formerThreadNode = ss.getThreadNode(prevTid, cpu)!!
+        val newCurrentThreadNode = ss.getThreadNode(nextTid, cpu)!!
 
-        val nodeThreads = ss.getNodeThreads()
-        val formerThreadNode = ss.getQuarkRelativeAndAdd(nodeThreads, formerThreadAttributeName)
-        val newCurrentThreadNode = ss.getQuarkRelativeAndAdd(nodeThreads, currentThreadAttributeName)
+        /*
+         * The only states read below are the system calls of the new process,
+         * which this event does not change, so all the changes can be applied
+         * together at the end. Clear what a failed previous event may have left.
+         */
+        val batch = batches.get()
+        batch.clear()
 
         /*
          * Set the status of the process that got scheduled out. This will also
          * set it's current CPU run queue accordingly.
          */
-        ss.setOldProcessStatus(prevState, formerThreadNode, cpu, timestamp)
+        batch.setOldProcessStatus(ss, prevState, formerThreadNode, cpu, timestamp)
 
         /* Set the status of the new scheduled process */
-        ss.setProcessToRunning(timestamp, newCurrentThreadNode)
+        batch.modifyAttribute(timestamp, ss.getRunningProcessStatus(newCurrentThreadNode), newCurrentThreadNode)
 
         /*
          * Set the current CPU run queue of the new process. Should be already
          * set if we've seen the previous sched_wakeup, but doesn't hurt to set
          * it here too.
          */
-        ss.modifyAttribute(timestamp,
+        batch.modifyAttribute(timestamp,
                 StateValue.newValueInt(cpu),
                 ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.CURRENT_CPU_RQ))
 
         /* Set the exec name of the former process */
-        ss.setProcessExecName(prevProcessName, formerThreadNode, timestamp)
+        batch.setProcessExecName(ss, prevProcessName, formerThreadNode, timestamp)
 
         /* Set the exec name of the new process */
-        ss.setProcessExecName(nextProcessName, newCurrentThreadNode, timestamp)
+        batch.setProcessExecName(ss, nextProcessName, newCurrentThreadNode, timestamp)
 
         /* Set the current prio for the former process */
-        ss.setProcessPrio(prevPrio, formerThreadNode, timestamp)
+        batch.setProcessPrio(ss, prevPrio, formerThreadNode, timestamp)
 
         /* Set the current prio for the new process */
-        ss.setProcessPrio(nextPrio, newCurrentThreadNode, timestamp)
+        batch.setProcessPrio(ss, nextPrio, newCurrentThreadNode, timestamp)
 
         /* Set the current scheduled process on the relevant CPU */
         val cpuNode = ss.getCPUNode(cpu)
-        ss.setCpuProcess(nextTid, timestamp, cpuNode)
+        batch.setCpuProcess(ss, nextTid, timestamp, cpuNode)
 
         /* Set the status of the CPU itself */
-        ss.setCpuStatus(nextTid, newCurrentThreadNode, timestamp, cpuNode)
+        batch.setCpuStatus(ss, nextTid, newCurrentThreadNode, timestamp, cpuNode)
+
+        ss.applyStateChanges(batch)
     }
 }
 
-private fun IStateSystemWriter.setOldProcessStatus(prevState: Int, formerThreadNode: Int, cpu: Int, timestamp: Long) {
+private fun StateChangeBatch.setOldProcessStatus(ss: IStateSystemWriter, prevState: Int, formerThreadNode: Int, cpu: Int, timestamp: Long) {
 
     fun isDead(state: Int): Boolean =
             (state and LinuxValues.TASK_DEAD) != 0
@@ -131,15 +141,15 @@ private fun IStateSystemWriter.setOldProcessStatus(prevState: Int, formerThreadN
     }
     modifyAttribute(timestamp,
             sv,
-            getQuarkRelativeAndAdd(formerThreadNode, Attributes.CURRENT_CPU_RQ))
+            ss.getQuarkRelativeAndAdd(formerThreadNode, Attributes.CURRENT_CPU_RQ))
 
 }
 
-private fun IStateSystemWriter.setCpuStatus(nextTid: Int, newCurrentThreadNode: Int, timestamp: Long, currentCPUNode: Int) {
+private fun StateChangeBatch.setCpuStatus(ss: IStateSystemWriter, nextTid: Int, newCurrentThreadNode: Int, timestamp: Long, currentCPUNode: Int) {
     val value = if (nextTid > 0) {
         /* Check if the entering process is in kernel or user mode */
-        val ongoingState = getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.SYSTEM_CALL)
-                .let { queryOngoingState(it) }
+        val ongoingState = ss.getQuarkRelativeAndAdd(newCurrentThreadNode, Attributes.SYSTEM_CALL)
+                .let { ss.queryOngoingState(it) }
         if (ongoingState.isNull) {
             StateValues.CPU_STATUS_RUN_USERMODE_VALUE
         } else {
@@ -151,18 +161,18 @@ private fun IStateSystemWriter.setCpuStatus(nextTid: Int, newCurrentThreadNode:
     modifyAttribute(timestamp, value, currentCPUNode)
 }
 
-private fun IStateSystemWriter.setCpuProcess(nextTid: Int, timestamp: Long, currentCPUNode: Int) =
+private fun StateChangeBatch.setCpuProcess(ss: IStateSystemWriter, nextTid: Int, timestamp: Long, currentCPUNode: Int) =
         modifyAttribute(timestamp,
                 StateValue.newValueInt(nextTid),
-                getQuarkRelativeAndAdd(currentCPUNode, Attributes.CURRENT_THREAD))
+                ss.getQuarkRelativeAndAdd(currentCPUNode, Attributes.CURRENT_THREAD))
 
-private fun IStateSystemWriter.setProcessPrio(prio: Int, threadNode: Int, timestamp: Long) =
+private fun StateChangeBatch.setProcessPrio(ss: IStateSystemWriter, prio: Int, threadNode: Int, timestamp: Long) =
         modifyAttribute(timestamp,
                 StateValue.newValueInt(prio),
-                getQuarkRelativeAndAdd(threadNode, Attributes.PRIO))
+                ss.getQuarkRelativeAndAdd(threadNode, Attributes.PRIO))
 
-private fun IStateSystemWriter.setProcessExecName(processName: String, threadNode: Int, timestamp: Long) =
+private fun StateChangeBatch.setProcessExecName(ss: IStateSystemWriter, processName: String, threadNode: Int, timestamp: Long) =
         modifyAttribute(timestamp,
                 StateValue.newValueString(processName),
-                getQuarkRelativeAndAdd(threadNode, Attributes.EXEC_NAME))
+                ss.getQuarkRelativeAndAdd(threadNode, Attributes.EXEC_NAME))
 
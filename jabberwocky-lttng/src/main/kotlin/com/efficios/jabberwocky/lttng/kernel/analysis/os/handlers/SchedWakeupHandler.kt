@@ -36,8 +36,7 @@ class SchedWakeupHandler(layout: LttngKernelEventLayout) : KernelEventHandler(la
         val prio = (event.fields[layout.fieldPrio] as IntegerValue).value.toInt()
         val targetCpu = (event.fields[layout.fieldTargetCpu] as IntegerValue).value.toInt()
 
-        val threadAttributeName = Attributes.buildThreadAttributeName(tid, cpu) ?: return
-        val threadNode = ss.getQuarkRelativeAndAdd(ss.getNodeThreads(), threadAttributeName)
+        val threadNode = ss.getThreadNode(tid, cpu) ?: return
 
         /*
          * The process indicated in the event's payload is now ready to run.
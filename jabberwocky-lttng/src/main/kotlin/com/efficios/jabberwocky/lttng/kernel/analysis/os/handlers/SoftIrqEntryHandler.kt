@@ -30,7 +30,7 @@ class SoftIrqEntryHandler(layout: LttngKernelEventLayout) : KernelEventHandler(l
         /* Mark this SoftIRQ as active in the resource tree. */
         ss.modifyAttribute(timestamp,
                 StateValues.CPU_STATUS_SOFTIRQ_VALUE,
-                ss.getQuarkRelativeAndAdd(ss.getNodeSoftIRQs(cpu), softIrqId.toString()))
+                ss.getCpuSoftIrqNode(cpu, softIrqId.toLong()))
 
         /* Change the status of the running process to interrupted */
         currentThreadNode?.let {
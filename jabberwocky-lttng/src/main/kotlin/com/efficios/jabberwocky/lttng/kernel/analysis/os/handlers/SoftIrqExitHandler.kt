@@ -27,7 +27,7 @@ class SoftIrqExitHandler(layout: LttngKernelEventLayout) : KernelEventHandler(la
         val softIrqId = (event.fields[layout.fieldVec] as IntegerValue).value.toInt()
 
         /* Put this SoftIRQ back to inactive (= -1) in the resource tree */
-        val quark = ss.getQuarkRelativeAndAdd(ss.getNodeSoftIRQs(cpu), softIrqId.toString())
+        val quark = ss.getCpuSoftIrqNode(cpu, softIrqId.toLong())
         if (isSoftIrqRaised(ss.queryOngoingState(quark))) {
             ss.modifyAttribute(timestamp, StateValues.SOFT_IRQ_RAISED_VALUE, quark)
         } else {
@@ -26,7 +26,7 @@ class SoftIrqRaiseHandler(layout: LttngKernelEventLayout) : KernelEventHandler(l
         val softIrqId = (event.fields[layout.fieldVec] as IntegerValue).value.toInt()
 
         /* Mark this SoftIRQ as *raised* in the resource tree. */
-        val quark = ss.getQuarkRelativeAndAdd(ss.getNodeSoftIRQs(cpu), softIrqId.toString())
+        val quark = ss.getCpuSoftIrqNode(cpu, softIrqId.toLong())
         val sv = if (isInSoftirq(ss.queryOngoingState(quark))) {
             StateValues.SOFT_IRQ_RAISED_RUNNING_VALUE
         } else {
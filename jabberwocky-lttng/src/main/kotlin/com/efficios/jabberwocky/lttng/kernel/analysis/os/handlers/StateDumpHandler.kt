@@ -43,8 +43,7 @@ class StateDumpHandler(layout: LttngKernelEventLayout) : KernelEventHandler(layo
          * with anything relevant for now.
          */
 
-        val threadAttributeName = Attributes.buildThreadAttributeName(tid, eventCpu) ?: return
-        val curThreadNode = ss.getQuarkRelativeAndAdd(ss.getNodeThreads(), threadAttributeName)
+        val curThreadNode = ss.getThreadNode(tid, eventCpu) ?: return
 
         /* Set the process' name */
         ss.setProcessName(name, curThreadNode, timestamp)
@@ -9,6 +9,7 @@
 
 package com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern
 import com.efficios.jabberwocky.lttng.kernel.analysis.os.Attributes
 import com.efficios.jabberwocky.lttng.kernel.views.timegraph.resources.elements.ResourcesCpuTreeElement
 import com.efficios.jabberwocky.views.timegraph.model.render.tree.TimeGraphTreeElement
@@ -18,14 +19,14 @@ class ResourcesCpuModelProvider : ResourcesBaseModelProvider(PROVIDER_NAME, SS_T
 
     companion object {
         private const val PROVIDER_NAME = "CPU"
-        private val CPUS_QUARK_PATTERN = arrayOf(Attributes.CPUS, "*")
+        private val CPUS_QUARK_PATTERN = AttributePattern(Attributes.CPUS, AttributePattern.WILDCARD)
 
         /**
          * Get the tree element name for every cpu.
          */
         private val SS_TO_TREE_RENDER_FUNCTION = java.util.function.Function { treeContext: TreeRenderContext ->
             val ss = treeContext.ss
-            val treeElems = ss.getQuarks(*CPUS_QUARK_PATTERN)
+            val treeElems = ss.getQuarks(CPUS_QUARK_PATTERN)
                     .map { cpuQuark ->
                         val cpu = ss.getAttributeName(cpuQuark).toIntOrNull() ?: return@map null
                         ResourcesCpuTreeElement(cpu, emptyList(), ss, cpuQuark)
@@ -0,0 +1,135 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import com.google.common.collect.ImmutableList;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Array-backed list to which elements can only be appended. Readers do not
+ * need any locking, but calls to {@link #add} have to be serialized by the
+ * caller.
+ *
+ * An element is visible to readers once its index is below {@link #size()}.
+ *
+ * @param <T>
+ *            The type of elements
+ */
+final class AppendOnlyList<T> {
+
+    private static final int INITIAL_CAPACITY = 4;
+
+    private volatile Object[] elements = new Object[INITIAL_CAPACITY];
+    private volatile int size = 0;
+
+    /**
+     * Append an element at the end of the list. Not thread-safe, there should
+     * only be one thread adding elements at a time.
+     *
+     * @param element
+     *            The element to add
+     */
+    public void add(T element) {
+        Object[] array = elements;
+        int index = size;
+        if (index == array.length) {
+            array = Arrays.copyOf(array, array.length * 2);
+            array[index] = element;
+            /* Publish the new array before the new size */
+            elements = array;
+        } else {
+            array[index] = element;
+        }
+        size = index + 1;
+    }
+
+    /**
+     * Get the element at a given index.
+     *
+     * @param index
+     *            The index of the element
+     * @return The element
+     * @throws IndexOutOfBoundsException
+     *             If the index is not below the current size
+     */
+    @SuppressWarnings("unchecked")
+    public T get(int index) {
+        /* Read the size first, the array read after it contains its elements */
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(Integer.toString(index));
+        }
+        return (T) elements[index];
+    }
+
+    /**
+     * @return The number of elements currently in the list
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a snapshot of the current contents of the list.
+     *
+     * @return An immutable copy of the elements
+     */
+    @SuppressWarnings("unchecked")
+    public List<T> snapshot() {
+        int currentSize = size;
+        Object[] array = elements;
+        ImmutableList.Builder<T> builder = ImmutableList.builder();
+        for (int i = 0; i < currentSize; i++) {
+            builder.add((T) array[i]);
+        }
+        return builder.build();
+    }
+
+    /**
+     * Get a read-only view of the elements currently in the list. Unlike
+     * {@link #snapshot()}, nothing is copied, so this is cheap even for very
+     * large lists. Elements added afterwards are not part of the view.
+     *
+     * @return A fixed-size view of the current elements
+     */
+    public List<T> view() {
+        /* Read the size first, the array read after it contains its elements */
+        int currentSize = size;
+        return new View<>(elements, currentSize);
+    }
+
+    private static final class View<T> extends AbstractList<T> implements RandomAccess {
+
+        private final Object[] array;
+        private final int size;
+
+        View(Object[] array, int size) {
+            this.array = array;
+            this.size = size;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T get(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException(Integer.toString(index));
+            }
+            return (T) array[index];
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+    }
+}
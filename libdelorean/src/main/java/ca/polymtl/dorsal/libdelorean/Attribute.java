@@ -11,14 +11,13 @@
 
 package ca.polymtl.dorsal.libdelorean;
 
-import com.google.common.collect.ImmutableList;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.PrintWriter;
-import java.util.Collections;
-import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 import static java.util.Objects.requireNonNull;
 
@@ -40,6 +39,9 @@ final class Attribute {
     /** The sub-attributes (<basename, attribute>) of this attribute */
     private final Map<String, Attribute> subAttributes;
 
+    /** The same sub-attributes, in the order in which they were added */
+    private final AppendOnlyList<Attribute> subAttributesList;
+
     /**
      * Constructor
      *
@@ -55,7 +57,8 @@ final class Attribute {
         this.parent = parent;
         this.quark = quark;
         this.name = name;
-        this.subAttributes = Collections.synchronizedMap(new LinkedHashMap<String, Attribute>());
+        this.subAttributes = new ConcurrentHashMap<>();
+        this.subAttributesList = new AppendOnlyList<>();
     }
 
     // ------------------------------------------------------------------------
@@ -86,7 +89,17 @@ final class Attribute {
      * @return The child attributes.
      */
     public Iterable<Attribute> getSubAttributes() {
-        return ImmutableList.copyOf(subAttributes.values());
+        return subAttributesList.view();
+    }
+
+    /**
+     * Get a read-only view of the child attributes currently below this one.
+     * Nothing is copied, so this is cheap even for nodes with many children.
+     *
+     * @return The child attributes, in the order in which they were added
+     */
+    public List<Attribute> getSubAttributesView() {
+        return subAttributesList.view();
     }
 
     /**
@@ -150,7 +163,8 @@ final class Attribute {
     /* The methods how to access children are left to derived classes */
 
     /**
-     * Add a sub-attribute to this attribute
+     * Add a sub-attribute to this attribute. Sub-attributes can be read
+     * concurrently, but only one thread at a time may add them.
      *
      * @param newSubAttribute The new attribute to add
      */
@@ -158,6 +172,7 @@ final class Attribute {
         if (newSubAttribute == null) {
             throw new IllegalArgumentException();
         }
+        subAttributesList.add(newSubAttribute);
         subAttributes.put(newSubAttribute.getName(), newSubAttribute);
     }
 
@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+import java.util.function.LongFunction;
+
+/**
+ * Template of attribute paths which only differ by one element, identified by
+ * a numerical key. For example, the template
+ * <code>Threads/{tid}/Status</code> represents the status attribute of every
+ * thread, and resolving it with key 42 gives the quark of
+ * <code>Threads/42/Status</code>.
+ *
+ * Templates are meant to be created once, then resolved with
+ * {@link IStateSystemWriter#getQuarkAndAdd(AttributePathTemplate, long)}.
+ * State systems cache the quark of each key, so resolving a key that was
+ * already seen does not need to build any string or to walk the attribute
+ * tree.
+ *
+ * A template does not depend on a given state system, the same object can be
+ * used with several of them.
+ */
+public final class AttributePathTemplate {
+
+    private final @NotNull String[] prefix;
+    private final @NotNull String[] suffix;
+    private final @NotNull LongFunction<String> keyName;
+
+    /**
+     * Constructor using the decimal representation of the key as attribute
+     * name.
+     *
+     * @param path
+     *            The path elements, starting at the root. Exactly one of them
+     *            has to be a placeholder of the form <code>{name}</code>.
+     */
+    public AttributePathTemplate(@NotNull String... path) {
+        this(Long::toString, path);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param keyName
+     *            Function giving the attribute name to use for a key. It has to
+     *            always return the same name for a given key, and different
+     *            names for different keys.
+     * @param path
+     *            The path elements, starting at the root. Exactly one of them
+     *            has to be a placeholder of the form <code>{name}</code>.
+     */
+    public AttributePathTemplate(@NotNull LongFunction<String> keyName, @NotNull String... path) {
+        int keyIndex = -1;
+        for (int i = 0; i < path.length; i++) {
+            if (isPlaceholder(path[i])) {
+                if (keyIndex != -1) {
+                    throw new IllegalArgumentException("More than one placeholder in " + Arrays.toString(path)); //$NON-NLS-1$
+                }
+                keyIndex = i;
+            }
+        }
+        if (keyIndex == -1) {
+            throw new IllegalArgumentException("No placeholder in " + Arrays.toString(path)); //$NON-NLS-1$
+        }
+        this.prefix = Arrays.copyOfRange(path, 0, keyIndex);
+        this.suffix = Arrays.copyOfRange(path, keyIndex + 1, path.length);
+        this.keyName = keyName;
+    }
+
+    private static boolean isPlaceholder(String element) {
+        return (element.length() >= 2 && element.charAt(0) == '{' && element.charAt(element.length() - 1) == '}');
+    }
+
+    /**
+     * @return The path elements before the placeholder
+     */
+    @NotNull String[] getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return The path elements after the placeholder
+     */
+    @NotNull String[] getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * Get the path elements following the templated part of the path, for a
+     * given key.
+     *
+     * @param key
+     *            The key
+     * @return The name of the key's attribute, followed by the suffix
+     */
+    @NotNull String[] getSubPath(long key) {
+        String[] subPath = new String[suffix.length + 1];
+        subPath[0] = keyName.apply(key);
+        System.arraycopy(suffix, 0, subPath, 1, suffix.length);
+        return subPath;
+    }
+
+    /**
+     * Get the full path of the attribute corresponding to a key.
+     *
+     * @param key
+     *            The key
+     * @return The absolute path elements
+     */
+    public @NotNull String[] getPath(long key) {
+        String[] path = Arrays.copyOf(prefix, prefix.length + suffix.length + 1);
+        path[prefix.length] = keyName.apply(key);
+        System.arraycopy(suffix, 0, path, prefix.length + 1, suffix.length);
+        return path;
+    }
+
+    @Override
+    public String toString() {
+        return String.join("/", prefix) + "/{}/" + String.join("/", suffix); //$NON-NLS-1$ //$NON-NLS-2$
+    }
+}
@@ -0,0 +1,128 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Compiled form of an attribute path pattern, like the ones accepted by
+ * {@link IStateSystemQuarkResolver#getQuarks(String...)}. For example, the
+ * pattern <code>CPUs/&#42;/Current_thread</code> matches the current thread
+ * attribute of every CPU.
+ *
+ * Patterns are meant to be created once, then evaluated with
+ * {@link IStateSystemQuarkResolver#getQuarks(AttributePattern)}. State
+ * systems keep the result of each pattern, and only look at the attributes
+ * added since the previous evaluation, so evaluating the same pattern again
+ * does not walk the attribute tree.
+ *
+ * Only one wildcard "*" is supported. A pattern with more than one wildcard
+ * never matches any attribute.
+ *
+ * Patterns are compared by identity, the same object can be used with several
+ * state systems.
+ */
+public final class AttributePattern {
+
+    /** The wildcard element, matching any attribute name */
+    public static final @NotNull String WILDCARD = "*"; //$NON-NLS-1$
+
+    private final @NotNull String[] elements;
+    private final @NotNull String[] prefix;
+    private final @NotNull String[] suffix;
+    private final int wildcardIndex;
+    private final boolean valid;
+
+    /**
+     * Constructor
+     *
+     * @param pattern
+     *            The path elements, starting at the root. One of them can be a
+     *            "*" wildcard.
+     */
+    public AttributePattern(@NotNull String... pattern) {
+        int index = -1;
+        boolean isValid = true;
+        for (int i = 0; i < pattern.length; i++) {
+            if (WILDCARD.equals(pattern[i])) {
+                if (index != -1) {
+                    isValid = false;
+                }
+                index = i;
+            }
+        }
+        this.elements = Arrays.copyOf(pattern, pattern.length);
+        this.wildcardIndex = (isValid ? index : -1);
+        this.valid = isValid;
+        this.prefix = (wildcardIndex == -1 ? elements : Arrays.copyOfRange(elements, 0, wildcardIndex));
+        this.suffix = (wildcardIndex == -1 ? new String[0] : Arrays.copyOfRange(elements, wildcardIndex + 1, elements.length));
+    }
+
+    /**
+     * @return A copy of the path elements of this pattern
+     */
+    public @NotNull String[] getElements() {
+        return Arrays.copyOf(elements, elements.length);
+    }
+
+    /**
+     * @return If this pattern can match attributes, meaning it does not have
+     *         more than one wildcard
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    /**
+     * @return The number of path elements
+     */
+    int length() {
+        return elements.length;
+    }
+
+    /**
+     * @return The index of the wildcard element, or -1 if there is none
+     */
+    int getWildcardIndex() {
+        return wildcardIndex;
+    }
+
+    /**
+     * @return The path elements before the wildcard, or all of them if there
+     *         is no wildcard
+     */
+    @NotNull String[] getPrefix() {
+        return prefix;
+    }
+
+    /**
+     * @return The path elements after the wildcard, or an empty array if
+     *         there is no wildcard
+     */
+    @NotNull String[] getSuffix() {
+        return suffix;
+    }
+
+    /**
+     * @param index
+     *            The index of a path element that is not the wildcard
+     * @return The path element
+     */
+    @NotNull String getElement(int index) {
+        return elements[index];
+    }
+
+    @Override
+    public String toString() {
+        return String.join("/", elements); //$NON-NLS-1$
+    }
+}
@@ -12,6 +12,10 @@
 package ca.polymtl.dorsal.libdelorean;
 
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
@@ -19,6 +23,9 @@ import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
 import static java.util.Objects.requireNonNull;
 
@@ -27,6 +34,9 @@ import static java.util.Objects.requireNonNull;
  * Each node of this tree is both like a file and a directory in the
  * "file system".
  *
+ * Lookups do not take any lock, so that concurrent queries do not contend on
+ * the tree. Only the addition of new attributes is serialized.
+ *
  * @author alexmont
  *
  */
@@ -36,9 +46,17 @@ final class AttributeTree {
     private static final int ATTRIB_TREE_MAGIC_NUMBER = 0x06EC3671;
 
     private final StateSystem ss;
-    private final List<Attribute> attributeList;
+    private final AppendOnlyList<Attribute> attributeList;
     private final Attribute attributeTreeRoot;
 
+    /* Quarks resolved so far for each path template used with this tree */
+    private final Map<AttributePathTemplate, TemplateQuarks> templateQuarks = new ConcurrentHashMap<>();
+
+    /* Last result of each compiled pattern evaluated on this tree */
+    private final Cache<AttributePattern, PatternQuarks> patternQuarks = CacheBuilder.newBuilder()
+            .weakKeys()
+            .build();
+
     /**
      * Standard constructor, create a new empty Attribute Tree
      *
@@ -47,7 +65,7 @@ final class AttributeTree {
      */
     public AttributeTree(StateSystem ss) {
         this.ss = ss;
-        this.attributeList = new ArrayList<>();
+        this.attributeList = new AppendOnlyList<>();
         this.attributeTreeRoot = new Attribute(null, "root", -1); //$NON-NLS-1$
     }
 
@@ -100,7 +118,7 @@ final class AttributeTree {
      * @param pos
      *            The position (in bytes) in the file where to write
      */
-    public synchronized void writeSelf(File file, long pos) {
+    public void writeSelf(File file, long pos) {
         try (FileOutputStream fos = new FileOutputStream(file, true);
                 FileChannel fc = fos.getChannel();) {
             fc.position(pos);
@@ -110,8 +128,9 @@ final class AttributeTree {
                 oos.writeInt(ATTRIB_TREE_MAGIC_NUMBER);
 
                 /* Compute the serialized list of attributes and write it */
-                List<String[]> list = new ArrayList<>(attributeList.size());
-                for (Attribute entry : this.attributeList) {
+                List<Attribute> attributes = attributeList.snapshot();
+                List<String[]> list = new ArrayList<>(attributes.size());
+                for (Attribute entry : attributes) {
                     list.add(entry.getFullAttribute());
                 }
                 oos.writeObject(list);
@@ -129,7 +148,7 @@ final class AttributeTree {
      *
      * @return The current number of attributes in the tree
      */
-    public synchronized int getNbAttributes() {
+    public int getNbAttributes() {
         return attributeList.size();
     }
 
@@ -146,7 +165,7 @@ final class AttributeTree {
      * @throws AttributeNotFoundException
      *             If the specified path was not found
      */
-    public synchronized int getQuarkDontAdd(int startingNodeQuark, String... subPath)
+    public int getQuarkDontAdd(int startingNodeQuark, String... subPath)
             throws AttributeNotFoundException {
         assert (startingNodeQuark >= -1);
 
@@ -191,13 +210,10 @@ final class AttributeTree {
      *            The path to the attribute, relative to the starting node.
      * @return The quark of the attribute represented by the path
      */
-    public synchronized int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
-        // FIXME synchronized here is probably quite costly... maybe only locking
-        // the "for" would be enough?
+    public int getQuarkAndAdd(int startingNodeQuark, String... subPath) {
         assert (subPath != null && subPath.length > 0);
         assert (startingNodeQuark >= -1);
 
-        Attribute nextNode = null;
         Attribute prevNode;
 
         /* Get the "starting node" */
@@ -213,18 +229,7 @@ final class AttributeTree {
              * The attribute was not in the table previously, and we want to add
              * it
              */
-            for (String curDirectory : subPath) {
-                nextNode = prevNode.getSubAttributeNode(curDirectory);
-                if (nextNode == null) {
-                    /* This is where we need to start adding */
-                    nextNode = new Attribute(prevNode, requireNonNull(curDirectory), attributeList.size());
-                    prevNode.addSubAttribute(nextNode);
-                    attributeList.add(nextNode);
-                    ss.addEmptyAttribute();
-                }
-                prevNode = nextNode;
-            }
-            return attributeList.size() - 1;
+            return addAttribute(prevNode, subPath);
         }
         /*
          * The attribute was already existing, return the quark of that
@@ -233,6 +238,62 @@ final class AttributeTree {
         return knownQuark;
     }
 
+    private synchronized int addAttribute(Attribute startingNode, String... subPath) {
+        Attribute prevNode = startingNode;
+        Attribute nextNode = null;
+
+        for (String curDirectory : subPath) {
+            nextNode = prevNode.getSubAttributeNode(curDirectory);
+            if (nextNode == null) {
+                /* This is where we need to start adding */
+                nextNode = new Attribute(prevNode, requireNonNull(curDirectory), attributeList.size());
+                /*
+                 * Lock-free readers see the new quark once it is counted in
+                 * the attribute list, and find it by name once it is in its
+                 * parent, so the ongoing state entry has to exist before.
+                 */
+                ss.addEmptyAttribute();
+                attributeList.add(nextNode);
+                prevNode.addSubAttribute(nextNode);
+            }
+            prevNode = nextNode;
+        }
+        /*
+         * Another thread may have added the attribute in the meantime, so
+         * return the quark we found or created.
+         */
+        return requireNonNull(nextNode).getQuark();
+    }
+
+    /**
+     * Get the quark of the attribute represented by a path template and a
+     * key, creating it if needed. Quarks are cached per template, so keys
+     * that were already resolved are looked up in constant time.
+     *
+     * @param template
+     *            The path template
+     * @param key
+     *            The key identifying the attribute in the template
+     * @return The quark of the attribute
+     */
+    public int getQuarkAndAdd(AttributePathTemplate template, long key) {
+        TemplateQuarks quarks = templateQuarks.get(template);
+        if (quarks == null) {
+            quarks = templateQuarks.computeIfAbsent(template, t -> {
+                String[] prefix = t.getPrefix();
+                int prefixQuark = (prefix.length == 0 ? -1 : getQuarkAndAdd(-1, prefix));
+                return new TemplateQuarks(prefixQuark);
+            });
+        }
+
+        int quark = quarks.get(key);
+        if (quark == -1) {
+            quark = getQuarkAndAdd(quarks.prefixQuark, template.getSubPath(key));
+            quarks.put(key, quark);
+        }
+        return quark;
+    }
+
     /**
      * Returns the sub-attributes of the quark passed in parameter
      *
@@ -247,9 +308,8 @@ final class AttributeTree {
      *             If 'attributeQuark' is invalid, or if there is no attrbiute
      *             associated to it.
      */
-    public synchronized @NotNull List<Integer> getSubAttributes(int attributeQuark, boolean recursive)
+    public @NotNull List<Integer> getSubAttributes(int attributeQuark, boolean recursive)
             throws AttributeNotFoundException {
-        List<Integer> listOfChildren = new ArrayList<>();
         Attribute startingAttribute;
 
         /* Check if the quark is valid */
@@ -264,12 +324,178 @@ final class AttributeTree {
             startingAttribute = attributeList.get(attributeQuark);
         }
 
+        if (!recursive) {
+            /* Direct children are listed lazily, without copying them */
+            return Lists.transform(startingAttribute.getSubAttributesView(), Attribute::getQuark);
+        }
+
         /* Iterate through the sub-attributes and add them to the list */
-        addSubAttributes(listOfChildren, startingAttribute, recursive);
+        List<Integer> listOfChildren = new ArrayList<>();
+        addSubAttributes(listOfChildren, startingAttribute, true);
 
         return listOfChildren;
     }
 
+    /**
+     * Get the quarks of the attributes matching a compiled pattern. The
+     * result is kept, and is only updated with the attributes added since the
+     * previous call for the same pattern.
+     *
+     * @param pattern
+     *            The attribute pattern
+     * @return The matching quarks, in the same order as
+     *         {@link IStateSystemQuarkResolver#getQuarks(String...)}
+     */
+    public @NotNull List<Integer> getQuarks(AttributePattern pattern) {
+        if (!pattern.isValid()) {
+            return ImmutableList.of();
+        }
+
+        int nbAttributes = attributeList.size();
+        PatternQuarks previous = patternQuarks.getIfPresent(pattern);
+        if (previous != null && previous.nbAttributes == nbAttributes) {
+            return previous.quarks;
+        }
+
+        PatternQuarks result = (previous == null
+                ? evaluatePattern(pattern, nbAttributes)
+                : updatePattern(pattern, previous, nbAttributes));
+        /* Concurrent callers may have stored a more recent result already */
+        patternQuarks.asMap().merge(pattern, result,
+                (old, updated) -> (old.nbAttributes >= updated.nbAttributes ? old : updated));
+        return result.quarks;
+    }
+
+    /**
+     * Get the quarks of the attributes matching a pattern, without using or
+     * keeping its previous results. This is meant for patterns which are only
+     * used once.
+     *
+     * @param pattern
+     *            The attribute pattern
+     * @return The matching quarks
+     */
+    public @NotNull List<Integer> evaluateQuarks(AttributePattern pattern) {
+        if (!pattern.isValid()) {
+            return ImmutableList.of();
+        }
+        return evaluatePattern(pattern, attributeList.size()).quarks;
+    }
+
+    /**
+     * Evaluate a pattern from scratch, by looking for the suffix under each
+     * child of the prefix.
+     */
+    private PatternQuarks evaluatePattern(AttributePattern pattern, int nbAttributes) {
+        String[] prefix = pattern.getPrefix();
+        Attribute prefixNode = (prefix.length == 0
+                ? attributeTreeRoot
+                : attributeTreeRoot.getSubAttributeNode(prefix));
+        if (prefixNode == null || prefixNode.getQuark() >= nbAttributes) {
+            return new PatternQuarks(nbAttributes, new int[0], ImmutableList.of());
+        }
+        if (pattern.getWildcardIndex() == -1) {
+            int quark = prefixNode.getQuark();
+            return new PatternQuarks(nbAttributes, new int[] { quark }, ImmutableList.of(quark));
+        }
+
+        String[] suffix = pattern.getSuffix();
+        List<Attribute> children = prefixNode.getSubAttributesView();
+        int[] keys = new int[children.size()];
+        ImmutableList.Builder<Integer> quarks = ImmutableList.builder();
+        int nbMatches = 0;
+        for (Attribute child : children) {
+            int quark = (suffix.length == 0 ? child.getQuark() : child.getSubAttributeQuark(suffix));
+            /* Ignore attributes added after we read the attribute count */
+            if (quark != -1 && quark < nbAttributes) {
+                keys[nbMatches++] = child.getQuark();
+                quarks.add(quark);
+            }
+        }
+        return new PatternQuarks(nbAttributes, Arrays.copyOf(keys, nbMatches), quarks.build());
+    }
+
+    /**
+     * Update the result of a pattern with the attributes added since it was
+     * computed. Matches are kept sorted by the quark of the attribute at the
+     * wildcard level, which gives the same order as the evaluation from
+     * scratch.
+     */
+    private PatternQuarks updatePattern(AttributePattern pattern, PatternQuarks previous, int nbAttributes) {
+        int[] newKeys = new int[0];
+        int nbNew = 0;
+        for (int quark = previous.nbAttributes; quark < nbAttributes; quark++) {
+            int key = matchKey(pattern, attributeList.get(quark));
+            if (key != -1) {
+                if (nbNew == newKeys.length) {
+                    newKeys = Arrays.copyOf(newKeys, Math.max(4, nbNew * 2));
+                }
+                newKeys[nbNew++] = key;
+            }
+        }
+        if (nbNew == 0) {
+            return new PatternQuarks(nbAttributes, previous.keys, previous.quarks);
+        }
+
+        /*
+         * There is only one match per attribute at the wildcard level, so the
+         * match itself can be found from the key.
+         */
+        Arrays.sort(newKeys, 0, nbNew);
+        int[] keys = new int[previous.keys.length + nbNew];
+        ImmutableList.Builder<Integer> quarks = ImmutableList.builder();
+        int i = 0;
+        int j = 0;
+        for (int k = 0; k < keys.length; k++) {
+            if (j == nbNew || (i < previous.keys.length && previous.keys[i] < newKeys[j])) {
+                keys[k] = previous.keys[i];
+                quarks.add(previous.quarks.get(i));
+                i++;
+            } else {
+                keys[k] = newKeys[j];
+                quarks.add(matchFromKey(pattern, newKeys[j]));
+                j++;
+            }
+        }
+        return new PatternQuarks(nbAttributes, keys, quarks.build());
+    }
+
+    /**
+     * Check if an attribute matches a pattern, by walking up its parents.
+     *
+     * @return The quark of the ancestor at the wildcard level (or of the
+     *         attribute itself if there is no wildcard), or -1 if it does not
+     *         match
+     */
+    private static int matchKey(AttributePattern pattern, Attribute attribute) {
+        int wildcardIndex = pattern.getWildcardIndex();
+        int key = -1;
+        Attribute node = attribute;
+        for (int i = pattern.length() - 1; i >= 0; i--) {
+            Attribute parent = node.getParentAttribute();
+            if (parent == null) {
+                /* The attribute is not deep enough */
+                return -1;
+            }
+            if (i == wildcardIndex) {
+                key = node.getQuark();
+            } else if (!pattern.getElement(i).equals(node.getName())) {
+                return -1;
+            }
+            node = parent;
+        }
+        if (node.getParentAttribute() != null) {
+            /* The attribute is too deep */
+            return -1;
+        }
+        return (wildcardIndex == -1 ? attribute.getQuark() : key);
+    }
+
+    private int matchFromKey(AttributePattern pattern, int key) {
+        String[] suffix = pattern.getSuffix();
+        return (suffix.length == 0 ? key : attributeList.get(key).getSubAttributeQuark(suffix));
+    }
+
     /**
      * Returns the parent quark of the attribute. The root attribute has no
      * parent and will return <code>-1</code>
@@ -279,7 +505,7 @@ final class AttributeTree {
      * @return Quark of the parent attribute or <code>-1</code> for the root
      *         attribute
      */
-    public synchronized int getParentAttributeQuark(int quark) {
+    public int getParentAttributeQuark(int quark) {
         if (quark == -1) {
             return quark;
         }
@@ -303,7 +529,7 @@ final class AttributeTree {
      *            The quark of the attribute
      * @return The (base) name of the attribute
      */
-    public synchronized @NotNull String getAttributeName(int quark) {
+    public @NotNull String getAttributeName(int quark) {
         return attributeList.get(quark).getName();
     }
 
@@ -314,7 +540,7 @@ final class AttributeTree {
      *            The quark of the attribute
      * @return The full path name of the attribute
      */
-    public synchronized @NotNull String getFullAttributeName(int quark) {
+    public @NotNull String getFullAttributeName(int quark) {
         return attributeList.get(quark).getFullAttributeName();
     }
 
@@ -326,17 +552,87 @@ final class AttributeTree {
      *            The quark of the attribute
      * @return The path elements of the full path
      */
-    public synchronized @NotNull String[] getFullAttributePathArray(int quark) {
+    public @NotNull String[] getFullAttributePathArray(int quark) {
         return attributeList.get(quark).getFullAttribute();
     }
 
+    /**
+     * Cache of the quarks of one path template. Small non-negative keys, like
+     * thread or CPU numbers, are stored in an array indexed by key, others in
+     * a map. Entries are never removed, since attributes cannot be deleted.
+     */
+    private static final class TemplateQuarks {
+
+        private static final int MAX_INDEXED_KEYS = 1 << 16;
+
+        final int prefixQuark;
+
+        /* Quark + 1 of each key, 0 if the key was not resolved yet */
+        private volatile AtomicIntegerArray indexedQuarks = new AtomicIntegerArray(64);
+        private final Map<Long, Integer> otherQuarks = new ConcurrentHashMap<>();
+
+        TemplateQuarks(int prefixQuark) {
+            this.prefixQuark = prefixQuark;
+        }
+
+        int get(long key) {
+            if (key >= 0 && key < MAX_INDEXED_KEYS) {
+                AtomicIntegerArray array = indexedQuarks;
+                return (key < array.length() ? array.get((int) key) - 1 : -1);
+            }
+            Integer quark = otherQuarks.get(key);
+            return (quark == null ? -1 : quark);
+        }
+
+        void put(long key, int quark) {
+            if (key >= 0 && key < MAX_INDEXED_KEYS) {
+                synchronized (this) {
+                    AtomicIntegerArray array = indexedQuarks;
+                    if (key >= array.length()) {
+                        int length = array.length();
+                        while (key >= length) {
+                            length *= 2;
+                        }
+                        AtomicIntegerArray newArray = new AtomicIntegerArray(length);
+                        for (int i = 0; i < array.length(); i++) {
+                            newArray.set(i, array.get(i));
+                        }
+                        indexedQuarks = newArray;
+                        array = newArray;
+                    }
+                    array.set((int) key, quark + 1);
+                }
+            } else {
+                otherQuarks.put(key, quark);
+            }
+        }
+    }
+
+    /**
+     * Result of a pattern at a given attribute count. 'keys' contains the
+     * quark of the attribute at the wildcard level of each match, in
+     * increasing order.
+     */
+    private static final class PatternQuarks {
+
+        final int nbAttributes;
+        final int[] keys;
+        final List<Integer> quarks;
+
+        PatternQuarks(int nbAttributes, int[] keys, List<Integer> quarks) {
+            this.nbAttributes = nbAttributes;
+            this.keys = keys;
+            this.quarks = quarks;
+        }
+    }
+
     /**
      * Debug-print all the attributes in the tree.
      *
      * @param writer
      *            The writer where to print the output
      */
-    public synchronized void debugPrint(PrintWriter writer) {
+    public void debugPrint(PrintWriter writer) {
         attributeTreeRoot.debugPrint(writer);
     }
 
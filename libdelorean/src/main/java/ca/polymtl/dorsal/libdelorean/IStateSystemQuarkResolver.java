@@ -11,6 +11,7 @@
 package ca.polymtl.dorsal.libdelorean;
 
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 
@@ -93,6 +94,9 @@ public interface IStateSystemQuarkResolver {
      *            True if you want all recursive sub-attributes, false if you
      *            only want the first level.
      * @return A List of integers, matching the quarks of the sub-attributes.
+     *         It should not be modified. For the first level only, it may be
+     *         a lazy view of the children, so it is cheap to obtain even for
+     *         attributes with a very large number of them.
      * @throws AttributeNotFoundException
      *             If the quark was not existing or invalid.
      */
@@ -148,6 +152,22 @@ public interface IStateSystemQuarkResolver {
      */
     List<Integer> getQuarks(String... pattern);
 
+    /**
+     * Batch quark-retrieving method using a compiled pattern. This returns the
+     * same quarks as {@link #getQuarks(String...)}, but implementations can
+     * keep the result and only update it with the attributes added since the
+     * previous call, so callers evaluating the same pattern repeatedly (for
+     * example on every render of a view) should use this method.
+     *
+     * @param pattern
+     *            The compiled pattern to look for
+     * @return A List of attribute quarks, representing attributes that matched
+     *         the pattern. It should not be modified.
+     */
+    default List<Integer> getQuarks(@NotNull AttributePattern pattern) {
+        return getQuarks(pattern.getElements());
+    }
+
     /**
      * Return the name assigned to this quark. This returns only the "basename",
      * not the complete path to this attribute.
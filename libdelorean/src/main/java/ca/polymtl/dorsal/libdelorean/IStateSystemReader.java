@@ -13,9 +13,11 @@ package ca.polymtl.dorsal.libdelorean;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
 import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -123,6 +125,9 @@ public interface IStateSystemReader extends IStateSystemQuarkResolver {
      * queries for the same attributes but at different timestamps), you might
      * be better using the querySingleState() methods instead.
      *
+     * Results may be shared with other callers, the returned list should not
+     * be modified.
+     *
      * @param t
      *            We will recreate the state information to what it was at time
      *            t.
@@ -176,4 +181,74 @@ public interface IStateSystemReader extends IStateSystemQuarkResolver {
      *             disposed.
      */
     Map<Integer, StateInterval> queryStates(long t, Set<Integer> quarks);
-}
\ No newline at end of file
+
+    /**
+     * Variant of {@link #queryStates(long, Set)} which puts the intervals in a
+     * map provided by the caller, so that callers doing many such queries can
+     * reuse the same map.
+     *
+     * @param t
+     *            The timestamp of the query
+     * @param quarks
+     *            The quarks to query.
+     * @param results
+     *            The map where to put the matching intervals, quarks as keys.
+     *            It is not cleared first.
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been
+     *             disposed.
+     */
+    default void queryStates(long t, Set<Integer> quarks, Map<Integer, StateInterval> results) {
+        results.putAll(queryStates(t, quarks));
+    }
+
+    /**
+     * Range query method. Return all the intervals of the given quarks that
+     * intersect the time range [t1, t2]. This visits the history only once,
+     * so it is much faster than doing successive single queries.
+     *
+     * @param quarks
+     *            The quarks to query
+     * @param t1
+     *            Start of the time range. If it is before the start of the
+     *            history, the range will start at the history's start time.
+     * @param t2
+     *            End of the time range. If it is after the end of the
+     *            history, we will return what we have up to the end.
+     * @return An iterator on the matching intervals, in ascending order of
+     *         start times
+     * @throws TimeRangeException
+     *             If t2 < t1
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been
+     *             disposed.
+     */
+    Iterator<StateInterval> queryHistoryRange(Set<Integer> quarks, long t1, long t2);
+
+    /**
+     * Range aggregate query method. Return the minimum, maximum and
+     * time-weighted sum of the numeric values of an attribute over the time
+     * range [t1, t2], including the values held only between two samples.
+     *
+     * With history backends that keep summaries of their intervals, this does
+     * not need to look at every interval of the range, which makes it
+     * suitable for computing one value per pixel of a chart.
+     *
+     * @param quark
+     *            The quark to query
+     * @param t1
+     *            Start of the time range. If it is before the start of the
+     *            history, the range will start at the history's start time.
+     * @param t2
+     *            End of the time range. If it is after the end of the
+     *            history, only the values up to the end are considered.
+     * @return The aggregate of the values in the range, which is
+     *         {@link RangeAggregate#EMPTY} if there is no numeric value in it
+     * @throws TimeRangeException
+     *             If t2 < t1
+     * @throws StateSystemDisposedException
+     *             If the query is sent after the state system has been
+     *             disposed.
+     */
+    RangeAggregate queryRangeAggregate(int quark, long t1, long t2);
+}
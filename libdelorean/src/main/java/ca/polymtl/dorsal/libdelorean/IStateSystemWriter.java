@@ -82,6 +82,24 @@ public interface IStateSystemWriter extends IStateSystemReader {
      * @name State-changing methods
      */
 
+    /**
+     * Get the quark of the attribute represented by a path template and a
+     * key, creating it if it does not exist yet.
+     *
+     * State systems keep the quarks they resolved for each template, so this
+     * should be preferred to building the path with strings in code that
+     * runs for every event.
+     *
+     * @param template
+     *            The path template
+     * @param key
+     *            The key of the attribute in the template
+     * @return The quark of the attribute
+     */
+    default int getQuarkAndAdd(@NotNull AttributePathTemplate template, long key) {
+        return getQuarkAbsoluteAndAdd(template.getPath(key));
+    }
+
     /**
      * Modify a current "ongoing" state (instead of inserting a state change,
      * like modifyAttribute() and others).
@@ -200,6 +218,27 @@ public interface IStateSystemWriter extends IStateSystemReader {
     void removeAttribute(long t, int attributeQuark)
             throws AttributeNotFoundException;
 
+    /**
+     * Apply a batch of state changes, for example all the changes caused by
+     * one event. The state system applies them in a single critical section,
+     * so concurrent queries see either none or all of them. The batch is
+     * emptied afterwards.
+     *
+     * If one of the changes fails, the following ones are not applied, but
+     * the previous ones are kept.
+     *
+     * @param batch
+     *            The state changes to apply
+     * @throws TimeRangeException
+     *             If one of the changes has an invalid timestamp
+     * @throws AttributeNotFoundException
+     *             If one of the changes is on an invalid attribute
+     */
+    default void applyStateChanges(@NotNull StateChangeBatch batch)
+            throws AttributeNotFoundException {
+        batch.applyTo(this);
+    }
+
     /**
      * Method to close off the History Provider. This happens for example when
      * we are done reading an off-line trace. First we close the TransientState,
@@ -230,4 +269,38 @@ public interface IStateSystemWriter extends IStateSystemReader {
      * @see IStateAggregationRule
      */
     void addAggregationRule(@NotNull IStateAggregationRule rule);
+
+    /**
+     * Register an aggregation rule whose result is stored in the history.
+     *
+     * Unlike rules added with {@link #addAggregationRule}, which are evaluated
+     * at query time, the state system re-evaluates this rule's ongoing state
+     * whenever one of its attributes (see
+     * {@link IStateAggregationRule#getAttributePatterns()}) changes, and
+     * records the result as regular state changes of the target attribute.
+     * Queries on the target attribute are then regular queries.
+     *
+     * The rule should be registered before the state changes of its
+     * attributes are inserted. Its current value is recorded at the current
+     * end time of the state system. The target attribute should not be
+     * modified otherwise.
+     *
+     * @param rule
+     *            Aggregation rule to materialize
+     * @throws IllegalArgumentException
+     *             If the rule does not belong to this state system, does not
+     *             report its attributes, or if its target already has a rule
+     */
+    void addMaterializedAggregationRule(@NotNull IStateAggregationRule rule);
+
+    /**
+     * Check if an attribute is the target of a materialized aggregation rule,
+     * for example to register rules for newly-seen attributes only once.
+     *
+     * @param quark
+     *            The quark of the attribute
+     * @return If a rule was registered with
+     *         {@link #addMaterializedAggregationRule} for this attribute
+     */
+    boolean hasMaterializedAggregationRule(int quark);
 }
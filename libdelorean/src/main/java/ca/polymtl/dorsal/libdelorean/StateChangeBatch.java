@@ -0,0 +1,214 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Arrays;
+
+/**
+ * Group of state changes to be applied together to a state system, using
+ * {@link IStateSystemWriter#applyStateChanges}. This is typically used to
+ * collect all the changes caused by one event, or by a block of events, so
+ * that they are inserted in a single critical section.
+ *
+ * The changes are only recorded here, they are applied in the order in which
+ * they were added. State changes done through the batch are not visible in the
+ * ongoing state until the batch is applied.
+ *
+ * A batch is emptied once it is applied, so the same object can be reused for
+ * the next events. It is not thread-safe.
+ */
+public final class StateChangeBatch {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    /* Types of state changes, used by the state system to apply them */
+    static final byte MODIFY = 0;
+    static final byte INCREMENT = 1;
+    static final byte PUSH = 2;
+    static final byte POP = 3;
+    static final byte REMOVE = 4;
+
+    private byte[] types = new byte[INITIAL_CAPACITY];
+    private long[] timestamps = new long[INITIAL_CAPACITY];
+    private int[] quarks = new int[INITIAL_CAPACITY];
+    private StateValue[] values = new StateValue[INITIAL_CAPACITY];
+    private int size = 0;
+
+    /**
+     * Add an attribute modification to the batch.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param value
+     *            The new value of the attribute
+     * @param attributeQuark
+     *            The attribute to modify
+     * @return This batch
+     * @see IStateSystemWriter#modifyAttribute
+     */
+    public StateChangeBatch modifyAttribute(long t, @NotNull StateValue value, int attributeQuark) {
+        return add(MODIFY, t, attributeQuark, value);
+    }
+
+    /**
+     * Add an attribute increment to the batch.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param attributeQuark
+     *            The attribute to increment
+     * @return This batch
+     * @see IStateSystemWriter#incrementAttribute
+     */
+    public StateChangeBatch incrementAttribute(long t, int attributeQuark) {
+        return add(INCREMENT, t, attributeQuark, null);
+    }
+
+    /**
+     * Add a push on a stack attribute to the batch.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param value
+     *            The value to push on the stack
+     * @param attributeQuark
+     *            The stack attribute
+     * @return This batch
+     * @see IStateSystemWriter#pushAttribute
+     */
+    public StateChangeBatch pushAttribute(long t, @NotNull StateValue value, int attributeQuark) {
+        return add(PUSH, t, attributeQuark, value);
+    }
+
+    /**
+     * Add a pop of a stack attribute to the batch. Since the change is only
+     * applied later, the popped value is not returned.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param attributeQuark
+     *            The stack attribute
+     * @return This batch
+     * @see IStateSystemWriter#popAttribute
+     */
+    public StateChangeBatch popAttribute(long t, int attributeQuark) {
+        return add(POP, t, attributeQuark, null);
+    }
+
+    /**
+     * Add the removal of an attribute, and of its sub-attributes, to the
+     * batch.
+     *
+     * @param t
+     *            Timestamp of the state change
+     * @param attributeQuark
+     *            The attribute to remove
+     * @return This batch
+     * @see IStateSystemWriter#removeAttribute
+     */
+    public StateChangeBatch removeAttribute(long t, int attributeQuark) {
+        return add(REMOVE, t, attributeQuark, null);
+    }
+
+    /**
+     * @return The number of state changes in this batch
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return If this batch contains no state change
+     */
+    public boolean isEmpty() {
+        return (size == 0);
+    }
+
+    /**
+     * Remove all the state changes from this batch.
+     */
+    public void clear() {
+        Arrays.fill(values, 0, size, null);
+        size = 0;
+    }
+
+    byte getType(int index) {
+        return types[index];
+    }
+
+    long getTimestamp(int index) {
+        return timestamps[index];
+    }
+
+    int getQuark(int index) {
+        return quarks[index];
+    }
+
+    StateValue getValue(int index) {
+        return values[index];
+    }
+
+    /**
+     * Apply the state changes of this batch, in order, to a writer, then
+     * clear the batch, through the writer's individual state change methods.
+     * This is what writers that have no direct way of applying a batch use.
+     *
+     * @param ss
+     *            The writer on which to apply the changes
+     */
+    void applyTo(IStateSystemWriter ss) {
+        try {
+            for (int i = 0; i < size; i++) {
+                long t = timestamps[i];
+                int quark = quarks[i];
+                switch (types[i]) {
+                case MODIFY:
+                    ss.modifyAttribute(t, values[i], quark);
+                    break;
+                case INCREMENT:
+                    ss.incrementAttribute(t, quark);
+                    break;
+                case PUSH:
+                    ss.pushAttribute(t, values[i], quark);
+                    break;
+                case POP:
+                    ss.popAttribute(t, quark);
+                    break;
+                case REMOVE:
+                    ss.removeAttribute(t, quark);
+                    break;
+                default:
+                    throw new IllegalStateException();
+                }
+            }
+        } finally {
+            clear();
+        }
+    }
+
+    private StateChangeBatch add(byte type, long t, int quark, StateValue value) {
+        if (size == types.length) {
+            int capacity = size * 2;
+            types = Arrays.copyOf(types, capacity);
+            timestamps = Arrays.copyOf(timestamps, capacity);
+            quarks = Arrays.copyOf(quarks, capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+        types[size] = type;
+        timestamps[size] = t;
+        quarks[size] = quark;
+        values[size] = value;
+        size++;
+        return this;
+    }
+}
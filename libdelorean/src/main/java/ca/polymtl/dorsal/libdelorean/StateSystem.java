@@ -16,9 +16,13 @@ import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
 import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.IntegerStateValue;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterators;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -40,6 +44,9 @@ import java.util.logging.Logger;
  * inserting intervals, or the storage backend will have no way of knowing it
  * can close and write itself to disk, and its thread will keep running.
  *
+ * Queries can be run concurrently by any number of threads, during and after
+ * the build. They do not take any lock on the state system itself.
+ *
  * @author alexmont
  *
  */
@@ -47,6 +54,25 @@ class StateSystem implements IStateSystemWriter {
 
     private static final Logger LOGGER = Logger.getLogger(StateSystem.class.getName());
 
+    /**
+     * Maximum memory, in bytes, used by each of the query result caches.
+     */
+    private static final long QUERY_CACHE_SIZE = 8L * 1024 * 1024;
+
+    /**
+     * Rough estimate of the memory footprint of a cached interval: object
+     * header, two longs, an int and the reference to the state value, plus
+     * the value itself and the reference in the containing list.
+     */
+    private static final int INTERVAL_WEIGHT = 64;
+
+    /**
+     * Minimum number of results the full query cache can hold. A full state
+     * contains every attribute, so this cache is sized from the number of
+     * attributes.
+     */
+    private static final int MIN_CACHED_FULL_STATES = 4;
+
     /* References to the inner structures */
     private final AttributeTree attributeTree;
     private final TransientState transState;
@@ -58,10 +84,31 @@ class StateSystem implements IStateSystemWriter {
      */
     private final @NotNull Map<Integer, IStateAggregationRule> aggregationRules = new ConcurrentHashMap<>();
 
+    /**
+     * Materialized aggregation rules, by target quark, and the rules to
+     * re-evaluate when each of their attributes changes. The latter is only
+     * used by the thread inserting state changes.
+     */
+    private final @NotNull Map<Integer, MaterializedRule> materializedRules = new ConcurrentHashMap<>();
+    private final @NotNull Map<Integer, List<MaterializedRule>> materializedRulesBySource = new HashMap<>();
+    /* Number of attributes when the attributes of the rules were last resolved */
+    private int materializedRulesResolvedCount = 0;
+
     /* Latch tracking if the state history is done building or not */
     private final CountDownLatch finishedLatch = new CountDownLatch(1);
 
-    private boolean isDisposed = false;
+    private volatile boolean isDisposed = false;
+
+    /*
+     * Caches of recent query results, shared by all readers. They are only
+     * filled once the history is fully built, since the results of queries
+     * could otherwise change as new states are inserted.
+     */
+    private volatile @Nullable Cache<Long, List<StateInterval>> fullQueryCache = null;
+    private final Cache<QueryKey, StateInterval> singleQueryCache = CacheBuilder.newBuilder()
+            .maximumWeight(QUERY_CACHE_SIZE)
+            .weigher((QueryKey key, StateInterval interval) -> 2 * INTERVAL_WEIGHT)
+            .build();
 
     /**
      * New-file constructor. For when you build a state system with a new file,
@@ -89,6 +136,25 @@ class StateSystem implements IStateSystemWriter {
      */
     public StateSystem(@NotNull IStateHistoryBackend backend, boolean newFile)
             throws IOException {
+        this(backend, newFile, false);
+    }
+
+    /**
+     * Constructor for existing histories, which can either be only queried,
+     * or resumed to insert states after their current end time.
+     *
+     * @param backend
+     *            The "state history storage" back-end to use.
+     * @param newFile
+     *            Put true if this is a new history started from scratch.
+     * @param resume
+     *            Put true to resume building an existing history. The backend
+     *            has to support {@link IStateHistoryBackend#resumeBuilding()}.
+     * @throws IOException
+     *             If there was a problem opening the history file
+     */
+    StateSystem(@NotNull IStateHistoryBackend backend, boolean newFile, boolean resume)
+            throws IOException {
         this.backend = backend;
         this.transState = new TransientState(backend);
 
@@ -97,11 +163,33 @@ class StateSystem implements IStateSystemWriter {
         } else {
             /* We're opening an existing file */
             this.attributeTree = new AttributeTree(this, backend.supplyAttributeTreeReader());
-            transState.setInactive();
-            finishedLatch.countDown(); /* The history is already built */
+            if (resume) {
+                resumeOngoingState();
+            } else {
+                transState.setInactive();
+                finishedLatch.countDown(); /* The history is already built */
+            }
         }
     }
 
+    /**
+     * Re-open the backend and restore the ongoing states from the intervals
+     * that were cut at its end time.
+     */
+    private void resumeOngoingState() {
+        long previousEndTime = backend.getEndTime();
+        List<StateInterval> ongoingStates = new ArrayList<>(Collections.nCopies(getNbAttributes(), null));
+        backend.resumeBuilding().forEach(interval -> ongoingStates.set(interval.getAttribute(), interval));
+
+        for (int quark = 0; quark < ongoingStates.size(); quark++) {
+            if (ongoingStates.get(quark) == null) {
+                /* The history had no state for this attribute, start a null one */
+                ongoingStates.set(quark, new StateInterval(previousEndTime + 1, previousEndTime + 1, quark, StateValue.nullValue()));
+            }
+        }
+        transState.replaceOngoingState(ongoingStates);
+    }
+
     @Override
     public String getSSID() {
         return backend.getSSID();
@@ -130,6 +218,7 @@ class StateSystem implements IStateSystemWriter {
     @Override
     public synchronized void dispose() {
         isDisposed = true;
+        invalidateQueryCaches();
         if (transState.isActive()) {
             transState.setInactive();
         }
@@ -243,6 +332,11 @@ class StateSystem implements IStateSystemWriter {
         return getAttributeTree().getQuarkDontAdd(startingNodeQuark, subPath);
     }
 
+    @Override
+    public int getQuarkAndAdd(@NotNull AttributePathTemplate template, long key) {
+        return getAttributeTree().getQuarkAndAdd(template, key);
+    }
+
     @Override
     public int getQuarkRelativeAndAdd(int startingNodeQuark, String... subPath) {
         return getAttributeTree().getQuarkAndAdd(startingNodeQuark, subPath);
@@ -275,86 +369,13 @@ class StateSystem implements IStateSystemWriter {
 
     @Override
     public List<Integer> getQuarks(String... pattern) {
-        List<Integer> quarks = new LinkedList<>();
-        List<String> prefix = new LinkedList<>();
-        List<String> suffix = new LinkedList<>();
-        boolean split = false;
-        String[] prefixStr;
-        String[] suffixStr;
-        List<Integer> directChildren;
-        int startingAttribute;
-
-        /* Fill the "prefix" and "suffix" parts of the pattern around the '*' */
-        for (String entry : pattern) {
-            if (entry.equals("*")) { //$NON-NLS-1$
-                if (split) {
-                    /*
-                     * Split was already true? This means there was more than
-                     * one wildcard. This is not supported, return an empty
-                     * list.
-                     */
-                    return quarks;
-                }
-                split = true;
-                continue;
-            }
-
-            if (split) {
-                suffix.add(entry);
-            } else {
-                prefix.add(entry);
-            }
-        }
-        prefixStr = prefix.toArray(new String[prefix.size()]);
-        suffixStr = suffix.toArray(new String[suffix.size()]);
-
-        /*
-         * If there was no wildcard, we'll only return the one matching
-         * attribute, if there is one.
-         */
-        if (!split) {
-            int quark;
-            try {
-                quark = getQuarkAbsolute(prefixStr);
-            } catch (AttributeNotFoundException e) {
-                /* It's fine, we'll just return the empty List */
-                return quarks;
-            }
-            quarks.add(quark);
-            return quarks;
-        }
-
-        try {
-            if (prefix.size() == 0) {
-                /*
-                 * If 'prefix' is empty, this means the wildcard was the first
-                 * element. Look for the root node's sub-attributes.
-                 */
-                startingAttribute = -1;
-            } else {
-                startingAttribute = getQuarkAbsolute(prefixStr);
-            }
-            directChildren = getSubAttributes(startingAttribute, false);
-        } catch (AttributeNotFoundException e) {
-            /* That attribute path did not exist, return the empty array */
-            return quarks;
-        }
-
-        /*
-         * Iterate of all the sub-attributes, and only keep those who match the
-         * 'suffix' part of the initial pattern.
-         */
-        for (int childQuark : directChildren) {
-            int matchingQuark;
-            try {
-                matchingQuark = getQuarkRelative(childQuark, suffixStr);
-            } catch (AttributeNotFoundException e) {
-                continue;
-            }
-            quarks.add(matchingQuark);
-        }
+        /* One-off patterns are evaluated without keeping their result */
+        return getAttributeTree().evaluateQuarks(new AttributePattern(pattern));
+    }
 
-        return quarks;
+    @Override
+    public List<Integer> getQuarks(AttributePattern pattern) {
+        return getAttributeTree().getQuarks(pattern);
     }
 
     //--------------------------------------------------------------------------
@@ -371,28 +392,113 @@ class StateSystem implements IStateSystemWriter {
              */
             throw new IllegalArgumentException();
         }
-        transState.processStateChange(t, value, attributeQuark);
+        processStateChange(t, value, attributeQuark, false);
     }
 
     @Override
     public void incrementAttribute(long t, int attributeQuark)
             throws TimeRangeException,
             AttributeNotFoundException {
-        StateValue stateValue = queryOngoingState(attributeQuark);
+        incrementAttribute(t, attributeQuark, false);
+    }
+
+    @Override
+    public void pushAttribute(long t, StateValue value, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException {
+        pushAttribute(t, value, attributeQuark, false);
+    }
+
+    @Override
+    public StateValue popAttribute(long t, int attributeQuark)
+            throws AttributeNotFoundException, TimeRangeException {
+        return popAttribute(t, attributeQuark, false);
+    }
+
+    @Override
+    public void removeAttribute(long t, int attributeQuark)
+            throws TimeRangeException, AttributeNotFoundException {
+        removeAttribute(t, attributeQuark, false);
+    }
+
+    @Override
+    public void applyStateChanges(@NotNull StateChangeBatch batch)
+            throws TimeRangeException, AttributeNotFoundException {
+        if (batch.isEmpty()) {
+            return;
+        }
+        transState.runExclusive(() -> {
+            try {
+                for (int i = 0; i < batch.size(); i++) {
+                    applyStateChange(batch, i);
+                }
+            } finally {
+                batch.clear();
+            }
+        });
+    }
+
+    /*
+     * The methods below take an 'exclusive' parameter, which is true when
+     * they are called with the transient state's write lock already held, in
+     * which case they use the transient state methods that do not take it
+     * again.
+     */
+
+    private void applyStateChange(StateChangeBatch batch, int index) {
+        long t = batch.getTimestamp(index);
+        int quark = batch.getQuark(index);
+        switch (batch.getType(index)) {
+        case StateChangeBatch.MODIFY:
+            StateValue value = batch.getValue(index);
+            if (value == null) {
+                /* Same check as modifyAttribute() */
+                throw new IllegalArgumentException();
+            }
+            processStateChange(t, value, quark, true);
+            break;
+        case StateChangeBatch.INCREMENT:
+            incrementAttribute(t, quark, true);
+            break;
+        case StateChangeBatch.PUSH:
+            pushAttribute(t, batch.getValue(index), quark, true);
+            break;
+        case StateChangeBatch.POP:
+            popAttribute(t, quark, true);
+            break;
+        case StateChangeBatch.REMOVE:
+            removeAttribute(t, quark, true);
+            break;
+        default:
+            throw new IllegalStateException();
+        }
+    }
+
+    private StateValue getOngoingStateValue(int attributeQuark, boolean exclusive) {
+        return (exclusive ? transState.getOngoingStateValueExclusive(attributeQuark) : transState.getOngoingStateValue(attributeQuark));
+    }
+
+    private void incrementAttribute(long t, int attributeQuark, boolean exclusive) {
+        /* Check if the attribute is an aggregate, like queryOngoingState() */
+        StateValue stateValue = getOngoingAggregatedState(attributeQuark);
+        if (stateValue == null) {
+            stateValue = getOngoingStateValue(attributeQuark, exclusive);
+        }
         int prevValue = 0;
         /* if the attribute was previously null, start counting at 0 */
         if (!stateValue.isNull()) {
             prevValue = ((IntegerStateValue) stateValue).getValue();
         }
-        modifyAttribute(t, StateValue.newValueInt(prevValue + 1), attributeQuark);
+        processStateChange(t, StateValue.newValueInt(prevValue + 1), attributeQuark, exclusive);
     }
 
-    @Override
-    public void pushAttribute(long t, StateValue value, int attributeQuark)
-            throws TimeRangeException, AttributeNotFoundException {
+    private void pushAttribute(long t, StateValue value, int attributeQuark, boolean exclusive) {
+        if (value == null) {
+            /* Same check as modifyAttribute() */
+            throw new IllegalArgumentException();
+        }
         int stackDepth;
         int subAttributeQuark;
-        StateValue previousSV = transState.getOngoingStateValue(attributeQuark);
+        StateValue previousSV = getOngoingStateValue(attributeQuark, exclusive);
 
         if (previousSV.isNull()) {
             /*
@@ -420,15 +526,13 @@ class StateSystem implements IStateSystemWriter {
         stackDepth++;
         subAttributeQuark = getQuarkRelativeAndAdd(attributeQuark, String.valueOf(stackDepth));
 
-        modifyAttribute(t, StateValue.newValueInt(stackDepth), attributeQuark);
-        modifyAttribute(t, value, subAttributeQuark);
+        processStateChange(t, StateValue.newValueInt(stackDepth), attributeQuark, exclusive);
+        processStateChange(t, value, subAttributeQuark, exclusive);
     }
 
-    @Override
-    public StateValue popAttribute(long t, int attributeQuark)
-            throws AttributeNotFoundException, TimeRangeException {
+    private @Nullable StateValue popAttribute(long t, int attributeQuark, boolean exclusive) {
         /* These are the state values of the stack-attribute itself */
-        StateValue previousSV = transState.getOngoingStateValue(attributeQuark);
+        StateValue previousSV = getOngoingStateValue(attributeQuark, exclusive);
 
         if (previousSV.isNull()) {
             /*
@@ -456,7 +560,10 @@ class StateSystem implements IStateSystemWriter {
 
         /* The attribute should already exist at this point */
         int subAttributeQuark = getQuarkRelative(attributeQuark, String.valueOf(stackDepth));
-        StateValue poppedValue = queryOngoingState(subAttributeQuark);
+        StateValue poppedValue = getOngoingAggregatedState(subAttributeQuark);
+        if (poppedValue == null) {
+            poppedValue = getOngoingStateValue(subAttributeQuark, exclusive);
+        }
 
         /* Update the state value of the stack-attribute */
         StateValue nextSV;
@@ -466,17 +573,15 @@ class StateSystem implements IStateSystemWriter {
         } else {
             nextSV = StateValue.newValueInt(stackDepth);
         }
-        modifyAttribute(t, nextSV, attributeQuark);
+        processStateChange(t, nextSV, attributeQuark, exclusive);
 
         /* Delete the sub-attribute that contained the user's state value */
-        removeAttribute(t, subAttributeQuark);
+        removeAttribute(t, subAttributeQuark, exclusive);
 
         return poppedValue;
     }
 
-    @Override
-    public void removeAttribute(long t, int attributeQuark)
-            throws TimeRangeException, AttributeNotFoundException {
+    private void removeAttribute(long t, int attributeQuark, boolean exclusive) {
         if (attributeQuark < 0) {
             throw new IllegalArgumentException();
         }
@@ -491,10 +596,21 @@ class StateSystem implements IStateSystemWriter {
                 /* Something went very wrong when building out attribute tree */
                 throw new IllegalStateException();
             }
-            removeAttribute(t, childNodeQuark);
+            removeAttribute(t, childNodeQuark, exclusive);
         }
         /* Nullify ourselves */
-        transState.processStateChange(t, StateValue.nullValue(), attributeQuark);
+        processStateChange(t, StateValue.nullValue(), attributeQuark, exclusive);
+    }
+
+    private void processStateChange(long t, StateValue value, int attributeQuark, boolean exclusive) {
+        if (exclusive) {
+            transState.processStateChangeExclusive(t, value, attributeQuark);
+        } else {
+            transState.processStateChange(t, value, attributeQuark);
+        }
+        if (!materializedRules.isEmpty()) {
+            updateMaterializedRules(t, attributeQuark, exclusive);
+        }
     }
 
     //--------------------------------------------------------------------------
@@ -543,11 +659,49 @@ class StateSystem implements IStateSystemWriter {
     //--------------------------------------------------------------------------
 
     @Override
-    public synchronized List<StateInterval> queryFullState(long t)
+    public List<StateInterval> queryFullState(long t)
             throws TimeRangeException, StateSystemDisposedException {
         if (isDisposed) {
             throw new StateSystemDisposedException();
         }
+        if (!isQueryCacheable()) {
+            return doQueryFullState(t);
+        }
+
+        Cache<Long, List<StateInterval>> cache = getFullQueryCache();
+        List<StateInterval> stateInfo = cache.getIfPresent(t);
+        if (stateInfo == null) {
+            stateInfo = Collections.unmodifiableList(doQueryFullState(t));
+            cache.put(t, stateInfo);
+        }
+        return stateInfo;
+    }
+
+    /**
+     * Get the full query cache, creating it on first use, once the number of
+     * attributes is known. Concurrent readers may both create it, only one
+     * of them is kept, which does not matter.
+     */
+    private Cache<Long, List<StateInterval>> getFullQueryCache() {
+        Cache<Long, List<StateInterval>> cache = fullQueryCache;
+        if (cache == null) {
+            long fullStateWeight = INTERVAL_WEIGHT * (getNbAttributes() + 1L);
+            cache = CacheBuilder.newBuilder()
+                    /*
+                     * Use a single segment: each segment only gets its share of
+                     * the maximum weight, and larger entries would be evicted
+                     * right away.
+                     */
+                    .concurrencyLevel(1)
+                    .maximumWeight(Math.max(QUERY_CACHE_SIZE, MIN_CACHED_FULL_STATES * fullStateWeight))
+                    .weigher((Long t, List<StateInterval> states) -> INTERVAL_WEIGHT * (states.size() + 1))
+                    .build();
+            fullQueryCache = cache;
+        }
+        return cache;
+    }
+
+    private List<StateInterval> doQueryFullState(long t) {
 
         final int nbAttr = getNbAttributes();
         List<StateInterval> stateInfo = new ArrayList<>(nbAttr);
@@ -595,7 +749,20 @@ class StateSystem implements IStateSystemWriter {
         if (isDisposed) {
             throw new StateSystemDisposedException();
         }
+        if (!isQueryCacheable()) {
+            return doQuerySingleState(t, attributeQuark);
+        }
 
+        QueryKey key = new QueryKey(t, attributeQuark);
+        StateInterval interval = singleQueryCache.getIfPresent(key);
+        if (interval == null) {
+            interval = doQuerySingleState(t, attributeQuark);
+            singleQueryCache.put(key, interval);
+        }
+        return interval;
+    }
+
+    private StateInterval doQuerySingleState(long t, int attributeQuark) {
         /* First check if the target quark is an aggregate */
         StateInterval ret = getAggregatedState(attributeQuark, t);
         if (ret != null) {
@@ -623,21 +790,25 @@ class StateSystem implements IStateSystemWriter {
 
     @Override
     public Map<Integer, StateInterval> queryStates(long t, Set<Integer> quarks) {
+        Map<Integer, StateInterval> results = new HashMap<>(quarks.size());
+        queryStates(t, quarks, results);
+        return results;
+    }
+
+    @Override
+    public void queryStates(long t, Set<Integer> quarks, Map<Integer, StateInterval> results) {
         if (isDisposed) {
             throw new StateSystemDisposedException();
         }
 
-        Map<Integer, StateInterval> results = new HashMap<>(quarks.size());
-        Set<Integer> remainingQuarks = new HashSet<>(quarks);
-
         /*
          * First filter out the quarks we can manage at the core state system
          * level. This includes aggregate attributes, and quarks for which the
-         * state is part of the ongoing state.
+         * state is part of the ongoing state. The set is only copied if some
+         * of them are found.
          */
-        Iterator<Integer> iter = remainingQuarks.iterator();
-        while (iter.hasNext()) {
-            int quark = iter.next();
+        Set<Integer> remainingQuarks = quarks;
+        for (Integer quark : quarks) {
             /* Check if it's an aggregate. */
             StateInterval interval = getAggregatedState(quark, t);
             if (interval == null) {
@@ -645,15 +816,100 @@ class StateSystem implements IStateSystemWriter {
                 interval = transState.getIntervalAt(t, quark);
             }
             if (interval != null) {
+                if (remainingQuarks == quarks) {
+                    remainingQuarks = new HashSet<>(quarks);
+                }
                 results.put(quark, interval);
-                iter.remove();
+                remainingQuarks.remove(quark);
             }
         }
 
         /* Remaining quarks will be sent to the backend. */
         backend.doPartialQuery(t, remainingQuarks, results);
+    }
 
-        return results;
+    @Override
+    public Iterator<StateInterval> queryHistoryRange(Set<Integer> quarks, long t1, long t2) {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+        if (t2 < t1) {
+            throw new TimeRangeException(getSSID() + " Start:" + t1 + ", End:" + t2); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        final long rangeStart = Math.max(t1, getStartTime());
+        final long rangeEnd = Math.min(t2, getCurrentEndTime());
+        if (rangeStart > rangeEnd || quarks.isEmpty()) {
+            return Collections.emptyIterator();
+        }
+
+        /*
+         * Aggregate attributes and the ongoing states are not in the backend,
+         * get them separately and merge them with the backend's results.
+         */
+        Set<Integer> backendQuarks = new HashSet<>(quarks);
+        List<StateInterval> otherIntervals = new ArrayList<>();
+        for (int quark : quarks) {
+            if (aggregationRules.containsKey(Integer.valueOf(quark))) {
+                backendQuarks.remove(quark);
+                long ts = rangeStart;
+                while (ts <= rangeEnd) {
+                    StateInterval interval = getAggregatedState(quark, ts);
+                    if (interval == null) {
+                        break;
+                    }
+                    otherIntervals.add(interval);
+                    ts = interval.getEnd() + 1;
+                }
+            } else {
+                StateInterval ongoing = transState.getIntervalAt(rangeEnd, quark);
+                if (ongoing != null) {
+                    otherIntervals.add(ongoing);
+                }
+            }
+        }
+
+        Iterator<StateInterval> backendIntervals = backend.doRangeQuery(backendQuarks, rangeStart, rangeEnd);
+        if (otherIntervals.isEmpty()) {
+            return backendIntervals;
+        }
+        Comparator<StateInterval> byStart = Comparator.comparingLong(StateInterval::getStart);
+        otherIntervals.sort(byStart);
+        return Iterators.mergeSorted(Arrays.asList(backendIntervals, otherIntervals.iterator()), byStart);
+    }
+
+    @Override
+    public @NotNull RangeAggregate queryRangeAggregate(int quark, long t1, long t2) {
+        if (isDisposed) {
+            throw new StateSystemDisposedException();
+        }
+        if (t2 < t1) {
+            throw new TimeRangeException(getSSID() + " Start:" + t1 + ", End:" + t2); //$NON-NLS-1$ //$NON-NLS-2$
+        }
+
+        final long rangeStart = Math.max(t1, getStartTime());
+        final long rangeEnd = Math.min(t2, getCurrentEndTime());
+        if (rangeStart > rangeEnd) {
+            return RangeAggregate.EMPTY;
+        }
+
+        RangeAggregate result = RangeAggregate.EMPTY;
+        if (aggregationRules.containsKey(Integer.valueOf(quark))) {
+            /* Aggregate attributes are not in the backend, go through their intervals */
+            Iterator<StateInterval> intervals = queryHistoryRange(Collections.singleton(quark), rangeStart, rangeEnd);
+            while (intervals.hasNext()) {
+                result = result.plus(RangeAggregate.of(intervals.next(), rangeStart, rangeEnd));
+            }
+            return result;
+        }
+
+        result = backend.doRangeAggregateQuery(quark, rangeStart, rangeEnd);
+        /* The ongoing state is not in the backend yet */
+        StateInterval ongoing = transState.getIntervalAt(rangeEnd, quark);
+        if (ongoing != null) {
+            result = result.plus(RangeAggregate.of(ongoing, rangeStart, rangeEnd));
+        }
+        return result;
     }
 
     // --------------------------------------------------------------------------
@@ -666,6 +922,57 @@ class StateSystem implements IStateSystemWriter {
             throw new IllegalArgumentException();
         }
         aggregationRules.put(Integer.valueOf(rule.getTargetQuark()), rule);
+        invalidateQueryCaches();
+    }
+
+    @Override
+    public void addMaterializedAggregationRule(@NotNull IStateAggregationRule rule) {
+        Integer target = Integer.valueOf(rule.getTargetQuark());
+        if (rule.getStateSystem() != this
+                || rule.getAttributePatterns().isEmpty()
+                || aggregationRules.containsKey(target)
+                || materializedRules.containsKey(target)) {
+            throw new IllegalArgumentException(getSSID() + " Quark:" + target); //$NON-NLS-1$
+        }
+        MaterializedRule materializedRule = new MaterializedRule(rule);
+        materializedRules.put(target, materializedRule);
+        materializedRule.resolveAttributes();
+        updateMaterializedRule(getCurrentEndTime(), rule, false);
+    }
+
+    @Override
+    public boolean hasMaterializedAggregationRule(int quark) {
+        return materializedRules.containsKey(Integer.valueOf(quark));
+    }
+
+    /**
+     * Re-evaluate the materialized rules using an attribute which was just
+     * modified. A rule's target can itself be used by other rules, in which
+     * case the change propagates to them too.
+     */
+    private void updateMaterializedRules(long t, int quark, boolean exclusive) {
+        int nbAttributes = getNbAttributes();
+        if (nbAttributes != materializedRulesResolvedCount) {
+            /* New attributes may match the patterns of the rules */
+            materializedRules.values().forEach(MaterializedRule::resolveAttributes);
+            materializedRulesResolvedCount = nbAttributes;
+        }
+
+        List<MaterializedRule> rules = materializedRulesBySource.get(Integer.valueOf(quark));
+        if (rules == null) {
+            return;
+        }
+        for (int i = 0; i < rules.size(); i++) {
+            updateMaterializedRule(t, rules.get(i).rule, exclusive);
+        }
+    }
+
+    private void updateMaterializedRule(long t, IStateAggregationRule rule, boolean exclusive) {
+        int target = rule.getTargetQuark();
+        StateValue value = rule.getOngoingAggregatedState();
+        if (!value.equals(getOngoingStateValue(target, exclusive))) {
+            processStateChange(t, value, target, exclusive);
+        }
     }
 
     private @Nullable StateValue getOngoingAggregatedState(int quark) {
@@ -684,6 +991,85 @@ class StateSystem implements IStateSystemWriter {
         return rule.getAggregatedState(timestamp);
     }
 
+    //--------------------------------------------------------------------------
+    //        Query caches
+    //--------------------------------------------------------------------------
+
+    /**
+     * Query results can only be kept once the history is done building, and
+     * its contents will not change anymore.
+     */
+    private boolean isQueryCacheable() {
+        return (finishedLatch.getCount() == 0 && !transState.isActive());
+    }
+
+    private void invalidateQueryCaches() {
+        /* It will be sized again for the current number of attributes */
+        fullQueryCache = null;
+        singleQueryCache.invalidateAll();
+    }
+
+    /**
+     * A materialized aggregation rule, with the attributes it was found to
+     * use so far.
+     */
+    private final class MaterializedRule {
+
+        final IStateAggregationRule rule;
+        private final List<AttributePattern> patterns = new ArrayList<>();
+        private final Set<Integer> attributes = new HashSet<>();
+
+        MaterializedRule(IStateAggregationRule rule) {
+            this.rule = rule;
+            rule.getAttributePatterns().forEach(path -> patterns.add(new AttributePattern(path)));
+        }
+
+        /**
+         * Index this rule under the attributes matching its patterns which
+         * were not seen yet.
+         */
+        void resolveAttributes() {
+            for (AttributePattern pattern : patterns) {
+                for (Integer quark : getQuarks(pattern)) {
+                    if (attributes.add(quark)) {
+                        materializedRulesBySource.computeIfAbsent(quark, q -> new ArrayList<>()).add(this);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Key of the single-state query cache.
+     */
+    private static final class QueryKey {
+
+        private final long timestamp;
+        private final int quark;
+
+        public QueryKey(long timestamp, int quark) {
+            this.timestamp = timestamp;
+            this.quark = quark;
+        }
+
+        @Override
+        public int hashCode() {
+            return Long.hashCode(timestamp) * 31 + quark;
+        }
+
+        @Override
+        public boolean equals(@Nullable Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (!(obj instanceof QueryKey)) {
+                return false;
+            }
+            QueryKey other = (QueryKey) obj;
+            return (timestamp == other.timestamp && quark == other.quark);
+        }
+    }
+
     //--------------------------------------------------------------------------
     //        Debug methods
     //--------------------------------------------------------------------------
@@ -57,4 +57,21 @@ public final class StateSystemFactory {
         return new StateSystem(backend, newFile);
     }
 
+    /**
+     * Resume building an existing history, to insert states after its current
+     * end time. The states that were ongoing at that time become the ongoing
+     * states of the returned state system, so that they can be continued.
+     *
+     * @param backend
+     *            The back-end of the existing history. It has to support
+     *            {@link IStateHistoryBackend#resumeBuilding()}.
+     * @return The state system, which has to be closed again once the new
+     *         states are inserted
+     * @throws IOException
+     *             If there was a problem re-opening the history file
+     */
+    public static IStateSystemWriter resumeStateSystem(IStateHistoryBackend backend) throws IOException {
+        return new StateSystem(backend, false, true);
+    }
+
 }
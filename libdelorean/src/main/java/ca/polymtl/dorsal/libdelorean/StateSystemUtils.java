@@ -19,6 +19,7 @@ import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.FutureTask;
@@ -111,35 +112,17 @@ public final class StateSystemUtils {
                                                         int attributeQuark, long t1, long t2)
             throws AttributeNotFoundException, StateSystemDisposedException {
 
-        List<StateInterval> intervals;
-        StateInterval currentInterval;
-        long ts, tEnd;
-
         /* Make sure the time range makes sense */
-        if (t2 < t1) {
+        if (t2 < t1 || t1 < ss.getStartTime() || t1 > ss.getCurrentEndTime()) {
             throw new TimeRangeException(ss.getSSID() + " Start:" + t1 + ", End:" + t2); //$NON-NLS-1$ //$NON-NLS-2$
         }
-
-        /* Set the actual, valid end time of the range query */
-        if (t2 > ss.getCurrentEndTime()) {
-            tEnd = ss.getCurrentEndTime();
-        } else {
-            tEnd = t2;
+        if (attributeQuark < 0 || attributeQuark >= ss.getNbAttributes()) {
+            throw new AttributeNotFoundException(ss.getSSID() + " Quark:" + attributeQuark); //$NON-NLS-1$
         }
 
-        /* Get the initial state at time T1 */
-        intervals = new ArrayList<>();
-        currentInterval = ss.querySingleState(t1, attributeQuark);
-        intervals.add(currentInterval);
-
-        /* Get the following state changes */
-        ts = currentInterval.getEnd();
-        while (ts != -1 && ts < tEnd) {
-            ts++; /* To "jump over" to the next state in the history */
-            currentInterval = ss.querySingleState(ts, attributeQuark);
-            intervals.add(currentInterval);
-            ts = currentInterval.getEnd();
-        }
+        /* Let the state system visit the history only once for the whole range */
+        List<StateInterval> intervals = new ArrayList<>();
+        ss.queryHistoryRange(Collections.singleton(attributeQuark), t1, t2).forEachRemaining(intervals::add);
         return intervals;
     }
 
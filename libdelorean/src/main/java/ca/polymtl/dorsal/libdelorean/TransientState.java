@@ -15,12 +15,11 @@ import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
-import ca.polymtl.dorsal.libdelorean.statevalue.NullStateValue;
-import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import ca.polymtl.dorsal.libdelorean.statevalue.*;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.PrintWriter;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
@@ -34,10 +33,33 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
  * of the interval will be the recorded time we have here, and the "end time"
  * will be the timestamp of the new state-changing event we just read.
  *
+ * The ongoing states are stored in arrays indexed by quark, so that state
+ * changes do not box their start time, and snapshots are a single pass over
+ * the arrays.
+ *
  * @author Alexandre Montplaisir
  */
 class TransientState {
 
+    private static final int INITIAL_CAPACITY = 64;
+
+    /* Tags of the state value types, indexes in TYPE_CLASSES */
+    private static final byte TYPE_NULL = 0;
+    private static final byte TYPE_BOOLEAN = 1;
+    private static final byte TYPE_INTEGER = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_DOUBLE = 4;
+    private static final byte TYPE_STRING = 5;
+
+    private static final Class<?>[] TYPE_CLASSES = {
+            NullStateValue.class,
+            BooleanStateValue.class,
+            IntegerStateValue.class,
+            LongStateValue.class,
+            DoubleStateValue.class,
+            StringStateValue.class
+    };
+
     /* Indicates where to insert state changes that we generate */
     private final IStateHistoryBackend fBackend;
 
@@ -46,10 +68,14 @@ class TransientState {
     private volatile boolean fIsActive;
     private volatile long fLatestTime;
 
-    /* A method accessing these arrays will have to go through the lock */
-    private List<StateValue> fOngoingStateInfo;
-    private List<Long> fOngoingStateStartTimes;
-    private List<Class<? extends StateValue>> fStateValueTypes;
+    /*
+     * A method accessing these arrays will have to go through the lock. Only
+     * the first 'fSize' entries are used.
+     */
+    private StateValue[] fOngoingStateInfo;
+    private long[] fOngoingStateStartTimes;
+    private byte[] fStateValueTypes;
+    private int fSize;
 
     /**
      * Constructor
@@ -60,9 +86,10 @@ class TransientState {
     public TransientState(IStateHistoryBackend backend) {
         fBackend = backend;
         fIsActive = true;
-        fOngoingStateInfo = new ArrayList<>();
-        fOngoingStateStartTimes = new ArrayList<>();
-        fStateValueTypes = new ArrayList<>();
+        fOngoingStateInfo = new StateValue[INITIAL_CAPACITY];
+        fOngoingStateStartTimes = new long[INITIAL_CAPACITY];
+        fStateValueTypes = new byte[INITIAL_CAPACITY];
+        fSize = 0;
 
         fLatestTime = backend.getStartTime();
     }
@@ -89,12 +116,28 @@ class TransientState {
         fRWLock.readLock().lock();
         try {
             checkValidAttribute(quark);
-            return fOngoingStateInfo.get(quark);
+            return fOngoingStateInfo[quark];
         } finally {
             fRWLock.readLock().unlock();
         }
     }
 
+    /**
+     * Same as {@link #getOngoingStateValue}, for operations run by
+     * {@link #runExclusive}, which already hold the write lock.
+     *
+     * @param quark
+     *            The quark of the attribute to look for
+     * @return The corresponding state value
+     * @throws AttributeNotFoundException
+     *             If the quark is invalid
+     */
+    StateValue getOngoingStateValueExclusive(int quark) throws AttributeNotFoundException {
+        checkExclusive();
+        checkValidAttribute(quark);
+        return fOngoingStateInfo[quark];
+    }
+
     /**
      * Retrieve the start time of the state in which the given attribute is in.
      *
@@ -108,7 +151,7 @@ class TransientState {
         fRWLock.readLock().lock();
         try {
             checkValidAttribute(quark);
-            return fOngoingStateStartTimes.get(quark);
+            return fOngoingStateStartTimes[quark];
         } finally {
             fRWLock.readLock().unlock();
         }
@@ -130,7 +173,7 @@ class TransientState {
         fRWLock.writeLock().lock();
         try {
             checkValidAttribute(quark);
-            fOngoingStateInfo.set(quark, newValue);
+            fOngoingStateInfo[quark] = newValue;
         } finally {
             fRWLock.writeLock().unlock();
         }
@@ -151,8 +194,8 @@ class TransientState {
         fRWLock.readLock().lock();
         try {
             checkValidAttribute(quark);
-            return new StateInterval(fOngoingStateStartTimes.get(quark), fLatestTime,
-                    quark, fOngoingStateInfo.get(quark));
+            return new StateInterval(fOngoingStateStartTimes[quark], fLatestTime,
+                    quark, fOngoingStateInfo[quark]);
         } finally {
             fRWLock.readLock().unlock();
         }
@@ -173,21 +216,26 @@ class TransientState {
     public @Nullable StateInterval getIntervalAt(long time, int quark) {
         fRWLock.readLock().lock();
         try {
-            checkValidAttribute(quark);
-            if (!isActive() || time < fOngoingStateStartTimes.get(quark)) {
+            if (quark < 0 || quark >= fSize || !isActive()) {
                 return null;
             }
-            return new StateInterval(fOngoingStateStartTimes.get(quark),
-                    fLatestTime, quark, fOngoingStateInfo.get(quark));
-        } catch (AttributeNotFoundException e) {
-            return null;
+            return intervalAt(time, quark);
         } finally {
             fRWLock.readLock().unlock();
         }
     }
 
+    /* The caller must hold the lock, and check the quark */
+    private @Nullable StateInterval intervalAt(long time, int quark) {
+        long startTime = fOngoingStateStartTimes[quark];
+        if (time < startTime) {
+            return null;
+        }
+        return new StateInterval(startTime, fLatestTime, quark, fOngoingStateInfo[quark]);
+    }
+
     private void checkValidAttribute(int quark) throws AttributeNotFoundException {
-        if (quark > fOngoingStateInfo.size() - 1 || quark < 0) {
+        if (quark > fSize - 1 || quark < 0) {
             throw new AttributeNotFoundException(fBackend.getSSID() + " Quark:" + quark); //$NON-NLS-1$
         }
     }
@@ -208,14 +256,21 @@ class TransientState {
 
         fRWLock.writeLock().lock();
         try {
-            fOngoingStateInfo = new ArrayList<>(size);
-            fOngoingStateStartTimes = new ArrayList<>(size);
-            fStateValueTypes = new ArrayList<>(size);
-
-            for (StateInterval interval : newStateIntervals) {
-                fOngoingStateInfo.add(interval.getStateValue());
-                fOngoingStateStartTimes.add(interval.getStart());
-                fStateValueTypes.add(interval.getStateValue().getClass());
+            int capacity = Math.max(size, INITIAL_CAPACITY);
+            fOngoingStateInfo = new StateValue[capacity];
+            fOngoingStateStartTimes = new long[capacity];
+            fStateValueTypes = new byte[capacity];
+            fSize = size;
+
+            for (int i = 0; i < size; i++) {
+                StateInterval interval = newStateIntervals.get(i);
+                fOngoingStateInfo[i] = interval.getStateValue();
+                fOngoingStateStartTimes[i] = interval.getStart();
+                fStateValueTypes[i] = typeOf(interval.getStateValue());
+                /* Ongoing intervals go from their start time to the latest time */
+                if (fLatestTime < interval.getStart()) {
+                    fLatestTime = interval.getStart();
+                }
             }
         } finally {
             fRWLock.writeLock().unlock();
@@ -236,10 +291,34 @@ class TransientState {
              * covering for all timestamps). A null interval will then get added
              * at the first state change.
              */
-            fOngoingStateInfo.add(StateValue.nullValue());
-            fStateValueTypes.add(NullStateValue.class);
+            if (fSize == fOngoingStateInfo.length) {
+                int capacity = fSize * 2;
+                fOngoingStateInfo = Arrays.copyOf(fOngoingStateInfo, capacity);
+                fOngoingStateStartTimes = Arrays.copyOf(fOngoingStateStartTimes, capacity);
+                fStateValueTypes = Arrays.copyOf(fStateValueTypes, capacity);
+            }
+            fOngoingStateInfo[fSize] = StateValue.nullValue();
+            fStateValueTypes[fSize] = TYPE_NULL;
+            fOngoingStateStartTimes[fSize] = fBackend.getStartTime();
+            fSize++;
+        } finally {
+            fRWLock.writeLock().unlock();
+        }
+    }
 
-            fOngoingStateStartTimes.add(fBackend.getStartTime());
+    /**
+     * Run a group of operations on the transient state while holding its
+     * write lock, so that they are seen as one change by readers. The
+     * operations should use the "Exclusive" methods of this class, which do
+     * not take the lock again.
+     *
+     * @param operations
+     *            The operations to run
+     */
+    public void runExclusive(Runnable operations) {
+        fRWLock.writeLock().lock();
+        try {
+            operations.run();
         } finally {
             fRWLock.writeLock().unlock();
         }
@@ -267,58 +346,95 @@ class TransientState {
 
         fRWLock.writeLock().lock();
         try {
-            Class<? extends StateValue> expectedSvType = fStateValueTypes.get(quark);
-            checkValidAttribute(quark);
+            insertStateChange(eventTime, value, quark);
+        } finally {
+            fRWLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Same as {@link #processStateChange}, for operations run by
+     * {@link #runExclusive}, which already hold the write lock.
+     *
+     * @param eventTime
+     *            The timestamp associated with this state change
+     * @param value
+     *            The new StateValue associated to this attribute
+     * @param quark
+     *            The quark of the attribute that is being modified
+     * @throws TimeRangeException
+     *             If 'eventTime' is invalid
+     * @throws AttributeNotFoundException
+     *             IF 'quark' does not represent an existing attribute
+     */
+    void processStateChangeExclusive(long eventTime, StateValue value, int quark)
+            throws TimeRangeException, AttributeNotFoundException {
+        checkExclusive();
+        if (!this.fIsActive) {
+            return;
+        }
+        insertStateChange(eventTime, value, quark);
+    }
 
+    private void checkExclusive() {
+        if (!fRWLock.isWriteLockedByCurrentThread()) {
+            throw new IllegalStateException("The transient state's write lock is not held"); //$NON-NLS-1$
+        }
+    }
+
+    /* The caller must hold the write lock */
+    private void insertStateChange(long eventTime, StateValue value, int quark) {
+        checkValidAttribute(quark);
+        byte expectedSvType = fStateValueTypes[quark];
+        byte svType = typeOf(value);
+
+        /*
+         * Make sure the state value type we're inserting is the same as the
+         * one registered for this attribute.
+         */
+        if (expectedSvType == TYPE_NULL) {
             /*
-             * Make sure the state value type we're inserting is the same as the
-             * one registered for this attribute.
+             * The value hasn't been used yet, set it to the value we're
+             * currently inserting (which might be null/-1 again).
              */
-            if (expectedSvType == NullStateValue.class) {
-                /*
-                 * The value hasn't been used yet, set it to the value we're
-                 * currently inserting (which might be null/-1 again).
-                 */
-                fStateValueTypes.set(quark, value.getClass());
-            } else if ((value.getClass() != NullStateValue.class) && (value.getClass() != expectedSvType)) {
-                /*
-                 * We authorize inserting null values in any type of attribute,
-                 * but for every other types, it needs to match our
-                 * expectations!
-                 */
-                throw new IllegalArgumentException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getClass().getSimpleName() + ", Expected:" + expectedSvType.getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
-            }
-
-            if (fOngoingStateInfo.get(quark).equals(value)) {
-                /*
-                 * This is the case where the new value and the one already
-                 * present in the Builder are the same. We do not need to create
-                 * an interval, we'll just keep the current one going.
-                 */
-                return;
-            }
+            fStateValueTypes[quark] = svType;
+        } else if ((svType != TYPE_NULL) && (svType != expectedSvType)) {
+            /*
+             * We authorize inserting null values in any type of attribute,
+             * but for every other types, it needs to match our
+             * expectations!
+             */
+            throw new IllegalArgumentException(fBackend.getSSID() + " Quark:" + quark + ", Type:" + value.getClass().getSimpleName() + ", Expected:" + TYPE_CLASSES[expectedSvType].getSimpleName()); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+        }
 
-            if (fOngoingStateStartTimes.get(quark) < eventTime) {
-                /*
-                 * These two conditions are necessary to create an interval and
-                 * update ongoingStateInfo.
-                 */
-                fBackend.insertPastState(fOngoingStateStartTimes.get(quark),
-                        eventTime - 1, /* End Time */
-                        quark, /* attribute quark */
-                        fOngoingStateInfo.get(quark)); /* StateValue */
+        StateValue ongoingValue = fOngoingStateInfo[quark];
+        if (ongoingValue.equals(value)) {
+            /*
+             * This is the case where the new value and the one already
+             * present in the Builder are the same. We do not need to create
+             * an interval, we'll just keep the current one going.
+             */
+            return;
+        }
 
-                fOngoingStateStartTimes.set(quark, eventTime);
-            }
-            fOngoingStateInfo.set(quark, value);
+        long ongoingStartTime = fOngoingStateStartTimes[quark];
+        if (ongoingStartTime < eventTime) {
+            /*
+             * These two conditions are necessary to create an interval and
+             * update ongoingStateInfo.
+             */
+            fBackend.insertPastState(ongoingStartTime,
+                    eventTime - 1, /* End Time */
+                    quark, /* attribute quark */
+                    ongoingValue); /* StateValue */
 
-            /* Update the Transient State's lastestTime, if needed */
-            if (fLatestTime < eventTime) {
-                fLatestTime = eventTime;
-            }
+            fOngoingStateStartTimes[quark] = eventTime;
+        }
+        fOngoingStateInfo[quark] = value;
 
-        } finally {
-            fRWLock.writeLock().unlock();
+        /* Update the Transient State's lastestTime, if needed */
+        if (fLatestTime < eventTime) {
+            fLatestTime = eventTime;
         }
     }
 
@@ -337,17 +453,18 @@ class TransientState {
             if (!this.fIsActive) {
                 return;
             }
-            if (stateInfo.size() > fOngoingStateInfo.size()) {
+            final int nbAttributes = stateInfo.size();
+            if (nbAttributes > fSize) {
                 throw new IllegalArgumentException();
             }
 
-            for (int i = 0; i < stateInfo.size(); i++) {
+            for (int i = 0; i < nbAttributes; i++) {
                 /*
                  * We build a dummy interval whose end time =
                  * "current transient state end time" to put in the answer to
                  * the query.
                  */
-                final StateInterval interval = getIntervalAt(t, i);
+                final StateInterval interval = intervalAt(t, i);
                 if (interval != null) {
                     stateInfo.set(i, interval);
                 }
@@ -374,8 +491,8 @@ class TransientState {
                 return;
             }
 
-            for (int i = 0; i < fOngoingStateInfo.size(); i++) {
-                if (fOngoingStateStartTimes.get(i) > endTime) {
+            for (int i = 0; i < fSize; i++) {
+                if (fOngoingStateStartTimes[i] > endTime) {
                     /*
                      * Handle the cases where trace end > timestamp of last
                      * state change. This can happen when inserting "future"
@@ -384,10 +501,10 @@ class TransientState {
                     continue;
                 }
                 try {
-                    fBackend.insertPastState(fOngoingStateStartTimes.get(i),
+                    fBackend.insertPastState(fOngoingStateStartTimes[i],
                             endTime, /* End Time */
                             i, /* attribute quark */
-                            fOngoingStateInfo.get(i)); /* StateValue */
+                            fOngoingStateInfo[i]); /* StateValue */
 
                 } catch (TimeRangeException e) {
                     /*
@@ -398,8 +515,8 @@ class TransientState {
                 }
             }
 
-            fOngoingStateInfo.clear();
-            fOngoingStateStartTimes.clear();
+            Arrays.fill(fOngoingStateInfo, 0, fSize, null);
+            fSize = 0;
             this.fIsActive = false;
 
         } finally {
@@ -423,6 +540,23 @@ class TransientState {
         fIsActive = false;
     }
 
+    private static byte typeOf(StateValue value) {
+        if (value instanceof IntegerStateValue) {
+            return TYPE_INTEGER;
+        } else if (value instanceof LongStateValue) {
+            return TYPE_LONG;
+        } else if (value instanceof StringStateValue) {
+            return TYPE_STRING;
+        } else if (value instanceof NullStateValue) {
+            return TYPE_NULL;
+        } else if (value instanceof DoubleStateValue) {
+            return TYPE_DOUBLE;
+        } else if (value instanceof BooleanStateValue) {
+            return TYPE_BOOLEAN;
+        }
+        throw new IllegalArgumentException(value.getClass().getName());
+    }
+
     /**
      * Debugging method that prints the contents of the transient state
      *
@@ -441,10 +575,10 @@ class TransientState {
                 return;
             }
             writer.println("\nAttribute\tStateValue\tValid since time"); //$NON-NLS-1$
-            for (int i = 0; i < fOngoingStateInfo.size(); i++) {
+            for (int i = 0; i < fSize; i++) {
                 writer.format("%d\t\t", i); //$NON-NLS-1$
-                writer.print(fOngoingStateInfo.get(i).toString() + "\t\t"); //$NON-NLS-1$
-                writer.println(fOngoingStateStartTimes.get(i).toString());
+                writer.print(fOngoingStateInfo[i].toString() + "\t\t"); //$NON-NLS-1$
+                writer.println(fOngoingStateStartTimes[i]);
             }
             writer.println('\n');
 
@@ -13,6 +13,10 @@ import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Interface for state aggregation rules.
@@ -28,6 +32,11 @@ import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
  * A rule can only be mounted to a single quark. To mount similar rules to a set
  * of quarks, create a separate rule object for each one.
  *
+ * Rules can also be materialized with
+ * {@link IStateSystemWriter#addMaterializedAggregationRule}, in which case the
+ * aggregate is computed while the history is built and stored as a regular
+ * attribute.
+ *
  * @author Alexandre Montplaisir
  */
 public interface IStateAggregationRule {
@@ -62,4 +71,16 @@ public interface IStateAggregationRule {
      * @return The corresponding state interval
      */
     StateInterval getAggregatedState(long timestamp);
-}
\ No newline at end of file
+
+    /**
+     * Get the paths of the attributes this rule reads. They may contain a "*"
+     * wildcard. Materialized rules are re-evaluated whenever one of the
+     * matching attributes changes, so rules which do not report their
+     * attributes here cannot be materialized.
+     *
+     * @return The paths of the aggregated attributes
+     */
+    default @NotNull List<String[]> getAttributePatterns() {
+        return Collections.emptyList();
+    }
+}
@@ -9,10 +9,12 @@
 
 package ca.polymtl.dorsal.libdelorean.aggregation;
 
+import ca.polymtl.dorsal.libdelorean.AttributePattern;
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import com.google.common.collect.ImmutableList;
+import org.jetbrains.annotations.NotNull;
 
 import java.util.List;
 import java.util.stream.Stream;
@@ -27,11 +29,10 @@ import java.util.stream.Stream;
  */
 public abstract class StateAggregationRule implements IStateAggregationRule {
 
-    private static final String WILDCARD = "*"; //$NON-NLS-1$
-
     private final IStateSystemWriter fStateSystem;
     private final int fTargetQuark;
     private final List<String[]> fAttributePatterns;
+    private final List<AttributePattern> fCompiledPatterns;
 
     /**
      * Constructor
@@ -43,7 +44,9 @@ public abstract class StateAggregationRule implements IStateAggregationRule {
      * @param attributePatterns
      *            The paths representing the state system attributes to use in
      *            the resolution of this aggregate state. How exactly they are
-     *            used will depend on every implementation of this class.
+     *            used will depend on every implementation of this class. Each
+     *            path may contain one "*" wildcard, which is expanded to the
+     *            matching attributes in the order they were created.
      */
     protected StateAggregationRule(IStateSystemWriter ssb,
             int targetQuark,
@@ -53,12 +56,14 @@ public abstract class StateAggregationRule implements IStateAggregationRule {
 
         /* Check that the provided patterns are fine. */
         if (attributePatterns.stream()
-                .flatMap(strArray -> Stream.of(strArray))
-                .anyMatch(string -> string.equals(WILDCARD))) {
-            throw new IllegalArgumentException("Patterns cannot contain wildcards."); //$NON-NLS-1$
+                .anyMatch(strArray -> Stream.of(strArray).filter(AttributePattern.WILDCARD::equals).count() > 1)) {
+            throw new IllegalArgumentException("Patterns cannot contain more than one wildcard."); //$NON-NLS-1$
         }
 
         fAttributePatterns = ImmutableList.copyOf(attributePatterns);
+        fCompiledPatterns = attributePatterns.stream()
+                .map(AttributePattern::new)
+                .collect(ImmutableList.toImmutableList());
     }
 
     /**
@@ -66,22 +71,21 @@ public abstract class StateAggregationRule implements IStateAggregationRule {
      * aggregation.
      *
      * Attributes are resolved every time this method is called, because new
-     * attributes matching the expected patterns may have been created.
+     * attributes matching the expected patterns may have been created. The
+     * patterns are compiled, so this only looks at the attributes added since
+     * the previous call.
      *
      * @return A fresh stream of the attribute quarks
      */
     protected final Stream<Integer> getQuarkStream() {
-        return fAttributePatterns.stream()
-
-                /* Filter out the patterns that do not match existing attributes */
-                .map(pattern -> fStateSystem.getQuarks(pattern))
-                .filter(quarkList -> !quarkList.isEmpty())
+        return fCompiledPatterns.stream()
+                /* Patterns that do not match existing attributes give nothing */
+                .flatMap(pattern -> fStateSystem.getQuarks(pattern).stream());
+    }
 
-                /*
-                 * The patterns should not contain wildcards, there should be
-                 * only one element (one quark) in each list.
-                 */
-                .map(quarkList -> quarkList.get(0));
+    @Override
+    public final @NotNull List<String[]> getAttributePatterns() {
+        return fAttributePatterns;
     }
 
     @Override
@@ -12,6 +12,7 @@ package ca.polymtl.dorsal.libdelorean.backend;
 
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import org.jetbrains.annotations.NotNull;
@@ -114,7 +115,8 @@ class InMemoryBackend implements IStateHistoryBackend {
             for (int modCount = 0; iter.hasNext() && modCount < currentStateInfo.size();) {
                 StateInterval entry = iter.next();
                 final long entryStartTime = entry.getStart();
-                if (entryStartTime <= t) {
+                /* Skip attributes created after the query was started */
+                if (entryStartTime <= t && entry.getAttribute() < currentStateInfo.size()) {
                     /* Add this interval to the returned values */
                     currentStateInfo.set(entry.getAttribute(), entry);
                     modCount++;
@@ -181,6 +183,19 @@ class InMemoryBackend implements IStateHistoryBackend {
         return -1;
     }
 
+    // FIXME Needs to be implemented because of https://youtrack.jetbrains.com/issue/KT-4779
+    @Override
+    public @NotNull List<StateInterval> resumeBuilding() {
+        /* The intervals ending at the end time are the last ones of the tree */
+        StateInterval first = new StateInterval(latestTime, latestTime, Integer.MIN_VALUE, StateValue.nullValue());
+        synchronized (intervals) {
+            SortedSet<StateInterval> ongoing = intervals.tailSet(first);
+            List<StateInterval> ret = new ArrayList<>(ongoing);
+            ongoing.clear();
+            return ret;
+        }
+    }
+
     @Override
     public void removeFiles() {
         /* Nothing to do */
@@ -213,4 +228,49 @@ class InMemoryBackend implements IStateHistoryBackend {
             }
         });
     }
+
+    @Override
+    public @NotNull Iterator<StateInterval> doRangeQuery(@NotNull Set<Integer> quarks, long t1, long t2) {
+        long rangeStart = Math.max(t1, startTime);
+        long rangeEnd = Math.min(t2, latestTime);
+        if (rangeStart > rangeEnd) {
+            return Collections.emptyIterator();
+        }
+
+        /*
+         * The intervals are sorted by end time, start from the first one that
+         * ends in the range. Each quark's intervals are contiguous, so we can
+         * stop once every quark has an interval reaching the end of the range.
+         */
+        List<StateInterval> results = new ArrayList<>();
+        Set<Integer> remainingQuarks = new HashSet<>(quarks);
+        synchronized (intervals) {
+            Iterator<StateInterval> iter = serachforEndTime(intervals, rangeStart);
+            while (iter.hasNext() && !remainingQuarks.isEmpty()) {
+                StateInterval entry = iter.next();
+                int quark = entry.getAttribute();
+                if (remainingQuarks.contains(quark) && entry.getStart() <= rangeEnd) {
+                    results.add(entry);
+                    if (entry.getEnd() >= rangeEnd) {
+                        remainingQuarks.remove(quark);
+                    }
+                }
+            }
+        }
+        results.sort(Comparator.comparingLong(StateInterval::getStart));
+        return results.iterator();
+    }
+
+    // FIXME Needs to be implemented because of https://youtrack.jetbrains.com/issue/KT-4779
+    @Override
+    public @NotNull RangeAggregate doRangeAggregateQuery(int quark, long t1, long t2) {
+        long rangeStart = Math.max(t1, startTime);
+        long rangeEnd = Math.min(t2, latestTime);
+        RangeAggregate result = RangeAggregate.EMPTY;
+        Iterator<StateInterval> iter = doRangeQuery(Collections.singleton(quark), rangeStart, rangeEnd);
+        while (iter.hasNext()) {
+            result = result.plus(RangeAggregate.of(iter.next(), rangeStart, rangeEnd));
+        }
+        return result;
+    }
 }
@@ -10,12 +10,15 @@
 
 package ca.polymtl.dorsal.libdelorean.backend;
 
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.File;
 import java.io.FileInputStream;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -71,6 +74,12 @@ class NullBackend implements IStateHistoryBackend {
         /* Nothing to do */
     }
 
+    // FIXME Needs to be implemented because of https://youtrack.jetbrains.com/issue/KT-4779
+    @Override
+    public @NotNull List<StateInterval> resumeBuilding() {
+        throw new UnsupportedOperationException(ssid + " History cannot be resumed"); //$NON-NLS-1$
+    }
+
     @Override
     public FileInputStream supplyAttributeTreeReader() {
         return null;
@@ -126,4 +135,22 @@ class NullBackend implements IStateHistoryBackend {
             }
         });
     }
+
+    /**
+     * Null back-ends cannot run queries. Nothing will be returned.
+     */
+    @Override
+    public @NotNull Iterator<StateInterval> doRangeQuery(@NotNull Set<Integer> quarks, long t1, long t2) {
+        /* Cannot do past queries */
+        return Collections.emptyIterator();
+    }
+
+    /**
+     * Null back-ends cannot run queries. The aggregate will be empty.
+     */
+    @Override
+    public @NotNull RangeAggregate doRangeAggregateQuery(int quark, long t1, long t2) {
+        /* Cannot do past queries */
+        return RangeAggregate.EMPTY;
+    }
 }
@@ -23,6 +23,9 @@ import java.io.IOException;
  */
 public final class StateHistoryBackendFactory {
 
+    static final int HISTORY_TREE_BLOCK_SIZE = 64 * 1024;
+    static final int HISTORY_TREE_MAX_CHILDREN = 50;
+
     private StateHistoryBackendFactory() {}
 
     /**
@@ -51,6 +54,25 @@ public final class StateHistoryBackendFactory {
         return new InMemoryBackend(ssid, startTime);
     }
 
+    /**
+     * Create a new columnar in-memory backend. The intervals are stored in
+     * sorted arrays of primitive values, off the Java heap, which makes it
+     * much more compact and quicker to query than
+     * {@link #createInMemoryBackend}. It still cannot be saved to disk.
+     *
+     * The intervals of each attribute must be inserted in chronological
+     * order, which is what the state system does.
+     *
+     * @param ssid
+     *            The ID for this state system
+     * @param startTime
+     *            The start time of the state system and backend
+     * @return The state system backend
+     */
+    public static IStateHistoryBackend createColumnarBackend(String ssid, long startTime) {
+        return new ColumnarBackend(ssid, startTime);
+    }
+
     /**
      * Create a new backend using a History Tree. This backend stores all its
      * intervals on disk.
@@ -78,6 +100,123 @@ public final class StateHistoryBackendFactory {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion, startTime);
     }
 
+    /**
+     * Create a new backend using a History Tree, optionally storing its nodes
+     * as compressed blocks. Compressed files are usually several times
+     * smaller, but nodes need to be decompressed when they are read back.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param compressBlocks
+     *            If the nodes should be stored compressed
+     * @return The state system backend
+     * @throws IOException
+     *             Thrown if we can't create the file for some reason
+     */
+    public static IStateHistoryBackend createHistoryTreeBackendNewFile(String ssid,
+            File stateFile, int providerVersion, long startTime, boolean compressBlocks) throws IOException {
+        return new HistoryTreeBackend(ssid, stateFile, providerVersion, startTime,
+                HISTORY_TREE_BLOCK_SIZE, HISTORY_TREE_MAX_CHILDREN,
+                HistoryTreeBackend.DEFAULT_NODE_CACHE_SIZE, HistoryTreeBackend.DEFAULT_WRITE_QUEUE_SIZE,
+                compressBlocks);
+    }
+
+    /**
+     * Create a new backend using a History Tree, optionally keeping in each
+     * core node aggregates of the numeric values of its subtree. This speeds
+     * up {@link ca.polymtl.dorsal.libdelorean.IStateSystemReader#queryRangeAggregate}
+     * for histories with up to a few hundred numeric quarks, at the cost of
+     * 1/8 of the space of each core node.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param compressBlocks
+     *            If the nodes should be stored compressed
+     * @param keepAggregates
+     *            If core nodes should keep aggregates of their subtree
+     * @return The state system backend
+     * @throws IOException
+     *             Thrown if we can't create the file for some reason
+     */
+    public static IStateHistoryBackend createHistoryTreeBackendNewFile(String ssid,
+            File stateFile, int providerVersion, long startTime, boolean compressBlocks,
+            boolean keepAggregates) throws IOException {
+        return new HistoryTreeBackend(ssid, stateFile, providerVersion, startTime,
+                HISTORY_TREE_BLOCK_SIZE, HISTORY_TREE_MAX_CHILDREN,
+                HistoryTreeBackend.DEFAULT_NODE_CACHE_SIZE, HistoryTreeBackend.DEFAULT_WRITE_QUEUE_SIZE,
+                compressBlocks, keepAggregates);
+    }
+
+    /**
+     * Create a new backend that builds the history in memory, and only moves
+     * it to a History Tree file if it grows past
+     * {@link HybridBackend#DEFAULT_MEMORY_BUDGET} bytes. Small histories are
+     * then quicker to build, but are not saved to disk.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the state history, if it
+     *            goes to disk (Should end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param compressBlocks
+     *            If the nodes of the history file should be stored compressed
+     * @return The state system backend
+     */
+    public static IStateHistoryBackend createHybridBackend(String ssid,
+            File stateFile, int providerVersion, long startTime, boolean compressBlocks) {
+        return createHybridBackend(ssid, stateFile, providerVersion, startTime, compressBlocks, HybridBackend.DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Create a new backend that builds the history in memory, and only moves
+     * it to a History Tree file if it grows past the given memory budget.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the state history, if it
+     *            goes to disk (Should end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param compressBlocks
+     *            If the nodes of the history file should be stored compressed
+     * @param memoryBudget
+     *            The number of bytes the history can use in memory
+     * @return The state system backend
+     */
+    public static IStateHistoryBackend createHybridBackend(String ssid,
+            File stateFile, int providerVersion, long startTime, boolean compressBlocks, long memoryBudget) {
+        return new HybridBackend(ssid, stateFile, providerVersion, startTime, compressBlocks, memoryBudget);
+    }
+
     /**
      * Create a new History Tree backend, but attempt to open an existing file
      * on disk. If the file cannot be found or recognized, an IOException will
@@ -99,4 +238,63 @@ public final class StateHistoryBackendFactory {
             int providerVersion) throws IOException {
         return new HistoryTreeBackend(ssid, stateFile, providerVersion);
     }
+
+    /**
+     * Create a new partial history backend, which only stores the full state
+     * of the history every 'checkpointInterval' time units, in a History Tree
+     * file. The states in between are computed on demand, by replaying the
+     * trace from the previous checkpoint.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            The filename/location where to store the checkpoints (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param checkpointInterval
+     *            The time between two checkpoints
+     * @param replayer
+     *            Replays the trace between two checkpoints
+     * @return The state system backend
+     * @throws IOException
+     *             Thrown if we can't create the file for some reason
+     */
+    public static IStateHistoryBackend createPartialHistoryBackendNewFile(String ssid,
+            File stateFile, int providerVersion, long startTime,
+            long checkpointInterval, PartialHistoryBackend.Replayer replayer) throws IOException {
+        return new PartialHistoryBackend(ssid, new HistoryTreeBackend(ssid, stateFile, providerVersion, startTime),
+                checkpointInterval, replayer, false);
+    }
+
+    /**
+     * Open an existing partial history file. The checkpoint interval must be
+     * the one that was used to build it.
+     *
+     * @param ssid
+     *            The state system's id
+     * @param stateFile
+     *            Filename/location of the checkpoints file
+     * @param providerVersion
+     *            Expected version of of the state provider plugin.
+     * @param checkpointInterval
+     *            The time between two checkpoints
+     * @param replayer
+     *            Replays the trace between two checkpoints
+     * @return The state system backend
+     * @throws IOException
+     *             If we can't read the file, if it doesn't exist, is not
+     *             recognized, or if the version of the file does not match the
+     *             expected providerVersion.
+     */
+    public static IStateHistoryBackend createPartialHistoryBackendExistingFile(String ssid,
+            File stateFile, int providerVersion,
+            long checkpointInterval, PartialHistoryBackend.Replayer replayer) throws IOException {
+        return new PartialHistoryBackend(ssid, new HistoryTreeBackend(ssid, stateFile, providerVersion),
+                checkpointInterval, replayer, true);
+    }
 }
@@ -13,8 +13,10 @@ package ca.polymtl.dorsal.libdelorean.backend.historytree;
 
 import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
+import com.google.common.cache.CacheStats;
 import com.google.common.collect.ImmutableList;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -48,7 +50,76 @@ class HistoryTree {
     private static final int HISTORY_FILE_MAGIC_NUMBER = 0x05FFA900;
 
     /** File format version. Increment when breaking compatibility. */
-    private static final int FILE_VERSION = 7;
+    private static final int FILE_VERSION = 8;
+
+    /**
+     * Oldest file format version that can still be read. Version 7 files are
+     * the same as version 8 files without any optional feature.
+     */
+    private static final int MIN_READABLE_FILE_VERSION = 7;
+
+    /**
+     * Optional file format feature: nodes are stored as variable-length
+     * compressed blocks, located with a block index stored after the last
+     * block.
+     */
+    static final int FEATURE_COMPRESSED_BLOCKS = 1;
+
+    /**
+     * Optional file format feature: the intervals of each node are grouped by
+     * quark, and preceded by a directory of the quarks present in the node,
+     * so that queries for specific quarks do not need to decode every
+     * interval.
+     */
+    static final int FEATURE_NODE_INDEX = 2;
+
+    /**
+     * Optional file format feature: the header of each node contains a Bloom
+     * filter of the quarks present in the node, so that queries can skip the
+     * nodes on their path that cannot contain the requested attributes.
+     */
+    static final int FEATURE_QUARK_FILTER = 4;
+
+    /**
+     * Optional file format feature: each node stores its distinct string
+     * values once, in a dictionary, and its string intervals only refer to
+     * them.
+     */
+    static final int FEATURE_STRING_DICTIONARY = 8;
+
+    /**
+     * Optional file format feature: the intervals are encoded with
+     * variable-length integers, their times being relative to the start of
+     * their node. More intervals fit in each node.
+     */
+    static final int FEATURE_COMPACT_INTERVALS = 16;
+
+    /**
+     * Optional file format feature: the header of each core node contains the
+     * minimum, maximum and sum of the numeric values of the quarks in its
+     * subtree, so that range aggregate queries can skip the subtrees that are
+     * completely inside their range. The section has a fixed size, if a
+     * subtree has more quarks than it can hold, only the ones with the most
+     * intervals are kept.
+     */
+    static final int FEATURE_AGGREGATES = 32;
+
+    /** All the optional features this version can read and write */
+    private static final int SUPPORTED_FEATURES = FEATURE_COMPRESSED_BLOCKS | FEATURE_NODE_INDEX
+            | FEATURE_QUARK_FILTER | FEATURE_STRING_DICTIONARY | FEATURE_COMPACT_INTERVALS
+            | FEATURE_AGGREGATES;
+
+    /**
+     * Default size, in bytes, of the node cache of each history. This is the
+     * equivalent of 256 nodes of 64 KiB.
+     */
+    public static final long DEFAULT_NODE_CACHE_SIZE = 16L * 1024 * 1024;
+
+    /**
+     * Default number of closed nodes that can wait to be written by the
+     * background writer thread.
+     */
+    public static final int DEFAULT_WRITE_QUEUE_SIZE = 32;
 
     // ------------------------------------------------------------------------
     // Tree-specific configuration
@@ -59,6 +130,9 @@ class HistoryTree {
     private final int fMaxChildren;
     private final int fProviderVersion;
     private final long fTreeStart;
+    private final long fNodeCacheSize;
+    /** Bit mask of the optional features (FEATURE_*) used by this file */
+    private final int fFeatures;
 
     /** Reader/writer object */
     private final HT_IO fTreeIO;
@@ -73,9 +147,24 @@ class HistoryTree {
     /** The total number of nodes that exists in this tree */
     private int fNodeCount;
 
+    /** Position of the block index in the file, if blocks are compressed */
+    private long fBlockIndexPos = 0;
+
     /** "Cache" to keep the active nodes in memory */
     private final @NotNull List<HistoryTreeNode> fLatestBranch;
 
+    /**
+     * Immutable copy of the latest branch, only set once the tree is complete
+     * (closed or re-opened). Queries can then use it without locking.
+     */
+    private volatile @Nullable List<HistoryTreeNode> fFinishedBranch = null;
+
+    /**
+     * Intervals that were removed from the tree when it was re-opened for
+     * appending, because they were ongoing at its previous end time.
+     */
+    private final @NotNull List<HTInterval> fResumedIntervals = new ArrayList<>();
+
     // ------------------------------------------------------------------------
     // Constructors/"Destructors"
     // ------------------------------------------------------------------------
@@ -105,6 +194,48 @@ class HistoryTree {
             int maxChildren,
             int providerVersion,
             long startTime) throws IOException {
+        this(newStateFile, blockSize, maxChildren, providerVersion, startTime, DEFAULT_NODE_CACHE_SIZE, DEFAULT_WRITE_QUEUE_SIZE, 0);
+    }
+
+    /**
+     * Create a new State History from scratch, specifying the size of the node
+     * cache and of the write queue, and the optional file format features to
+     * use.
+     *
+     * @param newStateFile
+     *            The name of the history file
+     * @param blockSize
+     *            The size of each "block" on disk. One node will always fit in
+     *            one block.
+     * @param maxChildren
+     *            The maximum number of children allowed per core (non-leaf)
+     *            node.
+     * @param providerVersion
+     *            The version of the state provider. If a file already exists,
+     *            and their versions match, the history file will not be rebuilt
+     *            uselessly.
+     * @param startTime
+     *            The start time of the history
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read from disk
+     * @param writeQueueSize
+     *            The number of closed nodes that can wait to be written to
+     *            disk by a background thread. Use 0 to write nodes
+     *            synchronously instead.
+     * @param features
+     *            Bit mask of the optional file format features (FEATURE_*
+     *            constants) to use
+     * @throws IOException
+     *             If there is an error creating the history tree
+     */
+    public HistoryTree(File newStateFile,
+            int blockSize,
+            int maxChildren,
+            int providerVersion,
+            long startTime,
+            long nodeCacheSize,
+            int writeQueueSize,
+            int features) throws IOException {
         /*
          * Simple check to make sure we have enough place in the 0th block for
          * the tree configuration
@@ -112,19 +243,24 @@ class HistoryTree {
         if (blockSize < TREE_HEADER_SIZE) {
             throw new IllegalArgumentException();
         }
+        if ((features & ~SUPPORTED_FEATURES) != 0) {
+            throw new IllegalArgumentException("Unsupported file format features: " + features); //$NON-NLS-1$
+        }
 
         fStateFile = newStateFile;
         fBlockSize = blockSize;
         fMaxChildren = maxChildren;
         fProviderVersion = providerVersion;
         fTreeStart = startTime;
+        fNodeCacheSize = nodeCacheSize;
+        fFeatures = features;
 
         fTreeEnd = startTime;
         fNodeCount = 0;
         fLatestBranch = Collections.synchronizedList(new ArrayList<>());
 
         /* Prepare the IO object */
-        fTreeIO = new HT_IO(fStateFile, fBlockSize, fMaxChildren, true);
+        fTreeIO = new HT_IO(fStateFile, fBlockSize, fMaxChildren, true, false, nodeCacheSize, writeQueueSize, fFeatures);
 
         /* Add the first node to the tree */
         LeafNode firstNode = initNewLeafNode(-1, fTreeStart);
@@ -143,13 +279,56 @@ class HistoryTree {
      *             If an error happens reading the file
      */
     public HistoryTree(File existingStateFile, int expProviderVersion) throws IOException {
+        this(existingStateFile, expProviderVersion, DEFAULT_NODE_CACHE_SIZE);
+    }
+
+    /**
+     * "Reader" constructor : instantiate a SHTree from an existing tree file on
+     * disk, specifying the size of the node cache.
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read from disk
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, long nodeCacheSize) throws IOException {
+        this(existingStateFile, expProviderVersion, nodeCacheSize, false);
+    }
+
+    /**
+     * "Reader" constructor : instantiate a SHTree from an existing tree file on
+     * disk, either to query it, or to append more intervals to it.
+     *
+     * When appending, the intervals that end at the end time of the tree, the
+     * ones that were still ongoing when the tree was closed, are removed from
+     * it. They are available through {@link #getResumedIntervals()}, so that
+     * they can be extended past the previous end time. The file is not valid
+     * anymore until the tree is closed again.
+     *
+     * @param existingStateFile
+     *            Path/filename of the history-file we are to open
+     * @param expProviderVersion
+     *            The expected version of the state provider
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read from disk
+     * @param append
+     *            If new intervals will be inserted in the tree
+     * @throws IOException
+     *             If an error happens reading the file
+     */
+    public HistoryTree(File existingStateFile, int expProviderVersion, long nodeCacheSize, boolean append) throws IOException {
         /*
          * Open the file ourselves, get the tree header information we need,
          * then pass on the descriptor to the TreeIO object.
          */
         int rootNodeSeqNb, res;
-        int bs, maxc;
+        int bs, maxc, providerVersion;
         long startTime;
+        int fileVersion;
 
         /* Java I/O mumbo jumbo... */
         if (!existingStateFile.exists()) {
@@ -181,13 +360,13 @@ class HistoryTree {
                 throw new IOException("Wrong magic number"); //$NON-NLS-1$
             }
 
-            res = buffer.getInt(); /* File format version number */
-            if (res != FILE_VERSION) {
+            fileVersion = buffer.getInt(); /* File format version number */
+            if (fileVersion < MIN_READABLE_FILE_VERSION || fileVersion > FILE_VERSION) {
                 throw new IOException("Mismatching History Tree file format versions"); //$NON-NLS-1$
             }
 
-            res = buffer.getInt(); /* Event handler's version number */
-            if (res != expProviderVersion &&
+            providerVersion = buffer.getInt(); /* Event handler's version number */
+            if (providerVersion != expProviderVersion &&
                     expProviderVersion != IStateSystemWriter.IGNORE_PROVIDER_VERSION) {
                 /*
                  * The existing history was built using an event handler that
@@ -206,11 +385,22 @@ class HistoryTree {
             rootNodeSeqNb = buffer.getInt();
             startTime = buffer.getLong();
 
+            if (fileVersion >= 8) {
+                fFeatures = buffer.getInt();
+                fBlockIndexPos = buffer.getLong();
+                if ((fFeatures & ~SUPPORTED_FEATURES) != 0) {
+                    throw new IOException("Unsupported History Tree file format features"); //$NON-NLS-1$
+                }
+            } else {
+                fFeatures = 0;
+            }
+
             fStateFile = existingStateFile;
             fBlockSize = bs;
             fMaxChildren = maxc;
-            fProviderVersion = expProviderVersion;
+            fProviderVersion = providerVersion;
             fTreeStart = startTime;
+            fNodeCacheSize = nodeCacheSize;
         }
 
         /*
@@ -218,10 +408,27 @@ class HistoryTree {
          * file, not extremely elegant. But how to pass the information here to
          * the SHT otherwise?
          */
-        fTreeIO = new HT_IO(fStateFile, fBlockSize, fMaxChildren, false);
+        fTreeIO = new HT_IO(fStateFile, fBlockSize, fMaxChildren, false, append, nodeCacheSize,
+                (append ? DEFAULT_WRITE_QUEUE_SIZE : 0), fFeatures);
+        if (hasFeature(FEATURE_COMPRESSED_BLOCKS)) {
+            fTreeIO.readBlockIndex(fBlockIndexPos, fNodeCount);
+        }
 
-        fLatestBranch = buildLatestBranch(rootNodeSeqNb);
-        fTreeEnd = getRootNode().getNodeEnd();
+        if (append) {
+            /* Make sure the file is not opened again if we do not get to close it */
+            fTreeIO.getFcOut().write(ByteBuffer.allocate(Integer.BYTES), 0);
+
+            /* New nodes go where the attribute tree (or block index) was */
+            fTreeIO.startAppending(hasFeature(FEATURE_COMPRESSED_BLOCKS) ? fBlockIndexPos : supplyATWriterFilePos());
+            fLatestBranch = reopenLatestBranch(rootNodeSeqNb);
+            fTreeEnd = fTreeIO.readNode(rootNodeSeqNb).getNodeEnd();
+        } else {
+            fTreeIO.enableMappedReads(fNodeCount);
+            fLatestBranch = buildLatestBranch(rootNodeSeqNb);
+            fTreeIO.pinNodes(fLatestBranch);
+            fFinishedBranch = ImmutableList.copyOf(fLatestBranch);
+            fTreeEnd = getRootNode().getNodeEnd();
+        }
 
         /*
          * Make sure the history start time we read previously is consistent
@@ -231,6 +438,10 @@ class HistoryTree {
             throw new IOException("Inconsistent start times in the" + //$NON-NLS-1$
                     "history file, it might be corrupted."); //$NON-NLS-1$
         }
+
+        if (!append) {
+            fTreeIO.startCacheWarmUp(rootNodeSeqNb);
+        }
     }
 
     /**
@@ -257,6 +468,75 @@ class HistoryTree {
         return Collections.synchronizedList(list);
     }
 
+    /**
+     * Rebuild the latestBranch as open nodes, when re-opening an existing file
+     * to append to it. The intervals ending at the end of the tree are removed
+     * from those nodes, and from the nodes that were closed along with them
+     * when the tree was closed.
+     *
+     * @param rootNodeSeqNb
+     *            The sequence number of the root node, so we know where to
+     *            start
+     * @throws ClosedChannelException
+     */
+    private synchronized @NotNull List<HistoryTreeNode> reopenLatestBranch(int rootNodeSeqNb) throws ClosedChannelException {
+        List<HistoryTreeNode> list = new ArrayList<>();
+        HistoryTreeNode node = fTreeIO.readNode(rootNodeSeqNb);
+        long treeEnd = node.getNodeEnd();
+
+        while (true) {
+            HistoryTreeNode reopened = node.reopen(interval -> keepInterval(interval, treeEnd));
+            list.add(reopened);
+            if (!(reopened instanceof CoreNode)) {
+                break;
+            }
+            CoreNode coreNode = (CoreNode) reopened;
+            rewriteClosedChildren(coreNode, coreNode.getNbChildren() - 1, treeEnd);
+            node = fTreeIO.readNode(coreNode.getLatestChild());
+        }
+        return Collections.synchronizedList(list);
+    }
+
+    /**
+     * Rewrite, without their intervals ending at 'treeEnd', the children of a
+     * core node that were closed at 'treeEnd'. Only the first
+     * 'nbClosedChildren' children are considered. The last child of a node
+     * ends with it, the others end where their next sibling starts.
+     *
+     * With {@link #FEATURE_AGGREGATES}, the aggregates of all those children
+     * are also added to the re-opened core node.
+     */
+    private void rewriteClosedChildren(CoreNode coreNode, int nbClosedChildren, long treeEnd) throws ClosedChannelException {
+        boolean rewrite = true;
+        for (int i = nbClosedChildren - 1; i >= 0; i--) {
+            rewrite = rewrite && (i == coreNode.getNbChildren() - 1 || coreNode.getChildStart(i + 1) - 1 == treeEnd);
+            if (!rewrite && !hasFeature(FEATURE_AGGREGATES)) {
+                break;
+            }
+            HistoryTreeNode child = fTreeIO.readNode(coreNode.getChild(i));
+            if (rewrite) {
+                HistoryTreeNode rewritten = child.reopen(interval -> keepInterval(interval, treeEnd));
+                rewritten.closeThisNode(treeEnd);
+                if (rewritten instanceof CoreNode) {
+                    rewriteClosedChildren((CoreNode) rewritten, ((CoreNode) rewritten).getNbChildren(), treeEnd);
+                }
+                fTreeIO.writeNode(rewritten);
+                child = rewritten;
+            }
+            if (hasFeature(FEATURE_AGGREGATES)) {
+                coreNode.addChildAggregates(child);
+            }
+        }
+    }
+
+    private boolean keepInterval(HTInterval interval, long treeEnd) {
+        if (interval.getEnd() == treeEnd) {
+            fResumedIntervals.add(interval);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * "Save" the tree to disk. This method will cause the treeIO object to
      * commit all nodes to disk and then return the RandomAccessFile descriptor
@@ -280,10 +560,18 @@ class HistoryTree {
             fTreeEnd = requestedEndTime;
 
             /* Close off the latest branch of the tree */
+            closeLatestBranch(0, fTreeEnd);
             for (int i = 0; i < fLatestBranch.size(); i++) {
-                fLatestBranch.get(i).closeThisNode(fTreeEnd);
                 fTreeIO.writeNode(fLatestBranch.get(i));
             }
+            /* The latest branch stays in memory, queries will go through it */
+            fTreeIO.pinNodes(fLatestBranch);
+
+            /* Wait for the writer thread to be done with all the nodes */
+            fTreeIO.flush();
+            if (hasFeature(FEATURE_COMPRESSED_BLOCKS)) {
+                fBlockIndexPos = fTreeIO.writeBlockIndex(fNodeCount);
+            }
 
             try (FileChannel fc = fTreeIO.getFcOut();) {
                 ByteBuffer buffer = ByteBuffer.allocate(TREE_HEADER_SIZE);
@@ -309,11 +597,19 @@ class HistoryTree {
                 /* start time of this history */
                 buffer.putLong(fLatestBranch.get(0).getNodeStart());
 
+                /* optional features, and where to find the block index if needed */
+                buffer.putInt(fFeatures);
+                buffer.putLong(fBlockIndexPos);
+
                 buffer.flip();
                 int res = fc.write(buffer);
                 assert (res <= TREE_HEADER_SIZE);
                 /* done writing the file header */
 
+                /* The file is now complete, switch to lock-free reads */
+                fTreeIO.enableMappedReads(fNodeCount);
+                fFinishedBranch = ImmutableList.copyOf(fLatestBranch);
+
             } catch (IOException e) {
                 /*
                  * If we were able to write so far, there should not be any
@@ -346,6 +642,17 @@ class HistoryTree {
         return fTreeEnd;
     }
 
+    /**
+     * Check if this tree uses the given optional file format feature.
+     *
+     * @param feature
+     *            One of the FEATURE_* constants
+     * @return If the feature is used
+     */
+    boolean hasFeature(int feature) {
+        return (fFeatures & feature) != 0;
+    }
+
     /**
      * Get the number of nodes in this tree.
      *
@@ -361,9 +668,50 @@ class HistoryTree {
      * @return The root node
      */
     public HistoryTreeNode getRootNode() {
+        List<HistoryTreeNode> finishedBranch = fFinishedBranch;
+        if (finishedBranch != null) {
+            return finishedBranch.get(0);
+        }
         return fLatestBranch.get(0);
     }
 
+    /**
+     * Get the statistics of the cache of nodes read from disk.
+     *
+     * @return The node cache statistics
+     */
+    public CacheStats getNodeCacheStats() {
+        return fTreeIO.getNodeCacheStats();
+    }
+
+    /**
+     * Get the intervals that were removed from the tree when it was re-opened
+     * for appending, because they ended at its previous end time.
+     *
+     * @return The resumed intervals, empty if the tree was not re-opened for
+     *         appending
+     */
+    public List<HTInterval> getResumedIntervals() {
+        return Collections.unmodifiableList(fResumedIntervals);
+    }
+
+    /**
+     * Re-open this complete tree, so that more intervals can be inserted
+     * after its end time. This tree gets closed, the returned one must be used
+     * instead.
+     *
+     * @return The tree opened for appending
+     * @throws IOException
+     *             If an error happens re-opening the file
+     */
+    public HistoryTree resume() throws IOException {
+        if (fFinishedBranch == null) {
+            throw new IllegalStateException("The tree is still being built"); //$NON-NLS-1$
+        }
+        closeFile();
+        return new HistoryTree(fStateFile, fProviderVersion, fNodeCacheSize, true);
+    }
+
     /**
      * Return the latest branch of the tree. That branch is immutable. Used for
      * unit testing and debugging.
@@ -386,7 +734,7 @@ class HistoryTree {
      *         the attribute tree can be read.
      */
     public FileInputStream supplyATReader() {
-        return fTreeIO.supplyATReader(getNodeCount());
+        return fTreeIO.supplyATReader(supplyATWriterFilePos());
     }
 
     /**
@@ -405,6 +753,10 @@ class HistoryTree {
      * @return The position in the file where to start writing
      */
     public long supplyATWriterFilePos() {
+        if (hasFeature(FEATURE_COMPRESSED_BLOCKS)) {
+            /* The attribute tree goes after the block index */
+            return fBlockIndexPos + (long) getNodeCount() * HT_IO.BLOCK_INDEX_ENTRY_SIZE;
+        }
         return HistoryTree.TREE_HEADER_SIZE
                 + ((long) getNodeCount() * fBlockSize);
     }
@@ -419,6 +771,11 @@ class HistoryTree {
      *             If the tree IO is unavailable
      */
     public HistoryTreeNode readNode(int seqNumber) throws ClosedChannelException {
+        /* Once the tree is complete, the latest branch is pinned in the IO object */
+        if (fFinishedBranch != null) {
+            return fTreeIO.readNode(seqNumber);
+        }
+
         /* Try to read the node from memory */
         synchronized (fLatestBranch) {
             for (HistoryTreeNode node : fLatestBranch) {
@@ -488,7 +845,7 @@ class HistoryTree {
         HistoryTreeNode targetNode = fLatestBranch.get(indexOfNode);
 
         /* Verify if there is enough room in this node to store this interval */
-        if (interval.getSizeOnDisk() > targetNode.getNodeFreeSpace()) {
+        if (targetNode.getSizeInNode(interval) > targetNode.getNodeFreeSpace()) {
             /* Nope, not enough room. Insert in a new sibling instead. */
             addSiblingNode(indexOfNode);
             tryInsertAtNode(interval, fLatestBranch.size() - 1);
@@ -550,8 +907,8 @@ class HistoryTree {
             }
 
             /* Split off the new branch from the old one */
+            closeLatestBranch(indexOfNode, splitTime);
             for (int i = indexOfNode; i < fLatestBranch.size(); i++) {
-                fLatestBranch.get(i).closeThisNode(splitTime);
                 fTreeIO.writeNode(fLatestBranch.get(i));
 
                 CoreNode prevNode = (CoreNode) fLatestBranch.get(i - 1);
@@ -588,14 +945,16 @@ class HistoryTree {
         oldRootNode.setParentSeqNumber(newRootNode.getSeqNumber());
 
         /* Close off the whole current latestBranch */
-
+        closeLatestBranch(0, splitTime);
         for (int i = 0; i < fLatestBranch.size(); i++) {
-            fLatestBranch.get(i).closeThisNode(splitTime);
             fTreeIO.writeNode(fLatestBranch.get(i));
         }
 
         /* Link the new root to its first child (the previous root node) */
         newRootNode.linkNewChild(oldRootNode);
+        if (hasFeature(FEATURE_AGGREGATES)) {
+            newRootNode.addChildAggregates(oldRootNode);
+        }
 
         /* Rebuild a new latestBranch */
         int depth = fLatestBranch.size();
@@ -618,6 +977,27 @@ class HistoryTree {
         fLatestBranch.add(newNode);
     }
 
+    /**
+     * Close the nodes of the latest branch, from the leaf up to the node at
+     * 'indexOfNode'. With {@link #FEATURE_AGGREGATES}, the aggregates of each
+     * node are added to its parent's, so nodes are closed after their
+     * children.
+     *
+     * @param indexOfNode
+     *            The index in latestBranch of the highest node to close
+     * @param endTime
+     *            The end time of the closed nodes
+     */
+    private void closeLatestBranch(int indexOfNode, long endTime) {
+        for (int i = fLatestBranch.size() - 1; i >= indexOfNode; i--) {
+            HistoryTreeNode node = fLatestBranch.get(i);
+            node.closeThisNode(endTime);
+            if (i > 0 && hasFeature(FEATURE_AGGREGATES)) {
+                fLatestBranch.get(i - 1).addChildAggregates(node);
+            }
+        }
+    }
+
     /**
      * Add a new empty core node to the tree.
      *
@@ -628,7 +1008,7 @@ class HistoryTree {
      * @return The newly created node
      */
     private @NotNull CoreNode initNewCoreNode(int parentSeqNumber, long startTime) {
-        CoreNode newNode = new CoreNode(fBlockSize, fMaxChildren, fNodeCount, parentSeqNumber,
+        CoreNode newNode = new CoreNode(fBlockSize, fFeatures, fMaxChildren, fNodeCount, parentSeqNumber,
                 startTime);
         fNodeCount++;
         return newNode;
@@ -644,7 +1024,7 @@ class HistoryTree {
      * @return The newly created node
      */
     private @NotNull LeafNode initNewLeafNode(int parentSeqNumber, long startTime) {
-        LeafNode newNode = new LeafNode(fBlockSize, fNodeCount, parentSeqNumber,
+        LeafNode newNode = new LeafNode(fBlockSize, fFeatures, fNodeCount, parentSeqNumber,
                 startTime);
         fNodeCount++;
         return newNode;
@@ -10,6 +10,7 @@
 package ca.polymtl.dorsal.libdelorean.statedump;
 
 import ca.polymtl.dorsal.libdelorean.IStateSystemReader;
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
 import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.*;
@@ -20,14 +21,20 @@ import org.jetbrains.annotations.Nullable;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Writer;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.StandardOpenOption;
 import java.util.*;
+import java.util.function.BiConsumer;
 import java.util.logging.Logger;
 import java.util.stream.Collectors;
 
@@ -48,7 +55,22 @@ public class Statedump {
     private static final int STATEDUMP_FORMAT_VERSION = 1;
 
     private static final String STATEDUMP_DIRECTORY = ".tc-states"; //$NON-NLS-1$
-    private static final String FILE_SUFFIX = ".statedump.json"; //$NON-NLS-1$
+    private static final String JSON_FILE_SUFFIX = ".statedump.json"; //$NON-NLS-1$
+    private static final String BINARY_FILE_SUFFIX = ".statedump.bin"; //$NON-NLS-1$
+
+    /**
+     * On-disk formats of statedump files. Both formats can be read back by
+     * {@link Statedump#loadState}.
+     */
+    public enum Format {
+        /** Human-readable JSON tree of the attributes */
+        JSON,
+        /**
+         * Compact binary encoding, with a string table and typed values, which
+         * is memory-mapped when read back
+         */
+        BINARY
+    }
 
     private final List<String[]> fAttributes;
     private final List<StateValue> fStates;
@@ -141,7 +163,81 @@ public class Statedump {
     }
 
     /**
-     * Save this statedump at the given location.
+     * Restore this statedump in a state system that is being built. The
+     * attributes are created in the order of this statedump, so a statedump of
+     * all the attributes of a state system gives back the same quarks. The
+     * non-null states become the ongoing states, starting at the given
+     * timestamp.
+     *
+     * @param ss
+     *            The state system in which to restore the states. It should
+     *            start at 'timestamp'.
+     * @param timestamp
+     *            The start time to give to the restored states
+     */
+    public void restoreState(IStateSystemWriter ss, long timestamp) {
+        for (int i = 0; i < fAttributes.size(); i++) {
+            restoreEntry(ss, timestamp, fAttributes.get(i), fStates.get(i));
+        }
+    }
+
+    private static void restoreEntry(IStateSystemWriter ss, long timestamp, String[] attribute, StateValue value) {
+        int quark = ss.getQuarkAbsoluteAndAdd(attribute);
+        if (!value.isNull()) {
+            ss.modifyAttribute(timestamp, value, quark);
+        }
+    }
+
+    /**
+     * Restore a previously-saved statedump directly in a state system, like
+     * {@link #restoreState(IStateSystemWriter, long)} would do with the result
+     * of {@link #loadState}.
+     *
+     * Binary statedumps are read from a memory-mapped file, without building
+     * the intermediate lists. The file is decoded once to validate it, then
+     * again to insert its entries, so that the state system is only modified
+     * if the whole statedump can be read.
+     *
+     * @param parentPath
+     *            The expected location of the statedump file, see
+     *            {@link #loadState}
+     * @param ssid
+     *            The ID of the state system to retrieve
+     * @param expectedVersion
+     *            The statedump version to accept. Statedumps of other
+     *            versions are not restored.
+     * @param ss
+     *            The state system in which to restore the states. It should
+     *            start at 'timestamp'.
+     * @param timestamp
+     *            The start time to give to the restored states
+     * @return If a statedump of the expected version was found and restored.
+     *         If not, the state system was not modified.
+     */
+    public static boolean restoreState(Path parentPath, String ssid, int expectedVersion,
+            IStateSystemWriter ss, long timestamp) {
+        Path binaryPath = parentPath.resolve(STATEDUMP_DIRECTORY).resolve(ssid + BINARY_FILE_SUFFIX);
+        if (Files.exists(binaryPath)) {
+            BinarySerialization.Reader reader = BinarySerialization.open(binaryPath, ssid);
+            if (reader == null || reader.getStatedumpVersion() != expectedVersion) {
+                return false;
+            }
+            if (!reader.readEntries((attribute, value) -> { })) {
+                return false;
+            }
+            return reader.readEntries((attribute, value) -> restoreEntry(ss, timestamp, attribute, value));
+        }
+
+        Statedump statedump = loadState(parentPath, ssid);
+        if (statedump == null || statedump.getVersion() != expectedVersion) {
+            return false;
+        }
+        statedump.restoreState(ss, timestamp);
+        return true;
+    }
+
+    /**
+     * Save this statedump at the given location, using the binary format.
      *
      * @param parentPath
      *            The location where to save the statedump file, usually in or
@@ -155,18 +251,53 @@ public class Statedump {
      *             directory
      */
     public void dumpState(Path parentPath, String ssid) throws IOException {
+        dumpState(parentPath, ssid, Format.BINARY);
+    }
+
+    /**
+     * Save this statedump at the given location.
+     *
+     * @param parentPath
+     *            The location where to save the statedump file, usually in or
+     *            close to its corresponding trace. It will be put under a Trace
+     *            Compass-specific sub-directory.
+     * @param ssid
+     *            The state system ID of the state system we are saving. This
+     *            will be used for restoration.
+     * @param format
+     *            The format of the file to write
+     * @throws IOException
+     *             If there are problems creating or writing to the target
+     *             directory
+     */
+    public void dumpState(Path parentPath, String ssid, Format format) throws IOException {
         /* Create directory if it does not exist */
         Path sdPath = parentPath.resolve(STATEDUMP_DIRECTORY);
         if (!Files.exists(sdPath)) {
             Files.createDirectory(sdPath);
         }
 
-        /* Create state dump file */
-        String fileName = ssid + FILE_SUFFIX;
-        Path filePath = sdPath.resolve(fileName);
-        if (Files.exists(filePath)) {
-            Files.delete(filePath);
+        /*
+         * Remove the previous state dump file, in either format, so that an
+         * older one does not get loaded instead of this one.
+         */
+        Path jsonPath = sdPath.resolve(ssid + JSON_FILE_SUFFIX);
+        Path binaryPath = sdPath.resolve(ssid + BINARY_FILE_SUFFIX);
+        Files.deleteIfExists(jsonPath);
+        Files.deleteIfExists(binaryPath);
+
+        switch (format) {
+        case BINARY:
+            BinarySerialization.write(this, binaryPath, ssid);
+            break;
+        case JSON:
+        default:
+            dumpJson(jsonPath, ssid);
+            break;
         }
+    }
+
+    private void dumpJson(Path filePath, String ssid) throws IOException {
         Files.createFile(filePath);
 
         JSONObject root = new JSONObject();
@@ -221,9 +352,23 @@ public class Statedump {
             return null;
         }
 
-        /* Find the state dump file */
-        String fileName = ssid + FILE_SUFFIX;
-        Path filePath = sdPath.resolve(fileName);
+        /* Find the state dump file, binary ones first */
+        Path binaryPath = sdPath.resolve(ssid + BINARY_FILE_SUFFIX);
+        if (Files.exists(binaryPath)) {
+            BinarySerialization.Reader reader = BinarySerialization.open(binaryPath, ssid);
+            if (reader == null) {
+                return null;
+            }
+            List<String[]> attributes = new ArrayList<>(reader.getNbAttributes());
+            List<StateValue> values = new ArrayList<>(reader.getNbAttributes());
+            boolean success = reader.readEntries((attribute, value) -> {
+                attributes.add(attribute);
+                values.add(value);
+            });
+            return (success ? new Statedump(attributes, values, reader.getStatedumpVersion()) : null);
+        }
+
+        Path filePath = sdPath.resolve(ssid + JSON_FILE_SUFFIX);
         if (!Files.exists(filePath)) {
             return null;
         }
@@ -547,4 +692,254 @@ public class Statedump {
         }
     }
 
+    /**
+     * Inner utility class for the binary statedump format.
+     *
+     * All numbers are big-endian. The file starts with a magic number, the
+     * format version, the statedump version and the state system ID. Then
+     * comes a string table with every attribute name and string value, each
+     * string being encoded as its length followed by its UTF-8 bytes. The
+     * attributes follow, each one as the number of path elements it shares
+     * with the previous attribute, the indexes in the string table of its
+     * other path elements, then its value as a type byte followed by its
+     * content.
+     */
+    private static final class BinarySerialization {
+
+        private BinarySerialization() {}
+
+        private static final int MAGIC = 0x53444D50; // "SDMP"
+        private static final int BINARY_FORMAT_VERSION = 1;
+
+        private static final byte NULL_TYPE = 0;
+        private static final byte INT_TYPE = 1;
+        private static final byte LONG_TYPE = 2;
+        private static final byte DOUBLE_TYPE = 3;
+        private static final byte STRING_TYPE = 4;
+        private static final byte BOOLEAN_TYPE = 5;
+
+        private static final String[] EMPTY_PATH = new String[0];
+
+        private static void write(Statedump statedump, Path filePath, String ssid) throws IOException {
+            List<String[]> attributes = statedump.getAttributes();
+            List<StateValue> states = statedump.getStates();
+
+            /* Build the string table, in order of first appearance */
+            Map<String, Integer> stringIndexes = new LinkedHashMap<>();
+            for (int i = 0; i < attributes.size(); i++) {
+                for (String element : attributes.get(i)) {
+                    stringIndexes.putIfAbsent(element, stringIndexes.size());
+                }
+                StateValue value = states.get(i);
+                if (value instanceof StringStateValue) {
+                    stringIndexes.putIfAbsent(((StringStateValue) value).getValue(), stringIndexes.size());
+                }
+            }
+
+            try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(filePath)))) {
+                out.writeInt(MAGIC);
+                out.writeInt(BINARY_FORMAT_VERSION);
+                out.writeInt(statedump.getVersion());
+                writeString(out, ssid);
+
+                out.writeInt(stringIndexes.size());
+                for (String string : stringIndexes.keySet()) {
+                    writeString(out, string);
+                }
+
+                out.writeInt(attributes.size());
+                String[] previous = EMPTY_PATH;
+                for (int i = 0; i < attributes.size(); i++) {
+                    String[] attribute = attributes.get(i);
+                    int shared = 0;
+                    while (shared < attribute.length && shared < previous.length
+                            && attribute[shared].equals(previous[shared])) {
+                        shared++;
+                    }
+                    out.writeInt(shared);
+                    out.writeInt(attribute.length - shared);
+                    for (int j = shared; j < attribute.length; j++) {
+                        out.writeInt(stringIndexes.get(attribute[j]));
+                    }
+                    writeValue(out, states.get(i), stringIndexes);
+                    previous = attribute;
+                }
+            }
+        }
+
+        private static void writeString(DataOutputStream out, String string) throws IOException {
+            byte[] bytes = string.getBytes(Charsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+
+        private static void writeValue(DataOutputStream out, StateValue stateValue,
+                Map<String, Integer> stringIndexes) throws IOException {
+            if (stateValue instanceof NullStateValue) {
+                out.writeByte(NULL_TYPE);
+            } else if (stateValue instanceof IntegerStateValue) {
+                out.writeByte(INT_TYPE);
+                out.writeInt(((IntegerStateValue) stateValue).getValue());
+            } else if (stateValue instanceof LongStateValue) {
+                out.writeByte(LONG_TYPE);
+                out.writeLong(((LongStateValue) stateValue).getValue());
+            } else if (stateValue instanceof DoubleStateValue) {
+                out.writeByte(DOUBLE_TYPE);
+                out.writeDouble(((DoubleStateValue) stateValue).getValue());
+            } else if (stateValue instanceof BooleanStateValue) {
+                out.writeByte(BOOLEAN_TYPE);
+                out.writeBoolean(((BooleanStateValue) stateValue).getValue());
+            } else if (stateValue instanceof StringStateValue) {
+                out.writeByte(STRING_TYPE);
+                out.writeInt(stringIndexes.get(((StringStateValue) stateValue).getValue()));
+            } else {
+                throw new IllegalStateException("Unknown state value type " + stateValue.getClass()); //$NON-NLS-1$
+            }
+        }
+
+        /**
+         * Map a binary statedump file and read its header and string table.
+         *
+         * @return The reader for its attributes, or null if the file is not a
+         *         valid statedump of the expected state system
+         */
+        private static @Nullable Reader open(Path filePath, String expectedSsid) {
+            ByteBuffer buffer;
+            try (FileChannel fc = FileChannel.open(filePath, StandardOpenOption.READ)) {
+                /* The mapping remains valid after the channel is closed */
+                buffer = fc.map(FileChannel.MapMode.READ_ONLY, 0, fc.size());
+            } catch (IOException | IllegalArgumentException e) {
+                LOGGER.warning(() -> "Cannot map statedump file " + filePath + ": " + e.getMessage()); //$NON-NLS-1$ //$NON-NLS-2$
+                return null;
+            }
+
+            try {
+                int magic = buffer.getInt();
+                if (magic != MAGIC) {
+                    LOGGER.warning(() -> "Not a binary statedump file: " + filePath); //$NON-NLS-1$
+                    return null;
+                }
+                int formatVersion = buffer.getInt();
+                if (formatVersion != BINARY_FORMAT_VERSION) {
+                    LOGGER.warning(() -> "Skipping binary statedump file with unknown version " + formatVersion); //$NON-NLS-1$
+                    return null;
+                }
+                int statedumpVersion = buffer.getInt();
+                String ssid = readString(buffer);
+                if (!expectedSsid.equals(ssid)) {
+                    LOGGER.warning(() -> "State system ID mismatch: expecting \"" + expectedSsid + "\", got \"" + ssid + "\""); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+                    return null;
+                }
+
+                String[] strings = new String[checkCount(buffer.getInt(), buffer)];
+                for (int i = 0; i < strings.length; i++) {
+                    strings[i] = readString(buffer);
+                }
+                int nbAttributes = checkCount(buffer.getInt(), buffer);
+                return new Reader(buffer, statedumpVersion, strings, nbAttributes);
+
+            } catch (BufferUnderflowException | IllegalArgumentException e) {
+                LOGGER.warning(() -> "Corrupted header in binary statedump file " + filePath); //$NON-NLS-1$
+                return null;
+            }
+        }
+
+        /** Every count is at least one byte per element, reject the ones that cannot fit */
+        private static int checkCount(int count, ByteBuffer buffer) {
+            if (count < 0 || count > buffer.remaining()) {
+                throw new IllegalArgumentException("Invalid count " + count); //$NON-NLS-1$
+            }
+            return count;
+        }
+
+        private static String readString(ByteBuffer buffer) {
+            byte[] bytes = new byte[checkCount(buffer.getInt(), buffer)];
+            buffer.get(bytes);
+            return new String(bytes, Charsets.UTF_8);
+        }
+
+        /**
+         * Reader of the attributes of a binary statedump, positioned after the
+         * string table.
+         */
+        private static final class Reader {
+
+            private final ByteBuffer fBuffer;
+            private final int fStatedumpVersion;
+            private final String[] fStrings;
+            private final int fNbAttributes;
+
+            private Reader(ByteBuffer buffer, int statedumpVersion, String[] strings, int nbAttributes) {
+                fBuffer = buffer;
+                fStatedumpVersion = statedumpVersion;
+                fStrings = strings;
+                fNbAttributes = nbAttributes;
+            }
+
+            public int getStatedumpVersion() {
+                return fStatedumpVersion;
+            }
+
+            public int getNbAttributes() {
+                return fNbAttributes;
+            }
+
+            /**
+             * Decode the attributes and their values, in order. Attribute paths
+             * share the string instances of the string table. This can be
+             * called several times, each call reads the entries from the
+             * start.
+             *
+             * @return If all the entries could be read
+             */
+            public boolean readEntries(BiConsumer<String[], StateValue> consumer) {
+                ByteBuffer buffer = fBuffer.duplicate();
+                String[] previous = EMPTY_PATH;
+                for (int i = 0; i < fNbAttributes; i++) {
+                    String[] attribute;
+                    StateValue value;
+                    try {
+                        int shared = buffer.getInt();
+                        int nbElements = checkCount(buffer.getInt(), buffer);
+                        if (shared < 0 || shared > previous.length) {
+                            throw new IllegalArgumentException("Invalid shared path length " + shared); //$NON-NLS-1$
+                        }
+                        attribute = Arrays.copyOf(previous, shared + nbElements);
+                        for (int j = shared; j < attribute.length; j++) {
+                            attribute[j] = fStrings[buffer.getInt()];
+                        }
+                        value = readValue(buffer);
+                    } catch (BufferUnderflowException | IllegalArgumentException | ArrayIndexOutOfBoundsException e) {
+                        LOGGER.warning(() -> "Corrupted attributes in binary statedump file: " + e.getMessage()); //$NON-NLS-1$
+                        return false;
+                    }
+                    /* Exceptions thrown by the consumer are not decoding errors, let them through */
+                    consumer.accept(attribute, value);
+                    previous = attribute;
+                }
+                return true;
+            }
+
+            private StateValue readValue(ByteBuffer buffer) {
+                byte type = buffer.get();
+                switch (type) {
+                case NULL_TYPE:
+                    return StateValue.nullValue();
+                case INT_TYPE:
+                    return StateValue.newValueInt(buffer.getInt());
+                case LONG_TYPE:
+                    return StateValue.newValueLong(buffer.getLong());
+                case DOUBLE_TYPE:
+                    return StateValue.newValueDouble(buffer.getDouble());
+                case STRING_TYPE:
+                    return StateValue.newValueString(fStrings[buffer.getInt()]);
+                case BOOLEAN_TYPE:
+                    return StateValue.newValueBoolean(buffer.get() != 0);
+                default:
+                    throw new IllegalArgumentException("Unknown value type " + type); //$NON-NLS-1$
+                }
+            }
+        }
+    }
+
 }
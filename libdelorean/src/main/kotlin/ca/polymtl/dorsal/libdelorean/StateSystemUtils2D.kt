@@ -12,6 +12,8 @@ package ca.polymtl.dorsal.libdelorean
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval
 import com.google.common.annotations.VisibleForTesting
 import java.util.*
+import java.util.concurrent.Callable
+import java.util.concurrent.ForkJoinPool
 import kotlin.math.ceil
 import kotlin.math.max
 import kotlin.math.min
@@ -29,85 +31,268 @@ fun IStateSystemReader.iterator2D(rangeStart: Long,
                                   resolution: Long,
                                   quarks: Set<Int>): Iterator<IterationStep2D> {
 
+    val cursor = cursor2D(rangeStart, rangeEnd, resolution, quarks)
+    if (cursor.isEmpty) {
+        return Collections.emptyIterator()
+    }
+    return StateIterator2D(cursor)
+}
+
+/**
+ * Cursor-style variant of [iterator2D], for callers going through a large
+ * number of intervals, like the time graph views. The cursor goes through the
+ * same steps and intervals as the iterator, but does not allocate objects for
+ * each step: the intervals of the current step are accessed by index, and the
+ * buffers holding them are reused by the next step.
+ *
+ * @return A cursor, positioned before the first step
+ */
+fun IStateSystemReader.cursor2D(rangeStart: Long,
+                                rangeEnd: Long,
+                                resolution: Long,
+                                quarks: Set<Int>): StateCursor2D {
+
     if (rangeStart > rangeEnd) throw IllegalArgumentException("Invalid time range [$rangeStart, $rangeEnd], start is higher than end.")
 
     if (rangeEnd <= this.startTime || rangeStart >= this.currentEndTime) {
         /* The range is completely outside of the state system's range, nothing will be found. */
-        return Collections.emptyIterator()
-    }
-
-    if (quarks.isEmpty()) {
-        return Collections.emptyIterator()
+        return StateCursor2D(this, rangeStart, rangeEnd, resolution, emptySet())
     }
 
     val actualStart = max(rangeStart, startTime)
     val actualEnd = min(rangeEnd, currentEndTime)
 
-    return StateIterator2D(this, actualStart, actualEnd, resolution, quarks)
+    return StateCursor2D(this, actualStart, actualEnd, resolution, quarks)
+}
+
+/**
+ * Parallel variant of [cursor2D]. The quarks are split into partitions, and
+ * [action] is run in [pool] with a cursor over each partition.
+ *
+ * The query timestamps of a quark only depend on its own intervals, so each
+ * quark gets the same intervals as with a single cursor over all the quarks.
+ * Only the grouping of the intervals into steps differs. [action] is called
+ * concurrently, it should only read the state system and its own cursor.
+ *
+ * @param pool
+ *            The pool in which to run the partitions
+ * @param partitions
+ *            The maximum number of partitions, by default the parallelism
+ *            of the pool. With one partition, [action] is run by the caller.
+ * @param action
+ *            The function going through the cursor of one partition
+ * @return The results of [action] for each partition
+ */
+fun <R> IStateSystemReader.parallel2D(rangeStart: Long,
+                                      rangeEnd: Long,
+                                      resolution: Long,
+                                      quarks: Set<Int>,
+                                      pool: ForkJoinPool = ForkJoinPool.commonPool(),
+                                      partitions: Int = pool.parallelism,
+                                      action: (StateCursor2D) -> R): List<R> {
+
+    val nbPartitions = max(1, min(partitions, quarks.size))
+    if (nbPartitions == 1) {
+        return listOf(action(cursor2D(rangeStart, rangeEnd, resolution, quarks)))
+    }
+
+    /* Distribute the quarks in turn, neighbouring attributes often have similar densities */
+    val partitionQuarks = List(nbPartitions) { HashSet<Int>() }
+    quarks.forEachIndexed { index, quark -> partitionQuarks[index % nbPartitions].add(quark) }
+
+    return partitionQuarks
+            .map { pool.submit(Callable { action(cursor2D(rangeStart, rangeEnd, resolution, it)) }) }
+            .map { it.join() }
+}
+
+/**
+ * Query the state system in a two-dimensional fashion, in parallel, see
+ * [parallel2D].
+ *
+ * @return The intervals of each quark, in chronological order. Quarks for
+ *         which no interval was found are absent.
+ */
+fun IStateSystemReader.query2DParallel(rangeStart: Long,
+                                       rangeEnd: Long,
+                                       resolution: Long,
+                                       quarks: Set<Int>,
+                                       pool: ForkJoinPool = ForkJoinPool.commonPool()): Map<Int, List<StateInterval>> {
+
+    val partitionResults = parallel2D(rangeStart, rangeEnd, resolution, quarks, pool) { cursor ->
+        val intervals = HashMap<Int, MutableList<StateInterval>>()
+        while (cursor.next()) {
+            for (i in 0 until cursor.size) {
+                intervals.getOrPut(cursor.quarkAt(i)) { ArrayList() }.add(cursor.intervalAt(i))
+            }
+        }
+        intervals
+    }
+    /* Each quark is in only one partition */
+    return partitionResults.fold(HashMap<Int, List<StateInterval>>()) { all, partition -> all.apply { putAll(partition) } }
 }
 
 class IterationStep2D(val ts: Long, val queryResults: Map<Int, StateInterval>)
 
-internal class StateIterator2D(private val ss: IStateSystemReader,
-                               private val rangeStart: Long,
-                               private val rangeEnd: Long,
-                               private val resolution: Long,
-                               quarks: Set<Int>) : AbstractIterator<IterationStep2D>() {
+/**
+ * Cursor over the steps of a 2D query, see [cursor2D].
+ *
+ * The query targets are kept in a binary heap of primitive timestamps and
+ * quarks. Each call to [next] queries the targets sharing the lowest
+ * timestamp, then re-inserts them at their next query timestamp.
+ */
+class StateCursor2D internal constructor(private val ss: IStateSystemReader,
+                                         private val rangeStart: Long,
+                                         private val rangeEnd: Long,
+                                         private val resolution: Long,
+                                         quarks: Set<Int>) {
+
+    private var heapTs = LongArray(quarks.size)
+    private var heapQuarks = IntArray(quarks.size)
+    private var heapSize = 0
+
+    /* Buffers reused by every step */
+    private val queryQuarks = HashSet<Int>()
+    private val queryResults = HashMap<Int, StateInterval>()
+    private val stepQuarks = IntArray(quarks.size)
+    private val stepIntervals = arrayOfNulls<StateInterval>(quarks.size)
+
+    private var finished = false
+
+    /** If this cursor will not return any step */
+    val isEmpty: Boolean = quarks.isEmpty()
+
+    /** Timestamp of the current step */
+    var ts: Long = rangeStart
+        private set
 
-    private val prio: Queue<QueryTarget> = PriorityQueue(quarks.size, compareBy { it.ts })
+    /** Number of intervals in the current step */
+    var size: Int = 0
+        private set
 
     init {
-        quarks.forEach { prio.offer(QueryTarget(it, rangeStart)) }
+        quarks.forEach { push(it, rangeStart) }
     }
 
-    override fun computeNext() {
-        val firstElement = prio.poll()
-        val queryTs = firstElement.ts
-        if (queryTs > rangeEnd) {
-            return done()
+    /**
+     * Move to the next step.
+     *
+     * @return False if there are no more steps
+     */
+    fun next(): Boolean {
+        size = 0
+        if (finished || heapSize == 0 || heapTs[0] > rangeEnd) {
+            finished = true
+            return false
         }
 
         /*
          * One iteration step will contain all the intervals at the same
-         * timestamp. Pull from the queue all the values for the same
-         * timestamp.
+         * timestamp. Pull from the heap all the targets for that timestamp.
          */
-        val targets = mutableSetOf<QueryTarget>()
-        targets.add(firstElement)
-        while (prio.peek()?.ts == queryTs) {
-            targets.add(prio.poll())
+        val queryTs = heapTs[0]
+        queryQuarks.clear()
+        while (heapSize > 0 && heapTs[0] == queryTs) {
+            queryQuarks.add(pop())
         }
 
         /* Do the partial state system query for the retrieved targets */
-        val queryQuarks = targets.map { it.quark }.toSet()
-        val queryResults = ss.queryStates(queryTs, queryQuarks)
-
-        /* Compute the next query targets and re-insert in the queue */
-        queryResults.forEach {
-            val nextTs = determineNextQueryTs(it.value, rangeStart, queryTs, resolution)
-            prio.offer(QueryTarget(it.key, nextTs))
-        }
+        queryResults.clear()
+        ss.queryStates(queryTs, queryQuarks, queryResults)
 
         /*
-         * Only return the intervals that cross the current resolution point
-         * *and* the next one.
+         * Compute the next query targets and re-insert them in the heap. Only
+         * return the intervals that cross the current resolution point *and*
+         * the next one.
          */
         val nextResPoint = if (queryTs == rangeEnd) {
             queryTs + resolution
         } else {
             min(queryTs + resolution, rangeEnd)
         }
-        val results = queryResults.filter { it.value.intersects(nextResPoint) }
-        return setNext(IterationStep2D(queryTs, results))
+        for ((quark, interval) in queryResults) {
+            push(quark, determineNextQueryTs(interval, rangeStart, queryTs, resolution))
+            if (interval.intersects(nextResPoint)) {
+                stepQuarks[size] = quark
+                stepIntervals[size] = interval
+                size++
+            }
+        }
+        ts = queryTs
+        return true
     }
 
-    private inner class QueryTarget(val quark: Int, val ts: Long) {
-        init {
-            /* "ts" should always be a multiple of the resolution */
-            if ((ts - rangeStart) % resolution != 0L) {
-                throw IllegalArgumentException()
-            }
+    /**
+     * Get the quark of one of the intervals of the current step.
+     *
+     * @param index
+     *            The index of the interval, from 0 to [size] (exclusive)
+     */
+    fun quarkAt(index: Int): Int {
+        if (index >= size) throw IndexOutOfBoundsException(index.toString())
+        return stepQuarks[index]
+    }
+
+    /**
+     * Get one of the intervals of the current step.
+     *
+     * @param index
+     *            The index of the interval, from 0 to [size] (exclusive)
+     */
+    fun intervalAt(index: Int): StateInterval {
+        if (index >= size) throw IndexOutOfBoundsException(index.toString())
+        return stepIntervals[index]!!
+    }
+
+    private fun push(quark: Int, ts: Long) {
+        if (heapSize == heapTs.size) {
+            /* Should not happen, there is at most one target per quark */
+            heapTs = heapTs.copyOf(heapSize * 2 + 1)
+            heapQuarks = heapQuarks.copyOf(heapSize * 2 + 1)
+        }
+        var i = heapSize++
+        while (i > 0) {
+            val parent = (i - 1) / 2
+            if (heapTs[parent] <= ts) break
+            heapTs[i] = heapTs[parent]
+            heapQuarks[i] = heapQuarks[parent]
+            i = parent
+        }
+        heapTs[i] = ts
+        heapQuarks[i] = quark
+    }
+
+    private fun pop(): Int {
+        val quark = heapQuarks[0]
+        heapSize--
+        val lastTs = heapTs[heapSize]
+        val lastQuark = heapQuarks[heapSize]
+        var i = 0
+        while (true) {
+            var child = 2 * i + 1
+            if (child >= heapSize) break
+            if (child + 1 < heapSize && heapTs[child + 1] < heapTs[child]) child++
+            if (heapTs[child] >= lastTs) break
+            heapTs[i] = heapTs[child]
+            heapQuarks[i] = heapQuarks[child]
+            i = child
+        }
+        heapTs[i] = lastTs
+        heapQuarks[i] = lastQuark
+        return quark
+    }
+}
+
+internal class StateIterator2D(private val cursor: StateCursor2D) : AbstractIterator<IterationStep2D>() {
+
+    override fun computeNext() {
+        if (!cursor.next()) {
+            return done()
+        }
+        val results = HashMap<Int, StateInterval>(cursor.size * 2)
+        for (i in 0 until cursor.size) {
+            results[cursor.quarkAt(i)] = cursor.intervalAt(i)
         }
+        return setNext(IterationStep2D(cursor.ts, results))
     }
 }
 
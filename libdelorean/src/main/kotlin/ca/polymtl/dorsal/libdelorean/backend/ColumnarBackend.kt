@@ -0,0 +1,422 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend
+
+import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException
+import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval
+import ca.polymtl.dorsal.libdelorean.statevalue.*
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.util.*
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * In-memory backend storing the intervals of each quark in columns of
+ * primitive values, sorted by time and kept off-heap in direct buffers.
+ *
+ * Each column is made of fixed-size blocks of BLOCK_INTERVALS intervals,
+ * allocated from pages of PAGE_SIZE bytes. Inside a block, the start times,
+ * end times, values and value types of the intervals are stored one after the
+ * other:
+ *
+ * <pre>
+ *  8 * BLOCK_INTERVALS - longs (start times)
+ *  8 * BLOCK_INTERVALS - longs (end times)
+ *  8 * BLOCK_INTERVALS - longs (values, or index of the string values)
+ *  1 * BLOCK_INTERVALS - bytes (value types)
+ * </pre>
+ *
+ * Every interval of a full block then uses 25 bytes. The last block of each
+ * column is kept on the heap, in arrays that start with room for
+ * TAIL_INITIAL_SIZE intervals and grow as needed, and is only copied to a
+ * direct block once it is full. Quarks with few intervals thus use about a
+ * hundred bytes of heap, instead of a whole BLOCK_SIZE block of direct memory.
+ *
+ * Queries are binary searches in the columns of the requested quarks. String
+ * values are only stored once, on the heap, and shared by all the intervals
+ * using them.
+ *
+ * The intervals of a given quark must be inserted in chronological order,
+ * which is what the state system does.
+ */
+class ColumnarBackend(override val SSID: String, override val startTime: Long) : IStateHistoryBackend {
+
+    companion object {
+        private const val BLOCK_INTERVALS = 64
+        private const val STARTS_OFFSET = 0
+        private const val ENDS_OFFSET = STARTS_OFFSET + BLOCK_INTERVALS * java.lang.Long.BYTES
+        private const val VALUES_OFFSET = ENDS_OFFSET + BLOCK_INTERVALS * java.lang.Long.BYTES
+        private const val TYPES_OFFSET = VALUES_OFFSET + BLOCK_INTERVALS * java.lang.Long.BYTES
+        private const val BLOCK_SIZE = TYPES_OFFSET + BLOCK_INTERVALS * java.lang.Byte.BYTES
+
+        private const val PAGE_SIZE = 1 shl 20
+        private const val BLOCKS_PER_PAGE = PAGE_SIZE / BLOCK_SIZE
+
+        private const val TAIL_INITIAL_SIZE = 4
+        private const val INTERVAL_SIZE = 3 * java.lang.Long.BYTES + java.lang.Byte.BYTES
+
+        private const val TYPE_NULL: Byte = 0
+        private const val TYPE_BOOLEAN: Byte = 1
+        private const val TYPE_INTEGER: Byte = 2
+        private const val TYPE_LONG: Byte = 3
+        private const val TYPE_DOUBLE: Byte = 4
+        private const val TYPE_STRING: Byte = 5
+    }
+
+    /** The intervals of one quark */
+    private class Column {
+        var nbIntervals = 0
+        var lastEnd = Long.MIN_VALUE
+        /* Global index of each full block of this column, and the start time of the first interval of every block */
+        var blocks = IntArray(1)
+        var blockStarts = LongArray(1)
+        /* Intervals of the last block, kept on the heap until the block is full */
+        var tailStarts = LongArray(TAIL_INITIAL_SIZE)
+        var tailEnds = LongArray(TAIL_INITIAL_SIZE)
+        var tailValues = LongArray(TAIL_INITIAL_SIZE)
+        var tailTypes = ByteArray(TAIL_INITIAL_SIZE)
+    }
+
+    private val lock = ReentrantReadWriteLock()
+
+    private val pages = mutableListOf<ByteBuffer>()
+    private var nbBlocks = 0
+    private var tailsSize = 0L
+    private val columns = mutableListOf<Column?>()
+
+    /* String values, each one stored once */
+    private val stringValues = mutableListOf<StateValue>()
+    private val stringIndex = mutableMapOf<String, Int>()
+
+    @Volatile
+    private var latestTime = startTime
+
+    @Volatile
+    private var isDisposed = false
+
+    override val endTime: Long
+        get() = latestTime
+
+    /** Approximate number of bytes used to store the intervals, updated as they are inserted */
+    val memoryUsage: Long
+        get() = pages.size.toLong() * PAGE_SIZE + tailsSize
+
+    override fun insertPastState(stateStartTime: Long, stateEndTime: Long, quark: Int, value: StateValue) {
+        /* Make sure the passed start/end times make sense */
+        if (stateStartTime > stateEndTime || stateStartTime < startTime) {
+            throw TimeRangeException("$SSID Interval Start:$stateStartTime, Interval End:$stateEndTime, Backend Start:$startTime")
+        }
+
+        lock.write {
+            while (columns.size <= quark) columns.add(null)
+            val column = columns[quark] ?: Column().also {
+                columns[quark] = it
+                tailsSize += TAIL_INITIAL_SIZE * INTERVAL_SIZE
+            }
+            if (stateStartTime <= column.lastEnd) {
+                throw IllegalArgumentException("$SSID Quark:$quark, intervals must be inserted in chronological order")
+            }
+
+            val indexInBlock = column.nbIntervals % BLOCK_INTERVALS
+            if (indexInBlock == 0) startBlock(column, stateStartTime)
+            if (indexInBlock == column.tailStarts.size) growTail(column)
+
+            column.tailStarts[indexInBlock] = stateStartTime
+            column.tailEnds[indexInBlock] = stateEndTime
+            column.tailValues[indexInBlock] = encodeValue(value)
+            column.tailTypes[indexInBlock] = typeOf(value)
+
+            column.nbIntervals++
+            column.lastEnd = stateEndTime
+            if (indexInBlock == BLOCK_INTERVALS - 1) flushTail(column)
+        }
+
+        /* Update the "latest seen time" */
+        if (stateEndTime > latestTime) {
+            latestTime = stateEndTime
+        }
+    }
+
+    private fun startBlock(column: Column, firstStart: Long) {
+        val blockIndex = column.nbIntervals / BLOCK_INTERVALS
+        if (blockIndex == column.blocks.size) {
+            column.blocks = column.blocks.copyOf(blockIndex * 2)
+            column.blockStarts = column.blockStarts.copyOf(blockIndex * 2)
+        }
+        column.blockStarts[blockIndex] = firstStart
+    }
+
+    private fun growTail(column: Column) {
+        val oldSize = column.tailStarts.size
+        val newSize = minOf(oldSize * 2, BLOCK_INTERVALS)
+        column.tailStarts = column.tailStarts.copyOf(newSize)
+        column.tailEnds = column.tailEnds.copyOf(newSize)
+        column.tailValues = column.tailValues.copyOf(newSize)
+        column.tailTypes = column.tailTypes.copyOf(newSize)
+        tailsSize += (newSize - oldSize).toLong() * INTERVAL_SIZE
+    }
+
+    /** Copy the full last block of a column to a direct block. The tail arrays are then reused for the next block. */
+    private fun flushTail(column: Column) {
+        if (nbBlocks % BLOCKS_PER_PAGE == 0) {
+            pages.add(ByteBuffer.allocateDirect(PAGE_SIZE))
+        }
+        val block = nbBlocks++
+        val page = pages[block / BLOCKS_PER_PAGE]
+        val base = (block % BLOCKS_PER_PAGE) * BLOCK_SIZE
+        for (i in 0 until BLOCK_INTERVALS) {
+            page.putLong(base + STARTS_OFFSET + i * java.lang.Long.BYTES, column.tailStarts[i])
+            page.putLong(base + ENDS_OFFSET + i * java.lang.Long.BYTES, column.tailEnds[i])
+            page.putLong(base + VALUES_OFFSET + i * java.lang.Long.BYTES, column.tailValues[i])
+            page.put(base + TYPES_OFFSET + i, column.tailTypes[i])
+        }
+        column.blocks[column.nbIntervals / BLOCK_INTERVALS - 1] = block
+    }
+
+    private fun typeOf(value: StateValue): Byte = when (value) {
+        is NullStateValue -> TYPE_NULL
+        is BooleanStateValue -> TYPE_BOOLEAN
+        is IntegerStateValue -> TYPE_INTEGER
+        is LongStateValue -> TYPE_LONG
+        is DoubleStateValue -> TYPE_DOUBLE
+        is StringStateValue -> TYPE_STRING
+    }
+
+    private fun encodeValue(value: StateValue): Long = when (value) {
+        is NullStateValue -> 0L
+        is BooleanStateValue -> if (value.value) 1L else 0L
+        is IntegerStateValue -> value.value.toLong()
+        is LongStateValue -> value.value
+        is DoubleStateValue -> java.lang.Double.doubleToRawLongBits(value.value)
+        is StringStateValue -> stringIndex.getOrPut(value.value) {
+            stringValues.add(value)
+            stringValues.size - 1
+        }.toLong()
+    }
+
+    override fun finishBuilding(endTime: Long) {
+        if (endTime > latestTime) {
+            latestTime = endTime
+        }
+    }
+
+    override fun supplyAttributeTreeReader(): FileInputStream? {
+        /* Saving to disk not supported */
+        return null
+    }
+
+    override fun supplyAttributeTreeWriterFile(): File? {
+        /* Saving to disk not supported */
+        return null
+    }
+
+    override fun supplyAttributeTreeWriterFilePosition(): Long {
+        /* Saving to disk not supported */
+        return -1
+    }
+
+    override fun removeFiles() {
+        /* Nothing to do */
+    }
+
+    override fun dispose() {
+        lock.write {
+            isDisposed = true
+            /* Queries take the read lock and check 'isDisposed', so nothing can read the pages anymore */
+            pages.forEach { DirectBuffers.free(it) }
+            pages.clear()
+            tailsSize = 0
+            columns.clear()
+            stringValues.clear()
+            stringIndex.clear()
+        }
+    }
+
+    // ------------------------------------------------------------------------
+    // Query methods
+    // ------------------------------------------------------------------------
+
+    override fun doQuery(stateInfo: MutableList<StateInterval?>, t: Long) {
+        checkValidTime(t)
+        lock.read {
+            checkNotDisposed()
+            for (quark in 0 until minOf(stateInfo.size, columns.size)) {
+                val column = columns[quark] ?: continue
+                val index = findInterval(column, t)
+                if (index >= 0) stateInfo[quark] = readInterval(column, quark, index)
+            }
+        }
+    }
+
+    override fun doSingularQuery(t: Long, attributeQuark: Int): StateInterval? {
+        checkValidTime(t)
+        lock.read {
+            checkNotDisposed()
+            val column = columns.getOrNull(attributeQuark) ?: return null
+            val index = findInterval(column, t)
+            return if (index >= 0) readInterval(column, attributeQuark, index) else null
+        }
+    }
+
+    override fun doPartialQuery(t: Long, quarks: Set<Int>, results: MutableMap<Int, StateInterval>) {
+        checkValidTime(t)
+        lock.read {
+            checkNotDisposed()
+            quarks.forEach { quark ->
+                val column = columns.getOrNull(quark) ?: return@forEach
+                val index = findInterval(column, t)
+                if (index >= 0) results.put(quark, readInterval(column, quark, index))
+            }
+        }
+    }
+
+    override fun doRangeQuery(quarks: Set<Int>, t1: Long, t2: Long): Iterator<StateInterval> {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, latestTime)
+        if (rangeStart > rangeEnd) return emptyList<StateInterval>().iterator()
+
+        val results = mutableListOf<StateInterval>()
+        lock.read {
+            checkNotDisposed()
+            quarks.forEach { quark ->
+                val column = columns.getOrNull(quark) ?: return@forEach
+                /* Start from the interval containing the range start, or the first one after it */
+                var index = maxOf(0, lastStartingAtOrBefore(column, rangeStart))
+                if (index < column.nbIntervals && getEnd(column, index) < rangeStart) index++
+                while (index < column.nbIntervals && getStart(column, index) <= rangeEnd) {
+                    results.add(readInterval(column, quark, index))
+                    index++
+                }
+            }
+        }
+        return results.sortedBy { it.start }.iterator()
+    }
+
+    /**
+     * Send all the intervals of this backend to 'action', in order of end
+     * times, which is the order in which the state system inserts them in a
+     * backend.
+     */
+    internal fun forEachByEndTime(action: (StateInterval) -> Unit) {
+        lock.read {
+            checkNotDisposed()
+            /* The intervals of each quark are sorted, merge the columns */
+            val cursors = IntArray(columns.size)
+            val queue = PriorityQueue<StateInterval>(maxOf(1, columns.size), compareBy<StateInterval>({ it.end }, { it.attribute }))
+            columns.forEachIndexed { quark, column ->
+                if (column != null && column.nbIntervals > 0) queue.add(readInterval(column, quark, 0))
+            }
+            while (queue.isNotEmpty()) {
+                val interval = queue.poll()
+                action(interval)
+                val quark = interval.attribute
+                val column = columns[quark]!!
+                val next = ++cursors[quark]
+                if (next < column.nbIntervals) queue.add(readInterval(column, quark, next))
+            }
+        }
+    }
+
+    private fun checkValidTime(t: Long) {
+        if (t < startTime || t > latestTime) {
+            throw TimeRangeException("$SSID Time:$t, Start:$startTime, End:$latestTime")
+        }
+    }
+
+    private fun checkNotDisposed() {
+        if (isDisposed) throw StateSystemDisposedException()
+    }
+
+    /** Index in the column of the interval containing 't', or -1 if there is none */
+    private fun findInterval(column: Column, t: Long): Int {
+        val index = lastStartingAtOrBefore(column, t)
+        return if (index >= 0 && getEnd(column, index) >= t) index else -1
+    }
+
+    /** Index in the column of the last interval starting at or before 't', or -1 */
+    private fun lastStartingAtOrBefore(column: Column, t: Long): Int {
+        /* Find the block first, then the interval inside of it */
+        val nbColumnBlocks = (column.nbIntervals + BLOCK_INTERVALS - 1) / BLOCK_INTERVALS
+        val blockIndex = lastAtOrBefore(0, nbColumnBlocks) { column.blockStarts[it] <= t }
+        if (blockIndex < 0) return -1
+
+        val first = blockIndex * BLOCK_INTERVALS
+        val last = minOf(column.nbIntervals, first + BLOCK_INTERVALS)
+        return lastAtOrBefore(first, last) { getStart(column, it) <= t }
+    }
+
+    /** Binary search for the last index in [from, to) for which 'predicate' holds, or from - 1 */
+    private inline fun lastAtOrBefore(from: Int, to: Int, predicate: (Int) -> Boolean): Int {
+        var low = from
+        var high = to - 1
+        var result = from - 1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            if (predicate(mid)) {
+                result = mid
+                low = mid + 1
+            } else {
+                high = mid - 1
+            }
+        }
+        return if (result < from) -1 else result
+    }
+
+    /** If the interval at 'index' is in the last block of the column, which is still on the heap */
+    private fun isInTail(column: Column, index: Int) = index / BLOCK_INTERVALS == column.nbIntervals / BLOCK_INTERVALS
+
+    private fun getStart(column: Column, index: Int): Long =
+            if (isInTail(column, index)) column.tailStarts[index % BLOCK_INTERVALS] else getLong(column, index, STARTS_OFFSET)
+
+    private fun getEnd(column: Column, index: Int): Long =
+            if (isInTail(column, index)) column.tailEnds[index % BLOCK_INTERVALS] else getLong(column, index, ENDS_OFFSET)
+
+    private fun getLong(column: Column, index: Int, sectionOffset: Int): Long {
+        val block = column.blocks[index / BLOCK_INTERVALS]
+        val base = (block % BLOCKS_PER_PAGE) * BLOCK_SIZE
+        return pages[block / BLOCKS_PER_PAGE].getLong(base + sectionOffset + (index % BLOCK_INTERVALS) * java.lang.Long.BYTES)
+    }
+
+    private fun readInterval(column: Column, quark: Int, index: Int): StateInterval {
+        val indexInBlock = index % BLOCK_INTERVALS
+        val start: Long
+        val end: Long
+        val bits: Long
+        val type: Byte
+        if (isInTail(column, index)) {
+            start = column.tailStarts[indexInBlock]
+            end = column.tailEnds[indexInBlock]
+            bits = column.tailValues[indexInBlock]
+            type = column.tailTypes[indexInBlock]
+        } else {
+            val block = column.blocks[index / BLOCK_INTERVALS]
+            val page = pages[block / BLOCKS_PER_PAGE]
+            val base = (block % BLOCKS_PER_PAGE) * BLOCK_SIZE
+            start = page.getLong(base + STARTS_OFFSET + indexInBlock * java.lang.Long.BYTES)
+            end = page.getLong(base + ENDS_OFFSET + indexInBlock * java.lang.Long.BYTES)
+            bits = page.getLong(base + VALUES_OFFSET + indexInBlock * java.lang.Long.BYTES)
+            type = page.get(base + TYPES_OFFSET + indexInBlock)
+        }
+        val value = when (type) {
+            TYPE_NULL -> StateValue.nullValue()
+            TYPE_BOOLEAN -> StateValue.newValueBoolean(bits != 0L)
+            TYPE_INTEGER -> StateValue.newValueInt(bits.toInt())
+            TYPE_LONG -> StateValue.newValueLong(bits)
+            TYPE_DOUBLE -> StateValue.newValueDouble(java.lang.Double.longBitsToDouble(bits))
+            TYPE_STRING -> stringValues[bits.toInt()]
+            else -> throw IllegalStateException()
+        }
+        return StateInterval(start, end, quark, value)
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend
+
+import java.nio.ByteBuffer
+import java.util.logging.Level
+import java.util.logging.Logger
+
+/**
+ * Frees the native memory of direct byte buffers right away, instead of
+ * waiting for the garbage collector to do it.
+ *
+ * There is no public API for this, so it relies on JDK internals:
+ * sun.misc.Unsafe.invokeCleaner() on Java 9 and later, and
+ * sun.nio.ch.DirectBuffer.cleaner() on Java 8. If neither can be used, a
+ * warning is logged once, and the memory is left to the garbage collector.
+ *
+ * A buffer must never be accessed once it is freed, the JVM would crash.
+ */
+internal object DirectBuffers {
+
+    private val LOGGER = Logger.getLogger(DirectBuffers::class.java.name)
+
+    private val freeFunction: ((ByteBuffer) -> Unit)? by lazy { findFreeFunction() }
+
+    /**
+     * Free the native memory of a direct buffer, which must not be a slice or
+     * a duplicate of another buffer.
+     */
+    fun free(buffer: ByteBuffer) {
+        if (!buffer.isDirect) return
+        val function = freeFunction ?: return
+        try {
+            function(buffer)
+        } catch (e: Exception) {
+            LOGGER.log(Level.WARNING, "Could not free a direct buffer, leaving it to the garbage collector", e)
+        }
+    }
+
+    private fun findFreeFunction(): ((ByteBuffer) -> Unit)? {
+        try {
+            /* Java 9 and later */
+            val unsafeClass = Class.forName("sun.misc.Unsafe")
+            val unsafe = unsafeClass.getDeclaredField("theUnsafe").apply { isAccessible = true }.get(null)
+            val invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer::class.java)
+            return { buffer -> invokeCleaner.invoke(unsafe, buffer) }
+        } catch (e: NoSuchMethodException) {
+            /* Java 8, see below */
+        } catch (e: Exception) {
+            LOGGER.log(Level.WARNING, "Direct buffers cannot be freed explicitly, leaving them to the garbage collector", e)
+            return null
+        }
+
+        return try {
+            val cleaner = Class.forName("sun.nio.ch.DirectBuffer").getMethod("cleaner")
+            val clean = Class.forName("sun.misc.Cleaner").getMethod("clean")
+            val function: (ByteBuffer) -> Unit = { buffer -> clean.invoke(cleaner.invoke(buffer)) }
+            function
+        } catch (e: Exception) {
+            LOGGER.log(Level.WARNING, "Direct buffers cannot be freed explicitly, leaving them to the garbage collector", e)
+            null
+        }
+    }
+}
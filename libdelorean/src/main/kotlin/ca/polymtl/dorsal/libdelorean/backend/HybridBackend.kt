@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend
+
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+import java.io.File
+import java.io.FileInputStream
+import java.util.concurrent.locks.ReentrantReadWriteLock
+import kotlin.concurrent.read
+import kotlin.concurrent.write
+
+/**
+ * Backend that starts building the history in memory, in a [ColumnarBackend],
+ * and moves it to a [HistoryTreeBackend] file once it uses more than a given
+ * amount of memory. Small histories then never touch the disk, which also
+ * means they are not saved, and have to be rebuilt every time.
+ *
+ * The move happens in the thread inserting the intervals. Queries from other
+ * threads keep using the in-memory history until the history tree contains
+ * all of its intervals, then go to the history tree.
+ *
+ * @param ssid
+ *            The state system's ID
+ * @param stateFile
+ *            The file where to store the history, if it goes over the memory
+ *            budget
+ * @param providerVersion
+ *            Version of of the state provider, saved in the history file
+ * @param startTime
+ *            The earliest time stamp that will be stored in the history
+ * @param compressBlocks
+ *            If the nodes of the history file should be stored compressed
+ * @param memoryBudget
+ *            The number of bytes the in-memory history can use
+ */
+class HybridBackend(override val SSID: String,
+                    private val stateFile: File,
+                    private val providerVersion: Int,
+                    override val startTime: Long,
+                    private val compressBlocks: Boolean,
+                    private val memoryBudget: Long) : IStateHistoryBackend {
+
+    companion object {
+        /** Default number of bytes the in-memory history can use */
+        const val DEFAULT_MEMORY_BUDGET = 64L * 1024 * 1024
+    }
+
+    /* Only held for writing while switching from one backend to the other */
+    private val lock = ReentrantReadWriteLock()
+
+    /* Only accessed by the thread inserting the intervals, null once on disk */
+    private var inMemory: ColumnarBackend? = ColumnarBackend(SSID, startTime)
+
+    @Volatile
+    private var current: IStateHistoryBackend = inMemory!!
+
+    /** If the history has been moved to the history tree file */
+    val isOnDisk: Boolean
+        get() = current is HistoryTreeBackend
+
+    override val endTime: Long
+        get() = current.endTime
+
+    override fun insertPastState(stateStartTime: Long, stateEndTime: Long, quark: Int, value: StateValue) {
+        current.insertPastState(stateStartTime, stateEndTime, quark, value)
+        val memory = inMemory ?: return
+        if (memory.memoryUsage > memoryBudget) {
+            moveToDisk(memory)
+        }
+    }
+
+    private fun moveToDisk(memory: ColumnarBackend) {
+        val htBackend = HistoryTreeBackend(SSID, stateFile, providerVersion, startTime,
+                StateHistoryBackendFactory.HISTORY_TREE_BLOCK_SIZE, StateHistoryBackendFactory.HISTORY_TREE_MAX_CHILDREN,
+                HistoryTreeBackend.DEFAULT_NODE_CACHE_SIZE, HistoryTreeBackend.DEFAULT_WRITE_QUEUE_SIZE,
+                compressBlocks)
+        memory.forEachByEndTime { htBackend.insertPastState(it.start, it.end, it.attribute, it.stateValue) }
+
+        lock.write {
+            current = htBackend
+            inMemory = null
+        }
+        memory.dispose()
+    }
+
+    override fun finishBuilding(endTime: Long) {
+        current.finishBuilding(endTime)
+    }
+
+    override fun resumeBuilding(): List<StateInterval> = current.resumeBuilding()
+
+    override fun supplyAttributeTreeReader(): FileInputStream? = current.supplyAttributeTreeReader()
+    override fun supplyAttributeTreeWriterFile(): File? = current.supplyAttributeTreeWriterFile()
+    override fun supplyAttributeTreeWriterFilePosition() = current.supplyAttributeTreeWriterFilePosition()
+
+    override fun removeFiles() {
+        current.removeFiles()
+    }
+
+    override fun dispose() {
+        current.dispose()
+    }
+
+    // ------------------------------------------------------------------------
+    // Query methods
+    // ------------------------------------------------------------------------
+
+    override fun doQuery(stateInfo: MutableList<StateInterval?>, t: Long) {
+        lock.read { current.doQuery(stateInfo, t) }
+    }
+
+    override fun doSingularQuery(t: Long, attributeQuark: Int): StateInterval? =
+            lock.read { current.doSingularQuery(t, attributeQuark) }
+
+    override fun doPartialQuery(t: Long, quarks: Set<Int>, results: MutableMap<Int, StateInterval>) {
+        lock.read { current.doPartialQuery(t, quarks, results) }
+    }
+
+    override fun doRangeQuery(quarks: Set<Int>, t1: Long, t2: Long): Iterator<StateInterval> =
+            lock.read { current.doRangeQuery(quarks, t1, t2) }
+
+    override fun doRangeAggregateQuery(quark: Int, t1: Long, t2: Long): RangeAggregate =
+            lock.read { current.doRangeAggregateQuery(quark, t1, t2) }
+}
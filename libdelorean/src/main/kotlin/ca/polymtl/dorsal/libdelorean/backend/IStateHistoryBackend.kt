@@ -11,6 +11,7 @@
 
 package ca.polymtl.dorsal.libdelorean.backend
 
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
 import java.io.File
@@ -51,6 +52,21 @@ interface IStateHistoryBackend {
      */
     fun finishBuilding(endTime: Long)
 
+    /**
+     * Re-open a history that was finished building, so that more states can
+     * be inserted after its current end time. The intervals that were still
+     * ongoing when the history was finished, the ones ending at its end time,
+     * are removed from the history and returned, so that they can be extended.
+     *
+     * The default implementation does not support it.
+     *
+     * @return The intervals that ended at the previous end time
+     * @throws UnsupportedOperationException
+     *             If this backend cannot be resumed
+     */
+    fun resumeBuilding(): List<StateInterval> =
+            throw UnsupportedOperationException("$SSID History cannot be resumed")
+
     /**
      * It is the responsibility of the backend to define where to save the
      * Attribute Tree (since it's only useful to "reopen" an Attribute Tree if
@@ -104,6 +120,9 @@ interface IStateHistoryBackend {
      * return. DO NOT 'new' currentStateInfo, it will be lost and nothing will
      * be returned!
      *
+     * Attributes can be added while a query runs. Intervals of quarks beyond
+     * the size of the list are not part of the result, and should be skipped.
+     *
      * @param currentStateInfo
      *            List of StateValues (index == quark) to fill up
      * @param t
@@ -148,4 +167,63 @@ interface IStateHistoryBackend {
                 .forEach { results.put(it.attribute, it) }
 
     }
-}
\ No newline at end of file
+
+    /**
+     * Query all the intervals of the given quarks that intersect the time
+     * range [t1, t2]. The range is clamped to the range of the backend.
+     *
+     * The default implementation does successive calls to
+     * {@link #doSingularQuery}, but backends that can visit their storage
+     * only once for the whole range are welcome to do so.
+     *
+     * @param quarks
+     *            The quarks to query
+     * @param t1
+     *            Start of the time range
+     * @param t2
+     *            End of the time range
+     * @return The matching intervals, in order of their start times
+     */
+    fun doRangeQuery(quarks: Set<Int>, t1: Long, t2: Long): Iterator<StateInterval> {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, endTime)
+        if (rangeStart > rangeEnd) return emptyList<StateInterval>().iterator()
+
+        val results = mutableListOf<StateInterval>()
+        quarks.forEach { quark ->
+            var t = rangeStart
+            while (t <= rangeEnd) {
+                val interval = doSingularQuery(t, quark) ?: break
+                results.add(interval)
+                if (interval.end == Long.MAX_VALUE) break
+                t = interval.end + 1
+            }
+        }
+        return results.sortedBy { it.start }.iterator()
+    }
+
+    /**
+     * Aggregate the numeric values of a quark over the time range [t1, t2].
+     * The range is clamped to the range of the backend.
+     *
+     * The default implementation goes through the intervals returned by
+     * {@link #doRangeQuery}, but backends keeping summaries of their intervals
+     * are welcome to use them.
+     *
+     * @param quark
+     *            The quark to query
+     * @param t1
+     *            Start of the time range
+     * @param t2
+     *            End of the time range
+     * @return The aggregate of the values in the range
+     */
+    fun doRangeAggregateQuery(quark: Int, t1: Long, t2: Long): RangeAggregate {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, endTime)
+        if (rangeStart > rangeEnd) return RangeAggregate.EMPTY
+
+        return doRangeQuery(setOf(quark), rangeStart, rangeEnd).asSequence()
+                .fold(RangeAggregate.EMPTY) { aggregate, interval -> aggregate + RangeAggregate.of(interval, rangeStart, rangeEnd) }
+    }
+}
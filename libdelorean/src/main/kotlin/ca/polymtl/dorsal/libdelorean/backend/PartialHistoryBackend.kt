@@ -0,0 +1,240 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend
+
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter
+import ca.polymtl.dorsal.libdelorean.StateSystemFactory
+import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval
+import ca.polymtl.dorsal.libdelorean.statedump.Statedump
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+import com.google.common.cache.CacheBuilder
+import com.google.common.cache.CacheLoader
+import com.google.common.cache.LoadingCache
+import com.google.common.cache.RemovalListener
+import java.io.File
+import java.io.FileInputStream
+
+/**
+ * Backend which only stores the full state of the history at regular
+ * checkpoints, every 'checkpointInterval' time units from the start time.
+ * The other states are computed on demand, by replaying the trace from the
+ * nearest previous checkpoint into a temporary in-memory history.
+ *
+ * Only the intervals crossing a checkpoint are kept, in the 'checkpoints'
+ * backend. The in-memory history of each time window between two
+ * checkpoints is cached, so that repeated queries in the same window only
+ * replay the trace once.
+ *
+ * The intervals crossing the boundaries of a window are given back with
+ * their real start and end times, by looking them up in the checkpoints, so
+ * that queries return the same intervals as a complete history would.
+ *
+ * Since the checkpoints are only complete once the whole trace was
+ * processed, partial histories can only be queried once they are built.
+ *
+ * @param ssid
+ *            The state system's ID
+ * @param checkpoints
+ *            The backend in which to store the intervals crossing the
+ *            checkpoints
+ * @param checkpointInterval
+ *            The time between two checkpoints
+ * @param replayer
+ *            Replays the trace to compute the states between checkpoints
+ * @param isFinishedBuilding
+ *            If the checkpoints backend contains an existing history, which
+ *            was already built
+ */
+class PartialHistoryBackend(override val SSID: String,
+                            private val checkpoints: IStateHistoryBackend,
+                            private val checkpointInterval: Long,
+                            private val replayer: Replayer,
+                            @Volatile private var isFinishedBuilding: Boolean) : IStateHistoryBackend {
+
+    companion object {
+        /** Number of replayed time windows kept in memory */
+        private const val REPLAY_CACHE_SIZE = 8L
+    }
+
+    /**
+     * Source of the state changes between two checkpoints, usually the state
+     * provider that built the history.
+     */
+    interface Replayer {
+
+        /** The full path of every attribute of the state system, in order of quarks */
+        fun attributes(): List<Array<String>>
+
+        /**
+         * Apply to 'ss' the state changes of all the events whose timestamps
+         * are after 'start', and not after 'end'. The ongoing state of 'ss'
+         * is the full state at 'start'.
+         */
+        fun replay(ss: IStateSystemWriter, start: Long, end: Long)
+    }
+
+    /** The replayed history between two checkpoints, and the intervals crossing them */
+    private class Window(val start: Long,
+                         val end: Long,
+                         val states: IStateHistoryBackend,
+                         val atStart: List<StateInterval?>,
+                         val atEnd: List<StateInterval?>?) {
+
+        /** Give back the real start and end times to intervals cut by the window boundaries */
+        fun restore(interval: StateInterval): StateInterval {
+            val quark = interval.attribute
+            var realStart = interval.start
+            var realEnd = interval.end
+            if (realStart == start) {
+                atStart.getOrNull(quark)?.let { realStart = it.start }
+            }
+            if (realEnd == end) {
+                atEnd?.getOrNull(quark)?.let { if (it.start == realStart) realEnd = it.end }
+            }
+            return if (realStart == interval.start && realEnd == interval.end) interval
+            else StateInterval(realStart, realEnd, quark, interval.stateValue)
+        }
+    }
+
+    init {
+        if (checkpointInterval <= 0) throw IllegalArgumentException("Invalid checkpoint interval: $checkpointInterval")
+    }
+
+    /*
+     * Replayed windows hold an interval for every attribute, they are kept on
+     * the heap and disposed as soon as they are evicted.
+     */
+    private val windows: LoadingCache<Long, Window> = CacheBuilder.newBuilder()
+            .maximumSize(REPLAY_CACHE_SIZE)
+            .removalListener(RemovalListener<Long, Window> { it.value?.states?.dispose() })
+            .build(object : CacheLoader<Long, Window>() {
+                override fun load(index: Long) = replayWindow(index)
+            })
+
+    override val startTime = checkpoints.startTime
+
+    override val endTime: Long
+        get() = if (isFinishedBuilding) checkpoints.endTime else startTime
+
+    override fun insertPastState(stateStartTime: Long, stateEndTime: Long, quark: Int, value: StateValue) {
+        /* Make sure the passed start/end times make sense */
+        if (stateStartTime > stateEndTime || stateStartTime < startTime) {
+            throw TimeRangeException("$SSID Interval Start:$stateStartTime, Interval End:$stateEndTime, Backend Start:$startTime")
+        }
+
+        /* Only keep the intervals crossing a checkpoint */
+        val nextCheckpoint = startTime + (stateStartTime - startTime + checkpointInterval - 1) / checkpointInterval * checkpointInterval
+        if (nextCheckpoint <= stateEndTime) {
+            checkpoints.insertPastState(stateStartTime, stateEndTime, quark, value)
+        }
+    }
+
+    override fun finishBuilding(endTime: Long) {
+        checkpoints.finishBuilding(endTime)
+        isFinishedBuilding = true
+    }
+
+    override fun supplyAttributeTreeReader(): FileInputStream? = checkpoints.supplyAttributeTreeReader()
+    override fun supplyAttributeTreeWriterFile(): File? = checkpoints.supplyAttributeTreeWriterFile()
+    override fun supplyAttributeTreeWriterFilePosition() = checkpoints.supplyAttributeTreeWriterFilePosition()
+
+    override fun removeFiles() {
+        checkpoints.removeFiles()
+    }
+
+    override fun dispose() {
+        windows.invalidateAll()
+        checkpoints.dispose()
+    }
+
+    private fun replayWindow(index: Long): Window {
+        val windowStart = startTime + index * checkpointInterval
+        val windowEnd = minOf(windowStart + checkpointInterval - 1, endTime)
+        val attributes = replayer.attributes()
+        val atStart = fullStateAt(windowStart, attributes.size)
+        val atEnd = if (windowEnd < endTime) fullStateAt(windowEnd + 1, attributes.size) else null
+
+        val states = StateHistoryBackendFactory.createInMemoryBackend(SSID, windowStart)
+        val ss = StateSystemFactory.newStateSystem(states)
+        Statedump(attributes, atStart.map { it?.stateValue ?: StateValue.nullValue() }, 0).restoreState(ss, windowStart)
+        replayer.replay(ss, windowStart, windowEnd)
+        ss.closeHistory(windowEnd)
+
+        return Window(windowStart, windowEnd, states, atStart, atEnd)
+    }
+
+    private fun fullStateAt(t: Long, nbAttributes: Int): List<StateInterval?> {
+        val stateInfo = MutableList<StateInterval?>(nbAttributes) { null }
+        checkpoints.doQuery(stateInfo, t)
+        return stateInfo
+    }
+
+    // ------------------------------------------------------------------------
+    // Query methods
+    // ------------------------------------------------------------------------
+
+    override fun doQuery(stateInfo: MutableList<StateInterval?>, t: Long) {
+        val window = windowAt(t)
+        val results = MutableList<StateInterval?>(stateInfo.size) { null }
+        window.states.doQuery(results, t)
+        results.forEachIndexed { quark, interval ->
+            if (interval != null) stateInfo[quark] = window.restore(interval)
+        }
+    }
+
+    override fun doSingularQuery(t: Long, attributeQuark: Int): StateInterval? {
+        val window = windowAt(t)
+        return window.states.doSingularQuery(t, attributeQuark)?.let { window.restore(it) }
+    }
+
+    override fun doPartialQuery(t: Long, quarks: Set<Int>, results: MutableMap<Int, StateInterval>) {
+        val window = windowAt(t)
+        val windowResults = mutableMapOf<Int, StateInterval>()
+        window.states.doPartialQuery(t, quarks, windowResults)
+        windowResults.forEach { quark, interval -> results.put(quark, window.restore(interval)) }
+    }
+
+    /**
+     * Intervals crossing the start of a window were already returned with the
+     * previous window, only the first window returns them.
+     */
+    override fun doRangeQuery(quarks: Set<Int>, t1: Long, t2: Long): Iterator<StateInterval> {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, endTime)
+        if (rangeStart > rangeEnd) return emptyList<StateInterval>().iterator()
+        checkValidTime(rangeStart)
+
+        val firstWindow = (rangeStart - startTime) / checkpointInterval
+        val lastWindow = (rangeEnd - startTime) / checkpointInterval
+        return (firstWindow..lastWindow).asSequence()
+                .flatMap { index ->
+                    val window = windows.getUnchecked(index)
+                    window.states.doRangeQuery(quarks, maxOf(rangeStart, window.start), minOf(rangeEnd, window.end)).asSequence()
+                            .map { window.restore(it) }
+                            .filter { index == firstWindow || it.start >= window.start }
+                }
+                .iterator()
+    }
+
+    private fun windowAt(t: Long): Window {
+        checkValidTime(t)
+        return windows.getUnchecked((t - startTime) / checkpointInterval)
+    }
+
+    private fun checkValidTime(t: Long) {
+        if (!isFinishedBuilding) {
+            throw TimeRangeException("$SSID Partial history is not built yet, Time:$t")
+        }
+        if (t < startTime || t > endTime) {
+            throw TimeRangeException("$SSID Time:$t, Start:$startTime, End:$endTime")
+        }
+    }
+}
@@ -148,14 +148,14 @@ class HTInterval : StateInterval {
 
 }
 
-/* 'Byte' equivalent for state values types */
-private const val TYPE_NULL: Byte = -1
-private const val TYPE_INTEGER: Byte = 0
-private const val TYPE_STRING: Byte = 1
-private const val TYPE_LONG: Byte = 2
-private const val TYPE_DOUBLE: Byte = 3
-private const val TYPE_BOOLEAN_TRUE: Byte = 4
-private const val TYPE_BOOLEAN_FALSE: Byte = 5
+/* 'Byte' equivalent for state values types, also used by the node layouts of HistoryTreeNode */
+internal const val TYPE_NULL: Byte = -1
+internal const val TYPE_INTEGER: Byte = 0
+internal const val TYPE_STRING: Byte = 1
+internal const val TYPE_LONG: Byte = 2
+internal const val TYPE_DOUBLE: Byte = 3
+internal const val TYPE_BOOLEAN_TRUE: Byte = 4
+internal const val TYPE_BOOLEAN_FALSE: Byte = 5
 
 private const val errMsg: String = "Invalid interval data. Maybe your file is corrupt?"
 
@@ -171,6 +171,7 @@ private fun computeIntervalSizeOnDisk(sv: StateValue): Int {
         is IntegerStateValue -> Integer.BYTES
         is LongStateValue -> java.lang.Long.BYTES
         is DoubleStateValue -> java.lang.Double.BYTES
+        /* Encoded like writeInterval() does, unpaired surrogates become '?' */
         is StringStateValue -> sv.value.toByteArray().size + 3  /* String's length + 3 (2 bytes for size, 1 byte for \0 at the end */
     }
 
@@ -181,7 +182,7 @@ private fun computeIntervalSizeOnDisk(sv: StateValue): Int {
  * Here we determine how state values "types" are written in the 8-bit field
  * that indicates the value type in the file.
  */
-private fun getByteFromType(sv: StateValue): Byte {
+internal fun getByteFromType(sv: StateValue): Byte {
     return when(sv) {
         is NullStateValue -> TYPE_NULL
         is BooleanStateValue -> if (sv.value) TYPE_BOOLEAN_TRUE else TYPE_BOOLEAN_FALSE
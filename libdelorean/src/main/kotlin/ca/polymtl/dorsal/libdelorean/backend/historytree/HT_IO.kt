@@ -13,16 +13,29 @@ package ca.polymtl.dorsal.libdelorean.backend.historytree
 
 import com.google.common.cache.CacheBuilder
 import com.google.common.cache.CacheLoader
+import com.google.common.cache.CacheStats
 import com.google.common.cache.LoadingCache
+import java.io.Closeable
 import java.io.File
 import java.io.FileInputStream
 import java.io.FileOutputStream
 import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
 import java.nio.channels.ClosedChannelException
 import java.nio.channels.FileChannel
+import java.util.ArrayDeque
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.BlockingQueue
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.TimeUnit
 import java.util.concurrent.ExecutionException
 import java.util.logging.Level
 import java.util.logging.Logger
+import java.util.zip.DataFormatException
+import java.util.zip.Deflater
+import java.util.zip.Inflater
 
 /**
  * This class abstracts inputs/outputs of the HistoryTree nodes.
@@ -45,42 +58,133 @@ import java.util.logging.Logger
  *            node.
  * @param newFile
  *            Flag indicating that the file must be created from scratch
+ * @param appending
+ *            Flag indicating that nodes will be added to an existing file
+ * @param nodeCacheSize
+ *            The maximum size, in bytes, of the nodes kept in this history's
+ *            node cache. Core nodes and pinned nodes are not counted.
+ * @param writeQueueSize
+ *            The number of closed nodes that can be waiting to be written by
+ *            the background writer thread. 0 means nodes are written
+ *            synchronously by [writeNode].
+ * @param features
+ *            Bit mask of the file format features (HistoryTree.FEATURE_*).
+ *            With [HistoryTree.FEATURE_COMPRESSED_BLOCKS], the nodes are
+ *            stored as variable-length compressed blocks, located using a
+ *            block index, instead of fixed-size blocks.
  * @throws IOException
  *             An exception can be thrown when file cannot be accessed
  */
 internal class HT_IO(private val stateFile: File,
                      private val blockSize: Int,
                      private val maxChildren: Int,
-                     newFile: Boolean) {
+                     newFile: Boolean,
+                     appending: Boolean,
+                     private val nodeCacheSize: Long,
+                     private val writeQueueSize: Int,
+                     private val features: Int) {
 
     companion object {
         private val LOGGER = Logger.getLogger(HT_IO::class.java.name)
 
-        // TODO test/benchmark optimal cache size
-        private const val CACHE_SIZE = 256
+        /** Maximum size of each mapping of a finished file */
+        private const val MAX_SEGMENT_SIZE = 1L shl 30
 
-        private data class CacheKey(val stateHistory: HT_IO, val seqNumber: Int)
+        /** Maximum number of nodes the writer thread handles in one go */
+        private const val MAX_WRITE_BATCH = 64
 
-        private val NODE_CACHE: LoadingCache<CacheKey, HistoryTreeNode> = CacheBuilder.newBuilder()
-                .maximumSize(CACHE_SIZE.toLong())
-                .build(object : CacheLoader<CacheKey, HistoryTreeNode>() {
-                    override fun load(key: CacheKey): HistoryTreeNode {
-                        val io = key.stateHistory
-                        val seqNb = key.seqNumber
+        /** Size of each entry of the block index of files with compressed blocks */
+        @JvmField
+        val BLOCK_INDEX_ENTRY_SIZE = CompressedBlockIndex.ENTRY_SIZE
+    }
 
-                        LOGGER.finest { "[HtIo:CacheMiss] seqNum=$seqNb" }
+    /**
+     * Cache of the nodes of this history. Its size is expressed in bytes, leaf
+     * nodes weigh one block each, while core nodes weigh nothing, which means
+     * they are never evicted. There are only about 1/maxChildren as many core
+     * nodes as there are leaves, and every query goes through them.
+     */
+    private val nodeCache: LoadingCache<Int, HistoryTreeNode> = CacheBuilder.newBuilder()
+            .maximumWeight(nodeCacheSize)
+            .weigher<Int, HistoryTreeNode> { _, node -> if (node is CoreNode) 0 else node.blockSize }
+            .recordStats()
+            .build(object : CacheLoader<Int, HistoryTreeNode>() {
+                override fun load(seqNb: Int): HistoryTreeNode {
+                    LOGGER.finest { "[HtIo:CacheMiss] seqNum=$seqNb" }
 
-                        synchronized(io) {
-                            io.seekFCToNodePos(io.fcIn, seqNb);
-                            return HistoryTreeNode.readNode(io.blockSize, io.maxChildren, io.fcIn)
-                        }
+                    val index = blockIndex
+                    val segments = mappedSegments
+                    return if (index != null) {
+                        HistoryTreeNode.readNode(blockSize, maxChildren, features, readCompressedBlock(index, seqNb))
+                    } else if (segments != null) {
+                        HistoryTreeNode.readNode(blockSize, maxChildren, features, sliceNode(segments, seqNb))
+                    } else {
+                        HistoryTreeNode.readNode(blockSize, maxChildren, features, fcIn, nodePosition(seqNb))
                     }
-                })
-    }
+                }
+            })
+
+    /**
+     * Nodes that must never leave memory, like the latest branch of the tree.
+     * They are looked up before the cache, and do not count towards its size.
+     */
+    private val pinnedNodes: MutableMap<Int, HistoryTreeNode> = ConcurrentHashMap()
+
+    /**
+     * Read-only mappings of the node section of the file, once it is complete.
+     * Each segment contains [nodesPerSegment] blocks.
+     */
+    @Volatile
+    private var mappedSegments: Array<ByteBuffer>? = null
+    private val nodesPerSegment = (MAX_SEGMENT_SIZE / blockSize).toInt()
+
+    @Volatile
+    private var isClosed = false
+
+    /**
+     * Nodes that were passed to [writeNode] but that are not written to the
+     * file yet. Reads must look here first, the cache may have evicted them.
+     */
+    private val pendingNodes: MutableMap<Int, HistoryTreeNode> = ConcurrentHashMap()
+    private val pendingNodesMonitor = java.lang.Object()
+
+    private val writeQueue: BlockingQueue<HistoryTreeNode>? = if (writeQueueSize > 0) ArrayBlockingQueue(writeQueueSize) else null
+
+    /** Background thread writing the nodes of [writeQueue], started on the first write */
+    private var writerThread: Thread? = null
+
+    /** Error encountered by the writer thread, reported on the next write or flush */
+    @Volatile
+    private var writeError: Throwable? = null
+
+    /** Block buffers used for synchronous writes */
+    private val syncBufferPool = ArrayDeque<ByteBuffer>()
+
+    /** Compressed block buffers used for synchronous writes */
+    private val syncCompressedPool = ArrayDeque<ByteBuffer>()
+
+    /** Size of the compressed block buffers, enough for the worst case of incompressible data */
+    private val compressedBufferSize = blockSize + (blockSize shr 8) + 64
+
+    /** Location of each node in the file, if blocks are compressed */
+    private val blockIndex: CompressedBlockIndex? = if ((features and HistoryTree.FEATURE_COMPRESSED_BLOCKS) != 0) CompressedBlockIndex() else null
+
+    /** Compressor used by the thread writing nodes, created on the first write of a compressed block */
+    private var deflater: Deflater? = null
+
+    /** Position at which the next compressed block will be written */
+    private var nextBlockPosition = HistoryTree.TREE_HEADER_SIZE.toLong()
+
+    /** Background thread populating the cache after the file is opened */
+    @Volatile
+    private var warmUpThread: Thread? = null
+
+    /** Statistics (hits, misses, evictions...) of the node cache */
+    val nodeCacheStats: CacheStats get() = nodeCache.stats()
 
     /* Properties related to file I/O */
     private val fis: FileInputStream
-    private val fos: FileOutputStream
+    private val fos: Closeable
     private val fcIn: FileChannel
     val fcOut: FileChannel
 
@@ -93,17 +197,29 @@ internal class HT_IO(private val stateFile: File,
             if (!stateFile.createNewFile()) throw IOException("Cannot create new file $stateFile.")
 
             fis = FileInputStream(stateFile)
-            fos = FileOutputStream(stateFile, false)
+            val output = FileOutputStream(stateFile, false)
+            fos = output
+            fcOut = output.channel
+        } else if (appending) {
+            /*
+             * Nodes of an existing file can get rewritten, an output stream in
+             * append mode would ignore the positions we write at.
+             */
+            fis = FileInputStream(stateFile)
+            val output = RandomAccessFile(stateFile, "rw")
+            fos = output
+            fcOut = output.channel
         } else {
             /*
              * We want to open an existing file, make sure we don't squash the
              * existing content when opening the fos!
              */
             fis = FileInputStream(stateFile)
-            fos = FileOutputStream(stateFile, true)
+            val output = FileOutputStream(stateFile, true)
+            fos = output
+            fcOut = output.channel
         }
         fcIn = fis.channel
-        fcOut = fos.channel
     }
 
     /**
@@ -120,9 +236,11 @@ internal class HT_IO(private val stateFile: File,
     fun readNode(seqNumber: Int): HistoryTreeNode {
         /* Do a cache lookup. If it's not present it will be loaded from disk */
         LOGGER.finest { "[HtIo:CacheLookup] seqNum=$seqNumber" }
-        val key = CacheKey(this, seqNumber);
+        if (isClosed) throw ClosedChannelException()
+        pinnedNodes[seqNumber]?.let { return it }
+        pendingNodes[seqNumber]?.let { return it }
         try {
-            return NODE_CACHE.get(key)
+            return nodeCache.get(seqNumber)
 
         } catch (e: ExecutionException) {
             /* Get the inner exception that was generated */
@@ -135,41 +253,365 @@ internal class HT_IO(private val stateFile: File,
         }
     }
 
+    /**
+     * Write a closed node to the file. If a write queue is configured, this
+     * only blocks if the queue is full, the node will be written by the
+     * background writer thread.
+     */
     fun writeNode(node: HistoryTreeNode) {
-        try {
-            val seqNumber = node.seqNumber
+        checkWriteError()
+        val seqNumber = node.seqNumber
 
-            /* "Write-back" the node into the cache */
-            val key = CacheKey(this, seqNumber);
-            NODE_CACHE.put(key, node);
+        /* "Write-back" the node into the cache */
+        nodeCache.put(seqNumber, node)
 
-            /* Position ourselves at the start of the node and write it */
+        val queue = writeQueue
+        if (queue == null) {
             synchronized(this) {
-                seekFCToNodePos(fcOut, seqNumber);
-                node.writeSelf(fcOut);
+                try {
+                    writeBatch(listOf(node), syncBufferPool, syncCompressedPool)
+                } catch (e: IOException) {
+                    /* If we were able to open the file, we should be fine now... */
+                    throw IllegalStateException(e)
+                }
             }
+            return
+        }
 
-        } catch (e: IOException) {
-            /* If we were able to open the file, we should be fine now... */
-            throw IllegalStateException(e)
+        pendingNodes[seqNumber] = node
+        startWriterThread()
+        while (!queue.offer(node, 100, TimeUnit.MILLISECONDS)) {
+            /* The queue is full, make sure the writer is still making progress */
+            checkWriteError()
+        }
+    }
+
+    /**
+     * Wait until all the nodes passed to [writeNode] are written to the file,
+     * then stop the writer thread. Further writes will restart it.
+     */
+    fun flush() {
+        val thread = writerThread ?: return checkWriteError()
+        synchronized(pendingNodesMonitor) {
+            while (pendingNodes.isNotEmpty() && writeError == null && thread.isAlive) {
+                pendingNodesMonitor.wait(100)
+            }
+        }
+        /* The writer is now idle, waiting on the queue */
+        stopWriterThread(thread)
+        checkWriteError()
+        if (pendingNodes.isNotEmpty()) {
+            throw IllegalStateException("${pendingNodes.size} nodes of $stateFile were not written")
+        }
+    }
+
+    /**
+     * Throw if the writer thread failed, or if it stopped while some nodes
+     * were still waiting to be written: they never will be.
+     */
+    private fun checkWriteError() {
+        writeError?.let { throw IllegalStateException(it) }
+        val thread = writerThread
+        if (thread != null && !thread.isAlive && pendingNodes.isNotEmpty()) {
+            throw IllegalStateException("Writer thread of $stateFile stopped with ${pendingNodes.size} nodes not written")
         }
     }
 
-    fun supplyATReader(nodeOffset: Int): FileInputStream {
+    private fun startWriterThread() {
+        if (writerThread != null) return
+        val thread = Thread({ writerLoop() }, "HT_IO writer: ${stateFile.name}")
+        thread.isDaemon = true
+        writerThread = thread
+        thread.start()
+    }
+
+    private fun stopWriterThread(thread: Thread) {
+        thread.interrupt()
+        thread.join()
+        writerThread = null
+    }
+
+    /**
+     * Main loop of the writer thread: take the nodes from the queue in
+     * batches and write them.
+     */
+    private fun writerLoop() {
+        val queue = writeQueue!!
+        val bufferPool = ArrayDeque<ByteBuffer>()
+        val compressedPool = ArrayDeque<ByteBuffer>()
+        val batch = ArrayList<HistoryTreeNode>(MAX_WRITE_BATCH)
+        try {
+            while (true) {
+                batch.add(queue.take())
+                queue.drainTo(batch, MAX_WRITE_BATCH - 1)
+
+                writeBatch(batch, bufferPool, compressedPool)
+
+                synchronized(pendingNodesMonitor) {
+                    batch.forEach { pendingNodes.remove(it.seqNumber) }
+                    pendingNodesMonitor.notifyAll()
+                }
+                batch.clear()
+            }
+        } catch (e: InterruptedException) {
+            /* Asked to stop */
+        } catch (e: ClosedChannelException) {
+            /* The file was closed (or deleted) while building */
+        } catch (e: Throwable) {
+            /* Includes runtime exceptions and errors, the writer must not die silently */
+            writeError = e
+            synchronized(pendingNodesMonitor) {
+                pendingNodesMonitor.notifyAll()
+            }
+        }
+    }
+
+    /**
+     * Serialize the given nodes into buffers taken from the pool, then write
+     * them. Fixed-size blocks are written at their node's position, each run
+     * of consecutive nodes with one gathering write. Compressed blocks are
+     * compressed into buffers of the second pool, then all appended with one
+     * gathering write.
+     */
+    private fun writeBatch(batch: List<HistoryTreeNode>, bufferPool: ArrayDeque<ByteBuffer>, compressedPool: ArrayDeque<ByteBuffer>) {
+        val index = blockIndex
+        if (index != null) {
+            val blocks = batch.map { node ->
+                val buffer = bufferPool.poll() ?: ByteBuffer.allocate(blockSize)
+                val usedSize = node.writeSelf(buffer)
+                bufferPool.add(buffer)
+                compressBlock(buffer.array(), usedSize, compressedPool.poll() ?: ByteBuffer.allocate(compressedBufferSize))
+            }
+            fcOut.position(nextBlockPosition)
+            writeFully(blocks.toTypedArray())
+            batch.forEachIndexed { i, node ->
+                index.put(node.seqNumber, nextBlockPosition, blocks[i].limit())
+                nextBlockPosition += blocks[i].limit()
+            }
+            compressedPool.addAll(blocks)
+            return
+        }
+
+        val nodes = batch.sortedBy { it.seqNumber }
+        val buffers = nodes.map { node ->
+            val buffer = bufferPool.poll() ?: ByteBuffer.allocateDirect(blockSize)
+            node.writeSelf(buffer)
+            buffer
+        }
+
+        var runStart = 0
+        while (runStart < nodes.size) {
+            var runEnd = runStart + 1
+            while (runEnd < nodes.size && nodes[runEnd].seqNumber == nodes[runEnd - 1].seqNumber + 1) {
+                runEnd++
+            }
+            seekFCToNodePos(fcOut, nodes[runStart].seqNumber)
+            writeFully(buffers.subList(runStart, runEnd).toTypedArray())
+            runStart = runEnd
+        }
+        bufferPool.addAll(buffers)
+    }
+
+    /** Write all the given buffers at the current position of fcOut */
+    private fun writeFully(buffers: Array<ByteBuffer>) {
+        val expected = buffers.fold(0L) { sum, buffer -> sum + buffer.remaining() }
+        var written = 0L
+        while (written < expected) {
+            written += fcOut.write(buffers)
+        }
+    }
+
+    /** Compress the used part of a block into 'output', which is returned ready to be written */
+    private fun compressBlock(block: ByteArray, usedSize: Int, output: ByteBuffer): ByteBuffer {
+        val deflater = deflater ?: Deflater(Deflater.BEST_SPEED).also { deflater = it }
+        deflater.reset()
+        deflater.setInput(block, 0, usedSize)
+        deflater.finish()
+        val compressedSize = deflater.deflate(output.array(), 0, output.capacity())
+        if (!deflater.finished()) throw IOException("Could not compress block")
+        output.clear()
+        output.limit(compressedSize)
+        return output
+    }
+
+    /**
+     * Read and decompress a block. The unused end of the block, which was
+     * not stored, is filled with zeroes.
+     */
+    private fun readCompressedBlock(index: CompressedBlockIndex, seqNumber: Int): ByteBuffer {
+        val position = index.position(seqNumber)
+        val compressed = ByteBuffer.allocate(index.size(seqNumber))
+        while (compressed.hasRemaining()) {
+            /* Positional reads do not touch the channel's position, no lock needed */
+            if (fcIn.read(compressed, position + compressed.position()) < 0) throw IOException("Truncated history file")
+        }
+
+        val block = ByteArray(blockSize)
+        val inflater = Inflater()
+        try {
+            inflater.setInput(compressed.array())
+            inflater.inflate(block)
+            if (!inflater.finished()) throw IOException("Invalid compressed block for node $seqNumber")
+        } catch (e: DataFormatException) {
+            throw IOException(e)
+        } finally {
+            inflater.end()
+        }
+        return ByteBuffer.wrap(block)
+    }
+
+    /**
+     * Write the block index at the end of the compressed blocks. Should be
+     * called once all nodes are written (after [flush]).
+     *
+     * @return The position in the file of the block index
+     */
+    fun writeBlockIndex(nodeCount: Int): Long {
+        val index = blockIndex ?: throw IllegalStateException("Blocks are not compressed")
+        val buffer = index.serialize(nodeCount)
+        val indexPosition = nextBlockPosition
+        fcOut.position(indexPosition)
+        writeFully(arrayOf(buffer))
+        return indexPosition
+    }
+
+    /**
+     * Read the block index of an existing file with compressed blocks.
+     */
+    fun readBlockIndex(indexPosition: Long, nodeCount: Int) {
+        val index = blockIndex ?: throw IllegalStateException("Blocks are not compressed")
+        val buffer = ByteBuffer.allocate(nodeCount * CompressedBlockIndex.ENTRY_SIZE)
+        while (buffer.hasRemaining()) {
+            if (fcIn.read(buffer, indexPosition + buffer.position()) < 0) throw IOException("Truncated block index")
+        }
+        buffer.flip()
+        index.deserialize(buffer, nodeCount)
+    }
+
+    /**
+     * Prepare an existing file for new nodes, from the given position on.
+     * Whatever was stored there (the block index if blocks are compressed, and
+     * the attribute tree) is discarded, it is written again when the tree is
+     * closed. The block index must be read first, if there is one.
+     */
+    fun startAppending(position: Long) {
+        fcOut.truncate(position)
+        nextBlockPosition = position
+    }
+
+    /**
+     * Switch to the read-only mode, used once all the nodes of the file are
+     * written: the node section of the file gets mapped in large segments
+     * once, and node reads become simple slices of those mappings, which
+     * can be done concurrently without any locking.
+     *
+     * @param nodeCount
+     *            The number of nodes in the file
+     */
+    fun enableMappedReads(nodeCount: Int) {
+        val index = blockIndex
+        if (index != null) {
+            /* Compressed blocks are read with positional reads, which need no lock either */
+            index.freeze()
+            return
+        }
+        val nbSegments = (nodeCount + nodesPerSegment - 1) / nodesPerSegment
+        mappedSegments = Array(nbSegments) {
+            val firstNode = it.toLong() * nodesPerSegment
+            val nbNodes = minOf(nodesPerSegment.toLong(), nodeCount - firstNode)
+            fcIn.map(FileChannel.MapMode.READ_ONLY, nodePosition(firstNode.toInt()), nbNodes * blockSize)
+        }
+    }
+
+    private fun sliceNode(segments: Array<ByteBuffer>, seqNumber: Int): ByteBuffer {
+        val offset = (seqNumber % nodesPerSegment) * blockSize
+        val buffer = segments[seqNumber / nodesPerSegment].duplicate()
+        buffer.position(offset)
+        buffer.limit(offset + blockSize)
+        return buffer.slice()
+    }
+
+    /**
+     * Keep the given nodes in memory, for as long as this file is opened or
+     * until they are replaced by a new call to this method.
+     */
+    fun pinNodes(nodes: Collection<HistoryTreeNode>) {
+        pinnedNodes.clear()
+        nodes.forEach { pinnedNodes[it.seqNumber] = it }
+    }
+
+    /**
+     * Start populating the cache in a background thread, going down the tree
+     * level by level from the root node, until the cache size is reached.
+     * Upper levels are the ones visited by every single query, so they are the
+     * most useful ones to have in memory when the file is opened.
+     *
+     * @param rootSeqNumber
+     *            The sequence number of the root node of the tree
+     */
+    fun startCacheWarmUp(rootSeqNumber: Int) {
+        val thread = Thread({
+            val queue = ArrayDeque<Int>()
+            queue.add(rootSeqNumber)
+            var budget = nodeCacheSize
+            try {
+                while (queue.isNotEmpty() && budget >= blockSize && !Thread.currentThread().isInterrupted) {
+                    val node = readNode(queue.poll())
+                    budget -= blockSize
+                    if (node is CoreNode) {
+                        (0 until node.nbChildren).forEach { queue.add(node.getChild(it)) }
+                    }
+                }
+            } catch (e: ClosedChannelException) {
+                /* The file was closed while we were reading it, nothing more to do. */
+            } catch (e: IllegalStateException) {
+                LOGGER.log(Level.WARNING, "Error warming up the node cache of $stateFile", e)
+            }
+        }, "HT_IO cache warm-up: ${stateFile.name}")
+        thread.isDaemon = true
+        warmUpThread = thread
+        thread.start()
+    }
+
+    fun supplyATReader(position: Long): FileInputStream {
         try {
             /*
              * Position ourselves at the start of the Mapping section in the
-             * file (which is right after the Blocks)
+             * file (which is right after the Blocks, or the block index)
              */
-            seekFCToNodePos(fcIn, nodeOffset)
+            fcIn.position(position)
         } catch (e: IOException) {
             LOGGER.log(Level.SEVERE, e.message, e)
         }
         return fis
     }
 
-    @Synchronized
     fun closeFile() {
+        isClosed = true
+
+        /* Stop the writer thread, if the build was interrupted */
+        writerThread?.let { stopWriterThread(it) }
+        pendingNodes.clear()
+
+        /* Stop the warm-up thread, if any, before taking the lock it may need */
+        warmUpThread?.let {
+            it.interrupt()
+            it.join()
+        }
+        warmUpThread = null
+
+        synchronized(this) {
+            closeChannels()
+            /* Read-only opens never write a block, so never create a compressor */
+            deflater?.end()
+            deflater = null
+        }
+        pinnedNodes.clear()
+        nodeCache.invalidateAll()
+        mappedSegments = null
+    }
+
+    private fun closeChannels() {
         try {
             fis.close()
             fos.close()
@@ -178,7 +620,6 @@ internal class HT_IO(private val stateFile: File,
         }
     }
 
-    @Synchronized
     fun deleteFile() {
         closeFile()
 
@@ -200,11 +641,79 @@ internal class HT_IO(private val stateFile: File,
      *             If some other I/O error occurs
      */
     private fun seekFCToNodePos(fc: FileChannel, seqNumber: Int) {
+        fc.position(nodePosition(seqNumber))
+    }
+
+    /**
+     * Absolute position in the file of the node that has seqNumber
+     */
+    private fun nodePosition(seqNumber: Int): Long {
         /*
          * Cast to (long) is needed to make sure the result is a long too and
          * doesn't get truncated
          */
-        fc.position(HistoryTree.TREE_HEADER_SIZE
-                + seqNumber.toLong() * blockSize)
+        return HistoryTree.TREE_HEADER_SIZE + seqNumber.toLong() * blockSize
+    }
+}
+/**
+ * Location and size of each compressed block in the file, indexed by node
+ * sequence number. It is stored on disk right after the last block:
+ *
+ * <pre>
+ *  8 - long (position of the block in the file)
+ *  4 - int (size of the compressed block)
+ * </pre>
+ *
+ * It is only modified by the thread writing the nodes while the tree is
+ * being built. Once frozen, it can be read without locking.
+ */
+private class CompressedBlockIndex {
+
+    companion object {
+        const val ENTRY_SIZE = java.lang.Long.BYTES + Integer.BYTES
+    }
+
+    private var positions = LongArray(64)
+    private var sizes = IntArray(64)
+
+    @Volatile
+    private var isFrozen = false
+
+    fun freeze() {
+        synchronized(this) { isFrozen = true }
+    }
+
+    fun put(seqNumber: Int, position: Long, size: Int) = synchronized(this) {
+        if (seqNumber >= positions.size) {
+            val newSize = maxOf(positions.size * 2, seqNumber + 1)
+            positions = positions.copyOf(newSize)
+            sizes = sizes.copyOf(newSize)
+        }
+        positions[seqNumber] = position
+        sizes[seqNumber] = size
+    }
+
+    fun position(seqNumber: Int): Long = if (isFrozen) positions[seqNumber] else synchronized(this) { positions[seqNumber] }
+
+    fun size(seqNumber: Int): Int = if (isFrozen) sizes[seqNumber] else synchronized(this) { sizes[seqNumber] }
+
+    fun serialize(nodeCount: Int): ByteBuffer = synchronized(this) {
+        val buffer = ByteBuffer.allocate(nodeCount * ENTRY_SIZE).order(ByteOrder.LITTLE_ENDIAN)
+        (0 until nodeCount).forEach {
+            buffer.putLong(positions[it])
+            buffer.putInt(sizes[it])
+        }
+        buffer.flip()
+        return buffer
+    }
+
+    fun deserialize(buffer: ByteBuffer, nodeCount: Int) = synchronized(this) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        positions = LongArray(nodeCount)
+        sizes = IntArray(nodeCount)
+        (0 until nodeCount).forEach {
+            positions[it] = buffer.getLong()
+            sizes[it] = buffer.getInt()
+        }
     }
-}
\ No newline at end of file
+}
@@ -14,22 +14,28 @@ package ca.polymtl.dorsal.libdelorean.backend.historytree
 import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend
 import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException
 import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+import com.google.common.cache.CacheStats
 import java.io.File
 import java.io.FileInputStream
 import java.io.IOException
 import java.nio.channels.ClosedChannelException
+import java.util.*
 
 
 /**
  * History Tree backend for storing a state history. This is the basic version
  * that runs in the same thread as the class creating it.
  *
+ * Once the history is finished building, the file is mapped read-only and
+ * queries can be run concurrently from several threads without locking.
+ *
  * @author Alexandre Montplaisir
  */
 class HistoryTreeBackend private constructor(override val SSID: String,
-                                             private val sht: HistoryTree,
+                                             sht: HistoryTree,
                                              @Volatile private var isFinishedBuilding: Boolean): IStateHistoryBackend {
 
     /**
@@ -52,13 +58,154 @@ class HistoryTreeBackend private constructor(override val SSID: String,
      *            multiple of 4096.
      * @param maxChildren
      *            The maximum number of children each core node can have
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read back from the
+     *            history file
+     * @param writeQueueSize
+     *            The number of closed nodes that can wait to be written by a
+     *            background thread. The thread inserting intervals only
+     *            blocks on disk I/O when this queue is full. Use 0 to write
+     *            the nodes synchronously instead.
      */
     constructor(ssid: String,
                 newStateFile: File,
                 providerVersion: Int,
                 startTime: Long,
                 blockSize: Int,
-                maxChildren: Int) : this(ssid, HistoryTree(newStateFile, blockSize, maxChildren, providerVersion, startTime), false)
+                maxChildren: Int,
+                nodeCacheSize: Long,
+                writeQueueSize: Int) : this(ssid, newStateFile, providerVersion, startTime, blockSize, maxChildren, nodeCacheSize, writeQueueSize, false)
+
+    /**
+     * Constructor for new history files, specifying all the configuration
+     * parameters.
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param newStateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param blockSize
+     *            The size of the blocks in the history file. This should be a
+     *            multiple of 4096.
+     * @param maxChildren
+     *            The maximum number of children each core node can have
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read back from the
+     *            history file
+     * @param writeQueueSize
+     *            The number of closed nodes that can wait to be written by a
+     *            background thread. Use 0 to write the nodes synchronously.
+     * @param compressBlocks
+     *            Store the nodes as compressed, variable-length blocks instead
+     *            of zero-padded fixed-size blocks. This makes the file much
+     *            smaller, at the cost of decompressing nodes when they are read.
+     *            In all cases, each node stores a filter and a directory of its
+     *            quarks, so that queries only decode the nodes and intervals
+     *            they are looking for, and a dictionary of its string values.
+     *            Intervals use the compact, variable-length encoding.
+     */
+    constructor(ssid: String,
+                newStateFile: File,
+                providerVersion: Int,
+                startTime: Long,
+                blockSize: Int,
+                maxChildren: Int,
+                nodeCacheSize: Long,
+                writeQueueSize: Int,
+                compressBlocks: Boolean) : this(ssid, newStateFile, providerVersion, startTime, blockSize, maxChildren,
+            nodeCacheSize, writeQueueSize, compressBlocks, false)
+
+    /**
+     * Constructor for new history files, specifying all the configuration
+     * parameters, including the optional per-node aggregates.
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param newStateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param blockSize
+     *            The size of the blocks in the history file. This should be a
+     *            multiple of 4096.
+     * @param maxChildren
+     *            The maximum number of children each core node can have
+     * @param nodeCacheSize
+     *            The size, in bytes, of the cache of nodes read back from the
+     *            history file
+     * @param writeQueueSize
+     *            The number of closed nodes that can wait to be written by a
+     *            background thread. Use 0 to write the nodes synchronously.
+     * @param compressBlocks
+     *            Store the nodes as compressed, variable-length blocks, see
+     *            the other constructor
+     * @param keepAggregates
+     *            Keep, in each core node, aggregates of the numeric values of
+     *            its subtree, so that range aggregate queries can skip the
+     *            subtrees completely inside their range. They take 1/8 of
+     *            each core node's block, which holds about blockSize / 320
+     *            quarks (about 200 with 64 KiB blocks). Only the quarks with
+     *            the most intervals are kept, queries on the other ones scan
+     *            the intervals, so this is mostly useful for histories with
+     *            few numeric quarks, like counters.
+     */
+    constructor(ssid: String,
+                newStateFile: File,
+                providerVersion: Int,
+                startTime: Long,
+                blockSize: Int,
+                maxChildren: Int,
+                nodeCacheSize: Long,
+                writeQueueSize: Int,
+                compressBlocks: Boolean,
+                keepAggregates: Boolean) : this(ssid,
+            HistoryTree(newStateFile, blockSize, maxChildren, providerVersion, startTime, nodeCacheSize, writeQueueSize,
+                    HistoryTree.FEATURE_NODE_INDEX or HistoryTree.FEATURE_QUARK_FILTER or HistoryTree.FEATURE_STRING_DICTIONARY or
+                            HistoryTree.FEATURE_COMPACT_INTERVALS or
+                            (if (compressBlocks) HistoryTree.FEATURE_COMPRESSED_BLOCKS else 0) or
+                            (if (keepAggregates) HistoryTree.FEATURE_AGGREGATES else 0)),
+            false)
+
+    /**
+     * Constructor for new history files. Use this when creating a new history
+     * from scratch.
+     *
+     * @param ssid
+     *            The state system's ID
+     * @param newStateFile
+     *            The filename/location where to store the state history (Should
+     *            end in .ht)
+     * @param providerVersion
+     *            Version of of the state provider. We will only try to reopen
+     *            existing files if this version matches the one in the
+     *            framework.
+     * @param startTime
+     *            The earliest time stamp that will be stored in the history
+     * @param blockSize
+     *            The size of the blocks in the history file. This should be a
+     *            multiple of 4096.
+     * @param maxChildren
+     *            The maximum number of children each core node can have
+     */
+    constructor(ssid: String,
+                newStateFile: File,
+                providerVersion: Int,
+                startTime: Long,
+                blockSize: Int,
+                maxChildren: Int) : this(ssid, newStateFile, providerVersion, startTime, blockSize, maxChildren,
+            HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE)
 
     /**
      * Constructor for new history files. Use this when creating a new history
@@ -100,11 +247,50 @@ class HistoryTreeBackend private constructor(override val SSID: String,
                 existingStateFile: File,
                 providerVersion: Int) : this(ssid, HistoryTree(existingStateFile, providerVersion), true)
 
+    companion object {
+        /** Default size, in bytes, of the node cache */
+        const val DEFAULT_NODE_CACHE_SIZE = HistoryTree.DEFAULT_NODE_CACHE_SIZE
+
+        /** Default number of closed nodes that can wait to be written to disk */
+        const val DEFAULT_WRITE_QUEUE_SIZE = HistoryTree.DEFAULT_WRITE_QUEUE_SIZE
+
+        /**
+         * Open an existing state-file, specifying the size of the node cache.
+         *
+         * @param ssid
+         *            The state system's id
+         * @param existingStateFile
+         *            Filename/location of the history we want to load
+         * @param providerVersion
+         *            Expected version of of the state provider plugin.
+         * @param nodeCacheSize
+         *            The size, in bytes, of the cache of nodes read back from
+         *            the history file
+         * @throws IOException
+         *             If we can't read the file, if it doesn't exist, is not
+         *             recognized, or if the version of the file does not match
+         *             the expected providerVersion.
+         */
+        @JvmStatic
+        fun openExistingFile(ssid: String,
+                             existingStateFile: File,
+                             providerVersion: Int,
+                             nodeCacheSize: Long): HistoryTreeBackend =
+                HistoryTreeBackend(ssid, HistoryTree(existingStateFile, providerVersion, nodeCacheSize), true)
+    }
+
+    /* Only replaced when resuming the build of a finished history */
+    @Volatile
+    private var sht = sht
+
     override val startTime get() = sht.treeStart
     override val endTime get() = sht.treeEnd
 
     val fileSize get() = sht.fileSize
 
+    /** Hit, miss and eviction statistics of the node cache of this history */
+    val nodeCacheStats: CacheStats get() = sht.nodeCacheStats
+
     override fun insertPastState(stateStartTime: Long,
                                  stateEndTime: Long,
                                  quark: Int,
@@ -119,6 +305,17 @@ class HistoryTreeBackend private constructor(override val SSID: String,
         isFinishedBuilding = true
     }
 
+    /**
+     * The history file is re-opened for appending. It is not valid anymore
+     * until the build is finished again.
+     */
+    override fun resumeBuilding(): List<StateInterval> {
+        if (!isFinishedBuilding) throw IllegalStateException("$SSID History is still being built")
+        sht = sht.resume()
+        isFinishedBuilding = false
+        return sht.resumedIntervals
+    }
+
     override fun supplyAttributeTreeReader(): FileInputStream = sht.supplyATReader()
     override fun supplyAttributeTreeWriterFile(): File = sht.supplyATWriterFile()
     override fun supplyAttributeTreeWriterFilePosition(): Long = sht.supplyATWriterFilePos()
@@ -156,7 +353,7 @@ class HistoryTreeBackend private constructor(override val SSID: String,
         }
     }
 
-    override fun doSingularQuery(t: Long, attributeQuark: Int): HTInterval {
+    override fun doSingularQuery(t: Long, attributeQuark: Int): HTInterval? {
         checkValidTime(t)
 
         var currentNode = sht.rootNode
@@ -170,7 +367,7 @@ class HistoryTreeBackend private constructor(override val SSID: String,
         } catch (e: ClosedChannelException) {
             throw StateSystemDisposedException(e)
         }
-        return requireNotNull(interval)
+        return interval
     }
 
 
@@ -180,29 +377,135 @@ class HistoryTreeBackend private constructor(override val SSID: String,
 
         /* We start by reading the information in the root node. */
         var currentNode = sht.rootNode
-        synchronized(currentNode) {
-            currentNode.intervalIterator(t, quarks)
-                    .forEach {
-                        results.put(it.attribute, it)
-                        remaining--
-                    }
-        }
+        currentNode.intervalIterator(t, quarks)
+                .forEach {
+                    results.put(it.attribute, it)
+                    remaining--
+                }
 
         /* Then we follow the branch down in the relevant children. */
         try {
             while (remaining > 0 && currentNode is CoreNode) {
                 currentNode = sht.selectNextChild(currentNode, t)
-                synchronized(currentNode) {
-                    currentNode.intervalIterator(t, quarks)
-                            .forEach {
-                                results.put(it.attribute, it)
-                                remaining--
-                            }
+                currentNode.intervalIterator(t, quarks)
+                        .forEach {
+                            results.put(it.attribute, it)
+                            remaining--
+                        }
+            }
+        } catch (e: ClosedChannelException) {
+            throw StateSystemDisposedException(e)
+        }
+    }
+
+    override fun doRangeQuery(quarks: Set<Int>, t1: Long, t2: Long): Iterator<StateInterval> {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, endTime)
+        if (rangeStart > rangeEnd || quarks.isEmpty()) return Collections.emptyIterator()
+        return RangeQueryIterator(rangeStart, rangeEnd, quarks)
+    }
+
+    /**
+     * Iterator visiting, depth-first, each node that intersects the range
+     * once.
+     *
+     * The nodes are visited in order of their start times, and intervals
+     * never start before their node. So once a node is reached, all the
+     * intervals found so far that start before it can be returned, which
+     * keeps the intervals in order of start times.
+     */
+    private inner class RangeQueryIterator(private val rangeStart: Long,
+                                           private val rangeEnd: Long,
+                                           private val quarks: Set<Int>) : AbstractIterator<StateInterval>() {
+
+        /* Sequence numbers of the nodes left to visit, the next one on top */
+        private val nodesToVisit: Deque<Int> = ArrayDeque()
+        private val pending: Queue<HTInterval> = PriorityQueue(compareBy<HTInterval> { it.start })
+
+        init {
+            nodesToVisit.push(sht.rootNode.seqNumber)
+        }
+
+        override fun computeNext() {
+            try {
+                while (nodesToVisit.isNotEmpty()) {
+                    val next = pending.peek()
+                    val node = sht.readNode(nodesToVisit.peek())
+                    if (next != null && next.start <= node.nodeStart) {
+                        return setNext(pending.poll())
+                    }
+                    nodesToVisit.pop()
+                    visit(node)
+                }
+            } catch (e: ClosedChannelException) {
+                throw StateSystemDisposedException(e)
+            }
+
+            val next = pending.poll() ?: return done()
+            return setNext(next)
+        }
+
+        private fun visit(node: HistoryTreeNode) {
+            node.intervalIterator(rangeStart, rangeEnd, quarks).forEach { pending.add(it) }
+
+            if (node is CoreNode) {
+                /* Push the intersecting children, so that the first one is on top */
+                val nbChildren = node.nbChildren
+                for (i in nbChildren - 1 downTo 0) {
+                    val childStart = node.getChildStart(i)
+                    val childEnd = if (i == nbChildren - 1) Long.MAX_VALUE else node.getChildStart(i + 1) - 1
+                    if (childStart <= rangeEnd && childEnd >= rangeStart) {
+                        nodesToVisit.push(node.getChild(i))
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * The subtrees that are completely inside the range are not visited when
+     * their root node has the aggregate of the quark, only the nodes on the
+     * edges of the range are.
+     */
+    override fun doRangeAggregateQuery(quark: Int, t1: Long, t2: Long): RangeAggregate {
+        val rangeStart = maxOf(t1, startTime)
+        val rangeEnd = minOf(t2, endTime)
+        if (rangeStart > rangeEnd) return RangeAggregate.EMPTY
+
+        val quarks = setOf(quark)
+        var result = RangeAggregate.EMPTY
+        val nodesToVisit: Deque<Int> = ArrayDeque()
+        nodesToVisit.push(sht.rootNode.seqNumber)
+        try {
+            while (nodesToVisit.isNotEmpty()) {
+                val node = sht.readNode(nodesToVisit.pop())
+                val nodeEnd = node.nodeEnd
+                if (nodeEnd != null && rangeStart <= node.nodeStart && nodeEnd <= rangeEnd) {
+                    val subtreeAggregate = node.getSubtreeAggregate(quark)
+                    if (subtreeAggregate != null) {
+                        result += subtreeAggregate
+                        continue
+                    }
+                }
+
+                node.intervalIterator(rangeStart, rangeEnd, quarks).forEach {
+                    result += RangeAggregate.of(it, rangeStart, rangeEnd)
+                }
+                if (node is CoreNode) {
+                    val nbChildren = node.nbChildren
+                    for (i in 0 until nbChildren) {
+                        val childStart = node.getChildStart(i)
+                        val childEnd = if (i == nbChildren - 1) Long.MAX_VALUE else node.getChildStart(i + 1) - 1
+                        if (childStart <= rangeEnd && childEnd >= rangeStart) {
+                            nodesToVisit.push(node.getChild(i))
+                        }
+                    }
                 }
             }
         } catch (e: ClosedChannelException) {
             throw StateSystemDisposedException(e)
         }
+        return result
     }
 
     private fun checkValidTime(t: Long) {
@@ -9,8 +9,10 @@
 
 package ca.polymtl.dorsal.libdelorean.backend.historytree
 
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval
-import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+import ca.polymtl.dorsal.libdelorean.interval.numericValue
+import ca.polymtl.dorsal.libdelorean.statevalue.*
 import java.io.IOException
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
@@ -27,16 +29,201 @@ import java.nio.channels.FileChannel
  */
 private const val COMMON_HEADER_SIZE = 34
 
+/**
+ * Nodes using the [HistoryTree.FEATURE_NODE_INDEX] layout store their
+ * intervals sorted by quark, then by start time, preceded by a sparse
+ * directory: an int (number of entries), then one entry for every
+ * DIRECTORY_STRIDE intervals:
+ *
+ * <pre>
+ *  4 - int (quark of the interval)
+ *  4 - int (offset of the interval in the interval section)
+ * </pre>
+ *
+ * Keeping the directory sparse makes its size independent of the number of
+ * distinct quarks in the node, so it does not change the shape of the tree.
+ */
+private const val DIRECTORY_STRIDE = 16
+private const val DIRECTORY_ENTRY_SIZE = 2 * Integer.BYTES
+
+private fun directorySize(intervalCount: Int) = (intervalCount + DIRECTORY_STRIDE - 1) / DIRECTORY_STRIDE
+
+/**
+ * Nodes using the [HistoryTree.FEATURE_QUARK_FILTER] layout store, after
+ * their specific header and aggregates, a Bloom filter of the quarks of their
+ * intervals. It takes 1/QUARK_FILTER_RATIO of the block.
+ */
+private const val QUARK_FILTER_RATIO = 64
+private const val QUARK_FILTER_HASHES = 3
+
+private fun quarkFilterSize(blockSize: Int) = maxOf(1, blockSize / QUARK_FILTER_RATIO / java.lang.Long.BYTES) * java.lang.Long.BYTES
+
+/** Call 'action' with the index of each bit of the quark filter used by 'quark' */
+private inline fun forEachFilterBit(quark: Int, nbBits: Int, action: (Int) -> Unit) {
+    /* Quarks are small sequential integers, spread them first */
+    var h = quark.toLong() * -0x61c8864680b583ebL
+    h = h xor (h ushr 29)
+    val h1 = h.toInt()
+    val h2 = (h ushr 32).toInt() or 1
+    for (i in 0 until QUARK_FILTER_HASHES) {
+        action(((h1 + i * h2) and Int.MAX_VALUE) % nbBits)
+    }
+}
+
+/**
+ * Core nodes using the [HistoryTree.FEATURE_AGGREGATES] layout store, right
+ * after their specific header, the aggregates of the numeric values of each
+ * quark in their subtree (the node itself and all its descendants). The
+ * section takes 1/AGGREGATES_RATIO of the block:
+ *
+ * <pre>
+ *  4 - int (number of entries)
+ *  1 - byte (1 if every quark with numeric values in the subtree has an entry)
+ * </pre>
+ *
+ * followed by the entries, sorted by quark:
+ *
+ * <pre>
+ *  4 - int (quark)
+ *  4 - int (number of intervals)
+ *  8 - double (min value)
+ *  8 - double (max value)
+ *  8 - double (sum of the values, weighted by their duration)
+ *  8 - long (total duration of the values)
+ * </pre>
+ *
+ * If there are more quarks than entries, the ones with the most intervals
+ * are kept.
+ */
+private const val AGGREGATES_RATIO = 8
+private const val AGGREGATES_HEADER_SIZE = Integer.BYTES + java.lang.Byte.BYTES
+private const val AGGREGATE_ENTRY_SIZE = 2 * Integer.BYTES + 3 * java.lang.Double.BYTES + java.lang.Long.BYTES
+
+/**
+ * Aggregate of the numeric values of a quark, in a node that is still in
+ * memory.
+ */
+private class AggregateEntry {
+    var min = Double.POSITIVE_INFINITY
+    var max = Double.NEGATIVE_INFINITY
+    var sum = 0.0
+    var duration = 0L
+    var count = 0
+
+    /* Number of the node's incomplete children that had this quark */
+    var nbIncompleteChildren = 0
+
+    fun add(aggregate: RangeAggregate) {
+        min = minOf(min, aggregate.min)
+        max = maxOf(max, aggregate.max)
+        sum += aggregate.sum
+        duration += aggregate.duration
+        count += aggregate.count
+    }
+
+    fun add(value: Double, valueDuration: Long) {
+        min = minOf(min, value)
+        max = maxOf(max, value)
+        sum += value * valueDuration
+        duration += valueDuration
+        count++
+    }
+
+    fun toAggregate() = RangeAggregate(min, max, sum, duration, count)
+}
+
+/**
+ * Nodes using the [HistoryTree.FEATURE_STRING_DICTIONARY] layout store each
+ * distinct string value only once, in a dictionary placed before the quark
+ * directory: an int (number of strings), then for each string:
+ *
+ * <pre>
+ *  2 - short (length of the string, in bytes)
+ *  n - bytes (UTF-8 string, not terminated)
+ * </pre>
+ *
+ * String intervals then use the TYPE_STRING_REF type, and their payload is
+ * only the 2-byte (unsigned) index of their string in the dictionary.
+ */
+private const val STRING_ENTRY_HEADER_SIZE = java.lang.Short.BYTES
+private const val STRING_REF_SIZE = java.lang.Short.BYTES
+private const val MAX_DICTIONARY_SIZE = 0xFFFF
+
+/** Size of an interval without its payload: type byte, start, end and quark */
+private const val INTERVAL_HEADER_SIZE = java.lang.Byte.BYTES + 2 * java.lang.Long.BYTES + Integer.BYTES
+
+/**
+ * Nodes using the [HistoryTree.FEATURE_COMPACT_INTERVALS] layout encode the
+ * intervals with variable-length integers (7 bits per byte, little-endian,
+ * high bit set on all bytes but the last):
+ *
+ * <pre>
+ *  1 - byte (value type)
+ *  v - varlong (start time - start time of the node)
+ *  v - varlong (end time - start time)
+ *  v - varint (quark)
+ * </pre>
+ *
+ * followed by the payload, where integer and long values are zigzag-encoded
+ * varlongs and string references are varints. Doubles and inline strings
+ * are written like in the fixed-size layout.
+ */
+private fun varLongSize(value: Long): Int {
+    var size = 1
+    var v = value ushr 7
+    while (v != 0L) {
+        size++
+        v = v ushr 7
+    }
+    return size
+}
+
+private fun ByteBuffer.putVarLong(value: Long) {
+    var v = value
+    while ((v and 0x7FL.inv()) != 0L) {
+        put(((v and 0x7F) or 0x80).toByte())
+        v = v ushr 7
+    }
+    put(v.toByte())
+}
+
+private fun ByteBuffer.getVarLong(): Long {
+    var result = 0L
+    var shift = 0
+    while (true) {
+        val b = get().toInt()
+        result = result or ((b and 0x7F).toLong() shl shift)
+        if ((b and 0x80) == 0) return result
+        shift += 7
+    }
+}
+
+/* Zigzag encoding, so that small negative values also use few bytes */
+private fun zigzag(value: Long) = (value shl 1) xor (value shr 63)
+private fun unzigzag(value: Long) = (value ushr 1) xor -(value and 1)
+
+/** Source for filling the unused part of blocks */
+private val ZEROES = ByteArray(4096)
+
 /**
  * The base class for all the types of nodes that go in the History Tree.
  *
  * @author Alexandre Montplaisir
  */
 sealed class HistoryTreeNode(val blockSize: Int,
+                             /** Bit mask of the file format features (HistoryTree.FEATURE_*) */
+                             val features: Int,
                              val seqNumber: Int,
                              var parentSeqNumber: Int,
                              val nodeStart: Long) {
 
+    private val hasQuarkDirectory = (features and HistoryTree.FEATURE_NODE_INDEX) != 0
+    private val quarkFilterSize = if ((features and HistoryTree.FEATURE_QUARK_FILTER) != 0) quarkFilterSize(blockSize) else 0
+    private val hasStringDictionary = (features and HistoryTree.FEATURE_STRING_DICTIONARY) != 0
+    private val hasCompactIntervals = (features and HistoryTree.FEATURE_COMPACT_INTERVALS) != 0
+    private val hasAggregates = (features and HistoryTree.FEATURE_AGGREGATES) != 0
+    private val aggregatesSize = if (hasAggregates && this is CoreNode) blockSize / AGGREGATES_RATIO else 0
+
     var nodeEnd: Long? = null
         private set
 
@@ -54,18 +241,82 @@ sealed class HistoryTreeNode(val blockSize: Int,
     private var nodePayload: ByteBuffer? = null
     private var intervalCount: Int? = null
 
+    /* Bits of the quark filter, for nodes still in memory */
+    private val quarkFilterBits: LongArray? = if (quarkFilterSize > 0) LongArray(quarkFilterSize / java.lang.Long.BYTES) else null
+
+    /* Quark filter, for nodes read from disk that have one */
+    private var quarkFilter: ByteBuffer? = null
+
+    /* Index in the string dictionary of each string, for nodes still in memory */
+    private val stringIndex: MutableMap<String, Int>? = if (hasStringDictionary) LinkedHashMap() else null
+
+    /* String dictionary, for nodes read from disk that have one */
+    private var stringDictionary: StringDictionary? = null
+
+    /* Quark directory entries, for nodes read from disk that have one */
+    private var quarkDirectory: ByteBuffer? = null
+    private var quarkDirectorySize = 0
+
+    /* Aggregates of the quarks of the subtree, for nodes still in memory */
+    private var aggregates: MutableMap<Int, AggregateEntry>? = if (hasAggregates) HashMap() else null
+
+    /* Number of children added to the aggregates without all their quarks */
+    private var nbIncompleteChildren = 0
+
+    /* Aggregate entries, for core nodes read from disk that have them */
+    private var aggregatesSection: ByteBuffer? = null
+    private var nbAggregateEntries = 0
+    private var aggregatesComplete = false
+
     fun intervalIterator(targetTimestamp: Long,
                          targetQuarks: Set<Int>?): Iterator<HTInterval> {
+        return intervalIterator(targetTimestamp, targetTimestamp, targetQuarks)
+    }
+
+    /**
+     * Iterate over the intervals of this node that intersect the time range
+     * [rangeStart, rangeEnd], for the given quarks (or all quarks if null).
+     * Intervals are not returned in any particular order.
+     */
+    fun intervalIterator(rangeStart: Long,
+                         rangeEnd: Long,
+                         targetQuarks: Set<Int>?): Iterator<HTInterval> {
         val intervals = intervals
         val nodePayload = nodePayload
 
         return if (intervals != null) {
-            intervals.iterator().asSequence()
-                    .filter { targetQuarks?.contains(it.attribute) ?: true}
-                    .filter { it.intersects(targetTimestamp) }
-                    .iterator()
+            /*
+             * In-memory nodes can still receive intervals, take a snapshot of
+             * the matching ones while holding the node's lock.
+             */
+            synchronized(this) {
+                intervals.filter { (targetQuarks?.contains(it.attribute) ?: true) && it.start <= rangeEnd && it.end >= rangeStart }
+            }.iterator()
         } else if (nodePayload != null) {
-            RawIntervalIterator(nodePayload, intervalCount!!, targetTimestamp, targetQuarks)
+            /*
+             * Skip decoding this node if none of the requested quarks can be
+             * in it.
+             */
+            val candidateQuarks = when {
+                targetQuarks == null || quarkFilter == null -> targetQuarks
+                targetQuarks.all { mayContain(it) } -> targetQuarks
+                else -> targetQuarks.filterTo(HashSet()) { mayContain(it) }
+            }
+            if (candidateQuarks != null && candidateQuarks.isEmpty()) return emptyList<HTInterval>().iterator()
+
+            /*
+             * Nodes read from disk are immutable, each reader gets its own view
+             * of the payload so that no locking is required.
+             */
+            val payload = nodePayload.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+            val decoder = IntervalDecoder(payload, nodeStart, hasCompactIntervals, stringDictionary)
+            val directory = quarkDirectory
+            if (directory != null && candidateQuarks != null) {
+                /* Only look at the intervals of the requested quarks */
+                IndexedIntervalIterator(decoder, intervalCount!!, directory, quarkDirectorySize, rangeStart, rangeEnd, candidateQuarks)
+            } else {
+                RawIntervalIterator(decoder, intervalCount!!, rangeStart, rangeEnd, candidateQuarks)
+            }
         } else {
             throw IllegalStateException()
         }
@@ -82,18 +333,44 @@ sealed class HistoryTreeNode(val blockSize: Int,
          * @param maxChildren
          *            The maximum number of children allowed per core (non-leaf)
          *            node.
+         * @param features
+         *            The file format features used by the history file
          * @param fc
-         *            FileChannel to the history file, ALREADY SEEKED at the start
-         *            of the node.
+         *            FileChannel to the history file
+         * @param nodeStartPos
+         *            Absolute position in 'fc' of the start of the node
          * @return The node object
          * @throws IOException
          *             If there was an error reading from the file channel
          */
         @JvmStatic
-        fun readNode(blockSize: Int, maxChildren: Int, fc: FileChannel): HistoryTreeNode {
-            /* Absolute position in 'fc' of the start of this node */
-            val nodeStartPos = fc.position()
-            val buffer = fc.map(FileChannel.MapMode.READ_ONLY, nodeStartPos, blockSize.toLong());
+        fun readNode(blockSize: Int, maxChildren: Int, features: Int, fc: FileChannel, nodeStartPos: Long): HistoryTreeNode {
+            val buffer = fc.map(FileChannel.MapMode.READ_ONLY, nodeStartPos, blockSize.toLong())
+            return readNode(blockSize, maxChildren, features, buffer)
+        }
+
+        /**
+         * Reader factory method. Build a Node object (of the right type) from
+         * a buffer containing the block of the node.
+         *
+         * @param blockSize
+         *            The size of each "block" on disk. One node will always fit in
+         *            one block.
+         * @param maxChildren
+         *            The maximum number of children allowed per core (non-leaf)
+         *            node.
+         * @param features
+         *            The file format features used by the history file
+         * @param buffer
+         *            Buffer whose content, starting at position 0, is the block of
+         *            the node. It will be kept by the node, so it should not be
+         *            modified afterwards.
+         * @return The node object
+         * @throws IOException
+         *             If the buffer does not contain a valid node
+         */
+        @JvmStatic
+        fun readNode(blockSize: Int, maxChildren: Int, features: Int, buffer: ByteBuffer): HistoryTreeNode {
             buffer.order(ByteOrder.LITTLE_ENDIAN)
 
             /* Read the common header part */
@@ -106,12 +383,53 @@ sealed class HistoryTreeNode(val blockSize: Int,
 
             /* Now the rest of the header depends on the node type */
             val newNode = when (typeByte) {
-                CoreNode.CORE_TYPE_BYTE -> CoreNode(blockSize, maxChildren, seqNb, parentSeqNb, start)
-                LeafNode.LEAF_TYPE_BYTE -> LeafNode(blockSize, seqNb, parentSeqNb, start)
+                CoreNode.CORE_TYPE_BYTE -> CoreNode(blockSize, features, maxChildren, seqNb, parentSeqNb, start)
+                LeafNode.LEAF_TYPE_BYTE -> LeafNode(blockSize, features, seqNb, parentSeqNb, start)
                 else -> throw IOException()
             }
             newNode.readSpecificHeader(buffer)
 
+            if (newNode.aggregatesSize > 0) {
+                val sectionStart = buffer.position()
+                val nbEntries = buffer.getInt()
+                newNode.aggregatesComplete = (buffer.get() != 0.toByte())
+                val section = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+                section.limit(nbEntries * AGGREGATE_ENTRY_SIZE)
+                newNode.aggregatesSection = section
+                newNode.nbAggregateEntries = nbEntries
+                buffer.position(sectionStart + newNode.aggregatesSize)
+            }
+
+            if (newNode.quarkFilterSize > 0) {
+                val filter = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+                filter.limit(newNode.quarkFilterSize)
+                newNode.quarkFilter = filter
+                buffer.position(buffer.position() + newNode.quarkFilterSize)
+            }
+
+            if (newNode.hasStringDictionary) {
+                val nbStrings = buffer.getInt()
+                val strings = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+                val offsets = IntArray(nbStrings)
+                var offset = 0
+                for (i in 0 until nbStrings) {
+                    offsets[i] = offset
+                    offset += STRING_ENTRY_HEADER_SIZE + strings.getShort(offset)
+                }
+                strings.limit(offset)
+                newNode.stringDictionary = StringDictionary(strings, offsets)
+                buffer.position(buffer.position() + offset)
+            }
+
+            if (newNode.hasQuarkDirectory) {
+                val nbEntries = buffer.getInt()
+                val directory = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
+                directory.limit(nbEntries * DIRECTORY_ENTRY_SIZE)
+                newNode.quarkDirectory = directory
+                newNode.quarkDirectorySize = nbEntries
+                buffer.position(buffer.position() + nbEntries * DIRECTORY_ENTRY_SIZE)
+            }
+
             /*
              * At this point, we should be done reading the header and 'buffer'
              * should only have the intervals left.
@@ -123,6 +441,7 @@ sealed class HistoryTreeNode(val blockSize: Int,
             newNode.nodePayload = buffer.slice().order(ByteOrder.LITTLE_ENDIAN)
             newNode.intervalCount = intervalCount
             newNode.intervals = null
+            newNode.aggregates = null
 
             /* Assign the node's other information we have read previously */
             newNode.nodeEnd = end
@@ -133,14 +452,21 @@ sealed class HistoryTreeNode(val blockSize: Int,
     }
 
     /**
-     * Write this node to the given file channel.
+     * Serialize this node into the given buffer, which must be exactly one
+     * block long. The buffer is cleared first, and is flipped and ready to be
+     * written to the file once this returns.
+     *
+     * @return The number of bytes actually used by the node, the rest of the
+     *         block being zeroes.
      */
     @Synchronized
-    fun writeSelf(fc: FileChannel) {
+    fun writeSelf(buffer: ByteBuffer): Int {
         /* We shouldn't writeSelf() a node that was read from disk */
         val intervals = intervals ?: throw IllegalStateException()
 
-        val buffer = ByteBuffer.allocate(blockSize)
+        if (buffer.capacity() != blockSize) {
+            throw IllegalArgumentException("Wrong size of block buffer: Actual: ${buffer.capacity()}, Expected: $blockSize")
+        }
         buffer.order(ByteOrder.LITTLE_ENDIAN)
         buffer.clear()
 
@@ -155,22 +481,178 @@ sealed class HistoryTreeNode(val blockSize: Int,
         /* Now call the inner method to write the specific header part */
         writeSpecificHeader(buffer)
 
-        /* Back to us, we write the intervals */
-        intervals.forEach { it.writeInterval(buffer) }
+        if (aggregatesSize > 0) {
+            writeAggregates(buffer)
+        }
 
-        /* Fill the rest of the block with zeroes. */
-        while (buffer.position() < blockSize) {
-            buffer.put(0.toByte())
+        quarkFilterBits?.forEach { buffer.putLong(it) }
+
+        stringIndex?.let { index ->
+            buffer.putInt(index.size)
+            index.keys.forEach {
+                val bytes = it.toByteArray()
+                buffer.putShort(bytes.size.toShort())
+                buffer.put(bytes)
+            }
         }
 
-        /* Finally, write everything in the Buffer to disk */
-        buffer.flip()
-        val res = fc.write(buffer)
-        if (res != blockSize) {
-            throw IllegalStateException("Wrong size of block written: Actual: $res, Expected: $blockSize")
+        /* Back to us, we write the intervals */
+        if (hasQuarkDirectory) {
+            writeIndexedIntervals(buffer, intervals)
+        } else {
+            intervals.forEach { writeIntervalInNode(buffer, it) }
         }
 
+        val usedSize = buffer.position()
+
+        /* Fill the rest of the block with zeroes, the buffer may be reused. */
+        while (buffer.hasRemaining()) {
+            buffer.put(ZEROES, 0, minOf(buffer.remaining(), ZEROES.size))
+        }
+        buffer.flip()
+
         isOnDisk = true
+        return usedSize
+    }
+
+    /**
+     * Write the sparse quark directory, followed by the intervals sorted by
+     * quark.
+     */
+    private fun writeIndexedIntervals(buffer: ByteBuffer, intervals: List<HTInterval>) {
+        val sorted = intervals.sortedWith(compareBy<HTInterval>({ it.attribute }, { it.start }))
+
+        buffer.putInt(directorySize(sorted.size))
+        var offset = 0
+        sorted.forEachIndexed { i, interval ->
+            if (i % DIRECTORY_STRIDE == 0) {
+                buffer.putInt(interval.attribute)
+                buffer.putInt(offset)
+            }
+            offset += encodedSize(interval, stringRef(interval))
+        }
+
+        sorted.forEach { writeIntervalInNode(buffer, it) }
+    }
+
+    /**
+     * Write the aggregates section, padded to its fixed size. The entries of
+     * the quarks that may be missing from incomplete children are left out.
+     */
+    private fun writeAggregates(buffer: ByteBuffer) {
+        val aggregates = aggregates ?: throw IllegalStateException()
+        val capacity = (aggregatesSize - AGGREGATES_HEADER_SIZE) / AGGREGATE_ENTRY_SIZE
+
+        /* Keep the quarks with the most intervals, they are the slowest to aggregate otherwise */
+        val entries = aggregates.entries
+                .filter { it.value.nbIncompleteChildren == nbIncompleteChildren }
+                .sortedWith(compareByDescending<Map.Entry<Int, AggregateEntry>> { it.value.count }.thenBy { it.key })
+                .take(capacity)
+                .sortedBy { it.key }
+
+        val sectionStart = buffer.position()
+        buffer.putInt(entries.size)
+        buffer.put((if (nbIncompleteChildren == 0 && entries.size == aggregates.size) 1 else 0).toByte())
+        entries.forEach { (quark, entry) ->
+            buffer.putInt(quark)
+            buffer.putInt(entry.count)
+            buffer.putDouble(entry.min)
+            buffer.putDouble(entry.max)
+            buffer.putDouble(entry.sum)
+            buffer.putLong(entry.duration)
+        }
+
+        var padding = sectionStart + aggregatesSize - buffer.position()
+        while (padding > 0) {
+            val length = minOf(padding, ZEROES.size)
+            buffer.put(ZEROES, 0, length)
+            padding -= length
+        }
+    }
+
+    /**
+     * Index that the string value of this interval has, or would get, in the
+     * dictionary. Null if the value is not a string, or if it is written
+     * inline.
+     */
+    private fun stringRef(interval: HTInterval): Int? {
+        val index = stringIndex ?: return null
+        val value = interval.stateValue as? StringStateValue ?: return null
+        return index[value.value] ?: if (index.size < MAX_DICTIONARY_SIZE) index.size else null
+    }
+
+    /** Number of bytes used by the interval itself in this node */
+    private fun encodedSize(interval: HTInterval, stringRef: Int?): Int {
+        if (!hasCompactIntervals) {
+            return if (stringRef != null) INTERVAL_HEADER_SIZE + STRING_REF_SIZE else interval.sizeOnDisk
+        }
+        val value = interval.stateValue
+        val payloadSize = when {
+            stringRef != null -> varLongSize(stringRef.toLong())
+            value is IntegerStateValue -> varLongSize(zigzag(value.value.toLong()))
+            value is LongStateValue -> varLongSize(zigzag(value.value))
+            else -> interval.sizeOnDisk - INTERVAL_HEADER_SIZE
+        }
+        return java.lang.Byte.BYTES +
+                varLongSize(interval.start - nodeStart) +
+                varLongSize(interval.end - interval.start) +
+                varLongSize(interval.attribute.toLong()) +
+                payloadSize
+    }
+
+    private fun writeIntervalInNode(buffer: ByteBuffer, interval: HTInterval) {
+        val ref = stringRef(interval)
+        if (!hasCompactIntervals) {
+            if (ref == null) {
+                interval.writeInterval(buffer)
+            } else {
+                buffer.put(TYPE_STRING_REF)
+                buffer.putLong(interval.start)
+                buffer.putLong(interval.end)
+                buffer.putInt(interval.attribute)
+                buffer.putShort(ref.toShort())
+            }
+            return
+        }
+
+        val value = interval.stateValue
+        buffer.put(if (ref != null) TYPE_STRING_REF else getByteFromType(value))
+        buffer.putVarLong(interval.start - nodeStart)
+        buffer.putVarLong(interval.end - interval.start)
+        buffer.putVarLong(interval.attribute.toLong())
+        when {
+            ref != null -> buffer.putVarLong(ref.toLong())
+            value is IntegerStateValue -> buffer.putVarLong(zigzag(value.value.toLong()))
+            value is LongStateValue -> buffer.putVarLong(zigzag(value.value))
+            value is DoubleStateValue -> buffer.putDouble(value.value)
+            value is StringStateValue -> {
+                val bytes = value.value.toByteArray()
+                buffer.putShort(bytes.size.toShort())
+                buffer.put(bytes)
+                buffer.put(0.toByte())
+            }
+        }
+    }
+
+    /**
+     * Number of bytes the given interval would use if it was added to this
+     * node. Depending on the node layout, this can include more than the
+     * interval itself.
+     */
+    @Synchronized
+    fun getSizeInNode(interval: HTInterval): Int {
+        val intervals = intervals ?: throw IllegalStateException()
+        val ref = stringRef(interval)
+        var intervalSize = encodedSize(interval, ref)
+        if (ref != null && ref == stringIndex?.size) {
+            /* The string will be added to the dictionary, without its inline size and terminator */
+            intervalSize += STRING_ENTRY_HEADER_SIZE + (interval.sizeOnDisk - INTERVAL_HEADER_SIZE - 3)
+        }
+        return if (hasQuarkDirectory && intervals.size % DIRECTORY_STRIDE == 0) {
+            intervalSize + DIRECTORY_ENTRY_SIZE
+        } else {
+            intervalSize
+        }
     }
 
     /**
@@ -182,7 +664,8 @@ sealed class HistoryTreeNode(val blockSize: Int,
         val intervals = intervals ?: throw IllegalStateException()
 
         /* Just in case, should be checked before even calling this function */
-        assert (newInterval.sizeOnDisk <= nodeFreeSpace)
+        val sizeInNode = getSizeInNode(newInterval)
+        assert (sizeInNode <= nodeFreeSpace)
 
         /* Find the insert position to keep the list sorted */
         var index = intervals.size
@@ -191,7 +674,24 @@ sealed class HistoryTreeNode(val blockSize: Int,
         }
 
         intervals.add(index, newInterval)
-        sizeOfIntervalSection += newInterval.sizeOnDisk
+        stringIndex?.let { stringIndex ->
+            val value = newInterval.stateValue
+            if (value is StringStateValue && stringIndex.size < MAX_DICTIONARY_SIZE && !stringIndex.containsKey(value.value)) {
+                stringIndex.put(value.value, stringIndex.size)
+            }
+        }
+        quarkFilterBits?.let { bits ->
+            forEachFilterBit(newInterval.attribute, bits.size * java.lang.Long.SIZE) {
+                bits[it ushr 6] = bits[it ushr 6] or (1L shl it)
+            }
+        }
+        aggregates?.let { aggregates ->
+            newInterval.stateValue.numericValue()?.let { value ->
+                aggregates.getOrPut(newInterval.attribute) { AggregateEntry() }
+                        .add(value, newInterval.end - newInterval.start + 1)
+            }
+        }
+        sizeOfIntervalSection += sizeInNode
     }
 
     /**
@@ -224,6 +724,25 @@ sealed class HistoryTreeNode(val blockSize: Int,
         nodeEnd = endTime
     }
 
+    /**
+     * Create an open copy of this node, which was read from disk, so that it
+     * can receive intervals again. Core nodes keep their children. Only the
+     * intervals matching 'keep' are copied over.
+     */
+    fun reopen(keep: (HTInterval) -> Boolean): HistoryTreeNode {
+        val node = when (this) {
+            is CoreNode -> CoreNode(blockSize, features, maxChildren, seqNumber, parentSeqNumber, nodeStart).also { copy ->
+                (0 until nbChildren).forEach { copy.linkChild(getChild(it), getChildStart(it)) }
+            }
+            is LeafNode -> LeafNode(blockSize, features, seqNumber, parentSeqNumber, nodeStart)
+        }
+        intervalIterator(Long.MIN_VALUE, Long.MAX_VALUE, null).asSequence()
+                .filter(keep)
+                .sortedBy { it.end }
+                .forEach { node.addInterval(it) }
+        return node
+    }
+
     /**
      * The method to fill up the stateInfo (passed on from the Current State
      * Tree when it does a query on the SHT). We'll replace the data in that
@@ -235,9 +754,9 @@ sealed class HistoryTreeNode(val blockSize: Int,
      *            The timestamp for which the query is for. Only return
      *            intervals that intersect t.
      */
-    @Synchronized
     fun writeInfoFromNode(stateInfo: MutableList<StateInterval?>, t: Long) {
-        intervalIterator(t, null).forEach { stateInfo[it.attribute] = it }
+        val nbAttributes = stateInfo.size
+        intervalIterator(t, null).forEach { if (it.attribute < nbAttributes) stateInfo[it.attribute] = it }
     }
 
     /**
@@ -251,12 +770,145 @@ sealed class HistoryTreeNode(val blockSize: Int,
      * @return The Interval containing the information we want, or null if it
      *         wasn't found
      */
-    @Synchronized
     fun getRelevantInterval(key: Int, t: Long): HTInterval? {
         return intervalIterator(t, setOf(key)).asSequence().firstOrNull()
     }
 
-    val totalHeaderSize get() = COMMON_HEADER_SIZE + specificHeaderSize
+    /**
+     * Check if this node may contain intervals for the given quark. If this
+     * returns false, it definitely does not. Nodes without a quark filter
+     * always return true.
+     */
+    fun mayContain(quark: Int): Boolean {
+        val filter = quarkFilter
+        val bits = quarkFilterBits
+        if (filter != null) {
+            forEachFilterBit(quark, quarkFilterSize * java.lang.Byte.SIZE) {
+                if ((filter.get(it ushr 3).toInt() and (1 shl (it and 7))) == 0) return false
+            }
+        } else if (bits != null) {
+            synchronized(this) {
+                forEachFilterBit(quark, bits.size * java.lang.Long.SIZE) {
+                    if ((bits[it ushr 6] and (1L shl it)) == 0L) return false
+                }
+            }
+        }
+        return true
+    }
+
+    /**
+     * Aggregate of the numeric values of 'quark' in this node and all its
+     * descendants. Only closed core nodes using the
+     * [HistoryTree.FEATURE_AGGREGATES] layout can have it.
+     *
+     * @return The aggregate, [RangeAggregate.EMPTY] if the subtree has no
+     *         numeric value for this quark, or null if it is not known and the
+     *         intervals of the subtree have to be looked at
+     */
+    fun getSubtreeAggregate(quark: Int): RangeAggregate? {
+        if (aggregatesSize == 0) return null
+
+        val section = aggregatesSection
+        if (section != null) {
+            /* Binary search in the entries, sorted by quark */
+            var low = 0
+            var high = nbAggregateEntries - 1
+            while (low <= high) {
+                val mid = (low + high) ushr 1
+                val entryQuark = section.getInt(mid * AGGREGATE_ENTRY_SIZE)
+                when {
+                    entryQuark < quark -> low = mid + 1
+                    entryQuark > quark -> high = mid - 1
+                    else -> return readAggregate(section, mid)
+                }
+            }
+            return if (aggregatesComplete) RangeAggregate.EMPTY else null
+        }
+
+        synchronized(this) {
+            val aggregates = aggregates
+            if (aggregates == null || nodeEnd == null) return null
+            val entry = aggregates[quark]
+            return when {
+                entry == null -> if (nbIncompleteChildren == 0) RangeAggregate.EMPTY else null
+                entry.nbIncompleteChildren == nbIncompleteChildren -> entry.toAggregate()
+                else -> null
+            }
+        }
+    }
+
+    /**
+     * Add the aggregates of a closed child to the ones of this core node. This
+     * should be done for every child, once it is closed.
+     */
+    @Synchronized
+    fun addChildAggregates(child: HistoryTreeNode) {
+        val aggregates = aggregates ?: throw IllegalStateException()
+        val childEntries = mutableListOf<AggregateEntry>()
+        val childComplete = child.forEachSubtreeAggregate { quark, aggregate ->
+            val entry = aggregates.getOrPut(quark) { AggregateEntry() }
+            entry.add(aggregate)
+            childEntries.add(entry)
+        }
+        if (!childComplete) {
+            /* The quarks the child did not give may be in its subtree */
+            nbIncompleteChildren++
+            childEntries.forEach { it.nbIncompleteChildren++ }
+        }
+    }
+
+    /**
+     * Call 'action' with the aggregate of each quark with numeric values in
+     * this closed node and its subtree.
+     *
+     * @return If all the quarks with numeric values were given
+     */
+    private fun forEachSubtreeAggregate(action: (Int, RangeAggregate) -> Unit): Boolean {
+        val section = aggregatesSection
+        if (section != null) {
+            for (i in 0 until nbAggregateEntries) {
+                action(section.getInt(i * AGGREGATE_ENTRY_SIZE), readAggregate(section, i))
+            }
+            return aggregatesComplete
+        }
+
+        val inMemory = synchronized(this) {
+            aggregates?.let { aggregates ->
+                aggregates.entries
+                        .filter { it.value.nbIncompleteChildren == nbIncompleteChildren }
+                        .map { it.key to it.value.toAggregate() }
+            }
+        }
+        if (inMemory != null) {
+            inMemory.forEach { (quark, aggregate) -> action(quark, aggregate) }
+            return (nbIncompleteChildren == 0)
+        }
+
+        /* A leaf read from disk, its aggregates are not stored */
+        if (this is CoreNode) return false
+        val leafAggregates = HashMap<Int, RangeAggregate>()
+        intervalIterator(Long.MIN_VALUE, Long.MAX_VALUE, null).forEach {
+            val aggregate = RangeAggregate.of(it, Long.MIN_VALUE, Long.MAX_VALUE)
+            if (!aggregate.isEmpty) {
+                leafAggregates[it.attribute] = (leafAggregates[it.attribute] ?: RangeAggregate.EMPTY) + aggregate
+            }
+        }
+        leafAggregates.forEach(action)
+        return true
+    }
+
+    private fun readAggregate(section: ByteBuffer, index: Int): RangeAggregate {
+        val offset = index * AGGREGATE_ENTRY_SIZE
+        return RangeAggregate(section.getDouble(offset + 2 * Integer.BYTES),
+                section.getDouble(offset + 2 * Integer.BYTES + java.lang.Double.BYTES),
+                section.getDouble(offset + 2 * Integer.BYTES + 2 * java.lang.Double.BYTES),
+                section.getLong(offset + 2 * Integer.BYTES + 3 * java.lang.Double.BYTES),
+                section.getInt(offset + Integer.BYTES))
+    }
+
+    val totalHeaderSize get() = COMMON_HEADER_SIZE + specificHeaderSize + aggregatesSize + quarkFilterSize +
+            (if (hasStringDictionary) Integer.BYTES else 0) +
+            (if (hasQuarkDirectory) Integer.BYTES else 0)
     private val dataSectionEndOffset get() = totalHeaderSize + sizeOfIntervalSection
 
     val nodeFreeSpace: Int
@@ -272,16 +924,21 @@ sealed class HistoryTreeNode(val blockSize: Int,
 
 
 internal class CoreNode(blockSize: Int,
+                        features: Int,
                         val maxChildren: Int,
                         seqNumber: Int,
                         parentSeqNumber: Int,
-                        nodeStart: Long) : HistoryTreeNode(blockSize, seqNumber, parentSeqNumber, nodeStart) {
+                        nodeStart: Long) : HistoryTreeNode(blockSize, features, seqNumber, parentSeqNumber, nodeStart) {
 
     companion object {
         const val CORE_TYPE_BYTE: Byte = 1
     }
 
-    /** Nb. of children this node has */
+    /**
+     * Nb. of children this node has. The children tables are written before
+     * this is incremented, so readers that check it first do not need to lock.
+     */
+    @Volatile
     var nbChildren = 0
         private set
 
@@ -294,23 +951,24 @@ internal class CoreNode(blockSize: Int,
     /** Seq number of this node's extension. -1 if none. Unused for now */
     private val extension = -1
 
-    @Synchronized
     fun getChild(index: Int): Int = children[index]
 
-    @Synchronized
-    fun getLatestChild(): Int = children.last()
+    fun getLatestChild(): Int = children[nbChildren - 1]
 
-    @Synchronized
     fun getChildStart(index: Int): Long = childStart[index]
 
-    @Synchronized
-    fun getLatestChildStart(): Long = childStart.last()
+    fun getLatestChildStart(): Long = childStart[nbChildren - 1]
 
     @Synchronized
     fun linkNewChild(childNode: HistoryTreeNode) {
+        linkChild(childNode.seqNumber, childNode.nodeStart)
+    }
+
+    @Synchronized
+    fun linkChild(seqNumber: Int, start: Long) {
         if (nbChildren >= maxChildren) throw IllegalStateException()
-        children[nbChildren] = childNode.seqNumber
-        childStart[nbChildren] = childNode.nodeStart
+        children[nbChildren] = seqNumber
+        childStart[nbChildren] = start
         nbChildren++
     }
 
@@ -354,9 +1012,10 @@ internal class CoreNode(blockSize: Int,
 }
 
 internal class LeafNode(blockSize: Int,
+                       features: Int,
                        seqNumber: Int,
                        parentSeqNumber: Int,
-                       nodeStart: Long) : HistoryTreeNode(blockSize, seqNumber, parentSeqNumber, nodeStart) {
+                       nodeStart: Long) : HistoryTreeNode(blockSize, features, seqNumber, parentSeqNumber, nodeStart) {
 
     companion object {
         const val LEAF_TYPE_BYTE: Byte = 2
@@ -374,24 +1033,14 @@ internal class LeafNode(blockSize: Int,
     }
 }
 
-private class RawIntervalIterator(private val bb: ByteBuffer,
+private class RawIntervalIterator(private val decoder: IntervalDecoder,
                                   expectedIntervalCount: Int,
-                                  private val targetTimestamp: Long,
+                                  private val rangeStart: Long,
+                                  private val rangeEnd: Long,
                                   private val targetQuarks: Set<Int>?): AbstractIterator<HTInterval>() {
 
-    companion object {
-        /* 'Byte' equivalent for state values types */
-        private const val TYPE_NULL: Byte          = -1
-        private const val TYPE_INTEGER: Byte       = 0
-        private const val TYPE_STRING: Byte        = 1
-        private const val TYPE_LONG: Byte          = 2
-        private const val TYPE_DOUBLE: Byte        = 3
-        private const val TYPE_BOOLEAN_TRUE: Byte  = 4
-        private const val TYPE_BOOLEAN_FALSE: Byte = 5
-    }
-
     init {
-        bb.position(0)
+        decoder.bb.position(0)
     }
 
     private var remaining = expectedIntervalCount
@@ -406,42 +1055,169 @@ private class RawIntervalIterator(private val bb: ByteBuffer,
     }
 
     private fun considerNextInterval(): HTInterval? {
-        /* Start reading the interval's data, and exit as soon as we find a non-matching condition. */
-        val valueType: Byte = bb.get()
+        decoder.readHeader()
+        if (rangeEnd < decoder.start || rangeStart > decoder.end
+                || (targetQuarks != null && !targetQuarks.contains(decoder.quark))) {
+            decoder.skipValue()
+            return null
+        }
+
+        /* All conditions match, return this interval */
+        return decoder.readInterval()
+    }
+}
 
-        val start = bb.getLong()
-        if (targetTimestamp < start) {
-            /* Skip over "end" and "quark" */
-            bb.skip(java.lang.Long.BYTES + Integer.BYTES)
+/**
+ * Iterator using the sparse quark directory of a node to only look at the
+ * intervals of the requested quarks.
+ */
+private class IndexedIntervalIterator(private val decoder: IntervalDecoder,
+                                      private val intervalCount: Int,
+                                      private val directory: ByteBuffer,
+                                      private val directorySize: Int,
+                                      private val rangeStart: Long,
+                                      private val rangeEnd: Long,
+                                      targetQuarks: Set<Int>): AbstractIterator<HTInterval>() {
 
-            skipPayload(valueType)
-            return null
+    private val quarkIterator = targetQuarks.iterator()
+
+    /* Quark currently being scanned, and number of intervals left to look at */
+    private var currentQuark = -1
+    private var remaining = 0
+
+    override fun computeNext() {
+        while (true) {
+            val interval = scan()
+            if (interval != null) return setNext(interval)
+            if (!quarkIterator.hasNext()) return done()
+            seek(quarkIterator.next())
         }
+    }
 
-        val end = bb.getLong()
-        if (targetTimestamp > end) {
-            /* Skip over "quark" */
-            bb.skip(Integer.BYTES)
+    /**
+     * Position the buffer at the first intervals of 'quark'.
+     */
+    private fun seek(quark: Int) {
+        /*
+         * Binary search for the last directory entry with a smaller quark. The
+         * intervals of 'quark', if any, start after it, and before the next
+         * entry with a bigger quark.
+         */
+        var low = 0
+        var high = directorySize - 1
+        var entry = -1
+        while (low <= high) {
+            val mid = (low + high) ushr 1
+            if (directory.getInt(mid * DIRECTORY_ENTRY_SIZE) < quark) {
+                entry = mid
+                low = mid + 1
+            } else {
+                high = mid - 1
+            }
+        }
 
-            skipPayload(valueType)
-            return null
+        currentQuark = quark
+        if (entry < 0) {
+            decoder.bb.position(0)
+            remaining = intervalCount
+        } else {
+            decoder.bb.position(directory.getInt(entry * DIRECTORY_ENTRY_SIZE + Integer.BYTES))
+            remaining = intervalCount - entry * DIRECTORY_STRIDE
         }
+    }
 
-        val quark = bb.getInt()
-        if (targetQuarks != null && !targetQuarks.contains(quark)) {
-            /* No need to skip, we're at the beginning of the payload now. */
-            skipPayload(valueType)
-            return null
+    /**
+     * Scan forward for the next matching interval of the current quark. The
+     * intervals are sorted by quark, then by start time.
+     */
+    private fun scan(): HTInterval? {
+        while (remaining > 0) {
+            remaining--
+            decoder.readHeader()
+            val intervalQuark = decoder.quark
+            if (intervalQuark > currentQuark || (intervalQuark == currentQuark && rangeEnd < decoder.start)) {
+                /* We are past the intervals we are looking for */
+                remaining = 0
+                return null
+            }
+            if (intervalQuark == currentQuark && rangeStart <= decoder.end) {
+                return decoder.readInterval()
+            }
+            decoder.skipValue()
         }
+        return null
+    }
+}
 
+/* Value type of string intervals referring to the node's string dictionary, next to the ones of HTInterval */
+private const val TYPE_STRING_REF: Byte = 6
 
-        /* All conditions match, return this interval */
-        val sv: StateValue = when (valueType) {
+/**
+ * String dictionary of a node read from disk. Each string is decoded the first
+ * time it is needed, then the same state value is returned for every interval
+ * using it.
+ */
+private class StringDictionary(private val buffer: ByteBuffer, private val offsets: IntArray) {
+
+    /* Benign race: concurrent readers may decode the same entry twice */
+    private val values = arrayOfNulls<StateValue>(offsets.size)
+
+    operator fun get(index: Int): StateValue {
+        values[index]?.let { return it }
+
+        val offset = offsets[index]
+        val bb = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        val array = ByteArray(bb.getShort(offset).toInt())
+        bb.position(offset + STRING_ENTRY_HEADER_SIZE)
+        bb.get(array)
+
+        val value = StateValue.newValueString(String(array))
+        values[index] = value
+        return value
+    }
+}
+
+/**
+ * Decoder of the intervals of a node read from disk, for the node's layout.
+ * Call [readHeader] to read the fixed part of the next interval, then either
+ * [readInterval] or [skipValue] to move on to the following one.
+ */
+private class IntervalDecoder(val bb: ByteBuffer,
+                              private val nodeStart: Long,
+                              private val compact: Boolean,
+                              private val strings: StringDictionary?) {
+
+    private var valueType: Byte = 0
+    var start = 0L
+        private set
+    var end = 0L
+        private set
+    var quark = 0
+        private set
+
+    fun readHeader() {
+        valueType = bb.get()
+        if (compact) {
+            start = nodeStart + bb.getVarLong()
+            end = start + bb.getVarLong()
+            quark = bb.getVarLong().toInt()
+        } else {
+            start = bb.getLong()
+            end = bb.getLong()
+            quark = bb.getInt()
+        }
+    }
+
+    fun readInterval() = HTInterval(start, end, quark, readValue())
+
+    /** Read the payload (state value) part of an interval, depending on its type. */
+    private fun readValue(): StateValue {
+        return when (valueType) {
             TYPE_NULL -> StateValue.nullValue()
             TYPE_BOOLEAN_TRUE -> StateValue.newValueBoolean(true)
             TYPE_BOOLEAN_FALSE -> StateValue.newValueBoolean(false)
-            TYPE_INTEGER -> StateValue.newValueInt(bb.getInt())
-            TYPE_LONG -> StateValue.newValueLong(bb.getLong())
+            TYPE_INTEGER -> StateValue.newValueInt(if (compact) unzigzag(bb.getVarLong()).toInt() else bb.getInt())
+            TYPE_LONG -> StateValue.newValueLong(if (compact) unzigzag(bb.getVarLong()) else bb.getLong())
             TYPE_DOUBLE -> StateValue.newValueDouble(bb.getDouble())
             /* For strings the first "short" indicates the size */
             TYPE_STRING -> {
@@ -453,25 +1229,28 @@ private class RawIntervalIterator(private val bb: ByteBuffer,
 
                 StateValue.newValueString(String(array))
             }
+            TYPE_STRING_REF -> {
+                val ref = if (compact) bb.getVarLong().toInt() else (bb.getShort().toInt() and 0xFFFF)
+                strings?.get(ref) ?: throw IOException()
+            }
             else -> throw IOException()
         }
-        return HTInterval(start, end, quark, sv)
     }
 
     /** Skip the payload part, depending on its type. */
-    private fun skipPayload(valueType: Byte) {
-        val payloadSize: Int = when (valueType) {
+    fun skipValue() {
+        when (valueType) {
             TYPE_NULL,
             TYPE_BOOLEAN_TRUE,
-            TYPE_BOOLEAN_FALSE -> 0
-            TYPE_INTEGER -> Integer.BYTES
-            TYPE_LONG -> java.lang.Long.BYTES
-            TYPE_DOUBLE -> java.lang.Double.BYTES
-           /* For strings the first "short" indicates the size */
-            TYPE_STRING -> bb.getShort().toInt() + 1
+            TYPE_BOOLEAN_FALSE -> {}
+            TYPE_INTEGER -> if (compact) bb.getVarLong() else bb.skip(Integer.BYTES)
+            TYPE_LONG -> if (compact) bb.getVarLong() else bb.skip(java.lang.Long.BYTES)
+            TYPE_DOUBLE -> bb.skip(java.lang.Double.BYTES)
+            /* For strings the first "short" indicates the size */
+            TYPE_STRING -> bb.skip(bb.getShort().toInt() + 1)
+            TYPE_STRING_REF -> if (compact) bb.getVarLong() else bb.skip(STRING_REF_SIZE)
             else -> throw IOException()
         }
-        if (payloadSize > 0) bb.skip(payloadSize)
     }
 }
 
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.interval
+
+import ca.polymtl.dorsal.libdelorean.statevalue.DoubleStateValue
+import ca.polymtl.dorsal.libdelorean.statevalue.IntegerStateValue
+import ca.polymtl.dorsal.libdelorean.statevalue.LongStateValue
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+
+/**
+ * Statistics of the numeric values of an attribute over a time range, as
+ * returned by range aggregate queries.
+ *
+ * Integer, long and double values are considered, as doubles. Other values,
+ * including null ones, are ignored.
+ */
+data class RangeAggregate(
+        /** The lowest value, or +Infinity if there is none */
+        val min: Double,
+        /** The highest value, or -Infinity if there is none */
+        val max: Double,
+        /** The sum of each value multiplied by the time it was held in the range */
+        val sum: Double,
+        /** The total time, in time units, the values were held in the range */
+        val duration: Long,
+        /** The number of intervals with a value in the range */
+        val count: Int) {
+
+    companion object {
+        /** Aggregate of a range without any numeric value */
+        @JvmField
+        val EMPTY = RangeAggregate(Double.POSITIVE_INFINITY, Double.NEGATIVE_INFINITY, 0.0, 0L, 0)
+
+        /**
+         * Aggregate of the part of an interval that is in the time range
+         * [rangeStart, rangeEnd]. The interval is expected to intersect it.
+         *
+         * @return The aggregate of the interval's value, or [EMPTY] if it is
+         *         not a numeric value
+         */
+        @JvmStatic
+        fun of(interval: StateInterval, rangeStart: Long, rangeEnd: Long): RangeAggregate {
+            val value = interval.stateValue.numericValue() ?: return EMPTY
+            val duration = minOf(interval.end, rangeEnd) - maxOf(interval.start, rangeStart) + 1
+            return RangeAggregate(value, value, value * duration, duration, 1)
+        }
+    }
+
+    /** If there is no numeric value in the range */
+    val isEmpty get() = (count == 0)
+
+    /** The average value, weighted by the time each value was held. NaN if empty. */
+    val average get() = sum / duration
+
+    /**
+     * Combine this aggregate with the one of another part of the range, or of
+     * another attribute.
+     */
+    operator fun plus(other: RangeAggregate): RangeAggregate {
+        if (other.isEmpty) return this
+        if (isEmpty) return other
+        return RangeAggregate(minOf(min, other.min), maxOf(max, other.max),
+                sum + other.sum, duration + other.duration, count + other.count)
+    }
+}
+
+/** This value as a double, or null if it is not a numeric value */
+internal fun StateValue.numericValue(): Double? = when (this) {
+    is IntegerStateValue -> value.toDouble()
+    is LongStateValue -> value.toDouble()
+    is DoubleStateValue -> value
+    else -> null
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link AttributePathTemplate}
+ */
+@SuppressWarnings("nls")
+class AttributePathTemplateTest {
+
+    private static final AttributePathTemplate STATUS_TEMPLATE = new AttributePathTemplate("Threads", "{tid}", "Status");
+
+    private static IStateSystemWriter newStateSystem() {
+        return StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend("template-test", 0L));
+    }
+
+    /**
+     * Templates should resolve to the same quarks as the equivalent paths
+     */
+    @Test
+    void testResolve() {
+        IStateSystemWriter ss = newStateSystem();
+        long[] keys = { 0, 1, 42, 1000, 70000, -5, Long.MAX_VALUE, 42 };
+        for (long key : keys) {
+            int quark = ss.getQuarkAndAdd(STATUS_TEMPLATE, key);
+            assertEquals(ss.getQuarkAbsolute("Threads", Long.toString(key), "Status"), quark);
+            assertEquals(quark, ss.getQuarkAndAdd(STATUS_TEMPLATE, key));
+        }
+        /* The repeated key should not have created anything */
+        assertEquals(1 + (keys.length - 1) * 2, ss.getNbAttributes());
+
+        /* Attributes created with their path are found by the template */
+        int quark = ss.getQuarkAbsoluteAndAdd("Threads", "123", "Status");
+        assertEquals(quark, ss.getQuarkAndAdd(STATUS_TEMPLATE, 123));
+    }
+
+    /**
+     * The same template can be used with several state systems
+     */
+    @Test
+    void testSeveralStateSystems() {
+        IStateSystemWriter ss1 = newStateSystem();
+        IStateSystemWriter ss2 = newStateSystem();
+        ss2.getQuarkAbsoluteAndAdd("Other");
+
+        int quark1 = ss1.getQuarkAndAdd(STATUS_TEMPLATE, 7);
+        int quark2 = ss2.getQuarkAndAdd(STATUS_TEMPLATE, 7);
+        assertTrue(quark1 != quark2);
+        assertEquals(ss1.getQuarkAbsolute("Threads", "7", "Status"), quark1);
+        assertEquals(ss2.getQuarkAbsolute("Threads", "7", "Status"), quark2);
+    }
+
+    /**
+     * Test templates with a custom name, and with the placeholder at either
+     * end of the path
+     */
+    @Test
+    void testCustomName() {
+        IStateSystemWriter ss = newStateSystem();
+        AttributePathTemplate cpuTemplate = new AttributePathTemplate(key -> "CPU" + key, "CPUs", "{cpu}");
+        AttributePathTemplate rootTemplate = new AttributePathTemplate("{id}", "Value");
+
+        assertEquals(ss.getQuarkAbsoluteAndAdd("CPUs", "CPU3"), ss.getQuarkAndAdd(cpuTemplate, 3));
+        assertEquals(ss.getQuarkAbsoluteAndAdd("12", "Value"), ss.getQuarkAndAdd(rootTemplate, 12));
+        assertArrayEquals(new String[] { "CPUs", "CPU5" }, cpuTemplate.getPath(5));
+    }
+
+    /**
+     * Templates need exactly one placeholder
+     */
+    @Test
+    void testInvalidTemplates() {
+        assertThrows(IllegalArgumentException.class, () -> new AttributePathTemplate("Threads", "Status"));
+        assertThrows(IllegalArgumentException.class, () -> new AttributePathTemplate("{a}", "{b}"));
+    }
+}
@@ -0,0 +1,124 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import com.google.common.collect.ImmutableList;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link AttributePattern}, checking that compiled patterns give the
+ * same results as the string patterns while the attribute tree grows.
+ */
+@SuppressWarnings("nls")
+class AttributePatternTest {
+
+    private static final String[][] PATTERNS = {
+            { "Threads", "*", "Status" },
+            { "Threads", "*" },
+            { "*", "Status" },
+            { "*" },
+            { "Threads", "1", "Status" },
+            { "CPUs", "*", "Current_thread" },
+            { "*", "*", "Status" },
+    };
+
+    private static IStateSystemWriter newStateSystem() {
+        return StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend("pattern-test", 0L));
+    }
+
+    /**
+     * Compare compiled and string patterns after each attribute addition
+     */
+    @Test
+    void testGrowingTree() {
+        IStateSystemWriter ss = newStateSystem();
+        AttributePattern[] compiled = new AttributePattern[PATTERNS.length];
+        for (int i = 0; i < PATTERNS.length; i++) {
+            compiled[i] = new AttributePattern(PATTERNS[i]);
+        }
+
+        String[][] paths = {
+                { "Threads", "1" },
+                { "Threads", "2", "Status" },
+                { "Status" },
+                { "Threads", "3", "Exec_mode" },
+                /* Added after a later sibling got its status */
+                { "Threads", "1", "Status" },
+                { "Threads", "3", "Status" },
+                { "CPUs", "0", "Current_thread" },
+                { "Threads", "3", "Status", "Status" },
+                { "Other", "Status" },
+        };
+        checkPatterns(ss, compiled);
+        for (String[] path : paths) {
+            ss.getQuarkAbsoluteAndAdd(path);
+            checkPatterns(ss, compiled);
+        }
+
+        assertEquals(ImmutableList.of(
+                ss.getQuarkAbsolute("Threads", "1", "Status"),
+                ss.getQuarkAbsolute("Threads", "2", "Status"),
+                ss.getQuarkAbsolute("Threads", "3", "Status")),
+                ss.getQuarks(compiled[0]));
+        assertTrue(ss.getQuarks(compiled[6]).isEmpty());
+    }
+
+    private static void checkPatterns(IStateSystemReader ss, AttributePattern[] compiled) {
+        for (int i = 0; i < PATTERNS.length; i++) {
+            List<Integer> expected = ss.getQuarks(PATTERNS[i]);
+            List<Integer> actual = ss.getQuarks(compiled[i]);
+            assertEquals(expected, actual, compiled[i].toString());
+            /* Nothing changed, the previous result should be returned */
+            assertSame(actual, ss.getQuarks(compiled[i]));
+        }
+    }
+
+    /**
+     * The same pattern can be used with several state systems
+     */
+    @Test
+    void testSeveralStateSystems() {
+        AttributePattern pattern = new AttributePattern("Threads", "*", "Status");
+        IStateSystemWriter ss1 = newStateSystem();
+        IStateSystemWriter ss2 = newStateSystem();
+        int quark1 = ss1.getQuarkAbsoluteAndAdd("Threads", "1", "Status");
+        ss2.getQuarkAbsoluteAndAdd("Threads", "2");
+
+        assertEquals(ImmutableList.of(quark1), ss1.getQuarks(pattern));
+        assertTrue(ss2.getQuarks(pattern).isEmpty());
+    }
+
+    /**
+     * Direct children are listed lazily, the list does not follow additions
+     * done after it was obtained
+     */
+    @Test
+    void testSubAttributesView() {
+        IStateSystemWriter ss = newStateSystem();
+        int parent = ss.getQuarkAbsoluteAndAdd("Threads");
+        for (int i = 0; i < 1000; i++) {
+            ss.getQuarkRelativeAndAdd(parent, String.valueOf(i));
+        }
+        List<Integer> children = ss.getSubAttributes(parent, false);
+        ss.getQuarkRelativeAndAdd(parent, "new");
+
+        assertEquals(1000, children.size());
+        for (int i = 0; i < 1000; i++) {
+            assertEquals(ss.getQuarkRelative(parent, String.valueOf(i)), children.get(i).intValue());
+        }
+        assertEquals(1001, ss.getSubAttributes(parent, false).size());
+        assertEquals(1001, ss.getSubAttributes(-1, true).size() - 1);
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for {@link StateChangeBatch}, comparing a history built with batches
+ * with one built with the individual state change methods.
+ */
+@SuppressWarnings("nls")
+class StateChangeBatchTest {
+
+    private static final long END_TIME = 100;
+
+    /**
+     * Build the same history with and without batches
+     */
+    @Test
+    void testBatchedHistory() {
+        IStateSystemWriter expected = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend("direct", 0L));
+        IStateSystemWriter actual = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend("batched", 0L));
+
+        StateChangeBatch batch = new StateChangeBatch();
+        for (long t = 10; t < END_TIME; t += 10) {
+            int counter = expected.getQuarkAbsoluteAndAdd("Counter");
+            int stack = expected.getQuarkAbsoluteAndAdd("Stack");
+            int value = expected.getQuarkAbsoluteAndAdd("Value", "Sub");
+            expected.incrementAttribute(t, counter);
+            expected.pushAttribute(t, StateValue.newValueLong(t), stack);
+            expected.modifyAttribute(t, StateValue.newValueInt((int) t), value);
+            if (t % 20 == 0) {
+                expected.popAttribute(t + 5, stack);
+                expected.removeAttribute(t + 5, expected.getQuarkAbsolute("Value"));
+            }
+
+            assertEquals(counter, actual.getQuarkAbsoluteAndAdd("Counter"));
+            assertEquals(stack, actual.getQuarkAbsoluteAndAdd("Stack"));
+            assertEquals(value, actual.getQuarkAbsoluteAndAdd("Value", "Sub"));
+            batch.incrementAttribute(t, counter)
+                    .pushAttribute(t, StateValue.newValueLong(t), stack)
+                    .modifyAttribute(t, StateValue.newValueInt((int) t), value);
+            if (t % 20 == 0) {
+                batch.popAttribute(t + 5, stack)
+                        .removeAttribute(t + 5, actual.getQuarkAbsolute("Value"));
+            }
+            assertFalse(batch.isEmpty());
+            actual.applyStateChanges(batch);
+            assertTrue(batch.isEmpty());
+        }
+        expected.closeHistory(END_TIME);
+        actual.closeHistory(END_TIME);
+
+        assertEquals(expected.getNbAttributes(), actual.getNbAttributes());
+        for (long t = 0; t <= END_TIME; t++) {
+            List<StateInterval> expectedState = expected.queryFullState(t);
+            List<StateInterval> actualState = actual.queryFullState(t);
+            for (int quark = 0; quark < expected.getNbAttributes(); quark++) {
+                StateInterval expectedInterval = expectedState.get(quark);
+                StateInterval actualInterval = actualState.get(quark);
+                String message = "Time " + t + ", Quark " + quark;
+                assertEquals(expectedInterval.getStart(), actualInterval.getStart(), message);
+                assertEquals(expectedInterval.getEnd(), actualInterval.getEnd(), message);
+                assertEquals(expectedInterval.getStateValue(), actualInterval.getStateValue(), message);
+            }
+        }
+    }
+
+    /**
+     * A failing change should not prevent the batch from being cleared
+     */
+    @Test
+    void testFailingBatch() {
+        IStateSystemWriter ss = StateSystemFactory.newStateSystem(
+                StateHistoryBackendFactory.createInMemoryBackend("failing", 0L));
+        int quark = ss.getQuarkAbsoluteAndAdd("Attribute");
+
+        StateChangeBatch batch = new StateChangeBatch()
+                .modifyAttribute(10, StateValue.newValueInt(1), quark)
+                .modifyAttribute(20, StateValue.newValueString("wrong type"), quark);
+        assertEquals(2, batch.size());
+        assertThrows(IllegalArgumentException.class, () -> ss.applyStateChanges(batch));
+        assertTrue(batch.isEmpty());
+        assertEquals(StateValue.newValueInt(1), ss.queryOngoingState(quark));
+        ss.dispose();
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend;
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Run queries from several threads while the state system is being built, and
+ * after it is finished.
+ */
+@SuppressWarnings("nls")
+class StateSystemConcurrentQueryTest {
+
+    private static final int NB_READERS = 4;
+    private static final int NB_THREADS = 200;
+    private static final long END_TIME = 20000;
+
+    /**
+     * Test concurrent readers with one writer adding attributes and states
+     *
+     * @throws Exception
+     *             If a reader failed
+     */
+    @Test
+    void testConcurrentQueries() throws Exception {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend("concurrent-test", 0L);
+        IStateSystemWriter ss = StateSystemFactory.newStateSystem(backend);
+        ss.getQuarkAbsoluteAndAdd("Threads");
+
+        AtomicBoolean done = new AtomicBoolean(false);
+        ExecutorService executor = Executors.newFixedThreadPool(NB_READERS);
+        try {
+            runQueries(ss, executor, done);
+        } finally {
+            done.set(true);
+            executor.shutdownNow();
+        }
+
+        assertEquals(NB_THREADS * 2 + 1, ss.getNbAttributes());
+        assertEquals(NB_THREADS, ss.getQuarks("Threads", "*", "Status").size());
+        ss.dispose();
+    }
+
+    private static void runQueries(IStateSystemWriter ss, ExecutorService executor, AtomicBoolean done) throws Exception {
+        List<Future<?>> readers = new ArrayList<>();
+        for (int i = 0; i < NB_READERS; i++) {
+            readers.add(executor.submit(() -> {
+                do {
+                    query(ss, ss.getCurrentEndTime());
+                } while (!done.get());
+                return null;
+            }));
+        }
+
+        for (long t = 1; t < END_TIME; t++) {
+            int quark = ss.getQuarkAbsoluteAndAdd("Threads", String.valueOf(t % NB_THREADS), "Status");
+            ss.modifyAttribute(t, StateValue.newValueLong(t), quark);
+        }
+        ss.closeHistory(END_TIME);
+        done.set(true);
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+
+        /* Queries on the finished history */
+        readers.clear();
+        for (int i = 0; i < NB_READERS; i++) {
+            final long t = END_TIME / (i + 2);
+            readers.add(executor.submit(() -> {
+                for (int j = 0; j < 100; j++) {
+                    query(ss, t);
+                }
+                return null;
+            }));
+        }
+        for (Future<?> reader : readers) {
+            reader.get();
+        }
+    }
+
+    private static void query(IStateSystemReader ss, long t) {
+        List<StateInterval> state = ss.queryFullState(t);
+        for (StateInterval interval : state) {
+            assertNotNull(interval);
+            assertTrue(interval.getStart() <= t && t <= interval.getEnd());
+        }
+        for (int quark : ss.getQuarks("Threads", "*", "Status")) {
+            StateInterval interval = ss.querySingleState(t, quark);
+            assertTrue(interval.getStart() <= t && t <= interval.getEnd());
+            assertEquals(quark, ss.getQuarkRelative(ss.getParentAttributeQuark(quark), "Status"));
+        }
+    }
+}
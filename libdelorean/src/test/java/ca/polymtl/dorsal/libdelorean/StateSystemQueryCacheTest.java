@@ -0,0 +1,112 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean;
+
+import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend;
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the caching of query results in {@link StateSystem}.
+ */
+@SuppressWarnings("nls")
+class StateSystemQueryCacheTest {
+
+    private IStateSystemWriter ss;
+    private int quark;
+
+    /**
+     * Test setup
+     */
+    @BeforeEach
+    void setup() {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend("cache-test", 0L);
+        ss = StateSystemFactory.newStateSystem(backend);
+        quark = ss.getQuarkAbsoluteAndAdd("Test");
+    }
+
+    /**
+     * Test cleanup
+     */
+    @AfterEach
+    void teardown() {
+        ss.dispose();
+    }
+
+    /**
+     * Results queried while the history is being built must reflect the
+     * changes made to the ongoing state afterwards.
+     */
+    @Test
+    void testNotCachedWhileBuilding() {
+        ss.modifyAttribute(10, StateValue.newValueInt(1), quark);
+
+        StateInterval interval = ss.querySingleState(10, quark);
+        assertEquals(StateValue.newValueInt(1), interval.getStateValue());
+
+        ss.updateOngoingState(StateValue.newValueInt(2), quark);
+
+        interval = ss.querySingleState(10, quark);
+        assertEquals(StateValue.newValueInt(2), interval.getStateValue());
+    }
+
+    /**
+     * Once the history is built, repeated queries should return the same
+     * results.
+     */
+    @Test
+    void testCachedWhenBuilt() {
+        ss.modifyAttribute(10, StateValue.newValueInt(1), quark);
+        ss.modifyAttribute(20, StateValue.newValueInt(2), quark);
+        ss.closeHistory(30);
+
+        List<StateInterval> state = ss.queryFullState(15);
+        assertSame(state, ss.queryFullState(15));
+        assertEquals(10, state.get(quark).getStart());
+        assertEquals(19, state.get(quark).getEnd());
+        assertThrows(UnsupportedOperationException.class, () -> ss.queryFullState(15).set(quark, null));
+
+        StateInterval interval = ss.querySingleState(25, quark);
+        assertSame(interval, ss.querySingleState(25, quark));
+        assertEquals(StateValue.newValueInt(2), interval.getStateValue());
+        assertEquals(StateValue.newValueInt(1), ss.querySingleState(15, quark).getStateValue());
+    }
+
+    /**
+     * Full states of state systems with many attributes, like kernel ones,
+     * should still be kept in the cache.
+     */
+    @Test
+    void testCachedLargeFullState() {
+        int nbThreads = 200000;
+        int threadsQuark = ss.getQuarkAbsoluteAndAdd("Threads");
+        for (int i = 0; i < nbThreads; i++) {
+            int threadQuark = ss.getQuarkRelativeAndAdd(threadsQuark, String.valueOf(i));
+            if (i % 1000 == 0) {
+                ss.modifyAttribute(i / 1000, StateValue.newValueInt(i), threadQuark);
+            }
+        }
+        ss.closeHistory(1000);
+
+        List<StateInterval> state = ss.queryFullState(500);
+        assertEquals(ss.getNbAttributes(), state.size());
+        assertSame(state, ss.queryFullState(500));
+        assertSame(ss.queryFullState(100), ss.queryFullState(100));
+        assertSame(state, ss.queryFullState(500));
+    }
+}
@@ -12,14 +12,21 @@ package ca.polymtl.dorsal.libdelorean;
 import ca.polymtl.dorsal.libdelorean.backend.IStateHistoryBackend;
 import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
 import ca.polymtl.dorsal.libdelorean.exceptions.AttributeNotFoundException;
+import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.IntegerStateValue;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import com.google.common.collect.ImmutableSet;
 import org.jetbrains.annotations.NotNull;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -117,4 +124,59 @@ class StateSystemUtilsTest {
 
     }
 
+    /**
+     * Test the {@link StateSystemUtils#queryHistoryRange} method.
+     */
+    @Test
+    void testQueryHistoryRange() {
+        IStateSystemReader ss = fStateSystem;
+        assertNotNull(ss);
+        int quark = ss.getQuarkAbsolute(DUMMY_STRING);
+
+        List<StateInterval> intervals = StateSystemUtils.queryHistoryRange(ss, quark, START_TIME, 2000L);
+        assertEquals(3, intervals.size());
+        assertEquals(START_TIME, intervals.get(0).getStart());
+        assertEquals(1200L, intervals.get(1).getStart());
+        assertEquals(1500L, intervals.get(2).getStart());
+        assertEquals(2000L, intervals.get(2).getEnd());
+
+        intervals = StateSystemUtils.queryHistoryRange(ss, quark, 1300L, 1400L);
+        assertEquals(1, intervals.size());
+        assertEquals(StateValue.newValueInt(10), intervals.get(0).getStateValue());
+
+        /* The end of the range is clamped to the end of the history */
+        intervals = StateSystemUtils.queryHistoryRange(ss, quark, 1300L, 5000L);
+        assertEquals(2, intervals.size());
+
+        assertThrows(TimeRangeException.class, () -> StateSystemUtils.queryHistoryRange(ss, quark, 1500L, 1400L));
+        assertThrows(TimeRangeException.class, () -> StateSystemUtils.queryHistoryRange(ss, quark, 2500L, 3000L));
+        assertThrows(AttributeNotFoundException.class, () -> StateSystemUtils.queryHistoryRange(ss, quark + 1, 1300L, 1400L));
+    }
+
+    /**
+     * Test the range queries on a state system that is still being built,
+     * where the ongoing states are not in the backend yet.
+     */
+    @Test
+    void testQueryHistoryRangeOngoing() {
+        IStateHistoryBackend backend = StateHistoryBackendFactory.createInMemoryBackend(DUMMY_STRING, START_TIME);
+        IStateSystemWriter ss = StateSystemFactory.newStateSystem(backend);
+        int quark1 = ss.getQuarkAbsoluteAndAdd("a"); //$NON-NLS-1$
+        int quark2 = ss.getQuarkAbsoluteAndAdd("b"); //$NON-NLS-1$
+        ss.modifyAttribute(1100L, StateValue.newValueInt(1), quark1);
+        ss.modifyAttribute(1200L, StateValue.newValueInt(2), quark2);
+        ss.modifyAttribute(1300L, StateValue.newValueInt(3), quark1);
+
+        /*
+         * The range is clamped to the current end time of the history, the
+         * state of "b" starting at 1200 is only in the transient state.
+         */
+        List<StateInterval> intervals = new ArrayList<>();
+        ss.queryHistoryRange(ImmutableSet.of(quark1, quark2), START_TIME, 1300L).forEachRemaining(intervals::add);
+        assertEquals(Arrays.asList(START_TIME, START_TIME, 1100L, 1200L),
+                intervals.stream().map(StateInterval::getStart).collect(Collectors.toList()));
+        assertEquals(quark2, intervals.get(3).getAttribute());
+        assertEquals(StateValue.newValueInt(2), intervals.get(3).getStateValue());
+        ss.dispose();
+    }
 }
@@ -0,0 +1,149 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.aggregation;
+
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
+import ca.polymtl.dorsal.libdelorean.StateChangeBatch;
+import ca.polymtl.dorsal.libdelorean.StateSystemFactory;
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for materialized aggregation rules, comparing them with the same
+ * rules evaluated at query time.
+ */
+@SuppressWarnings("nls")
+class MaterializedAggregationTest {
+
+    private static final long END_TIME = 100;
+
+    private static final List<String[]> PRIORITY_PATTERNS = Arrays.asList(
+            new String[] { "CPUs", "*", "IRQs", "1" },
+            new String[] { "Other" });
+
+    private static final List<String[]> BITWISE_PATTERNS = Collections.singletonList(
+            new String[] { "CPUs", "*", "Flags" });
+
+    private static IStateSystemWriter newStateSystem(String name) {
+        return StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend(name, 0L));
+    }
+
+    /**
+     * Build the same history with query-time and materialized rules, and
+     * compare the values of the aggregates
+     */
+    @Test
+    void testSameValues() {
+        IStateSystemWriter expected = newStateSystem("query-time");
+        IStateSystemWriter actual = newStateSystem("materialized");
+
+        int expectedPriority = expected.getQuarkAbsoluteAndAdd("IRQs", "1");
+        int expectedBitwise = expected.getQuarkAbsoluteAndAdd("Flags");
+        expected.addAggregationRule(new AttributePriorityAggregationRule(expected, expectedPriority, PRIORITY_PATTERNS));
+        expected.addAggregationRule(new BitwiseOrAggregationRule(expected, expectedBitwise, BITWISE_PATTERNS));
+
+        int actualPriority = actual.getQuarkAbsoluteAndAdd("IRQs", "1");
+        int actualBitwise = actual.getQuarkAbsoluteAndAdd("Flags");
+        actual.addMaterializedAggregationRule(new AttributePriorityAggregationRule(actual, actualPriority, PRIORITY_PATTERNS));
+        actual.addMaterializedAggregationRule(new BitwiseOrAggregationRule(actual, actualBitwise, BITWISE_PATTERNS));
+        assertTrue(actual.hasMaterializedAggregationRule(actualBitwise));
+        assertFalse(actual.hasMaterializedAggregationRule(expectedBitwise + 1));
+
+        for (IStateSystemWriter ss : new IStateSystemWriter[] { expected, actual }) {
+            for (long t = 10; t < END_TIME; t += 10) {
+                /* The attributes are only created along the way */
+                int cpu = (int) (t / 10) % 3;
+                int irq = ss.getQuarkAbsoluteAndAdd("CPUs", String.valueOf(cpu), "IRQs", "1");
+                int flags = ss.getQuarkAbsoluteAndAdd("CPUs", String.valueOf(cpu), "Flags");
+                ss.modifyAttribute(t, StateValue.newValueInt((int) t), irq);
+                ss.modifyAttribute(t, StateValue.newValueInt(1 << cpu), flags);
+                if (t % 20 == 0) {
+                    ss.modifyAttribute(t + 5, StateValue.nullValue(), irq);
+                    ss.removeAttribute(t + 5, ss.getQuarkAbsolute("CPUs", String.valueOf(cpu)));
+                }
+                if (t == 50) {
+                    ss.modifyAttribute(t, StateValue.newValueInt(-1), ss.getQuarkAbsoluteAndAdd("Other"));
+                }
+            }
+            ss.closeHistory(END_TIME);
+        }
+
+        for (long t = 0; t <= END_TIME; t++) {
+            assertEquals(expected.querySingleState(t, expectedPriority).getStateValue(),
+                    actual.querySingleState(t, actualPriority).getStateValue(), "Time " + t);
+            assertEquals(expected.querySingleState(t, expectedBitwise).getStateValue(),
+                    actual.querySingleState(t, actualBitwise).getStateValue(), "Time " + t);
+        }
+        /* The materialized values are regular intervals */
+        assertEquals(10, actual.querySingleState(35, actualPriority).getStart());
+    }
+
+    /**
+     * The target of a materialized rule can be used by another one
+     */
+    @Test
+    void testChainedRules() {
+        IStateSystemWriter ss = newStateSystem("chained");
+        int source = ss.getQuarkAbsoluteAndAdd("Source");
+        int link = ss.getQuarkAbsoluteAndAdd("Link");
+        int linkOfLink = ss.getQuarkAbsoluteAndAdd("LinkOfLink");
+        ss.addMaterializedAggregationRule(new SymbolicLinkRule(ss, linkOfLink, new String[] { "Link" }));
+        ss.addMaterializedAggregationRule(new SymbolicLinkRule(ss, link, new String[] { "Source" }));
+
+        ss.modifyAttribute(10, StateValue.newValueLong(42), source);
+        ss.closeHistory(20);
+
+        assertEquals(StateValue.newValueLong(42), ss.querySingleState(15, linkOfLink).getStateValue());
+        assertEquals(10, ss.querySingleState(15, linkOfLink).getStart());
+        assertTrue(ss.querySingleState(5, linkOfLink).getStateValue().isNull());
+    }
+
+    /**
+     * Materialized rules are also updated by batched state changes
+     */
+    @Test
+    void testBatchedChanges() {
+        IStateSystemWriter ss = newStateSystem("batched");
+        int source = ss.getQuarkAbsoluteAndAdd("Source");
+        int link = ss.getQuarkAbsoluteAndAdd("Link");
+        ss.addMaterializedAggregationRule(new SymbolicLinkRule(ss, link, new String[] { "Source" }));
+
+        ss.applyStateChanges(new StateChangeBatch()
+                .modifyAttribute(10, StateValue.newValueLong(42), source)
+                .modifyAttribute(15, StateValue.newValueLong(43), source));
+        ss.closeHistory(20);
+
+        assertEquals(StateValue.newValueLong(42), ss.querySingleState(12, link).getStateValue());
+        assertEquals(StateValue.newValueLong(43), ss.querySingleState(17, link).getStateValue());
+        assertEquals(15, ss.querySingleState(17, link).getStart());
+    }
+
+    /**
+     * Only one rule can target a given attribute
+     */
+    @Test
+    void testInvalidRules() {
+        IStateSystemWriter ss = newStateSystem("invalid");
+        int target = ss.getQuarkAbsoluteAndAdd("Target");
+        ss.addMaterializedAggregationRule(new SymbolicLinkRule(ss, target, new String[] { "Source" }));
+        assertThrows(IllegalArgumentException.class,
+                () -> ss.addMaterializedAggregationRule(new SymbolicLinkRule(ss, target, new String[] { "Other" })));
+        assertThrows(IllegalArgumentException.class,
+                () -> new SymbolicLinkRule(ss, target, new String[] { "*", "*" }));
+        ss.dispose();
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the {@link ColumnarBackend} class.
+ */
+class ColumnarBackendTest extends StateHistoryBackendTestBase {
+
+    private static final @NotNull String SSID = "test"; //$NON-NLS-1$
+
+    @Override
+    protected IStateHistoryBackend instantiateBackend(long startTime) {
+        return StateHistoryBackendFactory.createColumnarBackend(SSID, startTime);
+    }
+
+    @Override
+    protected void afterInsertionCb() {
+    }
+
+    /**
+     * Test that every type of state value is read back as it was inserted,
+     * over more than one block of intervals.
+     */
+    @Test
+    void testStateValues() {
+        List<StateValue> values = Arrays.asList(
+                StateValue.nullValue(),
+                StateValue.newValueBoolean(true),
+                StateValue.newValueInt(-42),
+                StateValue.newValueLong(Long.MAX_VALUE),
+                StateValue.newValueDouble(3.14),
+                StateValue.newValueString("running"), //$NON-NLS-1$
+                StateValue.newValueString("")); //$NON-NLS-1$
+
+        IStateHistoryBackend backend = instantiateBackend(0);
+        for (int i = 0; i < 1000; i++) {
+            backend.insertPastState(i * 10, i * 10 + 9, 0, values.get(i % values.size()));
+        }
+        backend.finishBuilding(9999);
+
+        for (int i = 0; i < 1000; i++) {
+            StateInterval interval = backend.doSingularQuery(i * 10 + 5, 0);
+            assertNotNull(interval);
+            assertEquals(i * 10, interval.getStart());
+            assertEquals(i * 10 + 9, interval.getEnd());
+            assertEquals(values.get(i % values.size()), interval.getStateValue());
+        }
+        backend.dispose();
+    }
+
+    /**
+     * The intervals of a quark must be inserted in chronological order.
+     */
+    @Test
+    void testOutOfOrderInsertion() {
+        IStateHistoryBackend backend = instantiateBackend(0);
+        backend.insertPastState(10, 19, 0, StateValue.nullValue());
+        backend.insertPastState(0, 9, 1, StateValue.nullValue());
+        assertThrows(IllegalArgumentException.class, () -> backend.insertPastState(0, 9, 0, StateValue.nullValue()));
+        backend.dispose();
+    }
+
+    /**
+     * Quarks with only a few intervals should not use a whole block each.
+     */
+    @Test
+    void testSparseQuarks() {
+        ColumnarBackend backend = new ColumnarBackend(SSID, 0);
+        int nbQuarks = 10000;
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            backend.insertPastState(quark, quark + 1, quark, StateValue.newValueInt(quark));
+        }
+        backend.finishBuilding(nbQuarks + 1);
+        assertTrue(backend.getMemoryUsage() < nbQuarks * 200L);
+
+        for (int quark = 0; quark < nbQuarks; quark++) {
+            StateInterval interval = backend.doSingularQuery(quark, quark);
+            assertNotNull(interval);
+            assertEquals(StateValue.newValueInt(quark), interval.getStateValue());
+        }
+        backend.dispose();
+    }
+
+    /**
+     * Queries on a disposed backend should fail.
+     */
+    @Test
+    void testQueryAfterDispose() {
+        IStateHistoryBackend backend = instantiateBackend(0);
+        backend.insertPastState(0, 9, 0, StateValue.nullValue());
+        backend.finishBuilding(9);
+        backend.dispose();
+        assertThrows(StateSystemDisposedException.class, () -> backend.doSingularQuery(5, 0));
+    }
+}
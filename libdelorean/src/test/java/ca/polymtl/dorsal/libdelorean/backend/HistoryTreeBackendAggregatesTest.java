@@ -0,0 +1,26 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend;
+
+/**
+ * Test the {@link HistoryTreeBackend} class keeping aggregates in its core
+ * nodes, by re-opening the file once it is built.
+ */
+public class HistoryTreeBackendAggregatesTest extends HistoryTreeBackendReOpenTest {
+
+    @Override
+    protected IStateHistoryBackend instantiateBackend(long startTime) {
+        return new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION, startTime, BLOCK_SIZE, MAX_CHILDREN,
+                HistoryTreeBackend.DEFAULT_NODE_CACHE_SIZE, HistoryTreeBackend.DEFAULT_WRITE_QUEUE_SIZE, false, true);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend;
+import ca.polymtl.dorsal.libdelorean.exceptions.StateSystemDisposedException;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test running queries on a finished {@link HistoryTreeBackend} from several
+ * threads at the same time.
+ */
+class HistoryTreeBackendConcurrentQueryTest {
+
+    private static final String SSID = "test"; //$NON-NLS-1$
+    private static final int PROVIDER_VERSION = 0;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 20000;
+    private static final int NB_ATTRIBUTES = 7;
+    private static final int NB_THREADS = 4;
+
+    private File fTempFile;
+    private HistoryTreeBackend fBackend;
+
+    /**
+     * Build a history, then re-open it.
+     */
+    @BeforeEach
+    void setup() throws IOException {
+        fTempFile = File.createTempFile(getClass().getSimpleName(), ".ht"); //$NON-NLS-1$
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION, START_TIME, BLOCK_SIZE, MAX_CHILDREN);
+        for (long t = START_TIME + 1; t <= END_TIME; t++) {
+            int quark = (int) (t % NB_ATTRIBUTES);
+            backend.insertPastState(t - 1, t - 1, quark, StateValue.newValueLong(t * quark));
+        }
+        backend.finishBuilding(END_TIME);
+        backend.dispose();
+
+        fBackend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION);
+    }
+
+    /**
+     * Cleanup
+     */
+    @AfterEach
+    void teardown() {
+        fBackend.dispose();
+        fTempFile.delete();
+    }
+
+    /**
+     * Each thread queries the whole range, all of them should see the expected
+     * values.
+     */
+    @Test
+    void testConcurrentQueries() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(NB_THREADS);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < NB_THREADS; i++) {
+                final int offset = i;
+                futures.add(executor.submit(() -> {
+                    for (long t = START_TIME + offset; t < END_TIME; t += 1) {
+                        int quark = (int) ((t + 1) % NB_ATTRIBUTES);
+                        StateInterval interval = fBackend.doSingularQuery(t, quark);
+                        assertEquals(t, interval.getStart());
+                        assertEquals(StateValue.newValueLong((t + 1) * quark), interval.getStateValue());
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Queries on a disposed backend should report it.
+     */
+    @Test
+    void testQueryAfterDispose() throws IOException {
+        fBackend.dispose();
+        assertThrows(StateSystemDisposedException.class, () -> fBackend.doSingularQuery(END_TIME / 2, 0));
+        /* Re-open it so that teardown() has something to dispose */
+        fBackend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION);
+    }
+}
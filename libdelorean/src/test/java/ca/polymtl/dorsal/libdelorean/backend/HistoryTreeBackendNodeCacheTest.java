@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import com.google.common.cache.CacheStats;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the node cache of the {@link HistoryTreeBackend}.
+ */
+class HistoryTreeBackendNodeCacheTest {
+
+    private static final String SSID = "test"; //$NON-NLS-1$
+    private static final int PROVIDER_VERSION = 0;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 2;
+
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 10000;
+    private static final int NB_ATTRIBUTES = 10;
+
+    private File fTempFile;
+    private HistoryTreeBackend fBackend;
+
+    /**
+     * Build a history spanning a good number of nodes.
+     */
+    @BeforeEach
+    void setup() throws IOException {
+        fTempFile = File.createTempFile(getClass().getSimpleName(), ".ht"); //$NON-NLS-1$
+        HistoryTreeBackend backend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION, START_TIME, BLOCK_SIZE, MAX_CHILDREN);
+        for (long t = START_TIME + 1; t <= END_TIME; t++) {
+            backend.insertPastState(t - 1, t - 1, (int) (t % NB_ATTRIBUTES), StateValue.newValueLong(t));
+        }
+        backend.finishBuilding(END_TIME);
+        backend.dispose();
+    }
+
+    /**
+     * Cleanup
+     */
+    @AfterEach
+    void teardown() {
+        if (fBackend != null) {
+            fBackend.dispose();
+        }
+        fTempFile.delete();
+    }
+
+    /**
+     * A cache smaller than the working set should report misses and evictions.
+     */
+    @Test
+    void testSmallCache() throws IOException {
+        fBackend = HistoryTreeBackend.openExistingFile(SSID, fTempFile, PROVIDER_VERSION, 2 * BLOCK_SIZE);
+
+        for (long t = START_TIME; t < END_TIME; t++) {
+            fBackend.doSingularQuery(t, (int) ((t + 1) % NB_ATTRIBUTES));
+        }
+
+        CacheStats stats = fBackend.getNodeCacheStats();
+        assertTrue(stats.missCount() > 0);
+        assertTrue(stats.evictionCount() > 0);
+    }
+
+    /**
+     * Querying the same timestamp repeatedly should be served from the cache.
+     */
+    @Test
+    void testCacheHits() throws IOException {
+        fBackend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION);
+
+        long before = fBackend.getNodeCacheStats().hitCount();
+        for (int i = 0; i < 10; i++) {
+            fBackend.doSingularQuery(END_TIME / 2, (int) ((END_TIME / 2 + 1) % NB_ATTRIBUTES));
+        }
+        assertTrue(fBackend.getNodeCacheStats().hitCount() > before);
+    }
+}
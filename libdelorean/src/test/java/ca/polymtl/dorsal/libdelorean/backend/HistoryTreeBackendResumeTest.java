@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
+import ca.polymtl.dorsal.libdelorean.StateSystemFactory;
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test resuming the build of a finished {@link HistoryTreeBackend}, by
+ * comparing a history built in two steps with one built in a single step.
+ */
+class HistoryTreeBackendResumeTest {
+
+    private static final String SSID = "test-ss"; //$NON-NLS-1$
+    private static final int PROVIDER_VERSION = 0;
+    private static final long START_TIME = 0;
+    private static final long MIDDLE_TIME = 6000;
+    private static final long END_TIME = 10000;
+    private static final int NB_THREADS = 30;
+
+    /* Small nodes, so that the tree has a few levels */
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+
+    private File fTempFile;
+
+    /**
+     * Create the history file
+     *
+     * @throws IOException
+     *             If the file cannot be created
+     */
+    @BeforeEach
+    void setup() throws IOException {
+        fTempFile = File.createTempFile(HistoryTreeBackendResumeTest.class.getSimpleName(), ".ht"); //$NON-NLS-1$
+    }
+
+    /**
+     * Delete the history file
+     */
+    @AfterEach
+    void teardown() {
+        fTempFile.delete();
+    }
+
+    /**
+     * Resume a history with fixed-size blocks
+     *
+     * @throws IOException
+     *             If the history file cannot be used
+     */
+    @Test
+    void testResume() throws IOException {
+        runTest(false);
+    }
+
+    /**
+     * Resume a history with compressed blocks
+     *
+     * @throws IOException
+     *             If the history file cannot be used
+     */
+    @Test
+    void testResumeCompressed() throws IOException {
+        runTest(true);
+    }
+
+    private void runTest(boolean compressed) throws IOException {
+        IStateHistoryBackend reference = buildReference();
+
+        /* Build the first part of the history, and close it */
+        IStateHistoryBackend backend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION, START_TIME, BLOCK_SIZE, MAX_CHILDREN,
+                HistoryTreeBackend.DEFAULT_NODE_CACHE_SIZE, HistoryTreeBackend.DEFAULT_WRITE_QUEUE_SIZE, compressed);
+        IStateSystemWriter ss = StateSystemFactory.newStateSystem(backend);
+        insertStates(ss, START_TIME, MIDDLE_TIME);
+        ss.closeHistory(MIDDLE_TIME);
+        ss.dispose();
+
+        /* Re-open it, and append the rest */
+        backend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION);
+        ss = StateSystemFactory.resumeStateSystem(backend);
+        insertStates(ss, MIDDLE_TIME + 1, END_TIME);
+
+        /* The file is not valid while it is being appended to */
+        assertThrows(IOException.class, () -> new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION));
+
+        ss.closeHistory(END_TIME);
+        int nbAttributes = ss.getNbAttributes();
+        ss.dispose();
+
+        /* The resulting file should contain the same history */
+        backend = new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION);
+        ss = StateSystemFactory.newStateSystem(backend, false);
+        assertEquals(nbAttributes, ss.getNbAttributes());
+        compare(reference, backend, nbAttributes);
+        ss.dispose();
+    }
+
+    private static IStateHistoryBackend buildReference() {
+        IStateHistoryBackend reference = StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME);
+        IStateSystemWriter ss = StateSystemFactory.newStateSystem(reference);
+        insertStates(ss, START_TIME, END_TIME);
+        ss.closeHistory(END_TIME);
+        return reference;
+    }
+
+    /**
+     * Insert the state changes between 'start' and 'end'. They are always the
+     * same, new threads appear over time.
+     */
+    private static void insertStates(IStateSystemWriter ss, long start, long end) {
+        Random random = new Random(42);
+        for (long t = START_TIME + 1; t < END_TIME; t += 1 + random.nextInt(5)) {
+            int thread = random.nextInt((int) (NB_THREADS * t / END_TIME) + 1);
+            int value = random.nextInt(4);
+            if (t < start || t > end) {
+                continue;
+            }
+            int quark = ss.getQuarkAbsoluteAndAdd("Threads", String.valueOf(thread), "Status"); //$NON-NLS-1$ //$NON-NLS-2$
+            ss.modifyAttribute(t, (value == 0 ? StateValue.nullValue() : StateValue.newValueInt(value)), quark);
+        }
+    }
+
+    private static void compare(IStateHistoryBackend expected, IStateHistoryBackend actual, int nbAttributes) {
+        assertEquals(expected.getEndTime(), actual.getEndTime());
+        for (long t = START_TIME; t <= END_TIME; t++) {
+            List<StateInterval> expectedState = new ArrayList<>(Collections.nCopies(nbAttributes, null));
+            List<StateInterval> actualState = new ArrayList<>(Collections.nCopies(nbAttributes, null));
+            expected.doQuery(expectedState, t);
+            actual.doQuery(actualState, t);
+            for (int quark = 0; quark < nbAttributes; quark++) {
+                StateInterval expectedInterval = expectedState.get(quark);
+                StateInterval actualInterval = actualState.get(quark);
+                String message = "Time " + t + ", Quark " + quark; //$NON-NLS-1$ //$NON-NLS-2$
+                assertNotNull(actualInterval, message);
+                assertEquals(expectedInterval.getStart(), actualInterval.getStart(), message);
+                assertEquals(expectedInterval.getEnd(), actualInterval.getEnd(), message);
+                assertEquals(expectedInterval.getStateValue(), actualInterval.getStateValue(), message);
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.backend.historytree.HistoryTreeBackend;
+
+/**
+ * Test the {@link HistoryTreeBackend} class with the background node writer
+ * disabled.
+ */
+public class HistoryTreeBackendSyncWriteTest extends HistoryTreeBackendTest {
+
+    @Override
+    protected IStateHistoryBackend instantiateBackend(long startTime) {
+        return new HistoryTreeBackend(SSID, fTempFile, PROVIDER_VERSION, startTime, BLOCK_SIZE, MAX_CHILDREN, 2 * BLOCK_SIZE, 0);
+    }
+
+}
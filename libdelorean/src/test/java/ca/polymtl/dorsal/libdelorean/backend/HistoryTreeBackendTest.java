@@ -43,11 +43,11 @@ public class HistoryTreeBackendTest extends StateHistoryBackendTestBase {
     /**
      * Default maximum number of children nodes
      */
-    private static final int MAX_CHILDREN = 2;
+    protected static final int MAX_CHILDREN = 2;
     /**
      * Default block size
      */
-    private static final int BLOCK_SIZE = 4096;
+    protected static final int BLOCK_SIZE = 4096;
 
     /**
      * History tree file
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the {@link HybridBackend} class. The tests of the base class use an
+ * empty memory budget, so that the history is moved to disk as soon as it is
+ * started.
+ */
+class HybridBackendTest extends StateHistoryBackendTestBase {
+
+    private static final @NotNull String SSID = "test"; //$NON-NLS-1$
+    private static final int PROVIDER_VERSION = 0;
+
+    private File fTempFile;
+
+    @Override
+    public void setup(List<StateInterval> intervals) {
+        fTempFile = createTempFile();
+        super.setup(intervals);
+    }
+
+    @Override
+    @AfterEach
+    public void teardown() {
+        super.teardown();
+        if (fTempFile != null) {
+            fTempFile.delete();
+        }
+    }
+
+    private static File createTempFile() {
+        try {
+            File file = File.createTempFile(HybridBackendTest.class.getSimpleName(), ".ht"); //$NON-NLS-1$
+            /* The backend only creates the file if it needs it */
+            file.delete();
+            return file;
+        } catch (IOException e) {
+            fail(e.getMessage());
+            return null;
+        }
+    }
+
+    @Override
+    protected IStateHistoryBackend instantiateBackend(long startTime) {
+        return StateHistoryBackendFactory.createHybridBackend(SSID, fTempFile, PROVIDER_VERSION, startTime, false, 0);
+    }
+
+    @Override
+    protected void afterInsertionCb() {
+        assertTrue(((HybridBackend) fBackend).isOnDisk());
+    }
+
+    /**
+     * Small histories should stay in memory.
+     */
+    @Test
+    void testStaysInMemory() {
+        fTempFile = createTempFile();
+        HybridBackend backend = (HybridBackend) StateHistoryBackendFactory.createHybridBackend(SSID, fTempFile, PROVIDER_VERSION, 0, false);
+        backend.insertPastState(0, 9, 0, StateValue.newValueInt(1));
+        backend.finishBuilding(9);
+
+        assertFalse(backend.isOnDisk());
+        assertFalse(fTempFile.exists());
+        assertNull(backend.supplyAttributeTreeWriterFile());
+        assertEquals(StateValue.newValueInt(1), backend.doSingularQuery(5, 0).getStateValue());
+        backend.dispose();
+    }
+
+    /**
+     * Build a history going over the memory budget halfway through, and check
+     * that all the intervals are still there, before and after the switch.
+     */
+    @Test
+    void testMoveToDisk() {
+        final int nbQuarks = 1000;
+        final int nbRows = 200;
+        fTempFile = createTempFile();
+        HybridBackend backend = (HybridBackend) StateHistoryBackendFactory.createHybridBackend(SSID, fTempFile, PROVIDER_VERSION, 0, false, 2 * 1024 * 1024);
+
+        long switchTime = -1;
+        for (int row = 0; row < nbRows; row++) {
+            for (int quark = 0; quark < nbQuarks; quark++) {
+                backend.insertPastState(row * 10, row * 10 + 9, quark, StateValue.newValueLong(row * quark));
+            }
+            if (switchTime == -1 && backend.isOnDisk()) {
+                switchTime = row * 10;
+            } else if (row == 1) {
+                /* Queries should work while the history is in memory */
+                assertEquals(StateValue.newValueLong(nbQuarks - 1), backend.doSingularQuery(15, nbQuarks - 1).getStateValue());
+            }
+        }
+        backend.finishBuilding(nbRows * 10 - 1);
+
+        assertTrue(switchTime > 0 && switchTime < nbRows * 10);
+        assertTrue(fTempFile.exists());
+        assertEquals(fTempFile, backend.supplyAttributeTreeWriterFile());
+
+        for (long t = 0; t < nbRows * 10; t += 5) {
+            List<StateInterval> stateInfo = new ArrayList<>(Collections.nCopies(nbQuarks, null));
+            backend.doQuery(stateInfo, t);
+            long row = t / 10;
+            for (int quark = 0; quark < nbQuarks; quark++) {
+                StateInterval interval = stateInfo.get(quark);
+                assertNotNull(interval);
+                assertEquals(row * 10, interval.getStart());
+                assertEquals(StateValue.newValueLong(row * quark), interval.getStateValue());
+            }
+        }
+        backend.dispose();
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend;
+
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
+import ca.polymtl.dorsal.libdelorean.StateSystemFactory;
+import ca.polymtl.dorsal.libdelorean.exceptions.TimeRangeException;
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import com.google.common.collect.ImmutableSet;
+import org.jetbrains.annotations.NotNull;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test the {@link PartialHistoryBackend}, by comparing it with a complete
+ * history built from the same state changes.
+ */
+class PartialHistoryBackendTest {
+
+    private static final String SSID = "test-ss"; //$NON-NLS-1$
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 10000;
+    private static final long CHECKPOINT_INTERVAL = 700;
+    private static final int NB_THREADS = 20;
+
+    private static final List<StateChange> STATE_CHANGES = new ArrayList<>();
+
+    private static IStateHistoryBackend sReference;
+    private static IStateHistoryBackend sPartial;
+    private static IStateSystemWriter sPartialSs;
+    private static int sNbAttributes;
+    private static int sNbReplays = 0;
+
+    private static final class StateChange {
+        final long time;
+        final String thread;
+        final int value;
+
+        StateChange(long time, String thread, int value) {
+            this.time = time;
+            this.thread = thread;
+            this.value = value;
+        }
+
+        void apply(IStateSystemWriter ss) {
+            int quark = ss.getQuarkAbsoluteAndAdd("Threads", thread, "Status"); //$NON-NLS-1$ //$NON-NLS-2$
+            StateValue sv = (value == 0 ? StateValue.nullValue() : StateValue.newValueInt(value));
+            ss.modifyAttribute(time, sv, quark);
+        }
+    }
+
+    private static final class TestReplayer implements PartialHistoryBackend.Replayer {
+
+        @Override
+        public @NotNull List<String[]> attributes() {
+            return IntStream.range(0, sPartialSs.getNbAttributes())
+                    .mapToObj(sPartialSs::getFullAttributePathArray)
+                    .collect(Collectors.toList());
+        }
+
+        @Override
+        public void replay(@NotNull IStateSystemWriter ss, long start, long end) {
+            sNbReplays++;
+            STATE_CHANGES.stream()
+                    .filter(change -> change.time > start && change.time <= end)
+                    .forEach(change -> change.apply(ss));
+        }
+    }
+
+    /**
+     * Build the reference and the partial histories
+     */
+    @BeforeAll
+    static void setup() {
+        /* Threads appear over time, so some attributes only exist later on */
+        Random random = new Random(42);
+        for (long t = START_TIME + 1; t < END_TIME; t += 1 + random.nextInt(5)) {
+            int thread = random.nextInt((int) (NB_THREADS * t / END_TIME) + 1);
+            STATE_CHANGES.add(new StateChange(t, String.valueOf(thread), random.nextInt(4)));
+        }
+
+        sReference = StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME);
+        IStateSystemWriter referenceSs = StateSystemFactory.newStateSystem(sReference);
+        STATE_CHANGES.forEach(change -> change.apply(referenceSs));
+        referenceSs.closeHistory(END_TIME);
+        sNbAttributes = referenceSs.getNbAttributes();
+
+        sPartial = new PartialHistoryBackend(SSID, StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME),
+                CHECKPOINT_INTERVAL, new TestReplayer(), false);
+        sPartialSs = StateSystemFactory.newStateSystem(sPartial);
+        STATE_CHANGES.forEach(change -> change.apply(sPartialSs));
+        sPartialSs.closeHistory(END_TIME);
+    }
+
+    /**
+     * The partial history should cover the same time range as the complete
+     * one.
+     */
+    @Test
+    void testTimeRange() {
+        assertEquals(sReference.getStartTime(), sPartial.getStartTime());
+        assertEquals(sReference.getEndTime(), sPartial.getEndTime());
+    }
+
+    /**
+     * Full and singular queries should return the same intervals, with the
+     * same start and end times, as the complete history.
+     */
+    @Test
+    void testQueries() {
+        for (long t = START_TIME; t <= END_TIME; t++) {
+            List<StateInterval> reference = new ArrayList<>(Collections.nCopies(sNbAttributes, null));
+            List<StateInterval> partial = new ArrayList<>(Collections.nCopies(sNbAttributes, null));
+            sReference.doQuery(reference, t);
+            sPartial.doQuery(partial, t);
+            assertEquals(reference, partial);
+
+            for (int quark = 0; quark < sNbAttributes; quark++) {
+                assertEquals(reference.get(quark), sPartial.doSingularQuery(t, quark));
+            }
+        }
+    }
+
+    /**
+     * Range queries over several windows should return each interval once.
+     */
+    @Test
+    void testRangeQuery() {
+        Set<Integer> quarks = ImmutableSet.of(0, sNbAttributes / 2, sNbAttributes - 1);
+        Comparator<StateInterval> order = Comparator.comparingLong(StateInterval::getStart).thenComparingInt(StateInterval::getAttribute);
+
+        List<StateInterval> expected = new ArrayList<>();
+        sReference.doRangeQuery(quarks, 2000, 8000).forEachRemaining(expected::add);
+        List<StateInterval> results = new ArrayList<>();
+        sPartial.doRangeQuery(quarks, 2000, 8000).forEachRemaining(results::add);
+
+        for (int i = 1; i < results.size(); i++) {
+            assertTrue(results.get(i - 1).getStart() <= results.get(i).getStart());
+        }
+        expected.sort(order);
+        results.sort(order);
+        assertEquals(expected, results);
+    }
+
+    /**
+     * Repeated queries in the same window should only replay it once.
+     */
+    @Test
+    void testReplayCache() {
+        sPartial.doSingularQuery(5000, 0);
+        int nbReplays = sNbReplays;
+        for (long t = 4900; t < 5600; t++) {
+            sPartial.doSingularQuery(t, 0);
+        }
+        assertEquals(nbReplays, sNbReplays);
+    }
+
+    /**
+     * Partial histories cannot be queried while they are being built.
+     */
+    @Test
+    void testQueryDuringBuild() {
+        IStateHistoryBackend backend = new PartialHistoryBackend(SSID, StateHistoryBackendFactory.createInMemoryBackend(SSID, START_TIME),
+                CHECKPOINT_INTERVAL, new TestReplayer(), false);
+        backend.insertPastState(START_TIME, 100, 0, StateValue.nullValue());
+        assertThrows(TimeRangeException.class, () -> backend.doSingularQuery(50, 0));
+    }
+}
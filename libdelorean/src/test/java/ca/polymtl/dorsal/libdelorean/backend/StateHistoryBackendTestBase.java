@@ -10,6 +10,7 @@
 
 package ca.polymtl.dorsal.libdelorean.backend;
 
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
 import ca.polymtl.dorsal.libdelorean.interval.StateInterval;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import com.google.common.collect.ImmutableSet;
@@ -22,6 +23,7 @@ import org.junit.jupiter.params.provider.MethodSource;
 
 
 import java.util.*;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -265,6 +267,96 @@ public abstract class StateHistoryBackendTestBase {
         }
     }
 
+    /**
+     * Test the range query method
+     * {@link IStateHistoryBackend#doRangeQuery(Set, long, long)}, making sure
+     * all, and only, the inserted intervals intersecting the range are
+     * returned, in order of start times.
+     */
+    @ParameterizedTest
+    @MethodSource("parameters")
+    void testRangeQuery(String name, List<StateInterval> intervals, int nbAttributes) {
+        setup(intervals);
+
+        IStateHistoryBackend backend = fBackend;
+        assertNotNull(backend);
+
+        /* Take only half the quarks, using even numbers. */
+        final Set<Integer> quarks = IntStream.iterate(0, i -> i + 2).limit(Math.max(1, nbAttributes / 2))
+                .boxed()
+                .collect(ImmutableSet.toImmutableSet());
+
+        long[][] ranges = {
+                { START_TIME, END_TIME },
+                { 100, 200 },
+                { END_TIME / 2, END_TIME / 2 },
+                { START_TIME - 100, 50 },
+                { END_TIME - 10, END_TIME + 100 }
+        };
+        for (long[] range : ranges) {
+            List<StateInterval> results = new ArrayList<>();
+            backend.doRangeQuery(quarks, range[0], range[1]).forEachRemaining(results::add);
+
+            for (int i = 1; i < results.size(); i++) {
+                assertTrue(results.get(i - 1).getStart() <= results.get(i).getStart());
+            }
+
+            Set<String> expected = intervals.stream()
+                    .filter(interval -> quarks.contains(interval.getAttribute()))
+                    .filter(interval -> interval.getStart() <= range[1] && interval.getEnd() >= range[0])
+                    .map(StateHistoryBackendTestBase::intervalKey)
+                    .collect(Collectors.toSet());
+            Set<String> actual = results.stream()
+                    .map(StateHistoryBackendTestBase::intervalKey)
+                    .collect(Collectors.toSet());
+            assertEquals(expected, actual);
+            assertEquals(expected.size(), results.size());
+        }
+    }
+
+    /**
+     * Test the range aggregate query method
+     * {@link IStateHistoryBackend#doRangeAggregateQuery(int, long, long)},
+     * comparing it with the aggregate of the inserted intervals intersecting
+     * the range.
+     */
+    @ParameterizedTest
+    @MethodSource("parameters")
+    void testRangeAggregate(String name, List<StateInterval> intervals, int nbAttributes) {
+        setup(intervals);
+
+        IStateHistoryBackend backend = fBackend;
+        assertNotNull(backend);
+
+        int[] quarks = { 0, nbAttributes / 2, nbAttributes - 1 };
+        long[][] ranges = {
+                { START_TIME, END_TIME },
+                { 100, 200 },
+                { END_TIME / 2, END_TIME / 2 },
+                { START_TIME - 100, 50 },
+                { END_TIME - 10, END_TIME + 100 }
+        };
+        for (int quark : quarks) {
+            for (long[] range : ranges) {
+                long rangeStart = Math.max(range[0], backend.getStartTime());
+                long rangeEnd = Math.min(range[1], backend.getEndTime());
+                RangeAggregate expected = intervals.stream()
+                        .filter(interval -> interval.getAttribute() == quark)
+                        .filter(interval -> interval.getStart() <= rangeEnd && interval.getEnd() >= rangeStart)
+                        .map(interval -> RangeAggregate.of(interval, rangeStart, rangeEnd))
+                        .reduce(RangeAggregate.EMPTY, RangeAggregate::plus);
+
+                assertEquals(expected, backend.doRangeAggregateQuery(quark, range[0], range[1]),
+                        "Quark " + quark + ", range " + range[0] + "-" + range[1]); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+            }
+        }
+    }
+
+    /* Intervals returned by backends may be of a subclass, compare their contents only */
+    private static String intervalKey(StateInterval interval) {
+        return interval.getStart() + "-" + interval.getEnd() + "-" + interval.getAttribute() + "-" + interval.getStateValue(); //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$
+    }
+
     /**
      * Test that the backend time is set correctly.
      */
@@ -0,0 +1,380 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+package ca.polymtl.dorsal.libdelorean.backend.historytree;
+
+import ca.polymtl.dorsal.libdelorean.interval.RangeAggregate;
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests for the different versions and optional features of the history tree
+ * file format.
+ */
+class HistoryTreeFileFormatTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_CHILDREN = 3;
+    private static final int PROVIDER_VERSION = 1;
+    private static final long START_TIME = 0;
+    private static final long END_TIME = 5000;
+    private static final int NB_ATTRIBUTES = 5;
+
+    private File fTempFile;
+
+    /**
+     * Create the temporary file
+     */
+    @BeforeEach
+    void setup() throws IOException {
+        fTempFile = File.createTempFile(getClass().getSimpleName(), ".ht"); //$NON-NLS-1$
+    }
+
+    /**
+     * Delete the temporary file
+     */
+    @AfterEach
+    void cleanup() {
+        fTempFile.delete();
+    }
+
+    private void buildTree(int features) throws IOException {
+        HistoryTree ht = new HistoryTree(fTempFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, START_TIME,
+                HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE, features);
+        for (long t = START_TIME + 1; t <= END_TIME; t++) {
+            int quark = (int) (t % NB_ATTRIBUTES);
+            ht.insertInterval(new HTInterval(t - 1, t - 1, quark, StateValue.newValueInt((int) t)));
+        }
+        ht.closeTree(END_TIME);
+        ht.closeFile();
+    }
+
+    private static void checkTree(HistoryTree ht) throws IOException {
+        assertEquals(START_TIME, ht.getTreeStart());
+        assertEquals(END_TIME, ht.getTreeEnd());
+        for (long t = START_TIME; t < END_TIME; t++) {
+            int quark = (int) ((t + 1) % NB_ATTRIBUTES);
+            HistoryTreeNode node = ht.getRootNode();
+            HTInterval interval = node.getRelevantInterval(quark, t);
+            while (interval == null) {
+                node = ht.selectNextChild((CoreNode) node, t);
+                interval = node.getRelevantInterval(quark, t);
+            }
+            assertEquals(StateValue.newValueInt((int) (t + 1)), interval.getStateValue());
+        }
+    }
+
+    /**
+     * Compressed blocks should be readable back, and take less space than the
+     * fixed-size ones.
+     */
+    @Test
+    void testCompressedBlocks() throws IOException {
+        buildTree(0);
+        long uncompressedSize = fTempFile.length();
+
+        buildTree(HistoryTree.FEATURE_COMPRESSED_BLOCKS);
+        long compressedSize = fTempFile.length();
+        assertTrue(compressedSize < uncompressedSize / 2);
+
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_COMPRESSED_BLOCKS));
+        checkTree(ht);
+        ht.closeFile();
+    }
+
+    /**
+     * Nodes with a quark directory should give the same results as the
+     * legacy layout, also when combined with compressed blocks.
+     */
+    @Test
+    void testNodeIndex() throws IOException {
+        buildTree(HistoryTree.FEATURE_NODE_INDEX);
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_NODE_INDEX));
+        checkTree(ht);
+        ht.closeFile();
+
+        buildTree(HistoryTree.FEATURE_NODE_INDEX | HistoryTree.FEATURE_COMPRESSED_BLOCKS);
+        ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_NODE_INDEX));
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_COMPRESSED_BLOCKS));
+        checkTree(ht);
+        ht.closeFile();
+    }
+
+    /**
+     * Quark filters should never reject a quark present in the node, and
+     * should reject most of the others.
+     */
+    @Test
+    void testQuarkFilter() throws IOException {
+        buildTree(HistoryTree.FEATURE_QUARK_FILTER);
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_QUARK_FILTER));
+        checkTree(ht);
+
+        int nbRejected = 0;
+        for (int seq = 0; seq < ht.getNodeCount(); seq++) {
+            HistoryTreeNode node = ht.readNode(seq);
+            for (long t = node.getNodeStart(); t <= node.getNodeEnd(); t++) {
+                node.intervalIterator(t, null).forEachRemaining(interval ->
+                        assertTrue(node.mayContain(interval.getAttribute())));
+            }
+            for (int quark = NB_ATTRIBUTES; quark < 2 * NB_ATTRIBUTES; quark++) {
+                if (!node.mayContain(quark)) {
+                    nbRejected++;
+                }
+            }
+        }
+        assertTrue(nbRejected > ht.getNodeCount() * NB_ATTRIBUTES / 2);
+        ht.closeFile();
+
+        buildTree(HistoryTree.FEATURE_QUARK_FILTER | HistoryTree.FEATURE_NODE_INDEX);
+        ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        checkTree(ht);
+        ht.closeFile();
+    }
+
+    /**
+     * Core nodes should keep the aggregate of the values of their subtree,
+     * also when combined with the other node layouts.
+     */
+    @Test
+    void testAggregates() throws IOException {
+        for (int features : new int[] { HistoryTree.FEATURE_AGGREGATES,
+                HistoryTree.FEATURE_AGGREGATES | HistoryTree.FEATURE_NODE_INDEX | HistoryTree.FEATURE_QUARK_FILTER,
+                HistoryTree.FEATURE_AGGREGATES | HistoryTree.FEATURE_COMPACT_INTERVALS | HistoryTree.FEATURE_COMPRESSED_BLOCKS }) {
+            buildTree(features);
+            HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+            assertTrue(ht.hasFeature(HistoryTree.FEATURE_AGGREGATES));
+            checkTree(ht);
+
+            int nbCoreNodes = 0;
+            for (int seq = 0; seq < ht.getNodeCount(); seq++) {
+                HistoryTreeNode node = ht.readNode(seq);
+                if (!(node instanceof CoreNode)) {
+                    assertNull(node.getSubtreeAggregate(0));
+                    continue;
+                }
+                nbCoreNodes++;
+                for (int quark = 0; quark < NB_ATTRIBUTES; quark++) {
+                    /* The subtree contains every interval of the node's time range */
+                    RangeAggregate expected = RangeAggregate.EMPTY;
+                    for (long t = node.getNodeStart() + 1; t <= Math.min(node.getNodeEnd() + 1, END_TIME); t++) {
+                        if (t % NB_ATTRIBUTES == quark) {
+                            expected = expected.plus(new RangeAggregate(t, t, t, 1, 1));
+                        }
+                    }
+                    assertEquals(expected, node.getSubtreeAggregate(quark));
+                }
+                /* Few enough quarks, absent ones are known to be empty */
+                assertEquals(RangeAggregate.EMPTY, node.getSubtreeAggregate(NB_ATTRIBUTES));
+            }
+            assertTrue(nbCoreNodes > 0);
+            ht.closeFile();
+        }
+
+        /* Trees without the feature do not have any */
+        buildTree(HistoryTree.FEATURE_NODE_INDEX);
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertNull(ht.getRootNode().getSubtreeAggregate(0));
+        ht.closeFile();
+    }
+
+    private static final String[] STRING_VALUES = { "sys_read", "sys_write", "sys_poll", "sys_futex", "swapper/0" }; //$NON-NLS-1$ //$NON-NLS-2$ //$NON-NLS-3$ //$NON-NLS-4$ //$NON-NLS-5$
+
+    private static StateValue stringValueAt(long t) {
+        return StateValue.newValueString(STRING_VALUES[(int) (t % 7 % STRING_VALUES.length)]);
+    }
+
+    private void buildStringTree(int features) throws IOException {
+        HistoryTree ht = new HistoryTree(fTempFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, START_TIME,
+                HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE, features);
+        for (long t = START_TIME + 1; t <= END_TIME; t++) {
+            int quark = (int) (t % NB_ATTRIBUTES);
+            ht.insertInterval(new HTInterval(t - 1, t - 1, quark, stringValueAt(t)));
+        }
+        ht.closeTree(END_TIME);
+        ht.closeFile();
+    }
+
+    /**
+     * Nodes with a string dictionary should give back the same string values,
+     * sharing the same value objects within a node, and take less space.
+     */
+    @Test
+    void testStringDictionary() throws IOException {
+        buildStringTree(0);
+        long inlineSize = fTempFile.length();
+
+        for (int features : new int[] { HistoryTree.FEATURE_STRING_DICTIONARY,
+                HistoryTree.FEATURE_STRING_DICTIONARY | HistoryTree.FEATURE_NODE_INDEX | HistoryTree.FEATURE_QUARK_FILTER }) {
+            buildStringTree(features);
+            assertTrue(fTempFile.length() < inlineSize);
+
+            HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+            assertTrue(ht.hasFeature(HistoryTree.FEATURE_STRING_DICTIONARY));
+            for (long t = START_TIME; t < END_TIME; t++) {
+                int quark = (int) ((t + 1) % NB_ATTRIBUTES);
+                HistoryTreeNode node = ht.getRootNode();
+                HTInterval interval = node.getRelevantInterval(quark, t);
+                while (interval == null) {
+                    node = ht.selectNextChild((CoreNode) node, t);
+                    interval = node.getRelevantInterval(quark, t);
+                }
+                assertEquals(stringValueAt(t + 1), interval.getStateValue());
+
+                /* Same string in the same node, same value object */
+                HTInterval other = node.getRelevantInterval(quark, t);
+                assertNotNull(other);
+                assertSame(interval.getStateValue(), other.getStateValue());
+            }
+            ht.closeFile();
+        }
+    }
+
+    /**
+     * Compact intervals should be read back the same, and fit in fewer nodes.
+     */
+    @Test
+    void testCompactIntervals() throws IOException {
+        buildTree(0);
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        int nbNodes = ht.getNodeCount();
+        ht.closeFile();
+
+        buildTree(HistoryTree.FEATURE_COMPACT_INTERVALS);
+        ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertTrue(ht.hasFeature(HistoryTree.FEATURE_COMPACT_INTERVALS));
+        assertTrue(ht.getNodeCount() < nbNodes);
+        checkTree(ht);
+        ht.closeFile();
+
+        buildTree(HistoryTree.FEATURE_COMPACT_INTERVALS | HistoryTree.FEATURE_NODE_INDEX | HistoryTree.FEATURE_QUARK_FILTER);
+        ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        checkTree(ht);
+        ht.closeFile();
+    }
+
+    /**
+     * All types of values, including the extremes of the variable-length
+     * encodings, should be read back the same with the compact layout.
+     */
+    @Test
+    void testCompactIntervalsValues() throws IOException {
+        StateValue[] values = {
+                StateValue.nullValue(),
+                StateValue.newValueBoolean(true),
+                StateValue.newValueBoolean(false),
+                StateValue.newValueInt(0),
+                StateValue.newValueInt(-1),
+                StateValue.newValueInt(Integer.MIN_VALUE),
+                StateValue.newValueInt(Integer.MAX_VALUE),
+                StateValue.newValueLong(Long.MIN_VALUE),
+                StateValue.newValueLong(Long.MAX_VALUE),
+                StateValue.newValueDouble(-1.5),
+                StateValue.newValueString("inline"), //$NON-NLS-1$
+                StateValue.newValueString("") //$NON-NLS-1$
+        };
+
+        for (int features : new int[] { HistoryTree.FEATURE_COMPACT_INTERVALS,
+                HistoryTree.FEATURE_COMPACT_INTERVALS | HistoryTree.FEATURE_STRING_DICTIONARY | HistoryTree.FEATURE_NODE_INDEX }) {
+            HistoryTree ht = new HistoryTree(fTempFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, START_TIME,
+                    HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE, features);
+            for (int i = 0; i < values.length; i++) {
+                /* One long interval per quark, then one ending at the very end of times */
+                ht.insertInterval(new HTInterval(START_TIME, END_TIME, i, values[i]));
+            }
+            ht.insertInterval(new HTInterval(START_TIME, Long.MAX_VALUE, values.length, StateValue.nullValue()));
+            ht.closeTree(Long.MAX_VALUE);
+            ht.closeFile();
+
+            ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+            HistoryTreeNode root = ht.getRootNode();
+            for (int i = 0; i < values.length; i++) {
+                HTInterval interval = root.getRelevantInterval(i, END_TIME / 2);
+                assertNotNull(interval);
+                assertEquals(START_TIME, interval.getStart());
+                assertEquals(END_TIME, interval.getEnd());
+                assertEquals(values[i], interval.getStateValue());
+            }
+            HTInterval interval = root.getRelevantInterval(values.length, END_TIME / 2);
+            assertNotNull(interval);
+            assertEquals(Long.MAX_VALUE, interval.getEnd());
+            ht.closeFile();
+        }
+    }
+
+    /**
+     * Strings that are not valid UTF-16, like one with an unpaired surrogate,
+     * should be written with the character replaced by '?', in every layout.
+     */
+    @Test
+    void testUnpairedSurrogate() throws IOException {
+        for (int features : new int[] { 0, HistoryTree.FEATURE_STRING_DICTIONARY, HistoryTree.FEATURE_COMPACT_INTERVALS }) {
+            HistoryTree ht = new HistoryTree(fTempFile, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, START_TIME,
+                    HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE, features);
+            ht.insertInterval(new HTInterval(START_TIME, END_TIME, 0, StateValue.newValueString("a\uD800b"))); //$NON-NLS-1$
+            ht.closeTree(END_TIME);
+            ht.closeFile();
+
+            ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+            HTInterval interval = ht.getRootNode().getRelevantInterval(0, END_TIME / 2);
+            assertNotNull(interval);
+            assertEquals(StateValue.newValueString("a?b"), interval.getStateValue()); //$NON-NLS-1$
+            ht.closeFile();
+        }
+    }
+
+    /**
+     * Files of the previous format version, without the optional features
+     * fields, should still be readable.
+     */
+    @Test
+    void testReadVersion7() throws IOException {
+        buildTree(0);
+
+        /* Rewrite the file as a version 7 one */
+        try (RandomAccessFile raf = new RandomAccessFile(fTempFile, "rw")) { //$NON-NLS-1$
+            raf.seek(4);
+            raf.write(new byte[] { 7, 0, 0, 0 });
+            raf.seek(36);
+            raf.write(new byte[12]);
+        }
+
+        HistoryTree ht = new HistoryTree(fTempFile, PROVIDER_VERSION);
+        assertFalse(ht.hasFeature(HistoryTree.FEATURE_COMPRESSED_BLOCKS));
+        checkTree(ht);
+        ht.closeFile();
+    }
+
+    /**
+     * Files using features unknown to this version should be refused.
+     */
+    @Test
+    void testUnknownFeature() throws IOException {
+        buildTree(0);
+
+        try (RandomAccessFile raf = new RandomAccessFile(fTempFile, "rw")) { //$NON-NLS-1$
+            raf.seek(36);
+            raf.write(new byte[] { 0, 0, 0, 0x40 });
+        }
+
+        assertThrows(IOException.class, () -> new HistoryTree(fTempFile, PROVIDER_VERSION));
+    }
+}
@@ -305,6 +305,35 @@ class HistoryTreeTest {
         assertEquals( 4, branch.get(2).getParentSeqNumber());
     }
 
+    /**
+     * Test that a failure of the background writer thread is reported, and
+     * does not let the tree be closed as if the nodes had been written.
+     */
+    @Test
+    void testWriterFailure() throws IOException {
+        HistoryTree ht = setupSmallTree();
+        fillValues(ht, STRING_VALUE, 200, 1);
+        ht.closeTree(1000);
+        ht.closeFile();
+
+        /* Nodes read from disk cannot be serialized again, writing one fails */
+        ht = new HistoryTree(fTempFile, 1);
+        HistoryTreeNode node = ht.readNode(0);
+        ht.closeFile();
+
+        File otherFile = File.createTempFile("tmpStateSystem", null); //$NON-NLS-1$
+        try {
+            HT_IO io = new HT_IO(otherFile, BLOCK_SIZE, 3, true, false,
+                    HistoryTree.DEFAULT_NODE_CACHE_SIZE, 2, 0);
+            io.writeNode(node);
+            assertThrows(IllegalStateException.class, io::flush);
+            assertThrows(IllegalStateException.class, () -> io.writeNode(node));
+            io.closeFile();
+        } finally {
+            otherFile.delete();
+        }
+    }
+
     private static HistoryTreeNode getLatestLeaf(HistoryTree ht) {
         List<HistoryTreeNode> latest = ht.getLatestBranch();
         return Iterables.getLast(latest);
@@ -9,11 +9,15 @@
 
 package ca.polymtl.dorsal.libdelorean.statedump;
 
+import ca.polymtl.dorsal.libdelorean.IStateSystemWriter;
+import ca.polymtl.dorsal.libdelorean.StateSystemFactory;
+import ca.polymtl.dorsal.libdelorean.backend.StateHistoryBackendFactory;
 import ca.polymtl.dorsal.libdelorean.statevalue.StateValue;
 import com.google.common.io.MoreFiles;
 import org.junit.jupiter.api.Test;
 
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.Arrays;
@@ -92,6 +96,144 @@ public class StatedumpTest {
         }
     }
 
+    /**
+     * Statedumps can still be written and read back in the JSON format, and
+     * writing another format replaces the previous file.
+     */
+    @Test
+    public void testJsonFormat() throws IOException {
+        Path dir = Files.createTempDirectory("ss-serialization-test");
+        try {
+            String ssid = "json-ssid";
+            List<String[]> attributes = Arrays.asList(
+                    new String[] { "CPUs" },
+                    new String[] { "CPUs", "0" },
+                    new String[] { "CPUs", "0", "Frequency" },
+                    new String[] { "CPUs", "0", "Load" });
+            List<StateValue> values = Arrays.asList(
+                    StateValue.nullValue(),
+                    StateValue.newValueString("idle"),
+                    StateValue.newValueDouble(Double.NaN),
+                    StateValue.newValueDouble(0.5));
+            Statedump statedump = new Statedump(attributes, values, 2);
+
+            statedump.dumpState(dir, ssid, Statedump.Format.JSON);
+            Statedump results = Statedump.loadState(dir, ssid);
+            assertNotNull(results);
+            assertEquals(2, results.getVersion());
+            assertEquals(attributes.size(), results.getAttributes().size());
+            for (int i = 0; i < attributes.size(); i++) {
+                int newIdx = indexOfArray(results.getAttributes(), attributes.get(i));
+                assertEquals(values.get(i), results.getStates().get(newIdx));
+            }
+
+            /* The binary file replaces the JSON one, and keeps the order */
+            statedump.dumpState(dir, ssid, Statedump.Format.BINARY);
+            assertFalse(Files.exists(dir.resolve(".tc-states").resolve(ssid + ".statedump.json")));
+            results = Statedump.loadState(dir, ssid);
+            assertNotNull(results);
+            for (int i = 0; i < attributes.size(); i++) {
+                assertArrayEquals(attributes.get(i), results.getAttributes().get(i));
+                assertEquals(values.get(i), results.getStates().get(i));
+            }
+        } finally {
+            MoreFiles.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Restore a statedump of a state system directly in a new one, which
+     * should then have the same quarks and ongoing states.
+     */
+    @Test
+    public void testRestoreState() throws IOException {
+        Path dir = Files.createTempDirectory("ss-serialization-test");
+        try {
+            String ssid = "restore-ssid";
+            int version = 3;
+            long timestamp = 100;
+            IStateSystemWriter ss = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend(ssid, 0L));
+            for (int i = 0; i < 100; i++) {
+                int status = ss.getQuarkAbsoluteAndAdd("Threads", String.valueOf(i), "Status");
+                int ppid = ss.getQuarkAbsoluteAndAdd("Threads", String.valueOf(i), "PPID");
+                ss.modifyAttribute(i, StateValue.newValueString(i % 2 == 0 ? "Running" : "Blocked"), status);
+                if (i % 3 == 0) {
+                    ss.modifyAttribute(i, StateValue.newValueLong(i * 1000L), ppid);
+                }
+            }
+            ss.closeHistory(timestamp);
+            new Statedump(ss, timestamp, version).dumpState(dir, ssid);
+
+            IStateSystemWriter restored = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend(ssid, timestamp));
+            assertFalse(Statedump.restoreState(dir, ssid, version + 1, restored, timestamp));
+            assertEquals(0, restored.getNbAttributes());
+            assertTrue(Statedump.restoreState(dir, ssid, version, restored, timestamp));
+            restored.closeHistory(timestamp + 10);
+
+            assertEquals(ss.getNbAttributes(), restored.getNbAttributes());
+            for (int quark = 0; quark < ss.getNbAttributes(); quark++) {
+                assertArrayEquals(ss.getFullAttributePathArray(quark), restored.getFullAttributePathArray(quark));
+                assertEquals(ss.querySingleState(timestamp, quark).getStateValue(),
+                        restored.querySingleState(timestamp + 5, quark).getStateValue());
+            }
+        } finally {
+            MoreFiles.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Truncated binary statedumps should be rejected, without modifying the
+     * state system they were restored into.
+     */
+    @Test
+    public void testTruncatedFile() throws IOException {
+        Path dir = Files.createTempDirectory("ss-serialization-test");
+        try {
+            String ssid = "truncated-ssid";
+            Statedump statedump = new Statedump(
+                    Arrays.asList(new String[] { "a" }, new String[] { "a", "b" }),
+                    Arrays.asList(StateValue.newValueInt(1), StateValue.newValueLong(2L)), 0);
+            statedump.dumpState(dir, ssid);
+            Path filePath = dir.resolve(".tc-states").resolve(ssid + ".statedump.bin");
+            try (RandomAccessFile file = new RandomAccessFile(filePath.toFile(), "rw")) {
+                /* Only the last value is cut */
+                file.setLength(file.length() - 4);
+            }
+
+            assertNull(Statedump.loadState(dir, ssid));
+
+            IStateSystemWriter ss = StateSystemFactory.newStateSystem(StateHistoryBackendFactory.createInMemoryBackend(ssid, 0L));
+            assertFalse(Statedump.restoreState(dir, ssid, 0, ss, 0));
+            assertEquals(0, ss.getNbAttributes());
+            ss.dispose();
+        } finally {
+            MoreFiles.deleteRecursively(dir);
+        }
+    }
+
+    /**
+     * Statedumps of another state system should be rejected.
+     */
+    @Test
+    public void testSsidMismatch() throws IOException {
+        Path dir = Files.createTempDirectory("ss-serialization-test");
+        try {
+            Statedump statedump = new Statedump(
+                    Arrays.asList(new String[] { "a" }, new String[] { "a", "b" }),
+                    Arrays.asList(StateValue.newValueInt(1), StateValue.newValueLong(2L)), 0);
+            statedump.dumpState(dir, "ssid");
+            Path sdPath = dir.resolve(".tc-states");
+            Files.move(sdPath.resolve("ssid.statedump.bin"), sdPath.resolve("other-ssid.statedump.bin"));
+            assertNull(Statedump.loadState(dir, "other-ssid"));
+
+            statedump.dumpState(dir, "ssid", Statedump.Format.JSON);
+            Files.move(sdPath.resolve("ssid.statedump.json"), sdPath.resolve("json-ssid.statedump.json"));
+            assertNull(Statedump.loadState(dir, "json-ssid"));
+        } finally {
+            MoreFiles.deleteRecursively(dir);
+        }
+    }
+
     /**
      * Util method to replace {@link List#indexOf} for a list of arrays.
      * {@link Object#equals} doesn't work with arrays, unfortunately.
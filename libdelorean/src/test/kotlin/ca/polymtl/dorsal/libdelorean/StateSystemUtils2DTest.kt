@@ -16,9 +16,11 @@ import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
 import org.junit.jupiter.api.AfterEach
 import org.junit.jupiter.api.Assertions.assertEquals
 import org.junit.jupiter.api.Assertions.assertFalse
+import org.junit.jupiter.api.Assertions.assertTrue
 import org.junit.jupiter.api.BeforeEach
 import org.junit.jupiter.api.Test
 import org.junit.jupiter.api.fail
+import java.util.concurrent.ForkJoinPool
 
 class StateSystemUtils2DTest {
 
@@ -229,6 +231,96 @@ class StateSystemUtils2DTest {
         assertEquals(expectedIntervals, actualIntervals)
     }
 
+    @Test
+    fun testCursorSteps() {
+        val quarks = setOf(quark1, quark2, quark3, quark4)
+        listOf(1L, 7L, 100L, 500L).forEach { resolution ->
+            val expectedSteps = referenceSteps(1100, 1900, resolution, quarks)
+
+            val actualSteps = mutableListOf<Pair<Long, List<StateInterval>>>()
+            val cursor = stateSystem.cursor2D(1100, 1900, resolution, quarks)
+            while (cursor.next()) {
+                val intervals = (0 until cursor.size).map { i ->
+                    val interval = cursor.intervalAt(i)
+                    assertEquals(cursor.quarkAt(i), interval.attribute)
+                    assertTrue(interval.intersects(cursor.ts))
+                    interval
+                }
+                actualSteps.add(cursor.ts to intervals.sortedBy { it.attribute })
+            }
+            /* Once finished, the cursor stays finished */
+            assertFalse(cursor.next())
+
+            assertEquals(expectedSteps, actualSteps, "Resolution $resolution")
+            assertEquals(expectedSteps, stateSystem.iterator2D(1100, 1900, resolution, quarks).asSequence()
+                    .map { step -> step.ts to step.queryResults.values.sortedBy { it.attribute } }
+                    .toList())
+        }
+    }
+
+    /**
+     * Parallel 2D queries should return the intervals of the sequential
+     * query steps, each quark being handled by exactly one partition.
+     */
+    @Test
+    fun testQuery2DParallel() {
+        val quarks = setOf(quark1, quark2, quark3, quark4)
+        val pool = ForkJoinPool(3)
+        try {
+            listOf(1L, 7L, 100L, 500L).forEach { resolution ->
+                val expected = referenceSteps(1100, 1900, resolution, quarks)
+                        .flatMap { it.second }
+                        .groupBy { it.attribute }
+
+                assertEquals(expected, stateSystem.query2DParallel(1100, 1900, resolution, quarks, pool), "Resolution $resolution")
+
+                listOf(1, 2, 4, 10).forEach { partitions ->
+                    val seenQuarks = stateSystem.parallel2D(1100, 1900, resolution, quarks, pool, partitions) { cursor ->
+                        val partitionQuarks = mutableSetOf<Int>()
+                        while (cursor.next()) {
+                            (0 until cursor.size).forEach { partitionQuarks.add(cursor.quarkAt(it)) }
+                        }
+                        partitionQuarks
+                    }
+                    assertEquals(minOf(partitions, quarks.size), seenQuarks.size)
+                    /* Every quark with intervals is in exactly one partition */
+                    assertEquals(expected.size, seenQuarks.sumBy { it.size })
+                    assertEquals(expected.keys, seenQuarks.flatten().toSet())
+                }
+            }
+        } finally {
+            pool.shutdown()
+        }
+    }
+
+    /**
+     * Straightforward implementation of the 2D query steps, using a queue of
+     * (timestamp, quark) targets, to compare the cursor with.
+     */
+    private fun referenceSteps(rangeStart: Long, rangeEnd: Long, resolution: Long, quarks: Set<Int>): List<Pair<Long, List<StateInterval>>> {
+        val queue = java.util.PriorityQueue<Pair<Long, Int>>(compareBy { it.first })
+        quarks.forEach { queue.offer(rangeStart to it) }
+        val steps = mutableListOf<Pair<Long, List<StateInterval>>>()
+        while (queue.peek().first <= rangeEnd) {
+            val queryTs = queue.peek().first
+            val targets = mutableSetOf<Int>()
+            while (queue.peek()?.first == queryTs) {
+                targets.add(queue.poll().second)
+            }
+            val results = stateSystem.queryStates(queryTs, targets)
+            results.forEach { queue.offer(determineNextQueryTs(it.value, rangeStart, queryTs, resolution) to it.key) }
+            val nextResPoint = if (queryTs == rangeEnd) queryTs + resolution else minOf(queryTs + resolution, rangeEnd)
+            steps.add(queryTs to results.values.filter { it.intersects(nextResPoint) }.sortedBy { it.attribute })
+        }
+        return steps
+    }
+
+    @Test
+    fun testCursorEmpty() {
+        assertFalse(stateSystem.cursor2D(START_TIME, END_TIME, 1, emptySet()).next())
+        assertFalse(stateSystem.cursor2D(END_TIME + 10, END_TIME + 20, 1, setOf(quark1)).next())
+    }
+
     private fun intervalFrom(start: Long, end: Long, quark: Int, intStateValue: Int?): StateInterval =
             StateInterval(start, end, quark,
                     if (intStateValue == null) StateValue.nullValue() else StateValue.newValueInt(intStateValue))
@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2017 EfficiOS Inc., Alexandre Montplaisir <alexmonthy@efficios.com>
+ *
+ * All rights reserved. This program and the accompanying materials are
+ * made available under the terms of the Eclipse Public License v1.0 which
+ * accompanies this distribution, and is available at
+ * http://www.eclipse.org/legal/epl-v10.html
+ */
+
+@file:JvmName("HistoryTreeQueryBenchmark")
+
+package ca.polymtl.dorsal.libdelorean.backend.historytree
+
+import ca.polymtl.dorsal.libdelorean.interval.StateInterval
+import ca.polymtl.dorsal.libdelorean.statevalue.StateValue
+import java.io.File
+import java.util.*
+
+private const val SSID = "benchmark"
+private const val PROVIDER_VERSION = 0
+private const val BLOCK_SIZE = 64 * 1024
+private const val MAX_CHILDREN = 50
+private const val RUNS = 10
+
+private const val NB_ATTRIBUTES = 2000
+private const val NB_INTERVALS = 2_000_000
+private const val NB_QUERIES = 10_000
+private const val NB_PARTIAL_QUARKS = 20
+
+/**
+ * Benchmark of singular and partial queries on history files using the legacy
+ * node layout, where every interval of a node is decoded, and the layouts with
+ * a quark directory ([HistoryTree.FEATURE_NODE_INDEX]) and a quark filter
+ * ([HistoryTree.FEATURE_QUARK_FILTER]) in each node, optionally with the
+ * compact interval encoding ([HistoryTree.FEATURE_COMPACT_INTERVALS]).
+ *
+ * The number of intervals to insert, the number of attributes, and the number
+ * of attributes active at any given time can be passed as parameters. A small
+ * number of active attributes mimics wide state systems where threads come and
+ * go, so that each node only contains a fraction of the attributes.
+ */
+fun main(args: Array<String>) {
+    val nbIntervals = args.getOrNull(0)?.toIntOrNull() ?: NB_INTERVALS
+    val nbAttributes = args.getOrNull(1)?.toIntOrNull() ?: NB_ATTRIBUTES
+    val nbActiveAttributes = args.getOrNull(2)?.toIntOrNull() ?: nbAttributes
+
+    val layouts = listOf(
+            "legacy" to 0,
+            "quark filter" to HistoryTree.FEATURE_QUARK_FILTER,
+            "node index" to HistoryTree.FEATURE_NODE_INDEX,
+            "node index + quark filter" to (HistoryTree.FEATURE_NODE_INDEX or HistoryTree.FEATURE_QUARK_FILTER),
+            "node index + quark filter + compact intervals" to
+                    (HistoryTree.FEATURE_NODE_INDEX or HistoryTree.FEATURE_QUARK_FILTER or HistoryTree.FEATURE_COMPACT_INTERVALS))
+    layouts.forEach { (name, features) ->
+        val file = File.createTempFile("benchmark", ".ht")
+        println("Building history with the $name layout, $nbIntervals intervals, $nbAttributes attributes ($nbActiveAttributes active)")
+        val endTime = buildHistory(file, features, nbIntervals, nbAttributes, nbActiveAttributes)
+        println("File size: ${file.length()} bytes")
+
+        val backend = HistoryTreeBackend(SSID, file, PROVIDER_VERSION)
+
+        /* Use the same queries for every layout and run */
+        val random = Random(42)
+        val timestamps = LongArray(NB_QUERIES) { (random.nextDouble() * endTime).toLong() }
+        val quarks = IntArray(NB_QUERIES) { random.nextInt(nbAttributes) }
+        val partialQuarks = (0 until NB_PARTIAL_QUARKS).map { it * (nbAttributes / NB_PARTIAL_QUARKS) }.toSet()
+
+        fun singularQueries() {
+            for (i in 0 until NB_QUERIES) backend.doSingularQuery(timestamps[i], quarks[i])
+        }
+
+        fun partialQueries() {
+            val results = HashMap<Int, StateInterval>()
+            for (i in 0 until NB_QUERIES) {
+                backend.doPartialQuery(timestamps[i], partialQuarks, results)
+                results.clear()
+            }
+        }
+
+        /* Prime the node cache */
+        singularQueries()
+        partialQueries()
+
+        val results = (1..RUNS).map {
+            val start1 = System.nanoTime()
+            singularQueries()
+            val end1 = System.nanoTime()
+
+            val start2 = System.nanoTime()
+            partialQueries()
+            val end2 = System.nanoTime()
+            Pair(end1 - start1, end2 - start2)
+        }
+
+        val avg1 = results.map { it.first }.average() / NB_QUERIES
+        val avg2 = results.map { it.second }.average() / NB_QUERIES
+        println("Singular query, $name layout, averaged over $RUNS runs: $avg1 ns")
+        println("Partial query of $NB_PARTIAL_QUARKS quarks, $name layout, averaged over $RUNS runs: $avg2 ns")
+        println()
+
+        backend.dispose()
+        file.delete()
+    }
+}
+
+/**
+ * Fill a history file with intervals of random durations. The attributes that
+ * receive state changes are taken from a window of 'nbActiveAttributes' which
+ * slides over all the attributes during the history. Returns the end time of
+ * the history.
+ */
+private fun buildHistory(file: File, features: Int, nbIntervals: Int, nbAttributes: Int, nbActiveAttributes: Int): Long {
+    val ht = HistoryTree(file, BLOCK_SIZE, MAX_CHILDREN, PROVIDER_VERSION, 0,
+            HistoryTree.DEFAULT_NODE_CACHE_SIZE, HistoryTree.DEFAULT_WRITE_QUEUE_SIZE, features)
+
+    val random = Random(0)
+    /* The time at which the current state of each attribute started */
+    val ongoingStart = LongArray(nbAttributes)
+    var time = 0L
+    for (i in 0 until nbIntervals) {
+        time += random.nextInt(10) + 1
+        val windowStart = (i.toLong() * (nbAttributes - nbActiveAttributes) / nbIntervals).toInt()
+        val quark = windowStart + random.nextInt(nbActiveAttributes)
+        ht.insertInterval(HTInterval(ongoingStart[quark], time - 1, quark, StateValue.newValueInt(i)))
+        ongoingStart[quark] = time
+    }
+    /* Close the ongoing states */
+    for (quark in 0 until nbAttributes) {
+        ht.insertInterval(HTInterval(ongoingStart[quark], time, quark, StateValue.nullValue()))
+    }
+    ht.closeTree(time)
+    ht.closeFile()
+    return time
+}